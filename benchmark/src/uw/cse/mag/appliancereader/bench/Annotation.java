@@ -0,0 +1,84 @@
+package uw.cse.mag.appliancereader.bench;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.opencv.core.Point;
+import org.opencv.core.Size;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+/**
+ * LabelMe annotation of a reference image, as found in res/xml.
+ * <b>Every object that is not deleted is a polygon of display features in the
+ * pixels of the annotated image, which has the size stored in the annotation.
+ * @author mhotan
+ */
+public class Annotation {
+
+	/**
+	 * Default annotation relative to the benchmark directory, belongs to DEFAULT_REFERENCE
+	 */
+	public static final String DEFAULT_ANNOTATION = "../res/xml/book.xml";
+
+	private final List<Point[]> mPolygons;
+	private final int mRows, mCols;
+
+	/**
+	 * @param path path of the annotation xml file
+	 */
+	public Annotation(String path){
+		try {
+			Document doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(new File(path));
+			Element size = (Element) doc.getElementsByTagName("imagesize").item(0);
+			mRows = Integer.parseInt(getText(size, "nrows"));
+			mCols = Integer.parseInt(getText(size, "ncols"));
+
+			mPolygons = new ArrayList<Point[]>();
+			NodeList objects = doc.getElementsByTagName("object");
+			for (int o = 0; o < objects.getLength(); ++o) {
+				Element object = (Element) objects.item(o);
+				if ("1".equals(getText(object, "deleted"))) continue;
+				NodeList pts = object.getElementsByTagName("pt");
+				Point[] polygon = new Point[pts.getLength()];
+				for (int p = 0; p < polygon.length; ++p) {
+					Element pt = (Element) pts.item(p);
+					polygon[p] = new Point(Double.parseDouble(getText(pt, "x")),
+							Double.parseDouble(getText(pt, "y")));
+				}
+				if (polygon.length > 0)
+					mPolygons.add(polygon);
+			}
+		} catch (Exception e) {
+			throw new IllegalArgumentException("Unable to read annotation " + path + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * @param size size of the image the polygons are needed for
+	 * @return polygons scaled from the annotated image to an image of size
+	 */
+	public List<Point[]> getPolygons(Size size){
+		double sx = size.width / mCols;
+		double sy = size.height / mRows;
+		List<Point[]> scaled = new ArrayList<Point[]>(mPolygons.size());
+		for (Point[] polygon: mPolygons) {
+			Point[] s = new Point[polygon.length];
+			for (int i = 0; i < polygon.length; ++i)
+				s[i] = new Point(polygon[i].x * sx, polygon[i].y * sy);
+			scaled.add(s);
+		}
+		return scaled;
+	}
+
+	private static String getText(Element parent, String tag){
+		NodeList nodes = parent.getElementsByTagName(tag);
+		if (nodes.getLength() == 0)
+			return null;
+		return nodes.item(0).getTextContent().trim();
+	}
+}
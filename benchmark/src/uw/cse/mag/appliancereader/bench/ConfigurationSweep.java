@@ -0,0 +1,189 @@
+package uw.cse.mag.appliancereader.bench;
+
+import java.io.FileNotFoundException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+import org.opencv.core.Core;
+
+import uw.cse.mag.appliancereader.cv.CVSingletons;
+import uw.cse.mag.appliancereader.cv.PipelineTimer.STAGE;
+import uw.cse.mag.appliancereader.cv.TransformationLibrary;
+import uw.cse.mag.appliancereader.cv.TransformationLibrary.MATCH_PRUNING_METHOD;
+
+/**
+ * Evaluates every combination of detector, extractor, pruning method and homography
+ * estimator over an annotated frame set and reports the latency versus accuracy
+ * Pareto frontier, to choose the defaults of CVSingletons from data.
+ * <b>Every combination is replayed with PipelineRunner and written as a row of a CSV
+ * file.  A combination is on the frontier when no other combination is at least as
+ * fast, as accurate and locates at least as many frames while being strictly better in
+ * one of them.  Combinations that locate fewer than the minimum ratio of frames, or
+ * that can not be scored because no frame is annotated, are left off the frontier.
+ * <b>Usage: ConfigurationSweep [options] [-csv file] [-min-located ratio], see
+ * PipelineOptions.  Every supported estimator is swept unless -h is given.
+ * @author mhotan
+ */
+public class ConfigurationSweep {
+
+	private static final String DEFAULT_CSV = "sweep.csv";
+	private static final String DEFAULT_MIN_LOCATED = "0.5";
+	// The frame stages keep every match of the index trained on the reference
+	private static final MATCH_PRUNING_METHOD DEFAULT_PRUNING = MATCH_PRUNING_METHOD.NONE;
+
+	private static final STAGE[] STAGES = {
+		STAGE.DETECT, STAGE.DESCRIBE, STAGE.MATCH, STAGE.PRUNE, STAGE.HOMOGRAPHY,
+		STAGE.PROJECT, STAGE.TOTAL};
+
+	public static void main(String[] args) throws FileNotFoundException {
+		System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+
+		PipelineOptions options = new PipelineOptions(args,
+				TransformationLibrary.getSupportedHomographyEstimators(), "-csv", "-min-located");
+		String csv = options.getExtra("-csv", DEFAULT_CSV);
+		double minLocated = Double.parseDouble(options.getExtra("-min-located", DEFAULT_MIN_LOCATED));
+		FrameSet frames = options.loadFrames();
+		PipelineRunner runner = new PipelineRunner(frames, options.loadPolygons(frames));
+
+		List<PipelineRunner.Configuration> configs = options.getConfigurations();
+		System.out.println("Frames: " + options.describeFrames(frames)
+				+ "  combinations: " + configs.size());
+		List<PipelineRunner.Result> results = new ArrayList<PipelineRunner.Result>(configs.size());
+		int invalid = 0;
+		for (int i = 0; i < configs.size(); ++i) {
+			PipelineRunner.Result result = runner.run(configs.get(i));
+			results.add(result);
+			if (!result.isValid())
+				invalid++;
+			System.out.println(String.format("[%d/%d] %s: %s", i + 1, configs.size(),
+					configs.get(i), result.isValid() ? String.format("%.1f fps, %d/%d located",
+							result.mFramesPerSecond, result.mLocated, result.mFrames)
+							: "unsupported"));
+		}
+
+		List<PipelineRunner.Result> frontier = getFrontier(results, minLocated);
+		writeCsv(csv, results, frontier);
+
+		System.out.println();
+		System.out.println(String.format("%d combinations, %d unsupported, %d on the frontier"
+				+ " (located >= %.0f%%), written to %s", results.size(), invalid, frontier.size(),
+				minLocated * 100, csv));
+		System.out.println(String.format("%-10s%-10s%-12s%-12s%-12s%-22s%s",
+				"ms/frame", "error px", "located", "detector", "extractor", "pruning", "estimator"));
+		for (PipelineRunner.Result r: frontier)
+			System.out.println(format(r));
+
+		// Where the current defaults stand
+		for (PipelineRunner.Result r: results) {
+			PipelineRunner.Configuration c = r.mConfiguration;
+			if (c.mDetector.equals(CVSingletons.getFeatureDetectorName())
+					&& c.mExtractor.equals(CVSingletons.getDescriptorExtractorName())
+					&& c.mPruning == DEFAULT_PRUNING
+					&& c.mEstimator.equals(CVSingletons.getHomographyEstimatorName())) {
+				System.out.println();
+				System.out.println("Current default" + (frontier.contains(r) ? " (on the frontier):" : ":"));
+				System.out.println(r.isValid() ? format(r) : "unsupported: " + r.mFailure);
+			}
+		}
+	}
+
+	/**
+	 * @return the results no other eligible result dominates, fastest first
+	 */
+	static List<PipelineRunner.Result> getFrontier(List<PipelineRunner.Result> results,
+			double minLocated){
+		List<PipelineRunner.Result> eligible = new ArrayList<PipelineRunner.Result>();
+		for (PipelineRunner.Result r: results) {
+			if (r.isValid() && r.mFramesPerSecond > 0 && !Double.isNaN(r.mError)
+					&& r.getLocatedRatio() >= minLocated)
+				eligible.add(r);
+		}
+		List<PipelineRunner.Result> frontier = new ArrayList<PipelineRunner.Result>();
+		for (PipelineRunner.Result r: eligible) {
+			boolean dominated = false;
+			for (PipelineRunner.Result o: eligible) {
+				if (o != r && dominates(o, r)) {
+					dominated = true;
+					break;
+				}
+			}
+			if (!dominated)
+				frontier.add(r);
+		}
+		Collections.sort(frontier, new Comparator<PipelineRunner.Result>() {
+			@Override
+			public int compare(PipelineRunner.Result a, PipelineRunner.Result b) {
+				return Double.compare(getLatency(a), getLatency(b));
+			}
+		});
+		return frontier;
+	}
+
+	/**
+	 * @return whether a is no worse than b in latency, error and located frames and better in one
+	 */
+	private static boolean dominates(PipelineRunner.Result a, PipelineRunner.Result b){
+		double la = getLatency(a), lb = getLatency(b);
+		if (la > lb || a.mError > b.mError || a.mLocated < b.mLocated)
+			return false;
+		return la < lb || a.mError < b.mError || a.mLocated > b.mLocated;
+	}
+
+	/**
+	 * @return mean milliseconds per frame
+	 */
+	private static double getLatency(PipelineRunner.Result r){
+		return 1000 / r.mFramesPerSecond;
+	}
+
+	private static String format(PipelineRunner.Result r){
+		PipelineRunner.Configuration c = r.mConfiguration;
+		return String.format("%-10.2f%-10.2f%-12s%-12s%-12s%-22s%s", getLatency(r), r.mError,
+				r.mLocated + "/" + r.mFrames, c.mDetector, c.mExtractor, c.mPruning, c.mEstimator);
+	}
+
+	private static void writeCsv(String path, List<PipelineRunner.Result> results,
+			List<PipelineRunner.Result> frontier) throws FileNotFoundException {
+		PrintWriter out = new PrintWriter(path);
+		try {
+			StringBuilder header = new StringBuilder(
+					"detector,extractor,pruning,estimator,status,frames,located,scored,error_px,fps,ms_per_frame");
+			for (STAGE s: STAGES)
+				header.append(',').append(s).append("_p50_ms,").append(s).append("_p95_ms,")
+				.append(s).append("_p99_ms");
+			header.append(",pareto");
+			out.println(header);
+			for (PipelineRunner.Result r: results) {
+				PipelineRunner.Configuration c = r.mConfiguration;
+				StringBuilder row = new StringBuilder();
+				row.append(quote(c.mDetector)).append(',').append(quote(c.mExtractor)).append(',')
+				.append(quote(c.mPruning.toString())).append(',').append(quote(c.mEstimator)).append(',')
+				.append(r.isValid() ? "ok" : quote("unsupported: " + r.mFailure)).append(',')
+				.append(r.mFrames).append(',').append(r.mLocated).append(',').append(r.mScored).append(',')
+				.append(number(r.mError)).append(',').append(number(r.mFramesPerSecond)).append(',')
+				.append(r.mFramesPerSecond > 0 ? number(getLatency(r)) : "");
+				for (STAGE s: STAGES) {
+					long[] p = r.mTimer.getPercentiles(s);
+					for (long v: p)
+						row.append(',').append(number(v / 1e6));
+				}
+				row.append(',').append(frontier.contains(r));
+				out.println(row);
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	private static String number(double value){
+		return Double.isNaN(value) ? "" : String.format(Locale.US, "%.3f", value);
+	}
+
+	private static String quote(String value){
+		return "\"" + value.replace("\"", "\"\"") + "\"";
+	}
+}
@@ -0,0 +1,32 @@
+package uw.cse.mag.appliancereader.bench;
+
+import org.opencv.core.Mat;
+
+/**
+ * Sequence of grey scale frames that show a reference image, together with the true
+ * homography from the reference image to every frame where it is known.
+ * @author mhotan
+ */
+public interface FrameSet {
+
+	/**
+	 * @return grey scale reference image
+	 */
+	public Mat getReference();
+
+	/**
+	 * @return number of frames
+	 */
+	public int size();
+
+	/**
+	 * @return grey scale frame at index
+	 */
+	public Mat getView(int index);
+
+	/**
+	 * @return true homography from the reference image to the frame at index,
+	 * null if the frame is not annotated
+	 */
+	public Mat getHomography(int index);
+}
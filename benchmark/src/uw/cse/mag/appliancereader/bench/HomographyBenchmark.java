@@ -0,0 +1,156 @@
+package uw.cse.mag.appliancereader.bench;
+
+import java.util.Random;
+
+import org.opencv.calib3d.Calib3d;
+import org.opencv.core.Core;
+
+import uw.cse.mag.appliancereader.cv.CVSingletons;
+import uw.cse.mag.appliancereader.cv.TransformationLibrary;
+import uw.cse.mag.appliancereader.cv.homography.HomographyEstimator;
+import uw.cse.mag.appliancereader.cv.homography.HomographyResult;
+import uw.cse.mag.appliancereader.cv.homography.OpenCVHomographyEstimator;
+import uw.cse.mag.appliancereader.cv.homography.RansacHomographyEstimator;
+
+/**
+ * Compares homography estimators on synthetic correspondences.
+ * <b>Inliers are points of a 640x480 frame mapped by a known homography plus gaussian
+ * noise, outliers are uniformly random.  Inliers get lower match distances than
+ * outliers on average, like real descriptor matches, which is what PROSAC exploits.
+ * <b>For every outlier ratio reports the mean latency, the mean number of hypotheses
+ * the mean corner error against the true homography and how often the result
+ * passes the quality check of the frame stages.
+ * <b>The pure Java estimators are constructed directly, so without the OpenCV native library
+ * only the OpenCV RANSAC is left out.
+ * <b>Usage: HomographyBenchmark [correspondences] [trials]
+ * @author mhotan
+ */
+public class HomographyBenchmark {
+
+	private static final double WIDTH = 640, HEIGHT = 480;
+	private static final double NOISE = 0.5;
+	private static final double THRESHOLD = 3;
+	private static final double[] OUTLIER_RATIOS = {0.2, 0.4, 0.6, 0.7};
+	private static final String[] ESTIMATORS = {
+		TransformationLibrary.RANSAC,
+		TransformationLibrary.ADAPTIVE_RANSAC,
+		TransformationLibrary.PROSAC};
+
+	public static void main(String[] args) {
+		boolean opencv = loadOpenCV();
+
+		int count = args.length > 0 ? Integer.parseInt(args[0]) : 300;
+		int trials = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+
+		float[] src = new float[2 * count];
+		float[] dst = new float[2 * count];
+		float[] distances = new float[count];
+
+		System.out.println("correspondences: " + count + " trials: " + trials);
+		System.out.println("outliers\testimator\t\tus/estimate\titerations\tcorner error\tfailures\tgood");
+		for (double outliers: OUTLIER_RATIOS) {
+			for (String name: ESTIMATORS) {
+				if (!opencv && TransformationLibrary.RANSAC.equals(name)) continue;
+				HomographyEstimator estimator = newEstimator(name);
+				Random rand = new Random(7);
+				long elapsed = 0;
+				long iterations = 0;
+				double error = 0;
+				int failures = 0;
+				int good = 0;
+				for (int t = 0; t < trials; ++t) {
+					double[] truth = randomHomography(rand);
+					generate(rand, truth, outliers, count, src, dst, distances);
+
+					long start = System.nanoTime();
+					HomographyResult result = estimator.estimate(src, dst, distances, count);
+					elapsed += System.nanoTime() - start;
+					if (result == null) {
+						failures++;
+						continue;
+					}
+					iterations += result.mIterations;
+					error += getCornerError(truth, result.mHomography);
+					if (result.isGood(CVSingletons.getMinInliers(), CVSingletons.getMinInlierRatio()))
+						good++;
+				}
+				int found = trials - failures;
+				System.out.println(String.format("%.1f\t\t%-16s\t%.1f\t\t%.1f\t\t%.3f\t\t%d\t\t%d",
+						outliers, name, elapsed / 1e3 / trials, (double) iterations / trials,
+						found > 0 ? error / found : Double.NaN, failures, good));
+			}
+		}
+		System.out.println("(OpenCV does not report its iterations)");
+	}
+
+	/**
+	 * @return whether the OpenCV native library could be loaded
+	 */
+	private static boolean loadOpenCV(){
+		try {
+			System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+			return true;
+		} catch (UnsatisfiedLinkError e) {
+			System.out.println("OpenCV native library not found, only the pure Java estimators are run");
+			return false;
+		}
+	}
+
+	/**
+	 * Constructs the estimator directly, the pure Java ones never touch OpenCV
+	 */
+	private static HomographyEstimator newEstimator(String name){
+		if (TransformationLibrary.ADAPTIVE_RANSAC.equals(name))
+			return new RansacHomographyEstimator(THRESHOLD, false);
+		if (TransformationLibrary.PROSAC.equals(name))
+			return new RansacHomographyEstimator(THRESHOLD, true);
+		return new OpenCVHomographyEstimator(Calib3d.RANSAC, THRESHOLD);
+	}
+
+	/**
+	 * Mild perspective around the identity, like a hand held camera
+	 */
+	private static double[] randomHomography(Random rand){
+		double angle = (rand.nextDouble() - 0.5) * 0.4;
+		double scale = 0.8 + rand.nextDouble() * 0.4;
+		return new double[] {
+				scale * Math.cos(angle), -scale * Math.sin(angle), (rand.nextDouble() - 0.5) * 100,
+				scale * Math.sin(angle), scale * Math.cos(angle), (rand.nextDouble() - 0.5) * 100,
+				(rand.nextDouble() - 0.5) * 4e-4, (rand.nextDouble() - 0.5) * 4e-4, 1};
+	}
+
+	private static void generate(Random rand, double[] h, double outliers, int count,
+			float[] src, float[] dst, float[] distances){
+		for (int i = 0; i < count; ++i) {
+			double x = rand.nextDouble() * WIDTH, y = rand.nextDouble() * HEIGHT;
+			src[2 * i] = (float) x;
+			src[2 * i + 1] = (float) y;
+			if (rand.nextDouble() < outliers) {
+				dst[2 * i] = (float) (rand.nextDouble() * WIDTH);
+				dst[2 * i + 1] = (float) (rand.nextDouble() * HEIGHT);
+				distances[i] = (float) (30 + rand.nextDouble() * 50);
+			} else {
+				double w = h[6] * x + h[7] * y + h[8];
+				dst[2 * i] = (float) ((h[0] * x + h[1] * y + h[2]) / w + rand.nextGaussian() * NOISE);
+				dst[2 * i + 1] = (float) ((h[3] * x + h[4] * y + h[5]) / w + rand.nextGaussian() * NOISE);
+				distances[i] = (float) (rand.nextDouble() * 50);
+			}
+		}
+	}
+
+	/**
+	 * @return mean distance between the frame corners mapped by both homographies
+	 */
+	private static double getCornerError(double[] a, double[] b){
+		double[][] corners = {{0, 0}, {WIDTH, 0}, {WIDTH, HEIGHT}, {0, HEIGHT}};
+		double sum = 0;
+		for (double[] c: corners) {
+			double wa = a[6] * c[0] + a[7] * c[1] + a[8];
+			double wb = b[6] * c[0] + b[7] * c[1] + b[8];
+			double dx = (a[0] * c[0] + a[1] * c[1] + a[2]) / wa - (b[0] * c[0] + b[1] * c[1] + b[2]) / wb;
+			double dy = (a[3] * c[0] + a[4] * c[1] + a[5]) / wa - (b[3] * c[0] + b[4] * c[1] + b[5]) / wb;
+			sum += Math.hypot(dx, dy);
+		}
+		return sum / corners.length;
+	}
+}
@@ -0,0 +1,175 @@
+package uw.cse.mag.appliancereader.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfDMatch;
+import org.opencv.core.MatOfKeyPoint;
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.Point;
+import org.opencv.features2d.DMatch;
+import org.opencv.features2d.DescriptorExtractor;
+import org.opencv.features2d.DescriptorMatcher;
+import org.opencv.features2d.FeatureDetector;
+import org.opencv.features2d.KeyPoint;
+
+import uw.cse.mag.appliancereader.cv.CVSingletons;
+import uw.cse.mag.appliancereader.cv.TransformationLibrary;
+import uw.cse.mag.appliancereader.cv.TransformationLibrary.PruningMethodParameters;
+import uw.cse.mag.appliancereader.cv.matching.MatchPruner;
+
+/**
+ * Compares descriptor matchers on the default binary descriptors.
+ * <b>For every matcher reports the mean time to match a view against the reference
+ * and the inlier ratio, the fraction of matches that agree with the true homography
+ * of the synthetic view within INLIER_DISTANCE pixels.
+ * <b>The last row is the matcher trained once on the reference descriptors, 
+ * as used by the frame stages, where only the query is paid per frame, followed by
+ * the ratio test on the two nearest neighbors from that index, with and without the
+ * symmetric check.
+ * <b>Usage: MatcherBenchmark [rounds] [reference image]
+ * @author mhotan
+ */
+public class MatcherBenchmark {
+
+	private static final int NUM_VIEWS = 20;
+	private static final long SEED = 42;
+	private static final double INLIER_DISTANCE = 3;
+	private static final float RATIO = PruningMethodParameters.DEFAULT_RATIO;
+
+	private static final String[] NAMES = {"BRUTEFORCE_SL2", "BRUTEFORCE (L2)", "BRUTEFORCE_HAMMING"};
+	private static final int[] MATCHERS = {
+		DescriptorMatcher.BRUTEFORCE_SL2,
+		DescriptorMatcher.BRUTEFORCE,
+		DescriptorMatcher.BRUTEFORCE_HAMMING};
+
+	public static void main(String[] args) {
+		System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+
+		int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+		String path = args.length > 1 ? args[1] : SyntheticViews.DEFAULT_REFERENCE;
+
+		SyntheticViews views = new SyntheticViews(path, SyntheticViews.DEFAULT_WIDTH, NUM_VIEWS, SEED);
+		FeatureDetector detector = CVSingletons.newFeatureDetector();
+		DescriptorExtractor extractor = CVSingletons.newDescriptorExtractor();
+
+		MatOfKeyPoint refKeyPts = new MatOfKeyPoint();
+		Mat refDescriptors = new Mat();
+		detector.detect(views.getReference(), refKeyPts);
+		extractor.compute(views.getReference(), refKeyPts, refDescriptors);
+
+		MatOfKeyPoint[] keyPts = new MatOfKeyPoint[views.size()];
+		Mat[] descriptors = new Mat[views.size()];
+		for (int i = 0; i < views.size(); ++i) {
+			keyPts[i] = new MatOfKeyPoint();
+			descriptors[i] = new Mat();
+			detector.detect(views.getView(i), keyPts[i]);
+			extractor.compute(views.getView(i), keyPts[i], descriptors[i]);
+		}
+
+		int selected = TransformationLibrary.getMatcherIdentifier(refDescriptors.type());
+		System.out.println("Extractor: " + CVSingletons.getDescriptorExtractorName()
+				+ " binary: " + TransformationLibrary.isBinaryDescriptor(refDescriptors.type())
+				+ " reference key points: " + refKeyPts.rows());
+		System.out.println("matcher\t\t\tms/match\tinlier ratio");
+		for (int m = 0; m < MATCHERS.length; ++m) {
+			DescriptorMatcher matcher = DescriptorMatcher.create(MATCHERS[m]);
+			MatOfDMatch matches = new MatOfDMatch();
+			// Warm up
+			matcher.match(refDescriptors, descriptors[0], matches);
+
+			long elapsed = 0;
+			double inlierRatio = 0;
+			for (int r = 0; r < rounds; ++r) {
+				for (int i = 0; i < views.size(); ++i) {
+					long start = System.nanoTime();
+					matcher.match(refDescriptors, descriptors[i], matches);
+					elapsed += System.nanoTime() - start;
+					if (r == 0)
+						inlierRatio += getInlierRatio(matches, refKeyPts, keyPts[i], views.getHomography(i), false);
+				}
+			}
+			System.out.println(String.format("%-20s%s\t%.3f\t\t%.3f", NAMES[m],
+					MATCHERS[m] == selected ? "*" : " ",
+					elapsed / 1e6 / (rounds * views.size()), inlierRatio / views.size()));
+		}
+
+		// Index trained once on the reference, views are the queries
+		long trainStart = System.nanoTime();
+		DescriptorMatcher trained = TransformationLibrary.getIndexedDescriptorMatcher(refDescriptors.type());
+		List<Mat> train = new ArrayList<Mat>(1);
+		train.add(refDescriptors);
+		trained.add(train);
+		trained.train();
+		double trainMs = (System.nanoTime() - trainStart) / 1e6;
+		MatOfDMatch matches = new MatOfDMatch();
+		long elapsed = 0;
+		double inlierRatio = 0;
+		for (int r = 0; r < rounds; ++r) {
+			for (int i = 0; i < views.size(); ++i) {
+				long start = System.nanoTime();
+				trained.match(descriptors[i], matches);
+				elapsed += System.nanoTime() - start;
+				if (r == 0)
+					inlierRatio += getInlierRatio(matches, refKeyPts, keyPts[i], views.getHomography(i), true);
+			}
+		}
+		System.out.println(String.format("%-20s \t%.3f\t\t%.3f", "TRAINED INDEX",
+				elapsed / 1e6 / (rounds * views.size()), inlierRatio / views.size()));
+
+		// Ratio test on the two nearest neighbors from the same index
+		MatchPruner pruner = new MatchPruner();
+		List<MatOfDMatch> knn = new ArrayList<MatOfDMatch>();
+		for (boolean symmetric: new boolean[] {false, true}) {
+			elapsed = 0;
+			inlierRatio = 0;
+			long kept = 0;
+			for (int r = 0; r < rounds; ++r) {
+				for (int i = 0; i < views.size(); ++i) {
+					long start = System.nanoTime();
+					trained.knnMatch(descriptors[i], knn, 2);
+					pruner.ratioTest(knn, RATIO, symmetric, matches);
+					elapsed += System.nanoTime() - start;
+					if (r == 0) {
+						inlierRatio += getInlierRatio(matches, refKeyPts, keyPts[i], views.getHomography(i), true);
+						kept += matches.rows();
+					}
+				}
+			}
+			System.out.println(String.format("%-20s \t%.3f\t\t%.3f\t\t(%d matches per view)",
+					symmetric ? "RATIO + SYMMETRIC" : "RATIO TEST",
+					elapsed / 1e6 / (rounds * views.size()), inlierRatio / views.size(), 
+					kept / views.size()));
+		}
+		System.out.println(String.format("(index trained once in %.3f ms)", trainMs));
+		System.out.println("* matcher selected by TransformationLibrary");
+	}
+
+	/**
+	 * @return fraction of matches whose reference point is projected by the true homography
+	 * within INLIER_DISTANCE of the matched view point
+	 * @param refIsTrain whether the reference descriptors were the train set of the matches
+	 */
+	static double getInlierRatio(MatOfDMatch matches, MatOfKeyPoint refKeyPts,
+			MatOfKeyPoint tgtKeyPts, Mat homography, boolean refIsTrain){
+		DMatch[] m = matches.toArray();
+		if (m.length == 0) return 0;
+		KeyPoint[] ref = refKeyPts.toArray();
+		KeyPoint[] tgt = tgtKeyPts.toArray();
+		Point[] refPts = new Point[m.length];
+		for (int i = 0; i < m.length; ++i)
+			refPts[i] = ref[refIsTrain ? m[i].trainIdx : m[i].queryIdx].pt;
+		MatOfPoint2f projected = new MatOfPoint2f();
+		Core.perspectiveTransform(new MatOfPoint2f(refPts), projected, homography);
+		Point[] p = projected.toArray();
+		int inliers = 0;
+		for (int i = 0; i < m.length; ++i) {
+			Point t = tgt[refIsTrain ? m[i].queryIdx : m[i].trainIdx].pt;
+			if (Math.hypot(p[i].x - t.x, p[i].y - t.y) <= INLIER_DISTANCE)
+				inliers++;
+		}
+		return (double) inliers / m.length;
+	}
+}
@@ -0,0 +1,67 @@
+package uw.cse.mag.appliancereader.bench;
+
+import java.util.Collections;
+
+import org.opencv.core.Core;
+
+import uw.cse.mag.appliancereader.cv.CVSingletons;
+import uw.cse.mag.appliancereader.cv.PipelineTimer;
+import uw.cse.mag.appliancereader.cv.PipelineTimer.STAGE;
+
+/**
+ * Replays frames through the box drawing pipeline for every combination of detector,
+ * extractor and pruning method of TransformationLibrary.
+ * <b>Prints one row per combination with the frames per second, the frames where the
+ * reference was located, the mean corner error of the projected annotation and the p50
+ * and p95 of every step.  Combinations OpenCV rejects are reported as unsupported.
+ * <b>Without a frame directory the synthetic views of the reference are replayed.
+ * <b>Usage: PipelineBenchmark [options], see PipelineOptions.  Every combination runs
+ * with the estimator of CVSingletons unless -h is given.
+ * @author mhotan
+ */
+public class PipelineBenchmark {
+
+	private static final STAGE[] STAGES = {
+		STAGE.DETECT, STAGE.DESCRIBE, STAGE.MATCH, STAGE.PRUNE, STAGE.HOMOGRAPHY, STAGE.PROJECT};
+
+	public static void main(String[] args) {
+		System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+
+		PipelineOptions options = new PipelineOptions(args,
+				Collections.singletonList(CVSingletons.getHomographyEstimatorName()));
+		FrameSet frames = options.loadFrames();
+		PipelineRunner runner = new PipelineRunner(frames, options.loadPolygons(frames));
+
+		System.out.println("Frames: " + options.describeFrames(frames));
+		printHeader();
+		for (PipelineRunner.Configuration config: options.getConfigurations())
+			printRow(runner.run(config));
+	}
+
+	private static void printHeader(){
+		StringBuilder sb = new StringBuilder(String.format("%-12s%-12s%-22s%-18s%8s%10s%10s",
+				"detector", "extractor", "pruning", "estimator", "fps", "located", "error px"));
+		for (STAGE s: STAGES)
+			sb.append(String.format("%16s", s + " p50/p95"));
+		System.out.println(sb);
+	}
+
+	static void printRow(PipelineRunner.Result result){
+		PipelineRunner.Configuration c = result.mConfiguration;
+		StringBuilder sb = new StringBuilder(String.format("%-12s%-12s%-22s%-18s", c.mDetector,
+				c.mExtractor, c.mPruning, c.mEstimator));
+		if (!result.isValid()) {
+			sb.append("unsupported: ").append(result.mFailure);
+			System.out.println(sb);
+			return;
+		}
+		sb.append(String.format("%8.1f%10s%10.2f", result.mFramesPerSecond,
+				result.mLocated + "/" + result.mFrames, result.mError));
+		PipelineTimer timer = result.mTimer;
+		for (STAGE s: STAGES) {
+			long[] p = timer.getPercentiles(s);
+			sb.append(String.format("%16s", String.format("%.1f/%.1f", p[0] / 1e6, p[1] / 1e6)));
+		}
+		System.out.println(sb);
+	}
+}
@@ -0,0 +1,152 @@
+package uw.cse.mag.appliancereader.bench;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.opencv.core.Point;
+
+import uw.cse.mag.appliancereader.cv.TransformationLibrary;
+import uw.cse.mag.appliancereader.cv.TransformationLibrary.MATCH_PRUNING_METHOD;
+
+/**
+ * Command line options shared by the benchmarks that replay frames with PipelineRunner.
+ * <b>Options:
+ * <pre>
+ * -frames dir         directory of recorded frames, synthetic views of the reference if absent
+ * -reference image    reference image, default ../res/raw/book.jpg
+ * -annotation xml     LabelMe annotation of the reference, default ../res/xml/book.xml
+ * -width pixels       width the reference is scaled to, default 640
+ * -d detectors        comma separated detector names
+ * -e extractors       comma separated extractor names
+ * -p methods          comma separated pruning methods, IE "CROSS MATCH,RATIO_TEST"
+ * -h estimators       comma separated homography estimators
+ * </pre>
+ * Options a benchmark declares as extra are kept and read with getExtra.
+ * @author mhotan
+ */
+public class PipelineOptions {
+
+	private static final int NUM_VIEWS = 20;
+	private static final long SEED = 42;
+
+	public String mFrames = null;
+	public String mReference = SyntheticViews.DEFAULT_REFERENCE;
+	public String mAnnotation = Annotation.DEFAULT_ANNOTATION;
+	public int mWidth = SyntheticViews.DEFAULT_WIDTH;
+	public List<String> mDetectors = TransformationLibrary.getSupportedFeatureDetectorNames();
+	public List<String> mExtractors = TransformationLibrary.getSupportedFeatureExtractors();
+	public List<MATCH_PRUNING_METHOD> mPruning = Arrays.asList(TransformationLibrary.ALL_PRUNING_METHODS);
+	public List<String> mEstimators;
+
+	private final List<String> mExtraNames;
+	private final List<String> mExtraValues = new ArrayList<String>();
+
+	/**
+	 * @param args command line
+	 * @param estimators estimators to use without a -h option
+	 * @param extra names of the options specific to the benchmark, IE "-csv"
+	 */
+	public PipelineOptions(String[] args, List<String> estimators, String... extra){
+		mEstimators = estimators;
+		mExtraNames = Arrays.asList(extra);
+		for (int i = 0; i < mExtraNames.size(); ++i)
+			mExtraValues.add(null);
+		if (args.length % 2 != 0)
+			throw new IllegalArgumentException("Every option needs a value: " + Arrays.toString(args));
+		for (int i = 0; i < args.length; i += 2) {
+			String value = args[i + 1];
+			if (args[i].equals("-frames"))
+				mFrames = value;
+			else if (args[i].equals("-reference"))
+				mReference = value;
+			else if (args[i].equals("-annotation"))
+				mAnnotation = value;
+			else if (args[i].equals("-width"))
+				mWidth = Integer.parseInt(value);
+			else if (args[i].equals("-d"))
+				mDetectors = Arrays.asList(value.split(","));
+			else if (args[i].equals("-e"))
+				mExtractors = Arrays.asList(value.split(","));
+			else if (args[i].equals("-p"))
+				mPruning = parsePruning(value);
+			else if (args[i].equals("-h"))
+				mEstimators = Arrays.asList(value.split(","));
+			else if (mExtraNames.contains(args[i]))
+				mExtraValues.set(mExtraNames.indexOf(args[i]), value);
+			else
+				throw new IllegalArgumentException("Unknown option: " + args[i]);
+		}
+	}
+
+	/**
+	 * @param name name of an extra option
+	 * @param defaultValue value if the option is absent
+	 * @return value of the option
+	 */
+	public String getExtra(String name, String defaultValue){
+		int i = mExtraNames.indexOf(name);
+		if (i < 0)
+			throw new IllegalArgumentException("Undeclared option: " + name);
+		String value = mExtraValues.get(i);
+		return value == null ? defaultValue : value;
+	}
+
+	/**
+	 * @return recorded frames if a directory was given, the synthetic views otherwise
+	 */
+	public FrameSet loadFrames(){
+		if (mFrames == null)
+			return new SyntheticViews(mReference, mWidth, NUM_VIEWS, SEED);
+		return new RecordedFrames(new File(mFrames), mReference, mWidth);
+	}
+
+	/**
+	 * @param frames frames the polygons are projected in
+	 * @return annotated polygons scaled to the reference of frames, null without annotation
+	 */
+	public List<Point[]> loadPolygons(FrameSet frames){
+		if (mAnnotation.length() == 0 || !new File(mAnnotation).exists())
+			return null;
+		return new Annotation(mAnnotation).getPolygons(frames.getReference().size());
+	}
+
+	/**
+	 * @return every combination of the selected detectors, extractors, pruning methods
+	 * and estimators
+	 */
+	public List<PipelineRunner.Configuration> getConfigurations(){
+		List<PipelineRunner.Configuration> configs = new ArrayList<PipelineRunner.Configuration>();
+		for (String detector: mDetectors)
+			for (String extractor: mExtractors)
+				for (MATCH_PRUNING_METHOD method: mPruning)
+					for (String estimator: mEstimators)
+						configs.add(new PipelineRunner.Configuration(detector, extractor, method, estimator));
+		return configs;
+	}
+
+	/**
+	 * @param frames frames loaded with these options
+	 * @return description of the replayed frames
+	 */
+	public String describeFrames(FrameSet frames){
+		return (mFrames == null ? "synthetic views of " + mReference : mFrames)
+				+ " (" + frames.size() + ")";
+	}
+
+	private static List<MATCH_PRUNING_METHOD> parsePruning(String value){
+		List<MATCH_PRUNING_METHOD> methods = new ArrayList<MATCH_PRUNING_METHOD>();
+		for (String name: value.split(",")) {
+			MATCH_PRUNING_METHOD found = null;
+			for (MATCH_PRUNING_METHOD m: MATCH_PRUNING_METHOD.values()) {
+				if (m.toString().equalsIgnoreCase(name) || m.name().equalsIgnoreCase(name))
+					found = m;
+			}
+			if (found == null)
+				throw new IllegalArgumentException("Unknown pruning method: " + name);
+			methods.add(found);
+		}
+		return methods;
+	}
+}
@@ -0,0 +1,337 @@
+package uw.cse.mag.appliancereader.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfDMatch;
+import org.opencv.core.MatOfKeyPoint;
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.Point;
+import org.opencv.features2d.DMatch;
+import org.opencv.features2d.DescriptorExtractor;
+import org.opencv.features2d.DescriptorMatcher;
+import org.opencv.features2d.FeatureDetector;
+
+import uw.cse.mag.appliancereader.cv.CVSingletons;
+import uw.cse.mag.appliancereader.cv.PipelineTimer;
+import uw.cse.mag.appliancereader.cv.PipelineTimer.STAGE;
+import uw.cse.mag.appliancereader.cv.TransformationLibrary;
+import uw.cse.mag.appliancereader.cv.TransformationLibrary.MATCH_PRUNING_METHOD;
+import uw.cse.mag.appliancereader.cv.TransformationLibrary.PruningMethodParameters;
+import uw.cse.mag.appliancereader.cv.homography.HomographyEstimator;
+import uw.cse.mag.appliancereader.cv.homography.HomographyResult;
+import uw.cse.mag.appliancereader.cv.matching.KeyPointGrid;
+import uw.cse.mag.appliancereader.cv.matching.MatchPruner;
+
+/**
+ * Replays a FrameSet through the pipeline of the box drawing stage for one configuration.
+ * <b>Like AsyncBoxDrawer every frame is detected, the strongest key points of every zone
+ * are kept, described, matched against an index trained once on the reference, pruned,
+ * the homography from the frame to the reference is estimated and the annotated polygons
+ * of the reference are projected into the frame.  Tracking and the search region are left
+ * out so every frame pays for the complete pipeline.
+ * <b>A frame counts as located when its homography passes the same quality check as in
+ * the application.  The accuracy of a located, annotated frame is the mean distance between
+ * the polygon vertices projected with the estimated and with the true homography.
+ * @author mhotan
+ */
+public class PipelineRunner {
+
+	/**
+	 * Combination of methods to run the pipeline with
+	 */
+	public static class Configuration {
+		public final String mDetector;
+		public final String mExtractor;
+		public final MATCH_PRUNING_METHOD mPruning;
+		public final String mEstimator;
+
+		public Configuration(String detector, String extractor, MATCH_PRUNING_METHOD pruning,
+				String estimator){
+			mDetector = detector;
+			mExtractor = extractor;
+			mPruning = pruning;
+			mEstimator = estimator;
+		}
+
+		@Override
+		public String toString(){
+			return mDetector + " / " + mExtractor + " / " + mPruning + " / " + mEstimator;
+		}
+	}
+
+	/**
+	 * Outcome of replaying every frame with one configuration
+	 */
+	public static class Result {
+		public final Configuration mConfiguration;
+		/**
+		 * Reason the configuration could not run, null if it ran
+		 */
+		public final String mFailure;
+		public final PipelineTimer mTimer;
+		public final int mFrames;
+		public final int mLocated;
+		public final int mScored;
+		/**
+		 * Mean error of the projected polygon vertices of the located annotated frames in pixels
+		 */
+		public final double mError;
+		public final double mFramesPerSecond;
+
+		Result(Configuration config, String failure, PipelineTimer timer, int frames, int located,
+				int scored, double error, double fps){
+			mConfiguration = config;
+			mFailure = failure;
+			mTimer = timer;
+			mFrames = frames;
+			mLocated = located;
+			mScored = scored;
+			mError = error;
+			mFramesPerSecond = fps;
+		}
+
+		/**
+		 * @return whether the configuration ran
+		 */
+		public boolean isValid(){
+			return mFailure == null;
+		}
+
+		/**
+		 * @return fraction of the frames where the reference was located
+		 */
+		public double getLocatedRatio(){
+			return mFrames == 0 ? 0 : (double) mLocated / mFrames;
+		}
+	}
+
+	private final FrameSet mFrames;
+	private final List<Point[]> mPolygons;
+	private final PruningMethodParameters mParameters;
+
+	/**
+	 * @param frames frames to replay
+	 * @param polygons polygons of the reference image to project, null for the reference corners
+	 */
+	public PipelineRunner(FrameSet frames, List<Point[]> polygons){
+		mFrames = frames;
+		mPolygons = new ArrayList<Point[]>();
+		if (polygons == null || polygons.isEmpty())
+			mPolygons.add(SyntheticViews.getCorners(frames.getReference().size()));
+		else
+			mPolygons.addAll(polygons);
+		mParameters = CVSingletons.getPruningParameters();
+	}
+
+	/**
+	 * Replays every frame with config
+	 * @param config combination of methods
+	 * @return timings and accuracy, invalid if OpenCV rejects the combination
+	 */
+	public Result run(Configuration config){
+		PipelineTimer timer = new PipelineTimer(Math.max(1, mFrames.size()));
+		try {
+			return run(config, timer);
+		} catch (RuntimeException e) {
+			// IE a detector of the non free module or an extractor that needs color
+			return new Result(config, String.valueOf(e.getMessage()).split("\n")[0], timer,
+					mFrames.size(), 0, 0, Double.NaN, 0);
+		}
+	}
+
+	private Result run(Configuration config, PipelineTimer timer){
+		FeatureDetector detector = TransformationLibrary.getFeatureDetector(config.mDetector);
+		DescriptorExtractor extractor = TransformationLibrary.getDescriptorExtractor(config.mExtractor);
+		HomographyEstimator estimator = TransformationLibrary.getHomographyEstimator(
+				config.mEstimator, CVSingletons.getRansacThreshold());
+
+		// Reference features are computed once like in the application
+		Mat reference = mFrames.getReference();
+		MatOfKeyPoint refKeyPts = new MatOfKeyPoint();
+		Mat refDescriptors = new Mat();
+		detector.detect(reference, refKeyPts);
+		if (refKeyPts.empty())
+			return new Result(config, "no reference key points", timer, mFrames.size(), 0, 0, Double.NaN, 0);
+		extractor.compute(reference, refKeyPts, refDescriptors);
+		if (refDescriptors.empty())
+			return new Result(config, "no reference descriptors", timer, mFrames.size(), 0, 0, Double.NaN, 0);
+		float[] refKp = new float[refKeyPts.rows() * MatchPruner.KEYPOINT_FIELDS];
+		refKeyPts.get(0, 0, refKp);
+
+		DescriptorMatcher index = TransformationLibrary.getIndexedDescriptorMatcher(refDescriptors.type());
+		List<Mat> train = new ArrayList<Mat>(1);
+		train.add(refDescriptors);
+		index.add(train);
+		index.train();
+		DescriptorMatcher backwardMatcher = TransformationLibrary.getDescriptorMatcher(refDescriptors.type());
+		KeyPointGrid grid = mParameters.newKeyPointGrid();
+		MatchPruner pruner = new MatchPruner();
+
+		MatOfKeyPoint keyPts = new MatOfKeyPoint();
+		Mat descriptors = new Mat();
+		MatOfDMatch matches = new MatOfDMatch();
+		MatOfDMatch backward = new MatOfDMatch();
+		List<MatOfDMatch> knn = new ArrayList<MatOfDMatch>();
+		List<MatOfDMatch> knnBackward = new ArrayList<MatOfDMatch>();
+		Mat homography = new Mat(3, 3, CvType.CV_64F);
+		Mat inverse = new Mat();
+		MatOfPoint2f polygon = new MatOfPoint2f();
+		MatOfPoint2f projected = new MatOfPoint2f();
+		MatOfPoint2f expected = new MatOfPoint2f();
+
+		int located = 0, scored = 0;
+		double error = 0;
+		long totalNs = 0;
+		for (int i = 0; i < mFrames.size(); ++i) {
+			Mat frame = mFrames.getView(i);
+			long start = System.nanoTime();
+			long t = start;
+
+			detector.detect(frame, keyPts);
+			t = timer.record(STAGE.DETECT, t);
+			long gridNs = 0;
+			if (grid != null) {
+				grid.select(keyPts, frame.cols(), frame.rows());
+				long now = System.nanoTime();
+				gridNs = now - t;
+				t = now;
+			}
+			if (!keyPts.empty())
+				extractor.compute(frame, keyPts, descriptors);
+			t = timer.record(STAGE.DESCRIBE, t);
+
+			HomographyResult result = null;
+			if (!keyPts.empty() && !descriptors.empty()) {
+				// Match and prune, the frame is the query and the reference the train set
+				long pruneNs = 0;
+				switch (config.mPruning) {
+				case CROSS_MATCH:
+				case LOCAL_MATCH:
+					index.match(descriptors, matches);
+					backwardMatcher.match(refDescriptors, descriptors, backward);
+					t = timer.record(STAGE.MATCH, t);
+					pruner.crossCheck(matches, backward, matches);
+					if (config.mPruning == MATCH_PRUNING_METHOD.LOCAL_MATCH)
+						pruner.localZones(matches, keyPts, mParameters.getNumZones(),
+								frame.rows(), frame.cols(), matches);
+					break;
+				case KNNMATCH:
+					index.knnMatch(descriptors, knn, mParameters.getKValue());
+					t = timer.record(STAGE.MATCH, t);
+					pruner.distanceGap(knn, mParameters.getDistanceThreshhold(), matches);
+					break;
+				case KNN_AND_CROSSCHECK:
+					index.knnMatch(descriptors, knn, mParameters.getKValue());
+					backwardMatcher.knnMatch(refDescriptors, descriptors, knnBackward, mParameters.getKValue());
+					t = timer.record(STAGE.MATCH, t);
+					knnCrossCheck(knn, knnBackward, matches);
+					break;
+				case RATIO_TEST:
+					index.knnMatch(descriptors, knn, 2);
+					t = timer.record(STAGE.MATCH, t);
+					pruner.ratioTest(knn, mParameters.getRatio(), mParameters.isSymmetricCheck(), matches);
+					break;
+				default:
+					index.match(descriptors, matches);
+					t = timer.record(STAGE.MATCH, t);
+				}
+				long now = System.nanoTime();
+				pruneNs = now - t;
+				t = now;
+				timer.add(STAGE.PRUNE, gridNs + pruneNs);
+
+				result = estimate(estimator, matches, keyPts, refKp);
+				t = timer.record(STAGE.HOMOGRAPHY, t);
+			}
+
+			boolean good = result != null && result.isGood(CVSingletons.getMinInliers(),
+					CVSingletons.getMinInlierRatio());
+			double frameError = 0;
+			int vertices = 0;
+			if (good) {
+				// Project the polygons of the reference into the frame
+				homography.put(0, 0, result.mHomography);
+				Core.invert(homography, inverse);
+				Mat truth = mFrames.getHomography(i);
+				for (Point[] p: mPolygons) {
+					polygon.fromArray(p);
+					Core.perspectiveTransform(polygon, projected, inverse);
+					if (truth == null) continue;
+					Core.perspectiveTransform(polygon, expected, truth);
+					Point[] a = projected.toArray();
+					Point[] e = expected.toArray();
+					for (int v = 0; v < a.length; ++v)
+						frameError += Math.hypot(a[v].x - e[v].x, a[v].y - e[v].y);
+					vertices += a.length;
+				}
+				timer.record(STAGE.PROJECT, t);
+			}
+			totalNs += timer.record(STAGE.TOTAL, start) - start;
+
+			if (good) {
+				located++;
+				if (vertices > 0) {
+					scored++;
+					error += frameError / vertices;
+				}
+			}
+		}
+		double fps = totalNs == 0 ? 0 : mFrames.size() / (totalNs / 1e9);
+		return new Result(config, null, timer, mFrames.size(), located, scored,
+				scored == 0 ? Double.NaN : error / scored, fps);
+	}
+
+	/**
+	 * Estimates the homography from the frame to the reference like the frame stages
+	 */
+	private static HomographyResult estimate(HomographyEstimator estimator, MatOfDMatch matches,
+			MatOfKeyPoint keyPts, float[] refKp){
+		int count = matches.rows();
+		if (count < 4)
+			return null;
+		float[] m = new float[count * MatchPruner.MATCH_FIELDS];
+		float[] kp = new float[keyPts.rows() * MatchPruner.KEYPOINT_FIELDS];
+		matches.get(0, 0, m);
+		keyPts.get(0, 0, kp);
+		float[] src = new float[2 * count];
+		float[] dst = new float[2 * count];
+		float[] distances = new float[count];
+		for (int j = 0; j < count; ++j) {
+			int q = (int) m[j * MatchPruner.MATCH_FIELDS + MatchPruner.QUERY] * MatchPruner.KEYPOINT_FIELDS;
+			int r = (int) m[j * MatchPruner.MATCH_FIELDS + MatchPruner.TRAIN] * MatchPruner.KEYPOINT_FIELDS;
+			src[2 * j] = kp[q];
+			src[2 * j + 1] = kp[q + 1];
+			dst[2 * j] = refKp[r];
+			dst[2 * j + 1] = refKp[r + 1];
+			distances[j] = m[j * MatchPruner.MATCH_FIELDS + MatchPruner.DISTANCE];
+		}
+		return estimator.estimate(src, dst, distances, count);
+	}
+
+	/**
+	 * Keeps the first forward neighbor that is also among the backward neighbors of its
+	 * train point, like ComputerVision.getKnnWithCrossCheckingMatches
+	 */
+	private static void knnCrossCheck(List<MatOfDMatch> forward, List<MatOfDMatch> backward,
+			MatOfDMatch out){
+		List<DMatch> filtered = new ArrayList<DMatch>();
+		for (MatOfDMatch neighbors: forward) {
+			boolean found = false;
+			for (DMatch f: neighbors.toArray()) {
+				for (DMatch b: backward.get(f.trainIdx).toArray()) {
+					if (b.trainIdx == f.queryIdx) {
+						filtered.add(f);
+						found = true;
+						break;
+					}
+				}
+				if (found) break;
+			}
+		}
+		out.fromList(filtered);
+	}
+}
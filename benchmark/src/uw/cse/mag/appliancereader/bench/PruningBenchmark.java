@@ -0,0 +1,216 @@
+package uw.cse.mag.appliancereader.bench;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+
+import org.opencv.core.Core;
+import org.opencv.core.MatOfDMatch;
+import org.opencv.core.MatOfKeyPoint;
+import org.opencv.features2d.DMatch;
+import org.opencv.features2d.KeyPoint;
+
+import uw.cse.mag.appliancereader.cv.matching.MatchPruner;
+
+/**
+ * Compares the match pruning of MatchPruner against the previous implementations
+ * of ComputerVision that convert every match to a DMatch object and back.
+ * <b>Matches are synthetic: every query point is matched to a random train point and
+ * about half of the matches are mutual, key points are spread over a 640x480 frame.
+ * Each operation is warmed up before it is timed, then timed over several rounds and
+ * the fastest round is reported in microseconds per call to hide garbage collection
+ * and JIT noise.  "mat" includes reading and writing the matrices, "array" is the
+ * pruning of primitive arrays alone.
+ * <b>Usage: PruningBenchmark [rounds] [calls per round]
+ * @author mhotan
+ */
+public class PruningBenchmark {
+
+	private static final int[] SIZES = {500, 1000, 2000, 5000};
+	private static final int WIDTH = 640, HEIGHT = 480;
+	private static final int ZONES = 5;
+	private static final int WARMUP_ROUNDS = 5;
+
+	/**
+	 * Keeps the JIT from removing calls whose results are never used
+	 */
+	private static long sBlackHole;
+
+	public static void main(String[] args) {
+		System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+
+		int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+		int calls = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+
+		System.out.println("rounds: " + rounds + " calls per round: " + calls);
+		System.out.println("matches\toperation\tobjects us\tmat us\t\tarray us\tkept");
+		for (int size: SIZES) {
+			Random rand = new Random(size);
+			final MatOfDMatch forward = new MatOfDMatch();
+			final MatOfDMatch backward = new MatOfDMatch();
+			final MatOfKeyPoint keyPts = new MatOfKeyPoint();
+			generate(rand, size, forward, backward, keyPts);
+			final MatchPruner pruner = new MatchPruner();
+			final MatOfDMatch out = new MatOfDMatch();
+
+			final float[] f = new float[size * MatchPruner.MATCH_FIELDS];
+			final float[] b = new float[size * MatchPruner.MATCH_FIELDS];
+			final float[] kp = new float[size * MatchPruner.KEYPOINT_FIELDS];
+			final float[] result = new float[f.length];
+			final int[] zones = new int[ZONES * ZONES];
+			forward.get(0, 0, f);
+			backward.get(0, 0, b);
+			keyPts.get(0, 0, kp);
+			final int count = size;
+
+			// Cross check
+			int kept = legacyCrossMatches(forward, backward).rows();
+			pruner.crossCheck(forward, backward, out);
+			check("cross check", kept, out.rows());
+			print(size, "cross check", kept, rounds, calls, new Op() {
+				public long run() { return legacyCrossMatches(forward, backward).rows(); }
+			}, new Op() {
+				public long run() { pruner.crossCheck(forward, backward, out); return out.rows(); }
+			}, new Op() {
+				public long run() { return MatchPruner.crossCheck(f, count, b, count, result); }
+			});
+
+			// Local zones
+			kept = legacyLocalMatches(forward, keyPts, ZONES, HEIGHT, WIDTH).rows();
+			pruner.localZones(forward, keyPts, ZONES, HEIGHT, WIDTH, out);
+			check("local zones", kept, out.rows());
+			print(size, "local zones", kept, rounds, calls, new Op() {
+				public long run() { return legacyLocalMatches(forward, keyPts, ZONES, HEIGHT, WIDTH).rows(); }
+			}, new Op() {
+				public long run() { pruner.localZones(forward, keyPts, ZONES, HEIGHT, WIDTH, out); return out.rows(); }
+			}, new Op() {
+				public long run() { return MatchPruner.localZones(f, count, kp, ZONES, HEIGHT, WIDTH, zones, result); }
+			});
+
+			// Standard distance check
+			kept = legacyDistanceCheck(forward).rows();
+			pruner.distanceCheck(forward, 3, out);
+			check("distance", kept, out.rows());
+			print(size, "distance", kept, rounds, calls, new Op() {
+				public long run() { return legacyDistanceCheck(forward).rows(); }
+			}, new Op() {
+				public long run() { pruner.distanceCheck(forward, 3, out); return out.rows(); }
+			}, new Op() {
+				public long run() { return MatchPruner.distanceCheck(f, count, 3, result); }
+			});
+		}
+		System.out.println("(checksum " + sBlackHole + ")");
+	}
+
+	private interface Op {
+		public long run();
+	}
+
+	private static void print(int size, String name, int kept, int rounds, int calls,
+			Op objects, Op mat, Op array){
+		System.out.println(String.format("%d\t%-12s\t%.1f\t\t%.1f\t\t%.1f\t\t%d", size, name,
+				time(objects, rounds, calls), time(mat, rounds, calls), time(array, rounds, calls), kept));
+	}
+
+	/**
+	 * @return microseconds per call of the fastest round after warm up
+	 */
+	private static double time(Op op, int rounds, int calls){
+		for (int r = 0; r < WARMUP_ROUNDS; ++r)
+			for (int c = 0; c < calls; ++c)
+				sBlackHole += op.run();
+		long best = Long.MAX_VALUE;
+		for (int r = 0; r < rounds; ++r) {
+			long start = System.nanoTime();
+			for (int c = 0; c < calls; ++c)
+				sBlackHole += op.run();
+			best = Math.min(best, System.nanoTime() - start);
+		}
+		return best / 1e3 / calls;
+	}
+
+	private static void check(String name, int expected, int actual){
+		if (expected != actual)
+			throw new IllegalStateException(name + " kept " + actual + " matches instead of " + expected);
+	}
+
+	private static void generate(Random rand, int size, MatOfDMatch forward,
+			MatOfDMatch backward, MatOfKeyPoint keyPts){
+		DMatch[] f = new DMatch[size];
+		DMatch[] b = new DMatch[size];
+		KeyPoint[] kp = new KeyPoint[size];
+		for (int i = 0; i < size; ++i) {
+			f[i] = new DMatch(i, rand.nextInt(size), rand.nextFloat() * 100);
+			kp[i] = new KeyPoint(rand.nextFloat() * WIDTH, rand.nextFloat() * HEIGHT, 31);
+		}
+		for (int i = 0; i < size; ++i)
+			b[i] = new DMatch(i, rand.nextInt(size), rand.nextFloat() * 100);
+		// Make about half of the matches mutual
+		for (int i = 0; i < size; i += 2)
+			b[f[i].trainIdx] = new DMatch(f[i].trainIdx, i, f[i].distance);
+		forward.fromArray(f);
+		backward.fromArray(b);
+		keyPts.fromArray(kp);
+	}
+
+	////////////////////////////////////////////////////////////////////////
+	//// Previous implementations of ComputerVision without logging
+	////////////////////////////////////////////////////////////////////////
+
+	private static MatOfDMatch legacyCrossMatches(MatOfDMatch matches12, MatOfDMatch matches21) {
+		List<DMatch> filtered = new LinkedList<DMatch>();
+		DMatch[] m12Array = matches12.toArray();
+		DMatch[] m21Array = matches21.toArray();
+		for (int i = 0; i < m12Array.length; i++) {
+			DMatch forward = m12Array[i];
+			DMatch backward = m21Array[forward.trainIdx];
+			if (backward.trainIdx == forward.queryIdx)
+				filtered.add(forward);
+		}
+		MatOfDMatch filteredMat = new MatOfDMatch();
+		filteredMat.fromList(filtered);
+		return filteredMat;
+	}
+
+	private static MatOfDMatch legacyLocalMatches(MatOfDMatch matches, MatOfKeyPoint query_kp,
+			int zones, int imgHeight, int imgWidth) {
+		MatOfDMatch newMatches = new MatOfDMatch();
+		DMatch[] localMatchesArray = new DMatch[zones * zones];
+		List<DMatch> newMatchesList = new ArrayList<DMatch>();
+		DMatch[] matchesArray = matches.toArray();
+		KeyPoint[] query_kp_array = query_kp.toArray();
+		for (int i = 0; i < matchesArray.length; i++) {
+			double intervalX = imgWidth / (double) zones;
+			double intervalY = imgHeight / (double) zones;
+			double chessX = Math.floor(query_kp_array[matchesArray[i].queryIdx].pt.x / intervalX);
+			double chessY = Math.floor(query_kp_array[matchesArray[i].queryIdx].pt.y / intervalY);
+			int index = (int) (chessX + chessY * zones);
+			if (localMatchesArray[index] == null || matchesArray[i].distance < localMatchesArray[index].distance)
+				localMatchesArray[index] = matchesArray[i];
+		}
+		for (int i = 0; i < localMatchesArray.length; i++) {
+			if (localMatchesArray[i] != null)
+				newMatchesList.add(localMatchesArray[i]);
+		}
+		newMatches.fromList(newMatchesList);
+		return newMatches;
+	}
+
+	private static MatOfDMatch legacyDistanceCheck(MatOfDMatch matches1to2){
+		float min = Float.MAX_VALUE;
+		DMatch[] matchArr = matches1to2.toArray();
+		for (DMatch match : matchArr) {
+			if (match.distance < min) min = match.distance;
+		}
+		if (min <= 0) min = 1;
+		List<DMatch> goodMatches = new LinkedList<DMatch>();
+		for (DMatch match : matchArr) {
+			if (match.distance < 3*min)
+				goodMatches.add(match);
+		}
+		MatOfDMatch good_matches = new MatOfDMatch();
+		good_matches.fromList(goodMatches);
+		return good_matches;
+	}
+}
@@ -0,0 +1,135 @@
+package uw.cse.mag.appliancereader.bench;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.Point;
+import org.opencv.core.Size;
+import org.opencv.highgui.Highgui;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * Camera frames recorded on a device and replayed from a directory.
+ * <b>Every .jpg and .png file of the directory is a frame, ordered by file name.
+ * Frames are annotated in an optional file named corners.txt in the same directory
+ * with one line per frame: the file name followed by the x and y of the four corners
+ * of the reference image in the frame, clockwise from the top left.  Lines starting
+ * with # are ignored.  Frames without a line are replayed but not scored.
+ * <b>The reference image is scaled to the width given, like the application scales
+ * it to the camera resolution.
+ * @author mhotan
+ */
+public class RecordedFrames implements FrameSet {
+
+	/**
+	 * Name of the annotation file inside the frame directory
+	 */
+	public static final String CORNERS_FILE = "corners.txt";
+
+	private final Mat mReference;
+	private final List<Mat> mFrames;
+	private final List<Mat> mHomographies;
+
+	/**
+	 * Loads every frame of a directory in grey scale
+	 * @param directory directory holding the frames and the optional corners.txt
+	 * @param referencePath path of the reference image
+	 * @param width width to scale the reference image to
+	 */
+	public RecordedFrames(File directory, String referencePath, int width){
+		File[] files = directory.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				String lower = name.toLowerCase();
+				return lower.endsWith(".jpg") || lower.endsWith(".png");
+			}
+		});
+		if (files == null || files.length == 0)
+			throw new IllegalArgumentException("No frames in " + directory);
+		Arrays.sort(files);
+
+		Mat full = Highgui.imread(referencePath, Highgui.CV_LOAD_IMAGE_GRAYSCALE);
+		if (full.empty())
+			throw new IllegalArgumentException("Unable to read reference image: " + referencePath);
+		mReference = new Mat();
+		double scale = (double) width / full.cols();
+		Imgproc.resize(full, mReference, new Size(width, Math.round(full.rows() * scale)));
+		full.release();
+
+		Map<String, Point[]> corners = readCorners(new File(directory, CORNERS_FILE));
+		MatOfPoint2f refCorners = new MatOfPoint2f(SyntheticViews.getCorners(mReference.size()));
+		mFrames = new ArrayList<Mat>(files.length);
+		mHomographies = new ArrayList<Mat>(files.length);
+		for (File f: files) {
+			Mat frame = Highgui.imread(f.getPath(), Highgui.CV_LOAD_IMAGE_GRAYSCALE);
+			if (frame.empty())
+				throw new IllegalArgumentException("Unable to read frame: " + f);
+			mFrames.add(frame);
+			Point[] c = corners.get(f.getName());
+			mHomographies.add(c == null ? null :
+				Imgproc.getPerspectiveTransform(refCorners, new MatOfPoint2f(c)));
+		}
+	}
+
+	/**
+	 * @return corners of the reference in every annotated frame by file name
+	 */
+	private static Map<String, Point[]> readCorners(File file){
+		Map<String, Point[]> corners = new HashMap<String, Point[]>();
+		if (!file.exists())
+			return corners;
+		try {
+			BufferedReader reader = new BufferedReader(new FileReader(file));
+			try {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					line = line.trim();
+					if (line.length() == 0 || line.startsWith("#")) continue;
+					String[] tokens = line.split("\\s+");
+					if (tokens.length != 9)
+						throw new IllegalArgumentException("Expected a name and 8 coordinates: " + line);
+					Point[] c = new Point[4];
+					for (int i = 0; i < 4; ++i)
+						c[i] = new Point(Double.parseDouble(tokens[1 + 2 * i]),
+								Double.parseDouble(tokens[2 + 2 * i]));
+					corners.put(tokens[0], c);
+				}
+			} finally {
+				reader.close();
+			}
+		} catch (IOException e) {
+			throw new RuntimeException("Unable to read " + file + ": " + e.getMessage());
+		}
+		return corners;
+	}
+
+	@Override
+	public Mat getReference(){
+		return mReference;
+	}
+
+	@Override
+	public int size(){
+		return mFrames.size();
+	}
+
+	@Override
+	public Mat getView(int index){
+		return mFrames.get(index);
+	}
+
+	@Override
+	public Mat getHomography(int index){
+		return mHomographies.get(index);
+	}
+}
@@ -0,0 +1,116 @@
+package uw.cse.mag.appliancereader.bench;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfDMatch;
+import org.opencv.core.MatOfKeyPoint;
+import org.opencv.core.Size;
+import org.opencv.features2d.DMatch;
+import org.opencv.features2d.DescriptorExtractor;
+import org.opencv.features2d.DescriptorMatcher;
+import org.opencv.features2d.FeatureDetector;
+import org.opencv.imgproc.Imgproc;
+
+import uw.cse.mag.appliancereader.cv.CVSingletons;
+import uw.cse.mag.appliancereader.cv.homography.HomographyEstimator;
+import uw.cse.mag.appliancereader.cv.homography.HomographyResult;
+
+/**
+ * Measures the detection scale trade off.
+ * <b>Views are generated at preview resolution and detection runs on copies resized by
+ * each scale.  Key points are rescaled to full resolution before matching against the
+ * full resolution reference, exactly like the frame stages do, so the corner error is
+ * measured in full resolution pixels.
+ * <b>Usage: ScaleBenchmark [width] [reference image]
+ * @author mhotan
+ */
+public class ScaleBenchmark {
+
+	private static final int NUM_VIEWS = 20;
+	private static final long SEED = 42;
+	private static final double[] SCALES = {1, 0.75, 0.5, 0.25};
+
+	public static void main(String[] args) {
+		System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+
+		int width = args.length > 0 ? Integer.parseInt(args[0]) : 1280;
+		String path = args.length > 1 ? args[1] : SyntheticViews.DEFAULT_REFERENCE;
+		SyntheticViews views = new SyntheticViews(path, width, NUM_VIEWS, SEED);
+
+		FeatureDetector detector = CVSingletons.newFeatureDetector();
+		DescriptorExtractor extractor = CVSingletons.newDescriptorExtractor();
+		DescriptorMatcher matcher = CVSingletons.newDescriptorMatcher();
+		HomographyEstimator estimator = CVSingletons.newHomographyEstimator();
+
+		MatOfKeyPoint refKeyPts = new MatOfKeyPoint();
+		Mat refDescriptors = new Mat();
+		detector.detect(views.getReference(), refKeyPts);
+		extractor.compute(views.getReference(), refKeyPts, refDescriptors);
+		float[] refKp = new float[refKeyPts.rows() * 7];
+		refKeyPts.get(0, 0, refKp);
+
+		System.out.println("width: " + width + " reference key points: " + refKeyPts.rows());
+		System.out.println("scale\tdetect ms\tmatch+H ms\tinliers\tcorner error\tfailures");
+		Mat scaled = new Mat();
+		MatOfKeyPoint keyPts = new MatOfKeyPoint();
+		Mat descriptors = new Mat();
+		MatOfDMatch matches = new MatOfDMatch();
+		Mat homography = new Mat(3, 3, CvType.CV_64F);
+		for (double scale: SCALES) {
+			long detectNs = 0, matchNs = 0;
+			double error = 0;
+			long inliers = 0;
+			int failures = 0;
+			for (int i = 0; i < views.size(); ++i) {
+				long start = System.nanoTime();
+				Mat view = views.getView(i);
+				Mat search = view;
+				if (scale < 1) {
+					Imgproc.resize(view, scaled, new Size(), scale, scale, Imgproc.INTER_AREA);
+					search = scaled;
+				}
+				detector.detect(search, keyPts);
+				extractor.compute(search, keyPts, descriptors);
+				float[] kp = new float[keyPts.rows() * 7];
+				keyPts.get(0, 0, kp);
+				for (int k = 0; k < kp.length; k += 7) {
+					kp[k] /= scale;
+					kp[k + 1] /= scale;
+				}
+				long detected = System.nanoTime();
+				detectNs += detected - start;
+				if (kp.length == 0) {
+					failures++;
+					continue;
+				}
+
+				matcher.match(refDescriptors, descriptors, matches);
+				DMatch[] m = matches.toArray();
+				float[] src = new float[2 * m.length];
+				float[] dst = new float[2 * m.length];
+				float[] distances = new float[m.length];
+				for (int j = 0; j < m.length; ++j) {
+					src[2 * j] = refKp[7 * m[j].queryIdx];
+					src[2 * j + 1] = refKp[7 * m[j].queryIdx + 1];
+					dst[2 * j] = kp[7 * m[j].trainIdx];
+					dst[2 * j + 1] = kp[7 * m[j].trainIdx + 1];
+					distances[j] = m[j].distance;
+				}
+				HomographyResult result = estimator.estimate(src, dst, distances, m.length);
+				matchNs += System.nanoTime() - detected;
+				if (result == null) {
+					failures++;
+					continue;
+				}
+				inliers += result.mInlierCount;
+				homography.put(0, 0, result.mHomography);
+				error += views.getCornerError(homography, i);
+			}
+			int found = views.size() - failures;
+			System.out.println(String.format("%.2f\t%.2f\t\t%.2f\t\t%d\t%.2f\t\t%d", scale,
+					detectNs / 1e6 / views.size(), matchNs / 1e6 / views.size(),
+					found > 0 ? inliers / found : 0, found > 0 ? error / found : Double.NaN, failures));
+		}
+	}
+}
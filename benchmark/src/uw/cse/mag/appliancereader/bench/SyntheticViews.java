@@ -0,0 +1,151 @@
+package uw.cse.mag.appliancereader.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.Point;
+import org.opencv.core.Size;
+import org.opencv.highgui.Highgui;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * Generates camera like views of a reference image with a known homography.
+ * <b>Every view is the reference image warped by a random perspective transform
+ * so benchmarks can compare estimated homographies against the ground truth.
+ * Views are reproducible for a given seed.
+ * @author mhotan
+ */
+public class SyntheticViews implements FrameSet {
+
+	/**
+	 * Default reference image relative to the benchmark directory
+	 */
+	public static final String DEFAULT_REFERENCE = "../res/raw/book.jpg";
+
+	/**
+	 * Default width the reference image is scaled to, close to a camera preview frame
+	 */
+	public static final int DEFAULT_WIDTH = 640;
+
+	/**
+	 * Maximum corner displacement as a fraction of the image dimension
+	 */
+	private static final double MAX_CORNER_SHIFT = 0.15;
+
+	private final Mat mReference;
+	private final List<Mat> mViews;
+	private final List<Mat> mHomographies;
+
+	/**
+	 * Loads the reference image in grey scale, scales it to width and creates the views
+	 * @param path path of the reference image
+	 * @param width width to scale the reference image to
+	 * @param count number of views to generate
+	 * @param seed seed of the random perspective transforms
+	 */
+	public SyntheticViews(String path, int width, int count, long seed){
+		if (count <= 0)
+			throw new IllegalArgumentException("Number of views must be positive: " + count);
+		Mat full = Highgui.imread(path, Highgui.CV_LOAD_IMAGE_GRAYSCALE);
+		if (full.empty())
+			throw new IllegalArgumentException("Unable to read reference image: " + path);
+		mReference = new Mat();
+		double scale = (double) width / full.cols();
+		Imgproc.resize(full, mReference, new Size(width, Math.round(full.rows() * scale)));
+		full.release();
+
+		mViews = new ArrayList<Mat>(count);
+		mHomographies = new ArrayList<Mat>(count);
+		Random rand = new Random(seed);
+		for (int i = 0; i < count; ++i) {
+			Mat h = randomHomography(rand, mReference.size());
+			Mat view = new Mat();
+			Imgproc.warpPerspective(mReference, view, h, mReference.size());
+			mViews.add(view);
+			mHomographies.add(h);
+		}
+	}
+
+	private static Mat randomHomography(Random rand, Size size){
+		double dx = size.width * MAX_CORNER_SHIFT;
+		double dy = size.height * MAX_CORNER_SHIFT;
+		Point[] src = getCorners(size);
+		Point[] dst = new Point[src.length];
+		for (int i = 0; i < src.length; ++i) {
+			// Move every corner towards the center so the object stays in view
+			double sx = src[i].x == 0 ? 1 : -1;
+			double sy = src[i].y == 0 ? 1 : -1;
+			dst[i] = new Point(src[i].x + sx * rand.nextDouble() * dx,
+					src[i].y + sy * rand.nextDouble() * dy);
+		}
+		return Imgproc.getPerspectiveTransform(new MatOfPoint2f(src), new MatOfPoint2f(dst));
+	}
+
+	/**
+	 * @return the four corners of an image of the argument size, clockwise from the top left
+	 */
+	public static Point[] getCorners(Size size){
+		return new Point[] {
+				new Point(0, 0),
+				new Point(size.width, 0),
+				new Point(size.width, size.height),
+				new Point(0, size.height)};
+	}
+
+	/**
+	 * Computes the mean distance between the reference corners projected by
+	 * the estimated and by the true homography.
+	 * @param estimated homography estimated from reference to view
+	 * @param index index of the view
+	 * @return mean corner error in pixels
+	 */
+	public double getCornerError(Mat estimated, int index){
+		MatOfPoint2f corners = new MatOfPoint2f(getCorners(mReference.size()));
+		MatOfPoint2f expected = new MatOfPoint2f();
+		MatOfPoint2f actual = new MatOfPoint2f();
+		Core.perspectiveTransform(corners, expected, mHomographies.get(index));
+		Core.perspectiveTransform(corners, actual, estimated);
+		Point[] e = expected.toArray();
+		Point[] a = actual.toArray();
+		double sum = 0;
+		for (int i = 0; i < e.length; ++i)
+			sum += Math.hypot(e[i].x - a[i].x, e[i].y - a[i].y);
+		return sum / e.length;
+	}
+
+	/**
+	 * @return grey scale reference image
+	 */
+	@Override
+	public Mat getReference(){
+		return mReference;
+	}
+
+	/**
+	 * @return number of views
+	 */
+	@Override
+	public int size(){
+		return mViews.size();
+	}
+
+	/**
+	 * @return the view at index
+	 */
+	@Override
+	public Mat getView(int index){
+		return mViews.get(index);
+	}
+
+	/**
+	 * @return true homography from the reference image to the view at index
+	 */
+	@Override
+	public Mat getHomography(int index){
+		return mHomographies.get(index);
+	}
+}
@@ -0,0 +1,154 @@
+package uw.cse.mag.appliancereader.bench;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfKeyPoint;
+import org.opencv.features2d.DescriptorExtractor;
+import org.opencv.features2d.FeatureDetector;
+
+import uw.cse.mag.appliancereader.cv.CVSingletons;
+import uw.cse.mag.appliancereader.cv.matching.ApplianceDatabase;
+import uw.cse.mag.appliancereader.cv.matching.VocabularyTree;
+import uw.cse.mag.appliancereader.util.VocabularyIO;
+
+/**
+ * Trains the vocabulary tree of the default descriptor extractor offline and measures how well
+ * it retrieves appliances.
+ * <b>Every image of the directory is the reference image of one appliance, scaled to
+ * -width pixels.  The vocabulary is trained on the descriptors of every reference with the
+ * shape of CVSingletons, every reference is added to an appliance database and -views
+ * synthetic views of every reference are queried.  Prints the training time, the fraction of
+ * views whose appliance is the best candidate and among the CVSingletons.getRetrievalCandidates()
+ * best, and the mean query time.
+ * <b>The vocabulary is written to -out, by default the name of the descriptor extractor with
+ * the extension .voc.  Copied to FileManager.RECOGNITION_PATH on the device it replaces the
+ * vocabulary the application would otherwise train on the appliances it has.
+ * <b>Usage: VocabularyTrainer [-out file] [-views n] [-width w] image directory
+ * @author mhotan
+ */
+public class VocabularyTrainer {
+
+	private static final long SEED = 42;
+
+	public static void main(String[] args) throws IOException {
+		System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+
+		String key = CVSingletons.getDescriptorExtractorName();
+		String out = key + ".voc";
+		int numViews = 5;
+		int width = SyntheticViews.DEFAULT_WIDTH;
+		String directory = null;
+		for (int i = 0; i < args.length; ++i) {
+			if (args[i].equals("-out")) out = args[++i];
+			else if (args[i].equals("-views")) numViews = Integer.parseInt(args[++i]);
+			else if (args[i].equals("-width")) width = Integer.parseInt(args[++i]);
+			else directory = args[i];
+		}
+		if (directory == null) {
+			System.err.println("Usage: VocabularyTrainer [-out file] [-views n] [-width w] image directory");
+			System.exit(1);
+		}
+
+		String[] names = new File(directory).list(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				String lower = name.toLowerCase();
+				return lower.endsWith(".jpg") || lower.endsWith(".png");
+			}
+		});
+		if (names == null || names.length == 0)
+			throw new IllegalArgumentException("No images in " + directory);
+		Arrays.sort(names);
+
+		FeatureDetector detector = CVSingletons.newFeatureDetector();
+		DescriptorExtractor extractor = CVSingletons.newDescriptorExtractor();
+		List<SyntheticViews> appliances = new ArrayList<SyntheticViews>();
+		List<long[]> references = new ArrayList<long[]>();
+		List<Integer> counts = new ArrayList<Integer>();
+		int length = 0, total = 0;
+		for (int i = 0; i < names.length; ++i) {
+			SyntheticViews views = new SyntheticViews(new File(directory, names[i]).getPath(),
+					width, numViews, SEED + i);
+			Mat descriptors = describe(detector, extractor, views.getReference());
+			if (descriptors.rows() == 0) {
+				System.out.println("No features in " + names[i] + ", left out");
+				continue;
+			}
+			length = descriptors.cols() / 8;
+			appliances.add(views);
+			references.add(pack(descriptors));
+			counts.add(descriptors.rows());
+			total += descriptors.rows();
+		}
+
+		long[] all = new long[total * length];
+		int offset = 0;
+		for (long[] r: references) {
+			System.arraycopy(r, 0, all, offset, r.length);
+			offset += r.length;
+		}
+		long start = System.nanoTime();
+		VocabularyTree tree = CVSingletons.trainVocabulary(all, total, length);
+		System.out.println(String.format("Trained %d words on %d descriptors of %d images in %.0f ms",
+				tree.getWordCount(), total, appliances.size(), (System.nanoTime() - start) / 1e6));
+
+		ApplianceDatabase database = new ApplianceDatabase(tree);
+		for (int i = 0; i < appliances.size(); ++i)
+			database.add(i, references.get(i), counts.get(i));
+
+		int k = CVSingletons.getRetrievalCandidates();
+		long[] ids = new long[k];
+		float[] scores = new float[k];
+		int queries = 0, first = 0, topK = 0;
+		long queryTime = 0;
+		for (int i = 0; i < appliances.size(); ++i) {
+			SyntheticViews views = appliances.get(i);
+			for (int v = 0; v < views.size(); ++v) {
+				Mat descriptors = describe(detector, extractor, views.getView(v));
+				long[] packed = pack(descriptors);
+				long t = System.nanoTime();
+				int n = database.query(packed, descriptors.rows(), k, ids, scores);
+				queryTime += System.nanoTime() - t;
+				queries++;
+				for (int c = 0; c < n; ++c) {
+					if (ids[c] != i) continue;
+					if (c == 0) first++;
+					topK++;
+					break;
+				}
+			}
+		}
+		System.out.println(String.format("Retrieved %d views: %.1f%% first, %.1f%% in the best %d, %.2f ms per query",
+				queries, 100.0 * first / queries, 100.0 * topK / queries, k, queryTime / 1e6 / queries));
+
+		VocabularyIO.writeVocabulary(new File(out), key, tree);
+		System.out.println("Vocabulary written to " + out);
+	}
+
+	private static Mat describe(FeatureDetector detector, DescriptorExtractor extractor, Mat image){
+		MatOfKeyPoint keyPts = new MatOfKeyPoint();
+		Mat descriptors = new Mat();
+		detector.detect(image, keyPts);
+		if (!keyPts.empty())
+			extractor.compute(image, keyPts, descriptors);
+		return descriptors;
+	}
+
+	private static long[] pack(Mat descriptors){
+		int rows = descriptors.rows();
+		int cols = descriptors.cols();
+		byte[] bytes = new byte[rows * cols];
+		if (bytes.length > 0)
+			descriptors.get(0, 0, bytes);
+		long[] packed = new long[bytes.length / 8];
+		VocabularyTree.pack(bytes, rows, cols, packed);
+		return packed;
+	}
+}
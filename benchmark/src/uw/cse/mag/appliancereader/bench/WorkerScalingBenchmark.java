@@ -0,0 +1,141 @@
+package uw.cse.mag.appliancereader.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.opencv.calib3d.Calib3d;
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfDMatch;
+import org.opencv.core.MatOfKeyPoint;
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.Point;
+import org.opencv.features2d.DMatch;
+import org.opencv.features2d.DescriptorExtractor;
+import org.opencv.features2d.DescriptorMatcher;
+import org.opencv.features2d.FeatureDetector;
+import org.opencv.features2d.KeyPoint;
+
+import uw.cse.mag.appliancereader.cv.CVSingletons;
+
+/**
+ * Measures how frame throughput scales with the number of workers.
+ * <b>Every worker owns its feature detector, descriptor extractor and matcher,
+ * obtained from CVSingletons exactly like the application stages do, and runs
+ * the full detect, describe, match and homography pipeline on synthetic views.
+ * No lock is shared between workers.
+ * <b>Usage: WorkerScalingBenchmark [max workers] [frames per run] [reference image]
+ * @author mhotan
+ */
+public class WorkerScalingBenchmark {
+
+	private static final int DEFAULT_FRAMES = 200;
+	private static final int NUM_VIEWS = 20;
+	private static final long SEED = 42;
+
+	public static void main(String[] args) throws InterruptedException {
+		System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+
+		int maxWorkers = args.length > 0 ? Integer.parseInt(args[0])
+				: Runtime.getRuntime().availableProcessors();
+		int frames = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_FRAMES;
+		String path = args.length > 2 ? args[2] : SyntheticViews.DEFAULT_REFERENCE;
+
+		SyntheticViews views = new SyntheticViews(path, SyntheticViews.DEFAULT_WIDTH, NUM_VIEWS, SEED);
+
+		// Reference features are computed once and only read by the workers
+		MatOfKeyPoint refKeyPts = new MatOfKeyPoint();
+		Mat refDescriptors = new Mat();
+		CVSingletons.newFeatureDetector().detect(views.getReference(), refKeyPts);
+		CVSingletons.newDescriptorExtractor().compute(views.getReference(), refKeyPts, refDescriptors);
+
+		System.out.println("Detector: " + CVSingletons.getFeatureDetectorName()
+				+ " Extractor: " + CVSingletons.getDescriptorExtractorName()
+				+ " reference key points: " + refKeyPts.rows());
+		System.out.println("workers\tframes/s\tspeedup");
+
+		// Warm up so the first run does not pay for class loading and native initialization
+		run(1, NUM_VIEWS, views, refKeyPts, refDescriptors);
+
+		double single = 0;
+		for (int workers = 1; workers <= maxWorkers; ++workers) {
+			double fps = run(workers, frames, views, refKeyPts, refDescriptors);
+			if (workers == 1) single = fps;
+			System.out.println(String.format("%d\t%.1f\t\t%.2f", workers, fps, fps / single));
+		}
+	}
+
+	/**
+	 * Processes frames views split over the argument number of workers
+	 * @return frames processed per second
+	 */
+	private static double run(int workers, int frames, SyntheticViews views,
+			MatOfKeyPoint refKeyPts, Mat refDescriptors) throws InterruptedException {
+		AtomicInteger next = new AtomicInteger();
+		List<Thread> threads = new ArrayList<Thread>(workers);
+		for (int i = 0; i < workers; ++i)
+			threads.add(new Thread(new Worker(next, frames, views, refKeyPts, refDescriptors)));
+
+		long start = System.nanoTime();
+		for (Thread t: threads)
+			t.start();
+		for (Thread t: threads)
+			t.join();
+		long elapsed = System.nanoTime() - start;
+		return frames * 1e9 / elapsed;
+	}
+
+	/**
+	 * Worker with its own thread confined detector, extractor and matcher
+	 */
+	private static class Worker implements Runnable {
+
+		private final AtomicInteger mNext;
+		private final int mFrames;
+		private final SyntheticViews mViews;
+		private final MatOfKeyPoint mRefKeyPts;
+		private final Mat mRefDescriptors;
+
+		Worker(AtomicInteger next, int frames, SyntheticViews views,
+				MatOfKeyPoint refKeyPts, Mat refDescriptors){
+			mNext = next;
+			mFrames = frames;
+			mViews = views;
+			mRefKeyPts = refKeyPts;
+			mRefDescriptors = refDescriptors;
+		}
+
+		@Override
+		public void run() {
+			FeatureDetector detector = CVSingletons.newFeatureDetector();
+			DescriptorExtractor extractor = CVSingletons.newDescriptorExtractor();
+			DescriptorMatcher matcher = CVSingletons.newDescriptorMatcher();
+			KeyPoint[] refKeyPts = mRefKeyPts.toArray();
+
+			MatOfKeyPoint keyPts = new MatOfKeyPoint();
+			Mat descriptors = new Mat();
+			MatOfDMatch matches = new MatOfDMatch();
+			int index;
+			while ((index = mNext.getAndIncrement()) < mFrames) {
+				Mat view = mViews.getView(index % mViews.size());
+				detector.detect(view, keyPts);
+				if (keyPts.empty()) continue;
+				extractor.compute(view, keyPts, descriptors);
+				matcher.match(mRefDescriptors, descriptors, matches);
+
+				DMatch[] m = matches.toArray();
+				if (m.length < 4) continue;
+				KeyPoint[] tgtKeyPts = keyPts.toArray();
+				Point[] ref = new Point[m.length];
+				Point[] tgt = new Point[m.length];
+				for (int i = 0; i < m.length; ++i) {
+					ref[i] = refKeyPts[m[i].queryIdx].pt;
+					tgt[i] = tgtKeyPts[m[i].trainIdx].pt;
+				}
+				Calib3d.findHomography(new MatOfPoint2f(ref), new MatOfPoint2f(tgt),
+						CVSingletons.getHomographyMethod(), CVSingletons.getRansacThreshold());
+			}
+		}
+	}
+}
@@ -0,0 +1,236 @@
+package uw.cse.mag.appliancereader.cv.homography;
+
+import java.util.Random;
+
+/**
+ * Checks the pure Java homography estimation on synthetic correspondences.
+ * <b>Points of a 640x480 frame are mapped by a known homography, a part of them is then
+ * replaced by outliers that lie far from where the homography maps their source.  The
+ * estimators must recover the homography and flag exactly the untouched correspondences
+ * as inliers.  Needs neither OpenCV nor Android, IE runs on a plain JVM.
+ * <b>Usage: RansacHomographyEstimatorTest, exits with an error on the first failed check
+ * @author mhotan
+ */
+public class RansacHomographyEstimatorTest {
+
+	private static final double WIDTH = 640, HEIGHT = 480;
+	private static final double THRESHOLD = 3;
+
+	/**
+	 * Largest corner error in pixels of a homography recovered from exact correspondences
+	 */
+	private static final double EXACT_TOLERANCE = 1e-2;
+
+	/**
+	 * Largest corner error in pixels of a homography recovered from noisy correspondences
+	 */
+	private static final double NOISY_TOLERANCE = 1;
+
+	/**
+	 * Smallest distance in pixels between an outlier and the projection of its source
+	 */
+	private static final double OUTLIER_GAP = 4 * THRESHOLD;
+
+	private static final double[] TRUTH = {
+		0.92, -0.18, 35,
+		0.15, 1.05, -20,
+		2e-4, -1.5e-4, 1};
+
+	public static void main(String[] args) {
+		testMinimalSolution();
+		testLeastSquares();
+		testTooFewCorrespondences();
+		testAdaptiveRansac();
+		testProsac();
+		testNoisyInliers();
+		System.out.println("All homography checks passed");
+	}
+
+	private static void testMinimalSolution(){
+		double[] src = {0, 0, 640, 0, 640, 480, 0, 480};
+		double[] dst = project(TRUTH, src);
+		double[] h = new double[9];
+		check(DLT.solveMinimal(src, dst, new int[] {0, 1, 2, 3}, new double[8 * 9], h),
+				"minimal solution of four corners");
+		checkHomography(scale(h), TRUTH, EXACT_TOLERANCE, "minimal solution");
+
+		double[] collinear = {0, 0, 100, 100, 200, 200, 300, 300};
+		check(!DLT.solveMinimal(collinear, collinear, new int[] {0, 1, 2, 3}, new double[8 * 9], h),
+				"collinear points are singular");
+	}
+
+	private static void testLeastSquares(){
+		Random rand = new Random(1);
+		int count = 50;
+		double[] src = new double[2 * count];
+		for (int i = 0; i < count; ++i) {
+			src[2 * i] = rand.nextDouble() * WIDTH;
+			src[2 * i + 1] = rand.nextDouble() * HEIGHT;
+		}
+		double[] dst = project(TRUTH, src);
+
+		// Solve in normalized coordinates like the estimator does
+		float[] srcf = toFloat(src), dstf = toFloat(dst);
+		double[] ts = new double[3], td = new double[3];
+		DLT.getNormalization(srcf, count, ts);
+		DLT.getNormalization(dstf, count, td);
+		double[] srcn = new double[2 * count], dstn = new double[2 * count];
+		DLT.normalize(srcf, count, ts, srcn);
+		DLT.normalize(dstf, count, td, dstn);
+		double[] hn = new double[9];
+		check(DLT.solveLeastSquares(srcn, dstn, null, count, hn), "least squares over every point");
+		checkHomography(DLT.denormalize(hn, ts, td), TRUTH, EXACT_TOLERANCE, "least squares");
+
+		boolean[] mask = new boolean[count];
+		mask[0] = mask[1] = mask[2] = true;
+		check(!DLT.solveLeastSquares(srcn, dstn, mask, count, hn), "least squares needs four points");
+	}
+
+	private static void testTooFewCorrespondences(){
+		float[] pts = {0, 0, 640, 0, 640, 480};
+		HomographyEstimator estimator = new RansacHomographyEstimator(THRESHOLD, false);
+		check(estimator.estimate(pts, pts, null, 3) == null, "three correspondences give no homography");
+	}
+
+	private static void testAdaptiveRansac(){
+		for (double outliers: new double[] {0.2, 0.5}) {
+			Scene scene = new Scene(new Random(2), 200, outliers, 0);
+			HomographyEstimator estimator = new RansacHomographyEstimator(THRESHOLD,
+					RansacHomographyEstimator.DEFAULT_MAX_ITERATIONS,
+					RansacHomographyEstimator.DEFAULT_CONFIDENCE, false, 3);
+			HomographyResult result = estimator.estimate(scene.mSrc, scene.mDst, null, scene.mCount);
+			String name = "adaptive RANSAC with " + outliers + " outliers";
+			checkResult(result, scene, EXACT_TOLERANCE, name);
+			check(result.mIterations < RansacHomographyEstimator.DEFAULT_MAX_ITERATIONS,
+					name + " stops before the iteration limit, ran " + result.mIterations);
+		}
+	}
+
+	private static void testProsac(){
+		Scene scene = new Scene(new Random(4), 300, 0.6, 0);
+		HomographyEstimator ransac = new RansacHomographyEstimator(THRESHOLD,
+				RansacHomographyEstimator.DEFAULT_MAX_ITERATIONS,
+				RansacHomographyEstimator.DEFAULT_CONFIDENCE, false, 5);
+		HomographyEstimator prosac = new RansacHomographyEstimator(THRESHOLD,
+				RansacHomographyEstimator.DEFAULT_MAX_ITERATIONS,
+				RansacHomographyEstimator.DEFAULT_CONFIDENCE, true, 5);
+		HomographyResult uniform = ransac.estimate(scene.mSrc, scene.mDst, null, scene.mCount);
+		HomographyResult ranked = prosac.estimate(scene.mSrc, scene.mDst, scene.mDistances, scene.mCount);
+		checkResult(ranked, scene, EXACT_TOLERANCE, "PROSAC");
+		check(ranked.mIterations < uniform.mIterations, "PROSAC needs fewer hypotheses then RANSAC, "
+				+ ranked.mIterations + " against " + uniform.mIterations);
+	}
+
+	private static void testNoisyInliers(){
+		Scene scene = new Scene(new Random(6), 300, 0.4, 0.5);
+		HomographyEstimator estimator = new RansacHomographyEstimator(THRESHOLD,
+				RansacHomographyEstimator.DEFAULT_MAX_ITERATIONS,
+				RansacHomographyEstimator.DEFAULT_CONFIDENCE, false, 7);
+		HomographyResult result = estimator.estimate(scene.mSrc, scene.mDst, null, scene.mCount);
+		check(result != null, "noisy inliers give a homography");
+		checkHomography(result.mHomography, TRUTH, NOISY_TOLERANCE, "noisy inliers");
+		for (int i = 0; i < scene.mCount; ++i)
+			if (!scene.mInliers[i])
+				check(!result.mInlierMask[i], "noisy inliers, outlier " + i + " is not an inlier");
+		check(result.mInlierCount >= scene.mInlierCount * 0.98, "noisy inliers, found "
+				+ result.mInlierCount + " of " + scene.mInlierCount + " inliers");
+		check(result.mReprojectionError < 1, "noisy inliers, reprojection error " + result.mReprojectionError);
+	}
+
+	/**
+	 * Correspondences of TRUTH where a fraction is replaced by outliers, outliers
+	 * get larger match distances then inliers on average
+	 */
+	private static class Scene {
+		final int mCount;
+		final float[] mSrc, mDst, mDistances;
+		final boolean[] mInliers;
+		final int mInlierCount;
+
+		Scene(Random rand, int count, double outliers, double noise){
+			mCount = count;
+			mSrc = new float[2 * count];
+			mDst = new float[2 * count];
+			mDistances = new float[count];
+			mInliers = new boolean[count];
+			int inliers = 0;
+			for (int i = 0; i < count; ++i) {
+				double x = rand.nextDouble() * WIDTH, y = rand.nextDouble() * HEIGHT;
+				double[] p = project(TRUTH, new double[] {x, y});
+				mSrc[2 * i] = (float) x;
+				mSrc[2 * i + 1] = (float) y;
+				if (rand.nextDouble() < outliers) {
+					double u, v;
+					do {
+						u = rand.nextDouble() * WIDTH;
+						v = rand.nextDouble() * HEIGHT;
+					} while (Math.hypot(u - p[0], v - p[1]) < OUTLIER_GAP);
+					mDst[2 * i] = (float) u;
+					mDst[2 * i + 1] = (float) v;
+					mDistances[i] = (float) (30 + rand.nextDouble() * 50);
+				} else {
+					mDst[2 * i] = (float) (p[0] + rand.nextGaussian() * noise);
+					mDst[2 * i + 1] = (float) (p[1] + rand.nextGaussian() * noise);
+					mDistances[i] = (float) (rand.nextDouble() * 50);
+					mInliers[i] = true;
+					inliers++;
+				}
+			}
+			mInlierCount = inliers;
+		}
+	}
+
+	private static void checkResult(HomographyResult result, Scene scene, double tolerance, String name){
+		check(result != null, name + " gives a homography");
+		checkHomography(result.mHomography, TRUTH, tolerance, name);
+		check(result.mInlierCount == scene.mInlierCount, name + " finds "
+				+ result.mInlierCount + " inliers instead of " + scene.mInlierCount);
+		for (int i = 0; i < scene.mCount; ++i)
+			check(result.mInlierMask[i] == scene.mInliers[i], name + " flags correspondence " + i);
+		check(result.isWellConditioned(), name + " is well conditioned");
+	}
+
+	/**
+	 * Compares homographies by where they map the frame corners, which does not
+	 * depend on their scale
+	 */
+	private static void checkHomography(double[] actual, double[] expected, double tolerance, String name){
+		double[] corners = {0, 0, WIDTH, 0, WIDTH, HEIGHT, 0, HEIGHT};
+		double[] a = project(actual, corners);
+		double[] e = project(expected, corners);
+		for (int i = 0; i < 4; ++i) {
+			double error = Math.hypot(a[2 * i] - e[2 * i], a[2 * i + 1] - e[2 * i + 1]);
+			check(error <= tolerance, name + " maps corner " + i + " " + error + " pixels off");
+		}
+	}
+
+	private static double[] project(double[] h, double[] pts){
+		double[] out = new double[pts.length];
+		for (int i = 0; i < pts.length / 2; ++i) {
+			double x = pts[2 * i], y = pts[2 * i + 1];
+			double w = h[6] * x + h[7] * y + h[8];
+			out[2 * i] = (h[0] * x + h[1] * y + h[2]) / w;
+			out[2 * i + 1] = (h[3] * x + h[4] * y + h[5]) / w;
+		}
+		return out;
+	}
+
+	private static double[] scale(double[] h){
+		double[] out = new double[9];
+		for (int i = 0; i < 9; ++i)
+			out[i] = h[i] / h[8];
+		return out;
+	}
+
+	private static float[] toFloat(double[] values){
+		float[] out = new float[values.length];
+		for (int i = 0; i < values.length; ++i)
+			out[i] = (float) values[i];
+		return out;
+	}
+
+	private static void check(boolean condition, String message){
+		if (!condition)
+			throw new AssertionError(message);
+	}
+}
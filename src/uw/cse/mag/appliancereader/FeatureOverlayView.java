@@ -0,0 +1,132 @@
+package uw.cse.mag.appliancereader;
+
+import uw.cse.mag.appliancereader.cv.async.FeatureOverlay;
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Path;
+import android.os.SystemClock;
+import android.util.AttributeSet;
+import android.view.View;
+
+/**
+ * Transparent view laid over the camera preview that draws the outlines of the located features
+ * with a Canvas.
+ * <b>The camera bridge draws every frame scaled to fit the view and centered, the outlines are
+ * mapped the same way so they line up with the preview.  Outlines are double buffered: the
+ * processing thread writes the back buffer and the main thread draws the front buffer, so neither
+ * waits on the other.  Outlines that are not refreshed for HOLD_MS are hidden instead of
+ * freezing on a location the appliance has left.
+ * @author mhotan
+ */
+public class FeatureOverlayView extends View implements FeatureOverlay {
+
+	/**
+	 * Time outlines stay visible without an update in milliseconds
+	 */
+	private static final long HOLD_MS = 500;
+
+	private final Object mLock = new Object();
+	private final Paint mPaint;
+	private final Path mPath;
+
+	private Outlines mFront, mBack;
+	private boolean mChanged;
+
+	public FeatureOverlayView(Context context) {
+		this(context, null);
+	}
+
+	public FeatureOverlayView(Context context, AttributeSet attrs) {
+		super(context, attrs);
+		mPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+		mPaint.setColor(Color.RED);
+		mPaint.setStyle(Paint.Style.STROKE);
+		mPaint.setStrokeWidth(3);
+		mPath = new Path();
+		mFront = new Outlines();
+		mBack = new Outlines();
+	}
+
+	@Override
+	public void setOutlines(float[][] outlines, int frameWidth, int frameHeight) {
+		synchronized (mLock) {
+			mBack.set(outlines, frameWidth, frameHeight);
+			mChanged = true;
+		}
+		postInvalidate();
+	}
+
+	@Override
+	public void clearOutlines() {
+		synchronized (mLock) {
+			mBack.mCount = 0;
+			mChanged = true;
+		}
+		postInvalidate();
+	}
+
+	@Override
+	protected void onDraw(Canvas canvas) {
+		super.onDraw(canvas);
+		synchronized (mLock) {
+			if (mChanged) {
+				Outlines tmp = mFront;
+				mFront = mBack;
+				mBack = tmp;
+				mChanged = false;
+			}
+		}
+		Outlines o = mFront;
+		if (o.mCount == 0 || SystemClock.uptimeMillis() - o.mTime > HOLD_MS)
+			return;
+
+		// Same fit and centering as the camera bridge
+		float scale = Math.min((float) getWidth() / o.mWidth, (float) getHeight() / o.mHeight);
+		float dx = (getWidth() - o.mWidth * scale) / 2;
+		float dy = (getHeight() - o.mHeight * scale) / 2;
+		for (int i = 0; i < o.mCount; ++i) {
+			float[] p = o.mOutlines[i];
+			if (o.mLengths[i] < 4) continue;
+			mPath.rewind();
+			mPath.moveTo(dx + p[0] * scale, dy + p[1] * scale);
+			for (int j = 2; j + 1 < o.mLengths[i]; j += 2)
+				mPath.lineTo(dx + p[j] * scale, dy + p[j + 1] * scale);
+			mPath.close();
+			canvas.drawPath(mPath, mPaint);
+		}
+		// Hide the outlines once they are stale even if no new geometry arrives
+		postInvalidateDelayed(HOLD_MS);
+	}
+
+	/**
+	 * Outlines of a single frame, arrays grow as needed and are reused
+	 */
+	private static class Outlines {
+		float[][] mOutlines = new float[0][];
+		int[] mLengths = new int[0];
+		int mCount;
+		int mWidth, mHeight;
+		long mTime;
+
+		void set(float[][] outlines, int width, int height){
+			if (mOutlines.length < outlines.length) {
+				float[][] grown = new float[outlines.length][];
+				System.arraycopy(mOutlines, 0, grown, 0, mOutlines.length);
+				mOutlines = grown;
+				mLengths = new int[outlines.length];
+			}
+			for (int i = 0; i < outlines.length; ++i) {
+				if (mOutlines[i] == null || mOutlines[i].length < outlines[i].length)
+					mOutlines[i] = new float[outlines[i].length];
+				System.arraycopy(outlines[i], 0, mOutlines[i], 0, outlines[i].length);
+				mLengths[i] = outlines[i].length;
+			}
+			mCount = outlines.length;
+			mWidth = width;
+			mHeight = height;
+			mTime = SystemClock.uptimeMillis();
+		}
+	}
+}
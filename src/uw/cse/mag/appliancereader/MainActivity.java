@@ -1,7 +1,10 @@
 package uw.cse.mag.appliancereader;
 
+import java.util.List;
+
 import org.opencv.android.CameraBridgeViewBase;
-import org.opencv.android.CameraBridgeViewBase.CvCameraViewListener;
+import org.opencv.android.CameraBridgeViewBase.CvCameraViewFrame;
+import org.opencv.android.CameraBridgeViewBase.CvCameraViewListener2;
 import org.opencv.android.JavaCameraView;
 import org.opencv.core.CvType;
 import org.opencv.core.Mat;
@@ -11,16 +14,26 @@ import org.opencv.imgproc.Imgproc;
 
 import uw.cse.mag.appliancereader.cv.ComputerVision;
 import uw.cse.mag.appliancereader.cv.ComputerVisionCallback;
+import uw.cse.mag.appliancereader.cv.PipelineTimer;
+import uw.cse.mag.appliancereader.cv.async.AsyncApplianceIndexer;
+import uw.cse.mag.appliancereader.cv.async.AsyncApplianceIndexer.ApplianceIndexListener;
+import uw.cse.mag.appliancereader.cv.async.AsyncApplianceRecognizer;
 import uw.cse.mag.appliancereader.cv.async.AsyncBoxDrawer;
-import uw.cse.mag.appliancereader.cv.async.AsyncBoxDrawer.WarpedPointListener;
 import uw.cse.mag.appliancereader.cv.async.AsyncFeatureDetector;
 import uw.cse.mag.appliancereader.cv.async.AsyncFeatureDetector.FeatureDetectionListener;
 import uw.cse.mag.appliancereader.cv.async.AsyncFeatureDrawer;
-import uw.cse.mag.appliancereader.cv.async.AsyncFeatureDrawer.OnFeaturesDrawnListener;
+import uw.cse.mag.appliancereader.cv.async.AsyncPerspectiveUtility;
 import uw.cse.mag.appliancereader.cv.async.AsyncImageWarper;
-import uw.cse.mag.appliancereader.cv.async.AsyncImageWarper.ImageWarpListener;
+import uw.cse.mag.appliancereader.cv.async.FrameBuffer;
+import uw.cse.mag.appliancereader.cv.async.FrameBufferPool;
+import uw.cse.mag.appliancereader.cv.async.FrameProcessor;
+import uw.cse.mag.appliancereader.cv.async.FrameProcessor.FrameListener;
+import uw.cse.mag.appliancereader.cv.async.FrameProcessor.FrameStage;
 import uw.cse.mag.appliancereader.cv.async.ImageInformation;
+import uw.cse.mag.appliancereader.cv.matching.ApplianceIndex;
 import uw.cse.mag.appliancereader.db.ApplianceNotExistException;
+import uw.cse.mag.appliancereader.db.FileManager;
+import uw.cse.mag.appliancereader.db.UserApplianceDataSource;
 import uw.cse.mag.appliancereader.db.datatype.Appliance;
 import uw.cse.mag.appliancereader.db.datatype.ApplianceFeatureFactory;
 import uw.cse.mag.appliancereader.db.datatype.ApplianceFeatures;
@@ -30,10 +43,12 @@ import android.app.Activity;
 import android.content.Intent;
 import android.content.res.Configuration;
 import android.graphics.Bitmap;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.Environment;
 import android.util.Log;
 import android.view.Menu;
+import android.view.MenuItem;
 import android.view.SurfaceView;
 import android.view.View;
 import android.view.WindowManager;
@@ -41,6 +56,7 @@ import android.widget.AdapterView;
 import android.widget.AdapterView.OnItemSelectedListener;
 import android.widget.ArrayAdapter;
 import android.widget.Spinner;
+import android.widget.TextView;
 import android.widget.Toast;
 
 /**
@@ -51,8 +67,8 @@ import android.widget.Toast;
  * @author mhotan
  */
 public class MainActivity extends Activity implements ComputerVisionCallback,
-CvCameraViewListener, FeatureDetectionListener, WarpedPointListener, 
-OnFeaturesDrawnListener, ImageWarpListener, OnItemSelectedListener {
+CvCameraViewListener2, FeatureDetectionListener, FrameListener, OnItemSelectedListener,
+ApplianceIndexListener {
 
 	// Log Tag
 	private static final String TAG = MainActivity.class.getSimpleName();
@@ -65,6 +81,13 @@ OnFeaturesDrawnListener, ImageWarpListener, OnItemSelectedListener {
 	public static final String DATA_PATH = Environment.getExternalStorageDirectory().toString() + "/ApplianceReaderSpecific/";
 	public static final String APPLIANCES_PATH = DATA_PATH + "Appliances/";
 
+	// Number of preallocated camera frames
+	// One being displayed, one being processed and one waiting to be processed
+	private static final int FRAME_POOL_SIZE = 3;
+
+	// Consecutive frames an appliance has to be recognized in before it is switched to
+	private static final int MIN_RECOGNITIONS = 3;
+
 	private static final int SELECT_APPLIANCE = 0x1;
 	private static final String SAVED_APPLIANCE = MainActivity.class.getName() + "_SAVED_APPLIANCE";
 
@@ -81,6 +104,29 @@ OnFeaturesDrawnListener, ImageWarpListener, OnItemSelectedListener {
 	 */
 	private Spinner mDisplayOptSpinner;
 
+	/**
+	 * Optional overlay with the latency of every step of the current stage
+	 */
+	private TextView mTimingView;
+
+	/**
+	 * Transparent layer over the preview that the box mode draws the feature outlines in
+	 */
+	private FeatureOverlayView mOverlayView;
+
+	/**
+	 * Latency of copying camera frames, recorded on the camera thread
+	 */
+	private final PipelineTimer mCameraTimer = new PipelineTimer();
+
+	/**
+	 * Time the timing overlay was last updated in milliseconds
+	 */
+	private long mTimingUpdated;
+
+	// Interval between updates of the timing overlay
+	private static final long TIMING_UPDATE_MS = 500;
+
 	/**
 	 * Computer vision instance that can handle 
 	 * all Computer Vision oriented task
@@ -102,15 +148,69 @@ OnFeaturesDrawnListener, ImageWarpListener, OnItemSelectedListener {
 	 * Asynchronous calculators
 	 * Each one of these does some kind of asynchronous 
 	 * homography calculation and returns a matrix to present 
-	 * when it is complete
+	 * when it is complete.  They are created once the reference
+	 * features are found and reused for every frame
 	 */
 	private AsyncFeatureDetector mAsyncFD;
-	private AsyncBoxDrawer mAsyncBoxer;
-	private AsyncFeatureDrawer mAsyncFeatureDrawer;
-	private AsyncImageWarper mAsyncImageWarper;
+	
+	/**
+	 * Whether the reference image was rotated to match the camera orientation
+	 */
+	private boolean mRefRotated;
+
+	/**
+	 * Whether the next camera frame is stored as another view of the current appliance
+	 */
+	private volatile boolean mCaptureView;
+
+	/**
+	 * Stages are read on the camera thread and replaced on the main thread
+	 */
+	private volatile AsyncBoxDrawer mAsyncBoxer;
+	private volatile AsyncFeatureDrawer mAsyncFeatureDrawer;
+	private volatile AsyncImageWarper mAsyncImageWarper;
+
+	/**
+	 * Builds the recognition index over every stored appliance, null unless building
+	 */
+	private AsyncApplianceIndexer mAsyncIndexer;
+
+	/**
+	 * Identifies the appliance in view among every stored appliance, null until the index is built
+	 */
+	private volatile AsyncApplianceRecognizer mRecognizer;
+
+	/**
+	 * Appliance recognized in the last frames and the number of consecutive frames it was
+	 * recognized in
+	 */
+	private Appliance mCandidate;
+	private int mCandidateCount;
+
+	/**
+	 * Size of the camera frames, null until the camera started
+	 */
+	private org.opencv.core.Size mCameraSize;
+
+	/**
+	 * Dedicated engine that runs the calculators on the latest camera frame.
+	 * Replaced on the main thread when the camera restarts
+	 */
+	private volatile FrameProcessor mFrameProcessor;
 
 	private Mat mRgba;
 
+	/**
+	 * Preallocated camera frames that the asynchronous calculators borrow 
+	 * and return, sized to the resolution the camera started with
+	 */
+	private volatile FrameBufferPool mFramePool;
+
+	/**
+	 * Pooled frame whose output is currently being displayed
+	 */
+	private FrameBuffer mDisplayedFrame;
+
 	@Override
 	protected void onCreate(Bundle savedInstanceState) {
 		super.onCreate(savedInstanceState);
@@ -134,6 +234,9 @@ OnFeaturesDrawnListener, ImageWarpListener, OnItemSelectedListener {
 		// Dont enable until ready
 		mDisplayOptSpinner.setEnabled(false);
 
+		mTimingView = (TextView) findViewById(R.id.timing_overlay);
+		mOverlayView = (FeatureOverlayView) findViewById(R.id.feature_overlay);
+
 		// Create a computer vision instance to handle all the procedures
 		mCV = new ComputerVision(this.getApplicationContext(), this, this);
 	}
@@ -191,6 +294,23 @@ OnFeaturesDrawnListener, ImageWarpListener, OnItemSelectedListener {
 		return true;
 	}
 
+	@Override
+	public boolean onOptionsItemSelected(MenuItem item) {
+		if (item.getItemId() == R.id.menu_timings) {
+			boolean show = !item.isChecked();
+			item.setChecked(show);
+			mTimingView.setVisibility(show ? View.VISIBLE : View.GONE);
+			return true;
+		}
+		if (item.getItemId() == R.id.menu_add_view) {
+			// The next camera frame is stored
+			if (mCurrentAppliance != null)
+				mCaptureView = true;
+			return true;
+		}
+		return super.onOptionsItemSelected(item);
+	}
+
 	@Override
 	public void onSaveInstanceState(Bundle savedInstanceState) {
 		super.onSaveInstanceState(savedInstanceState);
@@ -232,6 +352,30 @@ OnFeaturesDrawnListener, ImageWarpListener, OnItemSelectedListener {
 		Log.e(TAG, "Notifying user Open CV failed to initialize");
 	}
 
+	/**
+	 * Shows the latency percentiles of the camera copies and of stage in the
+	 * timing overlay if it is visible
+	 * @param stage stage that processed the last frame
+	 */
+	private void updateTimings(FrameStage stage){
+		if (mTimingView == null || mTimingView.getVisibility() != View.VISIBLE) return;
+		long now = System.currentTimeMillis();
+		if (now - mTimingUpdated < TIMING_UPDATE_MS) return;
+		mTimingUpdated = now;
+		String text = mCameraTimer.getSummary();
+		if (stage instanceof AsyncPerspectiveUtility) {
+			AsyncPerspectiveUtility utility = (AsyncPerspectiveUtility) stage;
+			text += "\n" + utility.getTimer().getSummary();
+			if (utility.getViewCount() > 0) {
+				String view = utility.getViewName();
+				text += "\nview " + (view == null ? "reference" : view) 
+						+ " of " + (utility.getViewCount() + 1);
+			}
+		} else if (stage instanceof AsyncApplianceRecognizer)
+			text += "\n" + ((AsyncApplianceRecognizer) stage).getTimer().getSummary();
+		mTimingView.setText(text);
+	}
+
 	//////////////////////////////////////////////////////
 	//// CameraViewBase callback methods for interpreting 
 	//////////////////////////////////////////////////////
@@ -311,6 +455,7 @@ OnFeaturesDrawnListener, ImageWarpListener, OnItemSelectedListener {
 				if (needsRotation){ // Rotate by 90
 					refMat = rotate(refMat, mCurrentAppliance.getApplianceFeatures());
 				}
+				mRefRotated = needsRotation;
 				logImg("Reference after scale and rotation", refMat);
 
 				return refMat;
@@ -389,7 +534,28 @@ OnFeaturesDrawnListener, ImageWarpListener, OnItemSelectedListener {
 		}
 
 		org.opencv.core.Size actualDimension = new org.opencv.core.Size(w,h);
+		mCameraSize = actualDimension;
+
+		// Preallocate all the frames needed for processing at this resolution
+		// Frames of a previous resolution are freed as they are returned
+		stopFrameProcessing();
+		mFramePool = new FrameBufferPool(FRAME_POOL_SIZE, w, h, CvType.CV_8UC4);
+		mFrameProcessor = new FrameProcessor(this);
+		mFrameProcessor.start();
+
+		loadReference(actualDimension);
+		// The recognizer of the previous start was dropped with its processor
+		if (mCurrentOption == DISPLAY_OPTION.RECOGNIZE)
+			buildRecognitionIndex();
+		Log.d(TAG, "OnCameraStartComplete");
+	}
 
+	/**
+	 * Prepares the reference image of the current appliance for frames of actualDimension
+	 * and starts finding its features, the stages are created once they are found
+	 * @param actualDimension size of the camera frames
+	 */
+	private void loadReference(org.opencv.core.Size actualDimension){
 		Mat finalImg = setupv2(actualDimension);
 
 		if (DEBUG){
@@ -404,13 +570,14 @@ OnFeaturesDrawnListener, ImageWarpListener, OnItemSelectedListener {
 
 		Mat copy = mRgba.clone();
 		// Initialize the feature extraction for the reference Image
-		mAsyncFD = new AsyncFeatureDetector(mCV);
+		// Features already computed for this resolution are loaded from the appliance
+		String cacheKey = AsyncFeatureDetector.getCacheKey(mRgba.size(), mRefRotated);
+		mAsyncFD = new AsyncFeatureDetector(mCV, mCurrentAppliance, cacheKey);
 		mAsyncFD.setFeatureDetectionListener(this);
 		// DEBUG Dont execute intial
 		mAsyncFD.execute(copy);
 
 		//		b.recycle(); // Free up the memory as soon as possible
-		Log.d(TAG, "OnCameraStartComplete");
 	}
 
 	private static void logImg(String prefix, Mat img){
@@ -427,16 +594,15 @@ OnFeaturesDrawnListener, ImageWarpListener, OnItemSelectedListener {
 	}
 
 	/**
-	 * Holds the reference image information
-	 * 
+	 * Holds the reference image information, null until the features of the
+	 * reference are found for the current camera start
 	 */
-	private ImageInformation mRefImgInfo = null; 
+	private volatile ImageInformation mRefImgInfo = null; 
 
 	private static final boolean DEBUG = false;
 
 	@Override
-	public Mat onCameraFrame(Mat inputFrame) {
-		logImg("Input frame", inputFrame);
+	public Mat onCameraFrame(CvCameraViewFrame inputFrame) {
 		if (DEBUG)
 			return mRgba;
 
@@ -445,39 +611,47 @@ OnFeaturesDrawnListener, ImageWarpListener, OnItemSelectedListener {
 			return mRgba;
 		}
 
-		// Set this image as new Other image
-		Mat workImage = new Mat();
-		inputFrame.copyTo(workImage);
-		logImg("Input working copy", workImage);
+		if (mCaptureView) {
+			mCaptureView = false;
+			addView(inputFrame.rgba());
+		}
 
-		if (mRefImgInfo != null){ // The reference image features are finished being computed
+		// Read once, the main thread replaces them when the camera restarts
+		FrameProcessor processor = mFrameProcessor;
+		FrameBufferPool pool = mFramePool;
+		if (mRefImgInfo != null && processor != null && pool != null){ // The reference image features are finished being computed
+			FrameStage stage;
+			// Whether the stage composes an image from the color frame
+			boolean composes = true;
 			switch (mCurrentOption){
 			case BOX:
-				if (mAsyncBoxer == null && mCurrentAppliance.hasApplianceFeatures()){
-					ApplianceFeatures feats = mCurrentAppliance.getApplianceFeatures();
-					mAsyncBoxer = new AsyncBoxDrawer(mCV, mRefImgInfo, feats);
-					mAsyncBoxer.addListener(this);
-					mAsyncBoxer.execute(workImage);
-				}
+				// Outlines are drawn in the overlay on top of the unmodified preview,
+				// without an overlay they are drawn on the color frame
+				AsyncBoxDrawer boxer = mAsyncBoxer;
+				stage = boxer;
+				composes = boxer != null && !boxer.hasOverlay();
 				break;
 			case FEATURES:
-				if (mAsyncFeatureDrawer == null){
-					mAsyncFeatureDrawer = new AsyncFeatureDrawer(mCV, mRefImgInfo);
-					mAsyncFeatureDrawer.setFeatureDrawnListener(this);
-					mAsyncFeatureDrawer.execute(workImage);
-				}
+				stage = mAsyncFeatureDrawer;
 				break;
 			case WARP_IMG:
-				if (mAsyncImageWarper == null){
-					mAsyncImageWarper = new AsyncImageWarper(mCV, mRefImgInfo);
-					mAsyncImageWarper.setImageWarpedListener(this);
-					mAsyncImageWarper.execute(workImage);
-				}
+				stage = mAsyncImageWarper;
+				break;
+			case RECOGNIZE:
+				// Null until the index is built, the preview is shown meanwhile
+				stage = mRecognizer;
+				composes = false;
 				break;
 			case DONT_DISPLAY:
 			default:
 				return mRgba;
 			}
+			// The newest frame always replaces a frame that has not been processed yet
+			FrameBuffer workFrame;
+			if (stage != null && (workFrame = copyToPooledFrame(processor, pool, inputFrame, composes)) != null)
+				processor.submit(stage, workFrame);
+			if (!composes)
+				return inputFrame.rgba();
 		}
 		if (mResult != null) {
 			logImg("Input result", mResult);
@@ -486,6 +660,87 @@ OnFeaturesDrawnListener, ImageWarpListener, OnItemSelectedListener {
 			return mRgba;
 	}
 
+	/**
+	 * Borrows a frame from the pool and copies the input frame into it.
+	 * <b>The luminance is the Y plane of the camera frame and needs no conversion,
+	 * color is only converted for frames that are actually processed
+	 * @param processor processor the frame is submitted to
+	 * @param pool pool of the processor
+	 * @param inputFrame camera frame to copy
+	 * @param color whether the stage composes its output from the color frame
+	 * @return pooled copy of the input frame or null if every frame is in use
+	 */
+	private FrameBuffer copyToPooledFrame(FrameProcessor processor, FrameBufferPool pool,
+			CvCameraViewFrame inputFrame, boolean color){
+		// Reuse the memory of a frame that is still waiting to be processed
+		FrameBuffer frame = processor.reclaimPending();
+		if (frame == null)
+			frame = pool.acquire();
+		if (frame == null) return null;
+		Mat grey = inputFrame.gray();
+		if (!frame.fits(grey.cols(), grey.rows(), CvType.CV_8UC4)){
+			Log.w(TAG, "Camera frame does not match the dimension the pool was created with");
+			frame.recycle();
+			return null;
+		}
+		long t = System.nanoTime();
+		grey.copyTo(frame.mGrey);
+		t = mCameraTimer.record(PipelineTimer.STAGE.GREY, t);
+		if (color) {
+			inputFrame.rgba().copyTo(frame.mFrame);
+			mCameraTimer.record(PipelineTimer.STAGE.COLOR, t);
+		}
+		logImg("Input working copy", frame.mGrey);
+		return frame;
+	}
+
+	/**
+	 * Stops the frame processor and frees every pooled frame.
+	 * <b>The worker of the stopped processor may still be inside a stage, so the stages are
+	 * dropped with it and created again once the features of the next start are found.
+	 * A stage is never shared by two processors
+	 */
+	private void stopFrameProcessing(){
+		FrameProcessor processor = mFrameProcessor;
+		mFrameProcessor = null;
+		if (processor != null)
+			processor.shutDown();
+		clearStages();
+		mRecognizer = null;
+		FrameBufferPool pool = mFramePool;
+		mFramePool = null;
+		if (pool != null) {
+			mResult = null;
+			if (mDisplayedFrame != null)
+				mDisplayedFrame.recycle();
+			mDisplayedFrame = null;
+			pool.clear();
+		}
+	}
+
+	/**
+	 * Displays the result of a processed frame and returns 
+	 * the previously displayed frame to the pool
+	 * @param frame frame that was processed
+	 * @param result output of the frame or null if processing failed
+	 */
+	@Override
+	public void onFrameProcessed(FrameStage stage, FrameBuffer frame, Mat result){
+		updateTimings(stage);
+		if (stage == mRecognizer && mCurrentOption == DISPLAY_OPTION.RECOGNIZE)
+			onRecognized(mRecognizer.getRecognized());
+		if (result == null || mFramePool == null) {
+			// Nothing to display, the frame can be reused right away
+			frame.recycle();
+			return;
+		}
+		FrameBuffer previous = mDisplayedFrame;
+		mDisplayedFrame = frame;
+		mResult = result;
+		if (previous != null)
+			previous.recycle();
+	}
+
 	//////////////////////////////////////////////////////
 	//// CameraViewBase callback methods for interpreting 
 	//////////////////////////////////////////////////////
@@ -508,40 +763,192 @@ OnFeaturesDrawnListener, ImageWarpListener, OnItemSelectedListener {
 	@Override
 	public void onExtractedFeatures(ImageInformation info) {
 		// Initialize the Async Boxer if there is an image set available
+		if (mCurrentAppliance.hasApplianceFeatures()) {
+			ApplianceFeatures feats = mCurrentAppliance.getApplianceFeatures();
+			mAsyncBoxer = new AsyncBoxDrawer(mCV, info, feats, mOverlayView);
+		} else
+			mAsyncBoxer = null;
+		mAsyncFeatureDrawer = new AsyncFeatureDrawer(mCV, info);
+		mAsyncImageWarper = new AsyncImageWarper(mCV, info);
 		mRefImgInfo = info;
 		mDisplayOptSpinner.setEnabled(true);
 	}
 
-	@Override
-	public void onCameraViewStopped() {
-		// TODO Either find out why it stopped or close the program 
-		// due to intention stop
-		Log.i(TAG, "OpenCV Camerabridge has stopped");
+	/**
+	 * Builds the recognition index over every appliance of the user in the background
+	 */
+	private void buildRecognitionIndex(){
+		if (mRecognizer != null || mAsyncIndexer != null) return;
+		UserApplianceDataSource source = new UserApplianceDataSource(this);
+		source.open();
+		List<Appliance> appliances = source.getAllAppliances();
+		source.close();
+		mAsyncIndexer = new AsyncApplianceIndexer(mCV);
+		mAsyncIndexer.setApplianceIndexListener(this);
+		mAsyncIndexer.execute(appliances.toArray(new Appliance[appliances.size()]));
 	}
 
-	private Mat mResult;
-
 	@Override
-	public void onImageWarped(Mat warpedImage) {
-		if (warpedImage != null)
-			mResult = warpedImage;
-		mAsyncImageWarper = null; // Reset the task
+	public void onFailedToBuildIndex() {
+		mAsyncIndexer = null;
+		Toast.makeText(this, "No appliance to recognize", Toast.LENGTH_SHORT).show();
 	}
 
 	@Override
-	public void onFeaturesDrawn(Mat imgWFeat) {
-		if (imgWFeat != null)
-			mResult = imgWFeat;
-		mAsyncFeatureDrawer = null;// Reset the task
+	public void onIndexBuilt(ApplianceIndex<Appliance> index) {
+		mAsyncIndexer = null;
+		mRecognizer = new AsyncApplianceRecognizer(mCV, index);
+		Log.i(TAG, "Recognizing among " + index.size() + " appliances");
+	}
+
+	/**
+	 * Switches to an appliance once it was recognized in MIN_RECOGNITIONS consecutive frames
+	 * @param recognized appliance recognized in the last frame, null if none
+	 */
+	private void onRecognized(Appliance recognized){
+		if (recognized == null || isSameAppliance(recognized, mCurrentAppliance)) {
+			mCandidate = null;
+			mCandidateCount = 0;
+			return;
+		}
+		if (!isSameAppliance(recognized, mCandidate)) {
+			mCandidate = recognized;
+			mCandidateCount = 0;
+		}
+		if (++mCandidateCount >= MIN_RECOGNITIONS) {
+			mCandidate = null;
+			mCandidateCount = 0;
+			switchAppliance(recognized);
+		}
+	}
+
+	/**
+	 * Makes appliance the current appliance and reloads its reference image,
+	 * then shows its features in the box mode
+	 * @param appliance appliance of the recognition index
+	 */
+	private void switchAppliance(Appliance appliance){
+		if (!reloadAppliance(appliance)) return;
+		Toast.makeText(this, "Recognized " + mCurrentAppliance, Toast.LENGTH_SHORT).show();
+		for (int i = 0; i < mDisplayOptions.length; ++i) {
+			if (mDisplayOptions[i] == DISPLAY_OPTION.BOX)
+				mDisplayOptSpinner.setSelection(i);
+		}
+	}
+
+	/**
+	 * Stores a camera frame as another view of the current appliance.  Called on the camera 
+	 * thread, which only copies the frame, the copy is written in the background
+	 * @param rgba camera frame
+	 */
+	private void addView(Mat rgba){
+		final Mat copy = rgba.clone();
+		final Appliance appliance = mCurrentAppliance;
+		runOnUiThread(new Runnable() {
+			@Override
+			public void run() {
+				new AsyncViewWriter(appliance).execute(copy);
+			}
+		});
+	}
+
+	/**
+	 * Converts a camera frame and writes it as another view of an appliance, then reloads the
+	 * appliance so the stages use the new view if it is still the current appliance
+	 * @author mhotan
+	 */
+	private class AsyncViewWriter extends AsyncTask<Mat, Void, String> {
+
+		private final Appliance mAppliance;
+
+		/**
+		 * @param appliance appliance the view belongs to
+		 */
+		public AsyncViewWriter(Appliance appliance){
+			mAppliance = appliance;
+		}
+
+		@Override
+		protected String doInBackground(Mat... params) {
+			Mat rgba = params[0];
+			Bitmap b = ImageConversion.matToBitmap(rgba);
+			rgba.release();
+			String path = FileManager.getInstance().addOtherImage(mAppliance, b);
+			b.recycle();
+			return path;
+		}
+
+		//Runs on main thread
+		@Override
+		protected void onPostExecute(String path) {
+			if (path == null) {
+				Toast.makeText(MainActivity.this, "Unable to add a view", Toast.LENGTH_SHORT).show();
+				return;
+			}
+			Toast.makeText(MainActivity.this, "Added a view of " + mAppliance, 
+					Toast.LENGTH_SHORT).show();
+			if (isSameAppliance(mAppliance, mCurrentAppliance))
+				reloadAppliance(mCurrentAppliance);
+		}
+	}
+
+	/**
+	 * Makes appliance the current appliance and reloads its reference image and views,
+	 * the stages are created again once their features are found
+	 * @param appliance stored appliance
+	 * @return false if the appliance could not be loaded
+	 */
+	private boolean reloadAppliance(Appliance appliance){
+		// Reload so the features are not scaled for a previous camera start
+		Appliance a = Appliance.toAppliance(appliance.toBundle());
+		if (a == null || mCameraSize == null) return false;
+		if (a.getApplianceFeatures() == null)
+			a.setApplianceFeatures(ApplianceFeatureFactory.getEmptyApplianceFeatures());
+		mCurrentAppliance = a;
+
+		// Stages of the previous appliance are dropped until the new features are found
+		clearStages();
+		loadReference(mCameraSize);
+		return true;
+	}
+
+	/**
+	 * Cancels the search for reference features and drops the stages built on them
+	 * until the features are found again
+	 */
+	private void clearStages(){
+		if (mAsyncFD != null)
+			mAsyncFD.cancel(false);
+		mRefImgInfo = null;
+		mAsyncBoxer = null;
+		mAsyncFeatureDrawer = null;
+		mAsyncImageWarper = null;
+		if (mOverlayView != null)
+			mOverlayView.clearOutlines();
+		if (mDisplayOptSpinner != null)
+			mDisplayOptSpinner.setEnabled(false);
+	}
+
+	/**
+	 * @return whether a and b are the same stored appliance
+	 */
+	private static boolean isSameAppliance(Appliance a, Appliance b){
+		if (a == null || b == null) return false;
+		if (a.getDirectoryPath() != null)
+			return a.getDirectoryPath().equals(b.getDirectoryPath());
+		return a.getID() == b.getID();
 	}
 
 	@Override
-	public void onBoxDrawn(Mat image) {
-		if (image != null)
-			mResult = image;
-		mAsyncBoxer = null;// Reset the task
+	public void onCameraViewStopped() {
+		// TODO Either find out why it stopped or close the program 
+		// due to intention stop
+		Log.i(TAG, "OpenCV Camerabridge has stopped");
+		stopFrameProcessing();
 	}
 
+	private Mat mResult;
+
 	//////////////////////////////////////////////////////
 	//// Unused inherited methods
 	//////////////////////////////////////////////////////
@@ -599,6 +1006,14 @@ OnFeaturesDrawnListener, ImageWarpListener, OnItemSelectedListener {
 			long arg3) {
 		if (spinner == mDisplayOptSpinner){
 			mCurrentOption = mDisplayOptions[pos];
+			// Only the box mode draws in the overlay
+			if (mCurrentOption != DISPLAY_OPTION.BOX && mOverlayView != null)
+				mOverlayView.clearOutlines();
+			if (mCurrentOption == DISPLAY_OPTION.RECOGNIZE) {
+				mCandidate = null;
+				mCandidateCount = 0;
+				buildRecognitionIndex();
+			}
 		}
 	}
 
@@ -631,12 +1046,13 @@ OnFeaturesDrawnListener, ImageWarpListener, OnItemSelectedListener {
 	 * DEBUG: The following 
 	 */
 	private static final DISPLAY_OPTION[] mDisplayOptions = {DISPLAY_OPTION.DONT_DISPLAY, 
-		DISPLAY_OPTION.FEATURES, DISPLAY_OPTION.BOX, DISPLAY_OPTION.WARP_IMG };
+		DISPLAY_OPTION.FEATURES, DISPLAY_OPTION.BOX, DISPLAY_OPTION.WARP_IMG, DISPLAY_OPTION.RECOGNIZE };
 
 	private enum DISPLAY_OPTION {
 		FEATURES("Display Features"), 
 		WARP_IMG("Display Warp"), 
 		BOX("Display Box"), 
+		RECOGNIZE("Recognize Appliance"),
 		DONT_DISPLAY("Don't Display");
 
 		private final String mtext;
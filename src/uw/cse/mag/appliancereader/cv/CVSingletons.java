@@ -1,21 +1,65 @@
 package uw.cse.mag.appliancereader.cv;
 
+import java.util.Random;
+
 import org.opencv.features2d.DescriptorExtractor;
 import org.opencv.features2d.DescriptorMatcher;
 import org.opencv.features2d.FeatureDetector;
 
+import uw.cse.mag.appliancereader.cv.TransformationLibrary.PruningMethodParameters;
+import uw.cse.mag.appliancereader.cv.homography.HomographyEstimator;
+import uw.cse.mag.appliancereader.cv.matching.VocabularyTree;
+
 /**
- * These are instance that are created at compile time for this particular 
- * application.  This reduces the run time work done by android.
+ * Default computer vision configuration for this particular application.
+ * <b>Feature detectors, descriptor extractors and descriptor matchers are not thread safe.
+ * Instead of sharing a single instance every worker creates its own instances through
+ * the factory methods below and confines them to its thread.  This lets the reference image
+ * detection and the frame stages run in parallel.
  * @author mhotan
  */
 public class CVSingletons {
 
-	private static final FeatureDetector mFD_ = TransformationLibrary.getFeatureDetector(TransformationLibrary.ORB);;
-	private static final DescriptorExtractor mDE_ = TransformationLibrary.getDescriptorExtractor(TransformationLibrary.ORB);;
-	private static final DescriptorMatcher mDM_ = DescriptorMatcher.create(DescriptorMatcher.BRUTEFORCE_SL2);;
+	private static final String mFD_ = TransformationLibrary.ORB;
+	private static final String mDE_ = TransformationLibrary.ORB;
+	private static final String mHE_ = TransformationLibrary.RANSAC;
 	private static final int mHM_ = TransformationLibrary.getHomographyIdentifier(TransformationLibrary.RANSAC);
 	private static final int mRANSACTHRESH = 3;
+	// Frames are resized by this factor before detection, 1 for full resolution
+	private static final double mDETECTIONSCALE = 1.0;
+	// Quality a homography needs before it is used to warp or draw
+	private static final int mMININLIERS = 10;
+	private static final double mMININLIERRATIO = 0.1;
+	// Frame to frame tracking of the homography
+	private static final boolean mTRACKING = true;
+	private static final int mMINTRACKEDPOINTS = 20;
+	// Temporal filtering of the homography and frames it replaces detection in
+	private static final boolean mSMOOTHING = true;
+	private static final double mSTEADYSPEED = 15;
+	private static final long mMAXPREDICTIONMS = 250;
+	// Reuse of the last homography while the scene does not change
+	private static final boolean mMOTIONGATE = true;
+	private static final double mMOTIONTHRESHOLD = 3;
+	private static final long mMAXSTATICMS = 2000;
+	// Recognition of the appliance in view among every stored appliance
+	private static final int mRECOGNITIONWIDTH = 640;
+	private static final int mRECOGNITIONHEIGHT = 480;
+	private static final float mMAXVOTEDISTANCE = 64;
+	private static final int mMINVOTES = 15;
+	private static final double mMINVOTELEAD = 1.5;
+	private static final int mMINRECOGNITIONINLIERS = 12;
+	// Retrieval of candidate appliances with a vocabulary tree once there are many
+	private static final int mMINRETRIEVALAPPLIANCES = 20;
+	private static final int mRETRIEVALCANDIDATES = 5;
+	private static final int mVOCABULARYBRANCHING = 10;
+	private static final int mVOCABULARYDEPTH = 4;
+	private static final int mVOCABULARYITERATIONS = 10;
+	private static final long mVOCABULARYSEED = 42;
+	// Inliers another view of an appliance needs to be mapped onto its reference image
+	private static final int mMINVIEWINLIERS = 25;
+	// Strongest key points kept per zone of a grid over every searched frame
+	private static final int mKEYPOINTZONES = 8;
+	private static final int mKEYPOINTSPERZONE = 10;
 	
 	public static int getHomographyMethod(){
 		return mHM_;
@@ -26,26 +70,223 @@ public class CVSingletons {
 	}
 	
 	/**
-	 * Not thread safe
-	 * @return the single instance of the feature detector 
+	 * @return factor frames are resized by before feature detection, IE 0.5 for half resolution
+	 */
+	public static double getDetectionScale(){
+		return mDETECTIONSCALE;
+	}
+	
+	/**
+	 * @return minimum number of inliers of a homography worth using
+	 */
+	public static int getMinInliers(){
+		return mMININLIERS;
+	}
+	
+	/**
+	 * @return minimum fraction of inliers of a homography worth using
+	 */
+	public static double getMinInlierRatio(){
+		return mMININLIERRATIO;
+	}
+	
+	/**
+	 * @return whether stages track the homography between frames with optical flow
+	 */
+	public static boolean isTrackingEnabled(){
+		return mTRACKING;
+	}
+	
+	/**
+	 * @return minimum number of tracked points before falling back to full detection
+	 */
+	public static int getMinTrackedPoints(){
+		return mMINTRACKEDPOINTS;
+	}
+	
+	/**
+	 * @return whether stages smooth the homography over time and predict the next pose
+	 */
+	public static boolean isSmoothingEnabled(){
+		return mSMOOTHING;
+	}
+	
+	/**
+	 * @return speed in pixels per second below which a predicted homography replaces
+	 * processing the frame
+	 */
+	public static double getSteadySpeed(){
+		return mSTEADYSPEED;
+	}
+	
+	/**
+	 * @return longest time in milliseconds a predicted homography may replace a measured one
+	 */
+	public static long getMaxPredictionMs(){
+		return mMAXPREDICTIONMS;
+	}
+	
+	/**
+	 * @return whether stages skip frames that did not change since the last measured homography
+	 */
+	public static boolean isMotionGateEnabled(){
+		return mMOTIONGATE;
+	}
+	
+	/**
+	 * @return mean absolute difference in grey levels of the frame thumbnails below which
+	 * the scene counts as static
+	 */
+	public static double getMotionThreshold(){
+		return mMOTIONTHRESHOLD;
+	}
+	
+	/**
+	 * @return longest time in milliseconds the homography of a static scene is reused
+	 * before the frame is processed again
+	 */
+	public static long getMaxStaticMs(){
+		return mMAXSTATICMS;
+	}
+	
+	/**
+	 * @return width reference images are loaded with for recognition
+	 */
+	public static int getRecognitionWidth(){
+		return mRECOGNITIONWIDTH;
+	}
+	
+	/**
+	 * @return height reference images are loaded with for recognition
+	 */
+	public static int getRecognitionHeight(){
+		return mRECOGNITIONHEIGHT;
+	}
+	
+	/**
+	 * @return largest descriptor distance of a match that votes for an appliance
+	 */
+	public static float getMaxVoteDistance(){
+		return mMAXVOTEDISTANCE;
+	}
+	
+	/**
+	 * @return least number of votes before an appliance can be recognized
+	 */
+	public static int getMinVotes(){
+		return mMINVOTES;
+	}
+	
+	/**
+	 * @return least ratio of the votes of the recognized appliance to the votes of the runner up
 	 */
-	public static FeatureDetector getFeatureDetector(){
+	public static double getMinVoteLead(){
+		return mMINVOTELEAD;
+	}
+	
+	/**
+	 * @return least number of verified inliers before an appliance counts as recognized
+	 */
+	public static int getMinRecognitionInliers(){
+		return mMINRECOGNITIONINLIERS;
+	}
+	
+	/**
+	 * @return least number of indexed appliances before recognition only matches against the
+	 * candidates retrieved with the vocabulary tree instead of every appliance
+	 */
+	public static int getMinRetrievalAppliances(){
+		return mMINRETRIEVALAPPLIANCES;
+	}
+	
+	/**
+	 * @return number of candidate appliances retrieved for every frame and matched against
+	 */
+	public static int getRetrievalCandidates(){
+		return mRETRIEVALCANDIDATES;
+	}
+	
+	/**
+	 * @return least number of inliers of the homography that maps another view of an
+	 * appliance onto its reference image, views with fewer are not used
+	 */
+	public static int getMinViewInliers(){
+		return mMINVIEWINLIERS;
+	}
+	
+	/**
+	 * @return pruning parameters of the frame stages, a new copy for every call
+	 */
+	public static PruningMethodParameters getPruningParameters(){
+		PruningMethodParameters params = new PruningMethodParameters();
+		params.setNumZones(mKEYPOINTZONES);
+		params.setKeyPointsPerZone(mKEYPOINTSPERZONE);
+		return params;
+	}
+	
+	/**
+	 * @return name of the default homography estimator as defined by TransformationLibrary
+	 */
+	public static String getHomographyEstimatorName(){
+		return mHE_;
+	}
+	
+	/**
+	 * @return name of the default feature detector as defined by TransformationLibrary
+	 */
+	public static String getFeatureDetectorName(){
 		return mFD_;
 	}
 	
 	/**
-	 * Not thread safe
-	 * @return the single instance of the Descriptor Extractor
+	 * @return name of the default descriptor extractor as defined by TransformationLibrary
 	 */
-	public static DescriptorExtractor getDescriptorExtractor(){
+	public static String getDescriptorExtractorName(){
 		return mDE_;
 	}
 	
 	/**
-	 * Not thread safe
-	 * @return the single instance of the Descriptor Matcher
+	 * Not thread safe, confine the instance to the calling worker
+	 * @return a new instance of the default feature detector 
+	 */
+	public static FeatureDetector newFeatureDetector(){
+		return TransformationLibrary.getFeatureDetector(mFD_);
+	}
+	
+	/**
+	 * Not thread safe, confine the instance to the calling worker
+	 * @return a new instance of the default Descriptor Extractor
+	 */
+	public static DescriptorExtractor newDescriptorExtractor(){
+		return TransformationLibrary.getDescriptorExtractor(mDE_);
+	}
+	
+	/**
+	 * Not thread safe, confine the instance to the calling worker
+	 * @return a new instance of the default Homography Estimator 
+	 */
+	public static HomographyEstimator newHomographyEstimator(){
+		return TransformationLibrary.getHomographyEstimator(mHE_, mRANSACTHRESH);
+	}
+	
+	/**
+	 * Trains a vocabulary tree of the default shape, the same descriptors always
+	 * give the same tree
+	 * @param descriptors packed binary descriptors, see VocabularyTree.pack()
+	 * @param count number of descriptors
+	 * @param length length of a packed descriptor in longs
+	 * @return a new vocabulary tree, can be shared between threads
+	 */
+	public static VocabularyTree trainVocabulary(long[] descriptors, int count, int length){
+		return VocabularyTree.train(descriptors, count, length, mVOCABULARYBRANCHING,
+				mVOCABULARYDEPTH, mVOCABULARYITERATIONS, new Random(mVOCABULARYSEED));
+	}
+	
+	/**
+	 * Not thread safe, confine the instance to the calling worker
+	 * @return a new instance of the Descriptor Matcher that suits the default Descriptor Extractor
 	 */
-	public static DescriptorMatcher getDescriptorMatcher(){
-		return mDM_;
+	public static DescriptorMatcher newDescriptorMatcher(){
+		return TransformationLibrary.getDescriptorMatcher(mDE_);
 	}
 }
@@ -1,7 +1,6 @@
 package uw.cse.mag.appliancereader.cv;
 
 import java.util.ArrayList;
-import java.util.LinkedList;
 import java.util.List;
 
 import org.opencv.android.BaseLoaderCallback;
@@ -9,15 +8,19 @@ import org.opencv.android.LoaderCallbackInterface;
 import org.opencv.android.OpenCVLoader;
 import org.opencv.calib3d.Calib3d;
 import org.opencv.core.Core;
+import org.opencv.core.CvType;
 import org.opencv.core.Mat;
 import org.opencv.core.MatOfByte;
 import org.opencv.core.MatOfDMatch;
+import org.opencv.core.MatOfFloat;
 import org.opencv.core.MatOfKeyPoint;
+import org.opencv.core.MatOfPoint;
 import org.opencv.core.MatOfPoint2f;
 import org.opencv.core.Point;
 import org.opencv.core.Rect;
 import org.opencv.core.Scalar;
 import org.opencv.core.Size;
+import org.opencv.core.TermCriteria;
 import org.opencv.features2d.DMatch;
 import org.opencv.features2d.DescriptorExtractor;
 import org.opencv.features2d.DescriptorMatcher;
@@ -26,6 +29,12 @@ import org.opencv.features2d.Features2d;
 import org.opencv.features2d.KeyPoint;
 import org.opencv.imgproc.Imgproc;
 import org.opencv.utils.Converters;
+import org.opencv.video.Video;
+
+import uw.cse.mag.appliancereader.cv.homography.HomographyEstimator;
+import uw.cse.mag.appliancereader.cv.homography.HomographyResult;
+import uw.cse.mag.appliancereader.cv.matching.KeyPointGrid;
+import uw.cse.mag.appliancereader.cv.matching.MatchPruner;
 
 import android.app.Activity;
 import android.content.Context;
@@ -37,6 +46,10 @@ import android.util.Log;
  * 
  * Note that some functions might take a while to return.
  * Threading might be needed to avoid ANR.
+ * 
+ * This class holds no per call state so it can be used by multiple 
+ * threads at once.  Detectors, extractors and matchers passed in are 
+ * not thread safe and must be confined to the calling thread.
  */
 public class ComputerVision {
 
@@ -49,7 +62,7 @@ public class ComputerVision {
 
 	// TODO: Re assess if this is really needed
 	// or program should fall through and break
-	private boolean initialized; // Failsafe to check if was initialized or not
+	private volatile boolean initialized; // Failsafe to check if was initialized or not
 
 	private final static boolean DEBUG = true;
 
@@ -124,14 +137,24 @@ public class ComputerVision {
 	 * featureDetector can be obtained from the FeatureDetector class
 	 * (eg. FeatureDetector.FAST)
 	 */
-	public synchronized MatOfKeyPoint findFeatures(FeatureDetector detector, Mat images){
-		if (!initialized)
-			throw new IllegalStateException("CV not initialized");
+	public MatOfKeyPoint findFeatures(FeatureDetector detector, Mat images){
 		MatOfKeyPoint results = new MatOfKeyPoint();	
-		detector.detect(images, results);
+		findFeatures(detector, images, results);
 		return results;
 	}
 
+	/**
+	 * Finds the keypoints of an image and stores them in a preallocated matrix
+	 * @param detector Detector to find features with
+	 * @param image image to find features in
+	 * @param results Matrix to store the key points in, reused between calls
+	 */
+	public void findFeatures(FeatureDetector detector, Mat image, MatOfKeyPoint results){
+		if (!initialized)
+			throw new IllegalStateException("CV not initialized");
+		detector.detect(image, results);
+	}
+
 	/**
 	 * Returns descrtiptions of features of keypoints found in image
 	 * @param extractor Extractor to ue to extract description of features
@@ -139,40 +162,171 @@ public class ComputerVision {
 	 * @param keypoints Matrix of keypoints to identify
 	 * @return matrix of descriptors describing the features
 	 */
-	public synchronized Mat computeDescriptors(DescriptorExtractor extractor, Mat image,
+	public Mat computeDescriptors(DescriptorExtractor extractor, Mat image,
 			MatOfKeyPoint keypoints){
+		Mat descriptors = new Mat();
+		computeDescriptors(extractor, image, keypoints, descriptors);
+		return descriptors;
+	}
+
+	/**
+	 * Computes descriptors of keypoints found in image into a preallocated matrix
+	 * @param extractor Extractor to ue to extract description of features
+	 * @param image which hold the features
+	 * @param keypoints Matrix of keypoints to identify
+	 * @param descriptors Matrix to store the descriptors in, reused between calls
+	 */
+	public void computeDescriptors(DescriptorExtractor extractor, Mat image,
+			MatOfKeyPoint keypoints, Mat descriptors){
 		if (!initialized)
 			throw new IllegalStateException("CV not initialized");
-		Mat descriptors = new Mat();
 		extractor.compute(image, keypoints, descriptors);
-		return descriptors;
+	}
+
+	/**
+	 * Finds features inside a region of image and describes them, optionally on a downscaled
+	 * copy of the region.  Key points are returned in the coordinates of the whole image
+	 * at full resolution.
+	 * @param detector Feature detector owned by the calling thread
+	 * @param extractor Descriptor extractor owned by the calling thread
+	 * @param image Whole image
+	 * @param region Region of the image to search, null for the whole image
+	 * @param scale Factor the region is resized by before detection, 1 for full resolution
+	 * @param grid Grid of the calling thread that bounds the key points described per zone 
+	 * of the searched region, null to describe every key point
+	 * @param scaled Matrix to store the resized region in, reused between calls
+	 * @param keypoints Matrix to store the key points in, reused between calls
+	 * @param descriptors Matrix to store the descriptors in, reused between calls
+	 * @param timer Timer that records detection, pruning and description, null for none
+	 */
+	public void findFeatures(FeatureDetector detector, DescriptorExtractor extractor, Mat image, 
+			Rect region, double scale, KeyPointGrid grid, Mat scaled, MatOfKeyPoint keypoints, 
+			Mat descriptors, PipelineTimer timer){
+		if (!initialized)
+			throw new IllegalStateException("CV not initialized");
+		if (scale <= 0 || scale > 1)
+			throw new IllegalArgumentException("Illegal detection scale: " + scale);
+		long t = System.nanoTime();
+		Mat sub = region == null ? image : image.submat(region);
+		Mat search = sub;
+		if (scale < 1) {
+			Imgproc.resize(sub, scaled, new Size(), scale, scale, Imgproc.INTER_AREA);
+			search = scaled;
+		}
+		detector.detect(search, keypoints);
+		if (timer != null) t = timer.record(PipelineTimer.STAGE.DETECT, t);
+		if (grid != null) {
+			grid.select(keypoints, search.cols(), search.rows());
+			if (timer != null) t = timer.record(PipelineTimer.STAGE.PRUNE, t);
+		}
+		if (!keypoints.empty())
+			extractor.compute(search, keypoints, descriptors);
+		if (timer != null) timer.record(PipelineTimer.STAGE.DESCRIBE, t);
+		if (sub != image)
+			sub.release();
+		if (keypoints.empty() || (region == null && scale == 1)) return;
+		
+		// Move the key points from the scaled region to the whole image
+		// Key points are stored as x, y, size, angle, response, octave, class id
+		double x0 = region == null ? 0 : region.x;
+		double y0 = region == null ? 0 : region.y;
+		float[] kp = new float[keypoints.rows() * 7];
+		keypoints.get(0, 0, kp);
+		for (int i = 0; i < kp.length; i += 7) {
+			kp[i] = (float) (kp[i] / scale + x0);
+			kp[i + 1] = (float) (kp[i + 1] / scale + y0);
+			kp[i + 2] = (float) (kp[i + 2] / scale);
+		}
+		keypoints.put(0, 0, kp);
 	}
 
 	/**
 	 * Given two descriptors, compute the matches
 	 */
-	public synchronized MatOfDMatch getMatchingCorrespondences(Mat queryDescriptors,
+	public MatOfDMatch getMatchingCorrespondences(Mat queryDescriptors,
 			Mat trainDescriptors) {
-		return privateGetMatchingCorrespondences(queryDescriptors, trainDescriptors);
+		// Holds the result
+		MatOfDMatch matches = new MatOfDMatch();
+		// Matcher is confined to this call and chosen by the type of descriptor
+		getMatchingCorrespondences(TransformationLibrary.getDescriptorMatcher(queryDescriptors.type()), 
+				queryDescriptors, trainDescriptors, matches);
+		return matches;
 	}
-	
+
 	/**
-	 * Unsyncronized helper
-	 * @param srcDescriptors
-	 * @param destDescriptors
-	 * @return
+	 * Given two descriptors, compute the matches into a preallocated matrix
+	 * @param dm Matcher owned by the calling thread
+	 * @param queryDescriptors descriptors to find matches for
+	 * @param trainDescriptors descriptors to match against
+	 * @param matches Matrix to store the matches in, reused between calls
 	 */
-	private MatOfDMatch privateGetMatchingCorrespondences(Mat queryDescriptors,
-			Mat trainDescriptors){
+	public void getMatchingCorrespondences(DescriptorMatcher dm, Mat queryDescriptors,
+			Mat trainDescriptors, MatOfDMatch matches) {
 		if (!initialized)
 			throw new IllegalStateException("CV not initialized");
-		// Holds the result
-		MatOfDMatch matches = new MatOfDMatch();
-		// Flann-based descriptor
-		DescriptorMatcher dm = CVSingletons.getDescriptorMatcher();
 		// Compute matches
 		dm.match(queryDescriptors, trainDescriptors, matches);
-		return matches;
+	}
+
+	/**
+	 * Creates a matcher that is trained once on trainDescriptors, IE the descriptors
+	 * of the reference image.  The search index is only built here so every following
+	 * call to getMatchingCorrespondences(DescriptorMatcher, Mat, MatOfDMatch) only pays for the query.
+	 * @param trainDescriptors descriptors to match against, must not change while the matcher is used
+	 * @return trained matcher to be confined to the calling thread
+	 */
+	public DescriptorMatcher trainMatcher(Mat trainDescriptors) {
+		List<Mat> train = new ArrayList<Mat>(1);
+		train.add(trainDescriptors);
+		return trainMatcher(train);
+	}
+
+	/**
+	 * Creates a matcher that is trained once on the descriptors of several images, IE the
+	 * reference images of several appliances.  Every match it returns holds the position
+	 * of the image of its train descriptor in trainDescriptors as its image index.
+	 * @param trainDescriptors descriptors of every image, all of the same type, must not change
+	 * while the matcher is used
+	 * @return trained matcher to be confined to the calling thread
+	 */
+	public DescriptorMatcher trainMatcher(List<Mat> trainDescriptors) {
+		if (!initialized)
+			throw new IllegalStateException("CV not initialized");
+		if (trainDescriptors == null || trainDescriptors.isEmpty())
+			throw new IllegalArgumentException("No descriptors to train the matcher with");
+		DescriptorMatcher dm = TransformationLibrary.getIndexedDescriptorMatcher(trainDescriptors.get(0).type());
+		dm.add(trainDescriptors);
+		dm.train();
+		return dm;
+	}
+
+	/**
+	 * Replaces the images a brute force matcher matches against, IE the few candidate
+	 * appliances of a retrieval.  Brute force matchers build no index so this is cheap
+	 * enough to do for every frame.  Matches hold the position of the image of their
+	 * train descriptor in trainDescriptors as their image index.
+	 * @param dm Brute force matcher owned by the calling thread
+	 * @param trainDescriptors descriptors of every image, must not change while they are matched
+	 */
+	public void setTrainDescriptors(DescriptorMatcher dm, List<Mat> trainDescriptors) {
+		if (!initialized)
+			throw new IllegalStateException("CV not initialized");
+		dm.clear();
+		dm.add(trainDescriptors);
+	}
+
+	/**
+	 * Given query descriptors, compute the matches against the descriptors the
+	 * matcher was trained with
+	 * @param trained Matcher returned by trainMatcher owned by the calling thread
+	 * @param queryDescriptors descriptors to find matches for
+	 * @param matches Matrix to store the matches in, reused between calls
+	 */
+	public void getMatchingCorrespondences(DescriptorMatcher trained, Mat queryDescriptors,
+			MatOfDMatch matches) {
+		if (!initialized)
+			throw new IllegalStateException("CV not initialized");
+		trained.match(queryDescriptors, matches);
 	}
 
 	/**
@@ -187,7 +341,7 @@ public class ComputerVision {
 	 * @param matchesMask null or mask describing which matches to draw
 	 * @return image with matches
 	 */
-	public synchronized Mat getMatchesImage(Mat img1, MatOfKeyPoint keypoints1, 
+	public Mat getMatchesImage(Mat img1, MatOfKeyPoint keypoints1, 
 			Mat img2, MatOfKeyPoint keypoints2, MatOfDMatch matches1to2, Scalar matchColor, 
 			Scalar singlePointColor, MatOfByte matchesMask){
 		if (img1 == null || keypoints1 == null || 
@@ -238,7 +392,7 @@ public class ComputerVision {
 	 * @param mKeypoints array of keypoints to label on image
 	 * @return new matrix with key points labeled by circles
 	 */
-	public synchronized Mat getMatWithKeyPointsDrawn(Mat src, MatOfKeyPoint matKeyPoints) {
+	public Mat getMatWithKeyPointsDrawn(Mat src, MatOfKeyPoint matKeyPoints) {
 		// Have to handle stupid OpenCV problem of not being able to draw 
 		Mat rgb = new Mat();
 		Mat output = new Mat();
@@ -259,6 +413,25 @@ public class ComputerVision {
 	 */
 	public MatOfPoint2f[] getCorrespondences(MatOfDMatch descriptors,
 			MatOfKeyPoint ref_kp, MatOfKeyPoint tgt_kp) {
+		MatOfPoint2f ref_pts = new MatOfPoint2f();
+		MatOfPoint2f tgt_pts = new MatOfPoint2f();
+		getCorrespondences(descriptors, ref_kp, tgt_kp, ref_pts, tgt_pts);
+		
+		MatOfPoint2f[] results = new MatOfPoint2f[2];
+		results[0] = ref_pts;
+		results[1] = tgt_pts;
+		return results;
+	}
+
+	/**
+	 * Same as getCorrespondences(MatOfDMatch, MatOfKeyPoint, MatOfKeyPoint) but 
+	 * stores the points in preallocated matrices
+	 * @param ref_pts Matrix to store reference points in, reused between calls
+	 * @param tgt_pts Matrix to store target points in, reused between calls
+	 */
+	public void getCorrespondences(MatOfDMatch descriptors,
+			MatOfKeyPoint ref_kp, MatOfKeyPoint tgt_kp, 
+			MatOfPoint2f ref_pts, MatOfPoint2f tgt_pts) {
 
 		// The source of computation
 		DMatch[] descriptors_array = descriptors.toArray();
@@ -274,40 +447,21 @@ public class ComputerVision {
 			tgt_pts_array[i] = tgt_kp_array[descriptors_array[i].queryIdx].pt;
 		}
 		
-		MatOfPoint2f ref_pts = new MatOfPoint2f(ref_pts_array);
-		MatOfPoint2f tgt_pts = new MatOfPoint2f(tgt_pts_array);
-		
-		MatOfPoint2f[] results = new MatOfPoint2f[2];
-		results[0] = ref_pts;
-		results[1] = tgt_pts;
-		return results;
+		ref_pts.fromArray(ref_pts_array);
+		tgt_pts.fromArray(tgt_pts_array);
 	}
 
 	/**
 	 * Gets all cross matches
 	 * @param matches12
 	 * @param matches21
+	 * @param pruner pruner owned by the caller, its buffers are reused between calls
 	 * @return
 	 */
-	public synchronized MatOfDMatch getCrossMatches(MatOfDMatch matches12, 
-			MatOfDMatch matches21) {
-		
-		List<DMatch> filtered = new LinkedList<DMatch>();
-		DMatch[] m12Array = matches12.toArray();
-		DMatch[] m21Array = matches21.toArray();
-		
-//		if (m12Array.length != m21Array.length)
-//			throw new IllegalArgumentException("Matched do not have equal lengths");
-	
-		for (int i = 0; i < m12Array.length; i++) {
-			DMatch forward = m12Array[i];
-			DMatch backward = m21Array[forward.trainIdx];
-			if (backward.trainIdx == forward.queryIdx)
-				filtered.add(forward);
-		}
-		
+	public MatOfDMatch getCrossMatches(MatOfDMatch matches12, 
+			MatOfDMatch matches21, MatchPruner pruner) {
 		MatOfDMatch filteredMat = new MatOfDMatch();
-		filteredMat.fromList(filtered);
+		pruner.crossCheck(matches12, matches21, filteredMat);
 		return filteredMat;
 	}
 	
@@ -317,79 +471,11 @@ public class ComputerVision {
 	 * 
 	 * Return: reduced MatOfDMatch by cross check
 	 */
-	public synchronized MatOfDMatch getCrossMatchesAndDistance(MatOfDMatch matches12, 
-			MatOfDMatch matches21, MatOfKeyPoint train_kp, MatOfKeyPoint query_kp) {
-
-
-		DMatch[] matches12_array = matches12.toArray();
-		DMatch[] matches21_array = matches21.toArray();
-
-		KeyPoint[] train_kp_array = train_kp.toArray();
-		KeyPoint[] query_kp_array = query_kp.toArray();
-
-
-		MatOfDMatch new_matches = new MatOfDMatch();
-		List<DMatch> new_matchesList = new ArrayList<DMatch>();
-
-		MatOfKeyPoint new_train_kp = new MatOfKeyPoint();
-		List<KeyPoint> new_train_kpList = new ArrayList<KeyPoint>();
-
-		MatOfKeyPoint new_query_kp = new MatOfKeyPoint();
-		List<KeyPoint> new_query_kpList = new ArrayList<KeyPoint>();
-
-		int count = 0;
-		//matches12_array.length
-
-		float distance =  matches12_array[0].distance;
-		float distanceMin = distance;
-		float distanceMax = 0;
-
-		Point ptQuery = query_kp_array[matches12_array[0].queryIdx].pt;
-		logi("HomoTrans::: CrossCheck :: Distance: " + distance);
-		logi("HomoTrans::: CrossCheck :: Point: " + ptQuery);
-
-
-		logi("matches12 queryIdx: " + matches12_array[0]);
-		logi("matches12 queryIdx's point: " + query_kp_array[matches12_array[0].queryIdx]);
-
-
-		for (int i = 0 ; i < matches12_array.length; i++) {
-
-			distance =  matches12_array[i].distance;
-			ptQuery = query_kp_array[matches12_array[i].queryIdx].pt;
-			//			logi("HomoTrans::: CrossCheck :: Distance: " + distance);
-			//			logi("HomoTrans::: CrossCheck :: Point: " + ptQuery);
-
-			if (distance < distanceMin) {
-				distanceMin = distance;
-			}else if (distance > distanceMax) {
-				distanceMax = distance;
-			}
-
-			if (matches12_array[i].queryIdx == matches21_array[matches12_array[i].trainIdx].trainIdx 
-					&& matches12_array[i].trainIdx == matches21_array[matches12_array[i].trainIdx].queryIdx 
-					&& distance < 100000) {
-
-				new_matchesList.add(matches12_array[i]);		
-				new_query_kpList.add(query_kp_array[matches12_array[i].queryIdx]);			
-				new_train_kpList.add(train_kp_array[matches12_array[i].trainIdx]);			
-				count = count + 1;
-			}
-
-			//			logi("HomoTrans::: CrossCheck :: crossMatch count: " + count);
-		}
-
-		logi("HomoTrans::: CrossCheck :: maximum distance: " + distanceMax);
-		logi("HomoTrans::: CrossCheck :: minimum distance: " + distanceMin);
-
-		new_matches.fromList(new_matchesList);
-
-		new_train_kp.fromList(new_train_kpList);
-
-		new_query_kp.fromList(new_query_kpList);
-
+	public MatOfDMatch getCrossMatchesAndDistance(MatOfDMatch matches12, 
+			MatOfDMatch matches21, MatOfKeyPoint train_kp, MatOfKeyPoint query_kp, MatchPruner pruner) {
+		MatOfDMatch new_matches = getCrossMatches(matches12, matches21, pruner);
+		logi("HomoTrans::: CrossCheck :: crossMatch count: " + new_matches.rows());
 		return new_matches;
-
 	}
 
 
@@ -397,67 +483,14 @@ public class ComputerVision {
 	 * Given MatOfDMatch, training MatOfKeyPoint, query MatOfKeyPoint, and chessBoard zones
 	 * to compute cross matches.
 	 * 
+	 * @param pruner pruner owned by the caller, its buffers are reused between calls
 	 * @return reduced MatOfDMatch gathered from each zone
 	 */
-	public synchronized MatOfDMatch getLocalMatches(MatOfDMatch matches, MatOfKeyPoint train_kp, 
-			MatOfKeyPoint query_kp, int zones, int imgHeight, int imgWidth) {
-
+	public MatOfDMatch getLocalMatches(MatOfDMatch matches, MatOfKeyPoint train_kp, 
+			MatOfKeyPoint query_kp, int zones, int imgHeight, int imgWidth, MatchPruner pruner) {
 		MatOfDMatch newMatches = new MatOfDMatch();
-		DMatch[] localMatchesArray = new DMatch[zones * zones];
-		List<DMatch> newMatchesList = new ArrayList<DMatch>();
-		DMatch[] matchesArray = matches.toArray();
-
-
-		KeyPoint[] train_kp_array = train_kp.toArray();
-		KeyPoint[] query_kp_array = query_kp.toArray();
-
-
-		logi("length: " + matchesArray.length);
-		logi("height: " + imgHeight);
-		logi("width: " + imgWidth);
-
-
-		for (int i = 0; i < matchesArray.length; i++) {
-			//			logi("i= " + i + " matches12 queryIdx's point: " + query_kp_array[matchesArray[i].queryIdx].pt.toString());
-			//			logi("i= " + i + " matches12 trainIdx's point: " + train_kp_array[matchesArray[i].trainIdx].pt.toString());
-			//			logi("i= " + i + " matches12 distance: " + matchesArray[i].distance);
-
-
-			double intervalX = imgWidth / (double) zones;
-			double intervalY = imgHeight / (double) zones;
-
-			double chessX = Math.floor( query_kp_array[matchesArray[i].queryIdx].pt.x / intervalX );
-			double chessY = Math.floor( query_kp_array[matchesArray[i].queryIdx].pt.y / intervalY );
-
-			//			double chessX = (int) query_kp_array[matchesArray[i].queryIdx].pt.x / intervalX;
-			//			double chessY = (int) query_kp_array[matchesArray[i].queryIdx].pt.y / intervalY;
-
-
-
-			int index = (int) (chessX + chessY * zones);
-
-			//			logi("intervalX= " + intervalX + ", intervalY= " + intervalY);
-			//			logi("chessX= " + chessX + ", chessY= " + chessY);
-			//			logi("index= " + index);
-
-			if (localMatchesArray[index] == null || matchesArray[i].distance < localMatchesArray[index].distance) {
-				localMatchesArray[index] = matchesArray[i];
-			}
-		}
-
-		for (int i = 0; i < localMatchesArray.length; i++) {
-
-			//			logi("location: (" + i % zones + ", " + i / zones + ")");
-			if (localMatchesArray[i] != null) {
-				newMatchesList.add(localMatchesArray[i]);
-				//				logi("i= " + i + " localMatchesArray queryIdx's point: " + query_kp_array[localMatchesArray[i].queryIdx].pt.toString());
-				//				logi("i= " + i + " localMatchesArray trainIdx's point: " + train_kp_array[localMatchesArray[i].trainIdx].pt.toString());
-				//				logi("i= " + i + " localMatchesArray distance: " + localMatchesArray[i].distance);
-			}
-		}
-
-		logi("local check count: " + newMatchesList.size());
-		newMatches.fromList(newMatchesList);
+		pruner.localZones(matches, query_kp, zones, imgHeight, imgWidth, newMatches);
+		logi("local check count: " + newMatches.rows());
 		return newMatches;
 	}
 
@@ -467,7 +500,7 @@ public class ComputerVision {
 	 * 
 	 * Return: List of MatOfDMatch
 	 */
-	public synchronized List<MatOfDMatch> getKnnMatchList(Mat queryDescriptors, Mat trainDescriptors, int numberOfMatches) {
+	public List<MatOfDMatch> getKnnMatchList(Mat queryDescriptors, Mat trainDescriptors, int numberOfMatches) {
 		return privateGetKnnMatchList(queryDescriptors, trainDescriptors, numberOfMatches);
 	}
 	
@@ -480,8 +513,8 @@ public class ComputerVision {
 	 */
 	private List<MatOfDMatch> privateGetKnnMatchList(Mat queryDescriptors, Mat trainDescriptors, int numberOfMatches) {
 		List<MatOfDMatch> matchesList = new ArrayList<MatOfDMatch>();
-		// Flann-based descriptor
-		DescriptorMatcher dm = DescriptorMatcher.create(DescriptorMatcher.BRUTEFORCE_SL2);
+		// Hamming for binary descriptors, L2 for float descriptors
+		DescriptorMatcher dm = TransformationLibrary.getDescriptorMatcher(queryDescriptors.type());
 		logi("HomoTrans::: find knnMatches :: number of matches: " + numberOfMatches);
 		dm.knnMatch(queryDescriptors, trainDescriptors, matchesList, numberOfMatches);
 		return matchesList;
@@ -492,35 +525,48 @@ public class ComputerVision {
 	 * Given List of MatOfDMatch from knnMatches, training MatOfKeyPoint and 
 	 * query MatOfKeyPoint to compute good matches.
 	 * 
-	 * Return: reduced MatOfDMatch by distance check
+	 * Return: reduced MatOfDMatch by distance check, pruner is owned by the caller
 	 */
-	public synchronized MatOfDMatch getDistanceMatches(List<MatOfDMatch> knnMatchesList, MatOfKeyPoint trainMatOfKeyPoint, MatOfKeyPoint queryMatOfKeyPoint, int n, int threshold){
-
-		logi("HomoTrans::: DistanceCheck :: matchesList size " + knnMatchesList.size());
-		logi("HomoTrans::: DistanceCheck :: matchesList depth " + knnMatchesList.get(0).size());
-
+	public MatOfDMatch getDistanceMatches(List<MatOfDMatch> knnMatchesList, MatOfKeyPoint trainMatOfKeyPoint, MatOfKeyPoint queryMatOfKeyPoint, int n, int threshold,
+			MatchPruner pruner){
+		// Compares the two best matches of the same query
 		MatOfDMatch newMatches = new MatOfDMatch();
-		List<DMatch> newMatchesList = new ArrayList<DMatch>();
-
-		double sum = 0;
-		int count = 0;
-		for (int i = 0; i < knnMatchesList.size(); i++) {
-			//    		logi("HomoTrans::: DistanceCheck :: matchesList 1.1 " + knnMatchesList.get(i).toList().get(0).toString());
-			//        	logi("HomoTrans::: DistanceCheck :: matchesList 1.2 " + knnMatchesList.get(i).toList().get(1).toString());
-			double diffDistance = Math.abs(knnMatchesList.get(i).toList().get(1).distance - knnMatchesList.get(0).toList().get(0).distance);
-			//        	logi("HomoTrans::: DistanceCheck :: matchesList Distance:  " + diffDistance);
-			sum = sum + diffDistance;
-			if (diffDistance > threshold) {
-				newMatchesList.add(knnMatchesList.get(i).toList().get(0));
-				count++;
-			}
-		}
+		pruner.distanceGap(knnMatchesList, threshold, newMatches);
+		logi("HomoTrans::: DistanceCheck :: count: " + newMatches.rows() + " of " + knnMatchesList.size());
+		return newMatches;
+	}
 
-		logi("HomoTrans::: DistanceCheck :: count: " + count);
-		logi("HomoTrans::: DistanceCheck :: distance average: " + sum/knnMatchesList.size());
-		newMatches.fromList(newMatchesList);		
+	/**
+	 * Lowe's ratio test from a single kNN pass.  Finds the two nearest train descriptors of 
+	 * every query descriptor and keeps the nearest one if it is clearly closer then the second.
+	 * @param queryDescriptors descriptors to find matches for
+	 * @param trainDescriptors descriptors to match against
+	 * @param ratio largest accepted ratio of the best to the second best distance
+	 * @param symmetric whether only the closest query of every train descriptor is kept
+	 * @param pruner pruner owned by the caller, its buffers are reused between calls
+	 * @return matches that passed the ratio test
+	 */
+	public MatOfDMatch getRatioTestMatches(Mat queryDescriptors, Mat trainDescriptors, 
+			float ratio, boolean symmetric, MatchPruner pruner){
+		List<MatOfDMatch> knnMatches = privateGetKnnMatchList(queryDescriptors, trainDescriptors, 2);
+		return getRatioTestMatches(knnMatches, ratio, symmetric, pruner);
+	}
 
-		return newMatches;
+	/**
+	 * Lowe's ratio test on the two nearest neighbors of every query descriptor, IE found with
+	 * getKnnMatchList(query, train, 2).  Lets the caller match and prune separately
+	 * @param knnMatches two nearest train descriptors of every query descriptor
+	 * @param ratio largest accepted ratio of the best to the second best distance
+	 * @param symmetric whether only the closest query of every train descriptor is kept
+	 * @param pruner pruner owned by the caller, its buffers are reused between calls
+	 * @return matches that passed the ratio test
+	 */
+	public MatOfDMatch getRatioTestMatches(List<MatOfDMatch> knnMatches, 
+			float ratio, boolean symmetric, MatchPruner pruner){
+		MatOfDMatch good_matches = new MatOfDMatch();
+		pruner.ratioTest(knnMatches, ratio, symmetric, good_matches);
+		logi("HomoTrans::: RatioTest :: count: " + good_matches.rows() + " of " + knnMatches.size());
+		return good_matches;
 	}
 
 	/**
@@ -528,19 +574,50 @@ public class ComputerVision {
 	 * @param m Only allowed RGB image
 	 * @return Grey scale version of this image 
 	 */
-	public synchronized Mat RGBToGrey(Mat m) {
+	public Mat RGBToGrey(Mat m) {
 		Mat grey = new Mat();
 		Imgproc.cvtColor(m, grey, Imgproc.COLOR_RGBA2GRAY); // TODO Verify right color scale
 		Log.i(TAG, "HomoTrans::: Mat converted to grey scale: " + grey.toString());
 		return grey;
 	}
 
+	/**
+	 * Converts an RGBA image to grey scale into a preallocated matrix
+	 * @param m RGBA image
+	 * @param grey Matrix to store the grey image in, reused between calls
+	 */
+	public void RGBToGrey(Mat m, Mat grey) {
+		Imgproc.cvtColor(m, grey, Imgproc.COLOR_RGBA2GRAY);
+	}
+
+	/**
+	 * Tracks points from one grey frame to the next with sparse pyramidal Lucas-Kanade
+	 * @param prevGrey previous grey frame
+	 * @param nextGrey next grey frame
+	 * @param prevPts points in the previous frame
+	 * @param nextPts output positions of the points in the next frame
+	 * @param status output, 1 for every point that was found in the next frame
+	 * @param err output tracking error of every point
+	 */
+	public void trackFeatures(Mat prevGrey, Mat nextGrey, MatOfPoint2f prevPts,
+			MatOfPoint2f nextPts, MatOfByte status, MatOfFloat err) {
+		Video.calcOpticalFlowPyrLK(prevGrey, nextGrey, prevPts, nextPts, status, err,
+				LK_WINDOW, LK_MAX_LEVEL, LK_CRITERIA, 0, 1e-4);
+	}
+
+	// Lucas-Kanade parameters, a 21x21 window on 4 pyramid levels covers
+	// the motion of a hand held camera between frames
+	private static final Size LK_WINDOW = new Size(21, 21);
+	private static final int LK_MAX_LEVEL = 3;
+	private static final TermCriteria LK_CRITERIA = 
+			new TermCriteria(TermCriteria.COUNT + TermCriteria.EPS, 20, 0.03);
+
 	/**
 	 * Returns the hsitogram equalized image of m
 	 * @param m original grey scaled image
 	 * @return 
 	 */
-	public synchronized Mat toEqualizedHistogram(Mat m) {
+	public Mat toEqualizedHistogram(Mat m) {
 		Mat equalized = new Mat();
 		Imgproc.equalizeHist(m, equalized);
 		Log.i(TAG, "HomoTrans::: Mat histogram Equalized: " + equalized.toString());
@@ -554,7 +631,7 @@ public class ComputerVision {
 	 * @param knn
 	 * @return
 	 */
-	public synchronized MatOfDMatch getKnnWithCrossCheckingMatches(Mat descriptors1, Mat descriptors2,
+	public MatOfDMatch getKnnWithCrossCheckingMatches(Mat descriptors1, Mat descriptors2,
 			int knn){
 		//TODO Implement
 		//HardCode a descriptor Matcher
@@ -628,32 +705,14 @@ public class ComputerVision {
 	 * Implement a standard distance check.  Prunes out good matches by comparing 3 times the
 	 * minimum found distance.  If the min distance is 0 it automatically compare against 3.
 	 * @param matches1to2
-	 * @param numDescriptors
+	 * @param pruner pruner owned by the caller, its buffers are reused between calls
 	 * @return
 	 */
-	public synchronized MatOfDMatch getStandardDistanceCheck(MatOfDMatch matches1to2){
-		// TODO Implement
-		float min = Float.MAX_VALUE;
-		float max = 0;
-		DMatch[] matchArr = matches1to2.toArray();
-		for (DMatch match : matchArr) {
-			float dist = match.distance;
-			if (dist < min) min = dist;
-			if (dist > max) max = dist;
-		}
-		Log.i(TAG, "HomoTrans::: Distances found for distance check min: " + min + " max: " + max);
-		
-		if (min <= 0) min = 1; // Check for min == 0
-		
-		List<DMatch> goodMatches = new LinkedList<DMatch>();
-		for (DMatch match : matchArr) {
-			if (match.distance < 3*min)
-				goodMatches.add(match);
-		}
-		
-		Log.i(TAG, "HomoTrans::: Number of good matches after standard distance check");
+	public MatOfDMatch getStandardDistanceCheck(MatOfDMatch matches1to2, MatchPruner pruner){
 		MatOfDMatch good_matches = new MatOfDMatch();
-		good_matches.fromList(goodMatches);
+		pruner.distanceCheck(matches1to2, 3, good_matches);
+		Log.i(TAG, "HomoTrans::: Number of good matches after standard distance check: " 
+				+ good_matches.rows());
 		return good_matches;
 	}
 
@@ -667,7 +726,7 @@ public class ComputerVision {
 	 * of the same perspective as the reference.
 	 * RANSAC method is used.
 	 */
-	public synchronized Mat findHomography(MatOfPoint2f tgt, MatOfPoint2f dst,
+	public Mat findHomography(MatOfPoint2f tgt, MatOfPoint2f dst,
 			int method, int ransac_treshold){
 		Log.i(TAG, "HomoTrans::: Find Homography called");
 		return privateHomographyFinder(tgt, dst,
@@ -675,7 +734,47 @@ public class ComputerVision {
 	}
 
 	/**
-	 * Unsyncronized method
+	 * Finds the homography that maps src onto dst with an estimator owned by the calling thread
+	 * @param estimator Homography estimator IE from CVSingletons.newHomographyEstimator()
+	 * @param src source points
+	 * @param dst destination points
+	 * @param matches matches the points were taken from in the same order, 
+	 * supplies match distances to estimators that rank samples.  May be null
+	 * @param homography preallocated 3x3 CV_64F matrix to store the result in
+	 * @return homography with its inliers and quality or null if no homography was found
+	 */
+	public HomographyResult findHomography(HomographyEstimator estimator, MatOfPoint2f src, MatOfPoint2f dst,
+			MatOfDMatch matches, Mat homography){
+		int count = src.rows();
+		if (count != dst.rows())
+			throw new IllegalArgumentException("Mismatched number of points " + count + " and " + dst.rows());
+		float[] srcPts = new float[2 * count];
+		float[] dstPts = new float[2 * count];
+		if (count > 0) {
+			src.get(0, 0, srcPts);
+			dst.get(0, 0, dstPts);
+		}
+		
+		float[] distances = null;
+		if (matches != null && matches.rows() == count && count > 0) {
+			// DMatch is stored as queryIdx, trainIdx, imgIdx, distance
+			float[] m = new float[4 * count];
+			matches.get(0, 0, m);
+			distances = new float[count];
+			for (int i = 0; i < count; ++i)
+				distances[i] = m[4 * i + 3];
+		}
+		
+		HomographyResult result = estimator.estimate(srcPts, dstPts, distances, count);
+		if (result == null)
+			return null;
+		homography.create(3, 3, CvType.CV_64F);
+		homography.put(0, 0, result.mHomography);
+		return result;
+	}
+
+	/**
+	 * Helper that finds the homography
 	 */
 	private Mat privateHomographyFinder(MatOfPoint2f tgt, MatOfPoint2f dst,
 			int method, int ransac_treshold){
@@ -695,11 +794,19 @@ public class ComputerVision {
 	 */
 	public Mat getWarpedImage(Mat img, Mat homography, Size tgtSize, boolean invert){
 		Mat result = new Mat();
+		getWarpedImage(img, homography, tgtSize, invert, result);
+		return result;
+	}
+
+	/**
+	 * Same as getWarpedImage(Mat, Mat, Size, boolean) but warps into a preallocated matrix
+	 * @param result Matrix to store warped image, reused between calls
+	 */
+	public void getWarpedImage(Mat img, Mat homography, Size tgtSize, boolean invert, Mat result){
 		if (invert)
 			Imgproc.warpPerspective(img, result, homography, tgtSize,Imgproc.WARP_INVERSE_MAP);
 		else
 			Imgproc.warpPerspective(img, result, homography, tgtSize);
-		return result;
 	}
 	
 	/**
@@ -722,6 +829,15 @@ public class ComputerVision {
 				1);
 	}
 	
+	/**
+	 * Draws the outline of every polygon in an image
+	 * @param polygons closed polygons in the coordinates of image
+	 * @param image Image to which to draw on
+	 */
+	public void drawPolygons(List<MatOfPoint> polygons, Mat image){
+		Core.polylines(image, polygons, true, new Scalar(255, 0, 0), 2);
+	}
+	
 	/**
 	 * Draw a line from two points in an image
 	 * @param src Source point of the line
@@ -757,6 +873,18 @@ public class ComputerVision {
 		Imgproc.cvtColor(dst_rgb, dst, Imgproc.COLOR_RGB2RGBA);
 		// Imgproc.cvtColor(src_rgb, dst, Imgproc.COLOR_RGB2RGBA);
 	}
+
+	/**
+	 * Same as drawKeypoints_RGBA(Mat, Mat, MatOfKeyPoint) but uses a preallocated
+	 * RGB matrix for the intermediate color conversion
+	 * @param rgb scratch matrix for the RGB conversion, reused between calls
+	 */
+	public void drawKeypoints_RGBA(Mat src, Mat dst,
+			MatOfKeyPoint keypoints, Mat rgb) {
+		Imgproc.cvtColor(src, rgb, Imgproc.COLOR_RGBA2RGB);
+		Features2d.drawKeypoints(rgb, keypoints, rgb);
+		Imgproc.cvtColor(rgb, dst, Imgproc.COLOR_RGB2RGBA);
+	}
 }
 
 
@@ -0,0 +1,179 @@
+package uw.cse.mag.appliancereader.cv;
+
+import java.util.Arrays;
+
+/**
+ * Collects the latency of every step of the frame pipeline.
+ * <b>Steps are timed with System.nanoTime and the last WINDOW samples of every step
+ * are kept in a ring buffer, so percentiles follow the current conditions instead of
+ * being dominated by the first seconds after start up.  A step is timed by chaining
+ * the returned time stamps:
+ * <pre>
+ * long t = System.nanoTime();
+ * detect(...);
+ * t = timer.record(STAGE.DETECT, t);
+ * describe(...);
+ * t = timer.record(STAGE.DESCRIBE, t);
+ * </pre>
+ * <b>Recording allocates nothing.  Samples are recorded by the processing thread and may
+ * be read from any other thread.
+ * @author mhotan
+ */
+public class PipelineTimer {
+
+	/**
+	 * Steps of the frame pipeline
+	 */
+	public enum STAGE {
+		GREY("grey"),
+		COLOR("color"),
+		GATE("gate"),
+		TRACK("track"),
+		DETECT("detect"),
+		PRUNE("prune"),
+		DESCRIBE("describe"),
+		MATCH("match"),
+		HOMOGRAPHY("homography"),
+		PROJECT("project"),
+		WARP("warp"),
+		DRAW("draw"),
+		TOTAL("total");
+
+		private final String text;
+
+		private STAGE(final String text){
+			this.text = text;
+		}
+
+		@Override
+		public String toString(){
+			return text;
+		}
+	}
+
+	/**
+	 * Default number of samples kept for every step
+	 */
+	public static final int DEFAULT_WINDOW = 128;
+
+	private final long[][] mSamples;
+	private final int[] mNext;
+	private final long[] mCount;
+	private final int mWindow;
+
+	/**
+	 * Creates a timer that keeps the last DEFAULT_WINDOW samples of every step
+	 */
+	public PipelineTimer(){
+		this(DEFAULT_WINDOW);
+	}
+
+	/**
+	 * @param window number of samples kept for every step
+	 */
+	public PipelineTimer(int window){
+		if (window <= 0)
+			throw new IllegalArgumentException("Illegal window: " + window);
+		mWindow = window;
+		int stages = STAGE.values().length;
+		mSamples = new long[stages][window];
+		mNext = new int[stages];
+		mCount = new long[stages];
+	}
+
+	/**
+	 * Records the time since start for stage
+	 * @param stage step that was timed
+	 * @param start System.nanoTime() when the step started
+	 * @return System.nanoTime() now, the start of the following step
+	 */
+	public long record(STAGE stage, long start){
+		long now = System.nanoTime();
+		add(stage, now - start);
+		return now;
+	}
+
+	/**
+	 * Adds a sample to a stage
+	 * @param stage step that was timed
+	 * @param nanos duration of the step in nanoseconds
+	 */
+	public synchronized void add(STAGE stage, long nanos){
+		int s = stage.ordinal();
+		mSamples[s][mNext[s]] = nanos;
+		mNext[s] = (mNext[s] + 1) % mWindow;
+		mCount[s]++;
+	}
+
+	/**
+	 * @return total number of samples ever recorded for stage
+	 */
+	public synchronized long getCount(STAGE stage){
+		return mCount[stage.ordinal()];
+	}
+
+	/**
+	 * @param stage step to get the percentile of
+	 * @param percentile between 0 and 100, IE 95 for the 95th percentile
+	 * @return percentile of the recent samples of stage in nanoseconds, 0 without samples
+	 */
+	public long getPercentile(STAGE stage, double percentile){
+		long[] sorted = getSortedSamples(stage);
+		return percentile(sorted, percentile);
+	}
+
+	/**
+	 * @return the 50th, 95th and 99th percentile of the recent samples of stage in
+	 * nanoseconds, all 0 without samples
+	 */
+	public long[] getPercentiles(STAGE stage){
+		long[] sorted = getSortedSamples(stage);
+		return new long[] {percentile(sorted, 50), percentile(sorted, 95), percentile(sorted, 99)};
+	}
+
+	/**
+	 * Forgets every sample
+	 */
+	public synchronized void reset(){
+		for (int s = 0; s < mCount.length; ++s) {
+			mNext[s] = 0;
+			mCount[s] = 0;
+		}
+	}
+
+	/**
+	 * @return one line per step that has samples with its p50, p95 and p99 in milliseconds
+	 */
+	public String getSummary(){
+		StringBuilder sb = new StringBuilder();
+		for (STAGE stage: STAGE.values()) {
+			long[] sorted = getSortedSamples(stage);
+			if (sorted.length == 0) continue;
+			if (sb.length() > 0)
+				sb.append('\n');
+			sb.append(String.format("%-10s p50 %6.2f  p95 %6.2f  p99 %6.2f ms", stage,
+					percentile(sorted, 50) / 1e6, percentile(sorted, 95) / 1e6,
+					percentile(sorted, 99) / 1e6));
+		}
+		return sb.toString();
+	}
+
+	private synchronized long[] getSortedSamples(STAGE stage){
+		int s = stage.ordinal();
+		int n = (int) Math.min(mCount[s], mWindow);
+		long[] sorted = new long[n];
+		System.arraycopy(mSamples[s], 0, sorted, 0, n);
+		Arrays.sort(sorted);
+		return sorted;
+	}
+
+	/**
+	 * Nearest rank percentile of sorted samples
+	 */
+	private static long percentile(long[] sorted, double percentile){
+		if (sorted.length == 0)
+			return 0;
+		int rank = (int) Math.ceil(percentile / 100 * sorted.length);
+		return sorted[Math.max(0, Math.min(sorted.length - 1, rank - 1))];
+	}
+}
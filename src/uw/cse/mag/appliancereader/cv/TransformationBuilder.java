@@ -16,6 +16,8 @@ import org.opencv.features2d.KeyPoint;
 
 import uw.cse.mag.appliancereader.cv.TransformationLibrary.MATCH_PRUNING_METHOD;
 import uw.cse.mag.appliancereader.cv.TransformationLibrary.PruningMethodParameters;
+import uw.cse.mag.appliancereader.cv.matching.KeyPointGrid;
+import uw.cse.mag.appliancereader.cv.matching.MatchPruner;
 import uw.cse.mag.appliancereader.imgproc.ImageConversion;
 import android.graphics.Bitmap;
 import android.os.AsyncTask;
@@ -66,6 +68,9 @@ public class TransformationBuilder {
 	// Pruning Methods
 	private MATCH_PRUNING_METHOD mPruningMethod;
 	private PruningMethodParameters mPruningParameters;
+	// Buffers of the pruning, reused by every homography task.  A cancelled
+	// task may still be running so tasks hold it around each pruning call only
+	private final MatchPruner mPruner = new MatchPruner();
 
 	// Parameters to set if the client wants to
 	// Convert images to grey scale
@@ -455,6 +460,10 @@ public class TransformationBuilder {
 			
 			// Get the general feature keypoints
 			MatOfKeyPoint matKeyPoints = mCV.findFeatures(this.mFeatDetector, source);
+			// Only describe the strongest key points of every zone if requested
+			KeyPointGrid grid = mPruningParameters.newKeyPointGrid();
+			if (grid != null)
+				grid.select(matKeyPoints, source.cols(), source.rows());
 			Log.d(TAG, "Features found for image: " + mWhichImg + 
 					" key Points: " + matKeyPoints.toArray());
 
@@ -558,12 +567,19 @@ public class TransformationBuilder {
 			MatOfKeyPoint destKeyPtMat = tempStorage.getReferenceKeyPoints();
 			Mat destDescriptor = tempStorage.getReferenceDescriptors();
 			
+			// The kNN based methods do their own matching
+			boolean knnBased = mPruningMethod == MATCH_PRUNING_METHOD.KNNMATCH
+					|| mPruningMethod == MATCH_PRUNING_METHOD.KNN_AND_CROSSCHECK
+					|| mPruningMethod == MATCH_PRUNING_METHOD.RATIO_TEST;
+			boolean crossChecked = mPruningMethod == MATCH_PRUNING_METHOD.CROSS_MATCH
+					|| mPruningMethod == MATCH_PRUNING_METHOD.LOCAL_MATCH;
+			
 			// Get potential matches in both directions for 
 			// cross checking (matching validation) purposes
-			MatOfDMatch matches1to2 = mCV.getMatchingCorrespondences(
+			MatOfDMatch matches1to2 = knnBased ? null : mCV.getMatchingCorrespondences(
 					sourceDescriptor, destDescriptor);
-			MatOfDMatch matches2to1 = mCV.getMatchingCorrespondences(
-					destDescriptor, sourceDescriptor);
+			MatOfDMatch matches2to1 = crossChecked ? mCV.getMatchingCorrespondences(
+					destDescriptor, sourceDescriptor) : null;
 
 			// Create Arrays for ease of use
 			KeyPoint[] srcKeyPts = srcKeyPtMat.toArray();
@@ -573,30 +589,50 @@ public class TransformationBuilder {
 			int imgWidth = tempStorage.getReferenceMatrix().cols();
 
 			MatOfDMatch good_matches;
+			// Matching runs outside the lock, only the pruner buffers are shared
 			// Cross matches are used by multiple images
-			MatOfDMatch crossMatches = mCV.getCrossMatches(matches1to2, matches2to1);
+			MatOfDMatch crossMatches = null;
+			if (crossChecked) {
+				synchronized (mPruner) {
+					crossMatches = mCV.getCrossMatches(matches1to2, matches2to1, mPruner);
+				}
+			}
 			// Prune out the good matches
 			switch (mPruningMethod) {
 			case CROSS_MATCH:
 				good_matches = crossMatches;
 				break;
 			case KNNMATCH:
-				List<MatOfDMatch> knnMatches = mCV.getKnnMatchList(destDescriptor, 
-						sourceDescriptor, mPruningParameters.getKValue());
-				good_matches = mCV.getDistanceMatches(knnMatches, srcKeyPtMat, 
-						destKeyPtMat, mPruningParameters.getKValue(), 
-						mPruningParameters.getDistanceThreshhold());
+				// Source is the query like for every other method
+				List<MatOfDMatch> knnMatches = mCV.getKnnMatchList(sourceDescriptor, 
+						destDescriptor, mPruningParameters.getKValue());
+				synchronized (mPruner) {
+					good_matches = mCV.getDistanceMatches(knnMatches, srcKeyPtMat, 
+							destKeyPtMat, mPruningParameters.getKValue(), 
+							mPruningParameters.getDistanceThreshhold(), mPruner);
+				}
 				break;
 			case LOCAL_MATCH:
-				good_matches = mCV.getLocalMatches(crossMatches, srcKeyPtMat, destKeyPtMat, 
-						mPruningParameters.getNumZones(), imgHeight, imgWidth);
+				synchronized (mPruner) {
+					good_matches = mCV.getLocalMatches(crossMatches, srcKeyPtMat, destKeyPtMat, 
+							mPruningParameters.getNumZones(), imgHeight, imgWidth, mPruner);
+				}
 				break;
 			case KNN_AND_CROSSCHECK: 
 				good_matches = mCV.getKnnWithCrossCheckingMatches(sourceDescriptor,
 						destDescriptor, mPruningParameters.getKValue());
 				break;
+			case RATIO_TEST:
+				List<MatOfDMatch> nearestTwo = mCV.getKnnMatchList(sourceDescriptor, destDescriptor, 2);
+				synchronized (mPruner) {
+					good_matches = mCV.getRatioTestMatches(nearestTwo, 
+							mPruningParameters.getRatio(), mPruningParameters.isSymmetricCheck(), mPruner);
+				}
+				break;
 //			case STANDARD_DISTANCE:
-//				good_matches = mCV.getStandardDistanceCheck(matches1to2);
+//				synchronized (mPruner) {
+//					good_matches = mCV.getStandardDistanceCheck(matches1to2, mPruner);
+//				}
 //				break;
 			default:
 				// Default is to use every value
@@ -1,14 +1,24 @@
 package uw.cse.mag.appliancereader.cv;
 
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 
 import org.opencv.calib3d.Calib3d;
+import org.opencv.core.CvType;
 import org.opencv.features2d.DescriptorExtractor;
+import org.opencv.features2d.DescriptorMatcher;
 import org.opencv.features2d.FeatureDetector;
 
+import uw.cse.mag.appliancereader.cv.homography.HomographyEstimator;
+import uw.cse.mag.appliancereader.cv.homography.OpenCVHomographyEstimator;
+import uw.cse.mag.appliancereader.cv.homography.RansacHomographyEstimator;
+import uw.cse.mag.appliancereader.cv.matching.KeyPointGrid;
+
 /**
  * Class that contains all the feature descriptors, exctractor
  *  and Homography methods that are accessible
@@ -42,6 +52,102 @@ public class TransformationLibrary {
 				"choices");
 	}
 
+	/**
+	 * Returns a descriptor matcher whose distance suits the descriptors
+	 * produced by the named extractor.
+	 * @param extractorName supported name of descriptor extractor
+	 * @return Descriptor matcher for the descriptors of that extractor
+	 */
+	public static DescriptorMatcher getDescriptorMatcher(String extractorName){
+		return getDescriptorMatcher(getDescriptorExtractor(extractorName).descriptorType());
+	}
+
+	/**
+	 * Returns a descriptor matcher whose distance suits descriptors of descriptorType
+	 * @param descriptorType OpenCV type of the descriptors, IE DescriptorExtractor.descriptorType()
+	 * or Mat.type() of computed descriptors
+	 * @return Descriptor matcher for that type of descriptor
+	 */
+	public static DescriptorMatcher getDescriptorMatcher(int descriptorType){
+		return DescriptorMatcher.create(getMatcherIdentifier(descriptorType));
+	}
+
+	/**
+	 * Returns a matcher that builds a search index when it is trained.  Intended for
+	 * matching many query sets against descriptors that do not change, IE the reference image.
+	 * <b>Binary descriptors are indexed with multi-probe LSH, float descriptors with the
+	 * default FLANN randomized kd-trees.
+	 * @param descriptorType OpenCV type of the descriptors that will be trained
+	 * @return untrained FLANN based Descriptor matcher
+	 */
+	public static DescriptorMatcher getIndexedDescriptorMatcher(int descriptorType){
+		DescriptorMatcher dm = DescriptorMatcher.create(DescriptorMatcher.FLANNBASED);
+		if (isBinaryDescriptor(descriptorType))
+			dm.read(getLshParametersFile());
+		return dm;
+	}
+
+	/**
+	 * Parameters of the multi-probe LSH index.  The Java bindings only accept
+	 * FLANN parameters through a file.  Types are the FLANN parameter types 
+	 * (4 int, 5 float, 15 bool, 23 algorithm)
+	 */
+	private static final String LSH_PARAMETERS = 
+			"%YAML:1.0\n" +
+			"indexParams:\n" +
+			"   - { name: algorithm, type: 23, value: 6 }\n" + // FLANN_INDEX_LSH
+			"   - { name: table_number, type: 4, value: 12 }\n" +
+			"   - { name: key_size, type: 4, value: 20 }\n" +
+			"   - { name: multi_probe_level, type: 4, value: 2 }\n" +
+			"searchParams:\n" +
+			"   - { name: checks, type: 4, value: 32 }\n" +
+			"   - { name: eps, type: 5, value: 0. }\n" +
+			"   - { name: sorted, type: 15, value: 1 }\n";
+
+	private static String mLshParametersPath;
+
+	private static synchronized String getLshParametersFile(){
+		if (mLshParametersPath != null && new File(mLshParametersPath).exists())
+			return mLshParametersPath;
+		try {
+			File f = File.createTempFile("lsh", ".yml");
+			f.deleteOnExit();
+			FileWriter writer = new FileWriter(f);
+			try {
+				writer.write(LSH_PARAMETERS);
+			} finally {
+				writer.close();
+			}
+			mLshParametersPath = f.getAbsolutePath();
+		} catch (IOException e) {
+			throw new RuntimeException("Unable to write LSH index parameters: " + e.getMessage());
+		}
+		return mLshParametersPath;
+	}
+
+	/**
+	 * Returns integer representation as defined by org.opencv.features2d.DescriptorMatcher.
+	 * <b>Binary descriptors (ORB, BRIEF, BRISK, FREAK) are compared with the Hamming distance,
+	 * which is a popcount of the xor of the bytes.  Float descriptors (SIFT, SURF) use L2.
+	 * <b>NOTE: ORB with WTA_K of 3 or 4 would need Hamming2 which the Java bindings do not expose.
+	 * The ORB used here is created with the default WTA_K of 2.
+	 * @param descriptorType OpenCV type of the descriptors
+	 * @return integer representation to use with DescriptorMatcher.create
+	 */
+	public static int getMatcherIdentifier(int descriptorType){
+		if (isBinaryDescriptor(descriptorType))
+			return DescriptorMatcher.BRUTEFORCE_HAMMING;
+		return DescriptorMatcher.BRUTEFORCE;
+	}
+
+	/**
+	 * @param descriptorType OpenCV type of the descriptors
+	 * @return whether descriptors of this type are bit strings
+	 */
+	public static boolean isBinaryDescriptor(int descriptorType){
+		return CvType.depth(descriptorType) == CvType.CV_8U;
+	}
+
 	/**
 	 * Returns integer representation as defined by org.opencv.calib3d.Calib3d
 	 * then can use as "method" in Calib3d.findHomography(arg1, arg2, method, ransac_treshold)
@@ -55,6 +161,32 @@ public class TransformationLibrary {
 				" use getSupportedHomographyMethods() for set of all methods");
 	}
 
+	/**
+	 * Returns a homography estimator that correlates to name.  Every OpenCV method of
+	 * getSupportedHomographyMethods() is available along with the pure Java ADAPTIVE_RANSAC and PROSAC
+	 * @param name name of the estimator as defined by getSupportedHomographyEstimators
+	 * @param threshold maximum reprojection error in pixels for a correspondence to be an inlier
+	 * @return new estimator, confine it to the calling worker
+	 */
+	public static HomographyEstimator getHomographyEstimator(String name, double threshold){
+		if (ADAPTIVE_RANSAC.equals(name))
+			return new RansacHomographyEstimator(threshold, false);
+		if (PROSAC.equals(name))
+			return new RansacHomographyEstimator(threshold, true);
+		return new OpenCVHomographyEstimator(getHomographyIdentifier(name), threshold);
+	}
+
+	/**
+	 * @return Unmodifiable list of all supported homography estimators
+	 */
+	public static List<String> getSupportedHomographyEstimators(){
+		List<String> hNames = new ArrayList<String>(mHomographyMethods.keySet());
+		hNames.add(ADAPTIVE_RANSAC);
+		hNames.add(PROSAC);
+		Collections.sort(hNames);
+		return Collections.unmodifiableList(hNames);
+	}
+
 	/**
 	 * @return Unmodifiable list of all supported methods of homography
 	 */
@@ -93,7 +225,8 @@ public class TransformationLibrary {
 		CROSS_MATCH("CROSS MATCH"), 
 		KNNMATCH("KNN MATCH"), 
 		LOCAL_MATCH("LOCAL MATCH"),
-		KNN_AND_CROSSCHECK("KNN AND CROSS CHECK")
+		KNN_AND_CROSSCHECK("KNN AND CROSS CHECK"),
+		RATIO_TEST("RATIO TEST")
 //		STANDARD_DISTANCE("STANDARD MIN DISTANCE")
 		;
 
@@ -116,7 +249,8 @@ public class TransformationLibrary {
 		MATCH_PRUNING_METHOD.NONE, 
 		MATCH_PRUNING_METHOD.CROSS_MATCH,
 		MATCH_PRUNING_METHOD.KNNMATCH, 
-		MATCH_PRUNING_METHOD.LOCAL_MATCH
+		MATCH_PRUNING_METHOD.LOCAL_MATCH,
+		MATCH_PRUNING_METHOD.RATIO_TEST
 		 
 		};
 
@@ -157,6 +291,9 @@ public class TransformationLibrary {
 	public static final String RANSAC = "RANSAC";
 	public static final String REGULAR = "ALL POINTS";
 	public static final String LMEDS = "LEAST MEDIAN";
+	// Pure java homography estimators
+	public static final String ADAPTIVE_RANSAC = "ADAPTIVE RANSAC";
+	public static final String PROSAC = "PROSAC";
 
 	private static final HashMap<String, Integer> mHomographyMethods = new HashMap<String, Integer>();
 	static{
@@ -218,6 +355,13 @@ public class TransformationLibrary {
 		public static final int MAX_K = Integer.MAX_VALUE;
 		public static final int MIN_DISTANCE_THRESHHOLD = 10;
 		public static final int MAX_DISTANCE_THRESHHOLD = Integer.MAX_VALUE;
+		public static final float DEFAULT_RATIO = 0.8f;
+		public static final float MIN_RATIO = 0.1f;
+		public static final float MAX_RATIO = 1f;
+		public static final boolean DEFAULT_SYMMETRIC = false;
+		public static final int DEFAULT_KEYPOINTS_PER_ZONE = 0;
+		public static final int MIN_KEYPOINTS_PER_ZONE = 0;
+		public static final int MAX_KEYPOINTS_PER_ZONE = Integer.MAX_VALUE;
 
 		// Number of zones for local feature extraction
 		private int mZones;
@@ -225,6 +369,12 @@ public class TransformationLibrary {
 		private int mK;
 		// Distance threshold
 		private int mDistanceThreshold;
+		// Largest ratio of best to second best distance for the ratio test
+		private float mRatio;
+		// Whether the ratio test keeps only the best match of every train point
+		private boolean mSymmetric;
+		// Key points kept per zone after detection, 0 keeps every key point
+		private int mKeyPointsPerZone;
 
 		/**
 		 * Creates parameters with 
@@ -233,6 +383,9 @@ public class TransformationLibrary {
 			mZones = DEFAULT_ZONES;
 			mK = DEFAULT_K_NUMBERS;
 			mDistanceThreshold = DEFAULT_DISTANCE_THRESHHOLD;
+			mRatio = DEFAULT_RATIO;
+			mSymmetric = DEFAULT_SYMMETRIC;
+			mKeyPointsPerZone = DEFAULT_KEYPOINTS_PER_ZONE;
 		}
 
 		/**
@@ -262,6 +415,34 @@ public class TransformationLibrary {
 					Math.min(MAX_DISTANCE_THRESHHOLD, threshhold));
 		}
 
+		/**
+		 * Sets the ratio for the ratio test which is automatically adjusted within 
+		 * MIN_RATIO and MAX_RATIO
+		 * @param ratio largest accepted ratio of the best to the second best match distance
+		 */
+		public void setRatio(float ratio){
+			mRatio = Math.max(MIN_RATIO, Math.min(MAX_RATIO, ratio));
+		}
+
+		/**
+		 * Sets whether the ratio test only keeps the best match of every train point
+		 * @param symmetric true to enable the symmetric check
+		 */
+		public void setSymmetricCheck(boolean symmetric){
+			mSymmetric = symmetric;
+		}
+
+		/**
+		 * Sets the number of key points with the strongest response kept in every zone
+		 * right after detection, which is automatically adjusted within
+		 * MIN_KEYPOINTS_PER_ZONE and MAX_KEYPOINTS_PER_ZONE
+		 * @param perZone key points kept per zone, 0 to keep every key point
+		 */
+		public void setKeyPointsPerZone(int perZone){
+			mKeyPointsPerZone = Math.max(MIN_KEYPOINTS_PER_ZONE, 
+					Math.min(MAX_KEYPOINTS_PER_ZONE, perZone));
+		}
+
 		/**
 		 * @return returns the current number of Zone
 		 */
@@ -283,12 +464,46 @@ public class TransformationLibrary {
 			return mDistanceThreshold;
 		}
 
+		/**
+		 * @return largest accepted ratio of the best to the second best match distance
+		 */
+		public float getRatio(){
+			return mRatio;
+		}
+
+		/**
+		 * @return whether the ratio test only keeps the best match of every train point
+		 */
+		public boolean isSymmetricCheck(){
+			return mSymmetric;
+		}
+
+		/**
+		 * @return key points kept per zone after detection, 0 if every key point is kept
+		 */
+		public int getKeyPointsPerZone(){
+			return mKeyPointsPerZone;
+		}
+
+		/**
+		 * @return grid that keeps the strongest key points of every zone or null if every 
+		 * key point is kept
+		 */
+		public KeyPointGrid newKeyPointGrid(){
+			if (mKeyPointsPerZone <= 0)
+				return null;
+			return new KeyPointGrid(mZones, mKeyPointsPerZone);
+		}
+
 		@Override
 		protected Object clone() throws CloneNotSupportedException {
 			PruningMethodParameters clone = new PruningMethodParameters();
 			clone.mDistanceThreshold = this.mDistanceThreshold;
 			clone.mK = this.mK;
 			clone.mZones = this.mZones;
+			clone.mRatio = this.mRatio;
+			clone.mSymmetric = this.mSymmetric;
+			clone.mKeyPointsPerZone = this.mKeyPointsPerZone;
 			return clone;
 		}
 	}
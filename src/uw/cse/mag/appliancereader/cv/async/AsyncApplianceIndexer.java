@@ -0,0 +1,250 @@
+package uw.cse.mag.appliancereader.cv.async;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfKeyPoint;
+import org.opencv.core.Size;
+import org.opencv.features2d.DescriptorExtractor;
+import org.opencv.features2d.FeatureDetector;
+
+import uw.cse.mag.appliancereader.cv.CVSingletons;
+import uw.cse.mag.appliancereader.cv.ComputerVision;
+import uw.cse.mag.appliancereader.cv.TransformationLibrary;
+import uw.cse.mag.appliancereader.cv.matching.ApplianceDatabase;
+import uw.cse.mag.appliancereader.cv.matching.ApplianceIndex;
+import uw.cse.mag.appliancereader.cv.matching.VocabularyTree;
+import uw.cse.mag.appliancereader.db.FileManager;
+import uw.cse.mag.appliancereader.db.datatype.Appliance;
+import uw.cse.mag.appliancereader.imgproc.ImageConversion;
+import android.graphics.Bitmap;
+import android.os.AsyncTask;
+import android.util.Log;
+
+/**
+ * Builds the recognition index over the reference images of several appliances in the background.
+ * <b>Reference images are loaded at the recognition size of CVSingletons, independent of the
+ * camera.  Their features are stored with every appliance like the features of the reference
+ * image that is tracked, so the index is only expensive to build the first time.
+ * Appliances without a reference image or without features are left out.
+ * <b>With at least CVSingletons.getMinRetrievalAppliances() appliances the index retrieves
+ * candidates from an appliance database instead of matching against every appliance.  The
+ * database is stored with FileManager and only the appliances added, changed or removed since
+ * are updated.  It is built with the vocabulary trained offline for the descriptor extractor,
+ * see benchmark/VocabularyTrainer, or if there is none with a vocabulary trained here once on
+ * the reference descriptors of the appliances.
+ * @author mhotan
+ */
+public class AsyncApplianceIndexer extends AsyncTask<Appliance, Void, ApplianceIndex<Appliance>> {
+
+	private static final String TAG = AsyncApplianceIndexer.class.getSimpleName();
+
+	private final ComputerVision mCV;
+
+	private ApplianceIndexListener mListener;
+
+	/**
+	 * @param cv Initialized computer vision instance
+	 */
+	public AsyncApplianceIndexer(ComputerVision cv){
+		if (cv == null || !cv.isInitialized())
+			throw new RuntimeException(TAG + ": Illegal Computer Vision: " + cv);
+		mCV = cv;
+	}
+
+	/**
+	 * Creates the key that identifies the recognition features of a reference image
+	 * with the current detector configuration.  Differs from the keys of
+	 * AsyncFeatureDetector so the features of the tracked reference are never replaced
+	 * @return key to store and load recognition features with
+	 */
+	public static String getCacheKey(){
+		return "index_" + CVSingletons.getRecognitionWidth() + "x" + CVSingletons.getRecognitionHeight()
+				+ "_grey_" + CVSingletons.getFeatureDetectorName() + "_"
+				+ CVSingletons.getDescriptorExtractorName();
+	}
+
+	/**
+	 * @param listener Listener notified on the main thread once the index is built
+	 */
+	public void setApplianceIndexListener(ApplianceIndexListener listener){
+		mListener = listener;
+	}
+
+	@Override
+	protected ApplianceIndex<Appliance> doInBackground(Appliance... appliances) {
+		long start = System.currentTimeMillis();
+		ApplianceIndex<Appliance> index = new ApplianceIndex<Appliance>(CVSingletons.getMaxVoteDistance(),
+				CVSingletons.getMinVotes(), CVSingletons.getMinVoteLead());
+		FileManager fm = FileManager.getInstance();
+		String key = getCacheKey();
+		// Instances confined to this background thread
+		FeatureDetector detector = CVSingletons.newFeatureDetector();
+		DescriptorExtractor extractor = CVSingletons.newDescriptorExtractor();
+		List<Appliance> indexed = new ArrayList<Appliance>();
+		List<Mat> indexedDescriptors = new ArrayList<Mat>();
+		// Appliances whose features changed since the database was stored
+		Set<Long> changed = new HashSet<Long>();
+
+		for (Appliance appliance: appliances) {
+			if (isCancelled())
+				return null;
+			if (appliance == null || fm.getReferenceImage(appliance) == null) {
+				Log.w(TAG, "No reference image to recognize " + appliance + " with");
+				continue;
+			}
+
+			MatOfKeyPoint kp = new MatOfKeyPoint();
+			Mat descriptors = new Mat();
+			if (!fm.getReferenceFeatures(appliance, key, kp, descriptors) || kp.empty()) {
+				computeFeatures(appliance, detector, extractor, kp, descriptors);
+				if (kp.empty()) {
+					Log.w(TAG, "No features to recognize " + appliance + " with");
+					continue;
+				}
+				fm.addReferenceFeatures(appliance, key, kp, descriptors);
+				changed.add(appliance.getID());
+			}
+			index.add(appliance, appliance.getID(), kp, descriptors);
+			indexed.add(appliance);
+			indexedDescriptors.add(descriptors);
+		}
+
+		if (index.size() == 0)
+			return null;
+		ApplianceDatabase database = null;
+		if (index.size() >= CVSingletons.getMinRetrievalAppliances())
+			database = loadDatabase(fm, indexed, indexedDescriptors, changed);
+		index.train(mCV, database, CVSingletons.getRetrievalCandidates());
+		Log.d(TAG, "Indexed " + index.size() + " appliances in "
+				+ (System.currentTimeMillis() - start) + " ms"
+				+ (database == null ? "" : " with retrieval"));
+		return index;
+	}
+
+	/**
+	 * Loads the stored appliance database and brings it up to date with the indexed appliances
+	 * @param fm file manager to load and store with
+	 * @param appliances every indexed appliance
+	 * @param descriptors reference descriptors of every indexed appliance
+	 * @param changed ids of the appliances whose descriptors were computed again
+	 * @return database of the indexed appliances or null if the descriptors are not binary
+	 */
+	private ApplianceDatabase loadDatabase(FileManager fm, List<Appliance> appliances,
+			List<Mat> descriptors, Set<Long> changed){
+		int type = descriptors.get(0).type();
+		int cols = descriptors.get(0).cols();
+		if (!TransformationLibrary.isBinaryDescriptor(type) || cols % 8 != 0) {
+			Log.w(TAG, "Retrieval needs binary descriptors, matching against every appliance");
+			return null;
+		}
+
+		String vocabularyKey = CVSingletons.getDescriptorExtractorName();
+		VocabularyTree tree = fm.getVocabulary(vocabularyKey);
+		if (tree == null || tree.getDescriptorLength() != cols / 8) {
+			long start = System.currentTimeMillis();
+			tree = trainVocabulary(descriptors, cols);
+			Log.d(TAG, "Trained a vocabulary of " + tree.getWordCount() + " words in "
+					+ (System.currentTimeMillis() - start) + " ms");
+			fm.setVocabulary(vocabularyKey, tree);
+		}
+
+		String databaseKey = getCacheKey();
+		ApplianceDatabase database = fm.getApplianceDatabase(databaseKey, tree);
+		if (database == null)
+			database = new ApplianceDatabase(tree);
+		boolean modified = false;
+		Set<Long> ids = new HashSet<Long>();
+		for (int i = 0; i < appliances.size(); ++i) {
+			long id = appliances.get(i).getID();
+			ids.add(id);
+			if (database.contains(id) && !changed.contains(id))
+				continue;
+			Mat d = descriptors.get(i);
+			database.add(id, pack(d), d.rows());
+			modified = true;
+		}
+		for (long id: database.getIds()) {
+			if (ids.contains(id)) continue;
+			database.remove(id);
+			modified = true;
+		}
+		if (modified)
+			fm.setApplianceDatabase(databaseKey, database);
+		return database;
+	}
+
+	/**
+	 * Trains a vocabulary on the reference descriptors of every appliance, for when none
+	 * was trained offline
+	 */
+	private static VocabularyTree trainVocabulary(List<Mat> descriptors, int cols){
+		int count = 0;
+		for (Mat d: descriptors)
+			count += d.rows();
+		long[] all = new long[count * cols / 8];
+		int offset = 0;
+		for (Mat d: descriptors) {
+			long[] packed = pack(d);
+			System.arraycopy(packed, 0, all, offset, packed.length);
+			offset += packed.length;
+		}
+		return CVSingletons.trainVocabulary(all, count, cols / 8);
+	}
+
+	/**
+	 * @return binary descriptors packed for VocabularyTree
+	 */
+	private static long[] pack(Mat descriptors){
+		int rows = descriptors.rows();
+		int cols = descriptors.cols();
+		byte[] bytes = new byte[rows * cols];
+		if (bytes.length > 0)
+			descriptors.get(0, 0, bytes);
+		long[] packed = new long[bytes.length / 8];
+		VocabularyTree.pack(bytes, rows, cols, packed);
+		return packed;
+	}
+
+	/**
+	 * Computes the features of the reference image of appliance at the recognition size
+	 */
+	private void computeFeatures(Appliance appliance, FeatureDetector detector,
+			DescriptorExtractor extractor, MatOfKeyPoint kp, Mat descriptors){
+		Bitmap b = appliance.getReferenceImage(
+				new Size(CVSingletons.getRecognitionWidth(), CVSingletons.getRecognitionHeight()));
+		if (b == null)
+			return;
+		Mat image = ImageConversion.bitmapToMat(b);
+		b.recycle();
+		// Frames are matched on their luminance so the reference is as well
+		Mat grey = mCV.RGBToGrey(image);
+		image.release();
+		mCV.findFeatures(detector, grey, kp);
+		if (!kp.empty())
+			mCV.computeDescriptors(extractor, grey, kp, descriptors);
+		grey.release();
+	}
+
+	@Override
+	protected void onPostExecute(ApplianceIndex<Appliance> index){
+		if (mListener == null) {
+			Log.d(TAG, "no listener attached upon notification");
+			return;
+		}
+		if (index == null) {
+			Log.d(TAG, "No appliance could be indexed");
+			mListener.onFailedToBuildIndex();
+			return;
+		}
+		mListener.onIndexBuilt(index);
+	}
+
+	public interface ApplianceIndexListener {
+		public void onFailedToBuildIndex();
+		public void onIndexBuilt(ApplianceIndex<Appliance> index);
+	}
+}
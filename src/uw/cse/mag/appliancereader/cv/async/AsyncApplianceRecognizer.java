@@ -0,0 +1,112 @@
+package uw.cse.mag.appliancereader.cv.async;
+
+import org.opencv.core.Mat;
+import org.opencv.features2d.DescriptorExtractor;
+import org.opencv.features2d.FeatureDetector;
+
+import uw.cse.mag.appliancereader.cv.CVSingletons;
+import uw.cse.mag.appliancereader.cv.ComputerVision;
+import uw.cse.mag.appliancereader.cv.PipelineTimer;
+import uw.cse.mag.appliancereader.cv.async.FrameProcessor.FrameStage;
+import uw.cse.mag.appliancereader.cv.homography.HomographyEstimator;
+import uw.cse.mag.appliancereader.cv.homography.HomographyResult;
+import uw.cse.mag.appliancereader.cv.matching.ApplianceIndex;
+import uw.cse.mag.appliancereader.cv.matching.KeyPointGrid;
+import uw.cse.mag.appliancereader.db.datatype.Appliance;
+
+/**
+ * Stage that identifies which of the indexed appliances is in view.
+ * <b>The features of the whole frame are matched once against the recognition index of every
+ * appliance, or of the candidates the index retrieves when there are many appliances, the
+ * appliance with a clear majority of votes is verified with a homography between its votes
+ * and is recognized only if enough of them are inliers.
+ * <b>Nothing is drawn, the stage returns no image and the recognized appliance of the last
+ * processed frame is read with getRecognized().
+ * <b>Instances are long lived and reused for every frame submitted to a FrameProcessor, they own
+ * the index once it is handed to them.
+ * @author mhotan
+ */
+public class AsyncApplianceRecognizer implements FrameStage {
+
+	private final ComputerVision mCV;
+	private final ApplianceIndex<Appliance> mIndex;
+
+	/**
+	 * Instances owned by this stage, only used on the processing thread
+	 */
+	private final FeatureDetector mFeatureDetector;
+	private final DescriptorExtractor mDescriptorExtractor;
+	private final KeyPointGrid mKeyPointGrid;
+	private final HomographyEstimator mHomographyEstimator;
+
+	private final PipelineTimer mTimer;
+
+	/**
+	 * Appliance recognized in the last processed frame, null if none
+	 */
+	private volatile Appliance mRecognized;
+
+	/**
+	 * @param cv Initialized computer vision instance
+	 * @param index trained index over the appliances to recognize
+	 */
+	public AsyncApplianceRecognizer(ComputerVision cv, ApplianceIndex<Appliance> index){
+		if (cv == null || !cv.isInitialized())
+			throw new RuntimeException("Illegal Computer Vision: " + cv);
+		if (index == null || !index.isTrained())
+			throw new RuntimeException("Recognition needs a trained index");
+		mCV = cv;
+		mIndex = index;
+		mFeatureDetector = CVSingletons.newFeatureDetector();
+		mDescriptorExtractor = CVSingletons.newDescriptorExtractor();
+		mKeyPointGrid = CVSingletons.getPruningParameters().newKeyPointGrid();
+		mHomographyEstimator = CVSingletons.newHomographyEstimator();
+		mTimer = new PipelineTimer();
+	}
+
+	/**
+	 * @return appliance recognized in the last processed frame, null if none
+	 */
+	public Appliance getRecognized(){
+		return mRecognized;
+	}
+
+	/**
+	 * @return number of appliances that can be recognized
+	 */
+	public int getApplianceCount(){
+		return mIndex.size();
+	}
+
+	/**
+	 * @return percentiles of the latency of every step of this stage
+	 */
+	public PipelineTimer getTimer(){
+		return mTimer;
+	}
+
+	@Override
+	public Mat process(FrameBuffer frame) {
+		long start = System.nanoTime();
+		mCV.findFeatures(mFeatureDetector, mDescriptorExtractor, frame.mGrey, null,
+				CVSingletons.getDetectionScale(), mKeyPointGrid, frame.mScaled,
+				frame.mKeyPts, frame.mDescriptors, mTimer);
+
+		// A single pass over the descriptors of every appliance or of the retrieved candidates
+		long t = System.nanoTime();
+		int id = mIndex.vote(mCV, frame.mKeyPts, frame.mDescriptors, frame.mMatches);
+		t = mTimer.record(PipelineTimer.STAGE.MATCH, t);
+
+		Appliance recognized = null;
+		if (id >= 0) {
+			HomographyResult result = mIndex.verify(id, mHomographyEstimator);
+			mTimer.record(PipelineTimer.STAGE.HOMOGRAPHY, t);
+			if (result != null && result.isGood(CVSingletons.getMinRecognitionInliers(),
+					CVSingletons.getMinInlierRatio()))
+				recognized = mIndex.getLabel(id);
+		}
+		mRecognized = recognized;
+		mTimer.record(PipelineTimer.STAGE.TOTAL, start);
+		return null;
+	}
+}
@@ -3,221 +3,176 @@ package uw.cse.mag.appliancereader.cv.async;
 import java.util.ArrayList;
 import java.util.List;
 
+import org.opencv.core.Core;
 import org.opencv.core.Mat;
-import org.opencv.core.MatOfDMatch;
-import org.opencv.core.MatOfKeyPoint;
+import org.opencv.core.MatOfPoint;
 import org.opencv.core.MatOfPoint2f;
 import org.opencv.core.Point;
 import org.opencv.core.Rect;
-import org.opencv.core.Size;
-import org.opencv.features2d.DescriptorExtractor;
-import org.opencv.features2d.FeatureDetector;
 
-import uw.cse.mag.appliancereader.cv.CVSingletons;
 import uw.cse.mag.appliancereader.cv.ComputerVision;
+import uw.cse.mag.appliancereader.cv.PipelineTimer;
+import uw.cse.mag.appliancereader.db.datatype.ApplianceFeature;
 import uw.cse.mag.appliancereader.db.datatype.ApplianceFeatures;
-import android.os.AsyncTask;
-import android.util.Log;
 
 /**
- * Draws boxes of where the applicaitons thinks the target dsiplays of the refrence imag
+ * Draws the outlines of where the application thinks the target displays of the reference image are
+ * <b>Only the vertices of every feature polygon are projected into the frame with the inverse
+ * of the homography, and the polygons are drawn on the live frame.  The frame itself is never
+ * warped, so the cost of this stage does not grow with the resolution of the camera.
+ * <b>The vertices of all features are projected with a single call and the polygons are drawn
+ * from matrices that are reused between frames.
+ * <b>With a FeatureOverlay nothing is drawn on the frame at all: only the projected outlines
+ * are handed to the overlay and no image is returned, so the preview stays untouched.
+ * <b>Without an overlay the outlines are drawn on the color frame, so frames submitted to a
+ * drawer without an overlay must carry a copy of the color camera frame (IE hasOverlay())
  * @author mhotan
  *
  */
-public final class AsyncBoxDrawer extends AsyncTask<Mat, Void, Mat> {
-
-	private static final String TAG = AsyncBoxDrawer.class.getSimpleName();
-
-	private final ApplianceFeatures mFeaturesToDraw;
-	private final List<WarpedPointListener> mSecListeners;
-
-	/**
-	 * Computer Vision instance to do all the dirty work
-	 */
-	protected final ComputerVision mCV;
-
-
-	////////////////////////////////////////////////////////////////////////
-	//// Reference Image values
-	////////////////////////////////////////////////////////////////////////
+public final class AsyncBoxDrawer extends AsyncPerspectiveUtility {
 
 	/**
-	 * Reference image and target image
+	 * Box around all the features in the reference image
 	 */
-	private final Mat mRefImg;
+	private final Rect mEncompassingBox;
 
 	/**
-	 * Matrix of keypoints for the reference image
+	 * Vertices of every feature in reference image coordinates, feature after feature
 	 */
-	final MatOfKeyPoint mRefKeyPts; 
+	private final MatOfPoint2f mRefVertices;
 
 	/**
-	 * Descriptor for the reference image
+	 * Vertices of every feature projected into the current frame
 	 */
-	protected final Mat mRefDescriptors;
-
-	////////////////////////////////////////////////////////////////////////
-	//// Target values
-	////////////////////////////////////////////////////////////////////////
+	private final MatOfPoint2f mFrameVertices;
 
 	/**
-	 * Matrix representation for the target image 
+	 * Projected polygons, one per feature, reused between frames
 	 */
-	protected Mat mTgtImg;
+	private final List<MatOfPoint> mPolygons;
 
-	/**
-	 * Matrix of key points 
-	 */
-	protected MatOfKeyPoint mTgtKeyPts;
+	private final float[] mProjected;
 
 	/**
-	 * Matrix of target descriptor feature extraction
+	 * Projected outline of every feature, x and y of every vertex
 	 */
-	protected Mat mTgtDescriptors;
+	private final float[][] mOutlines;
 
 	/**
-	 * Mat of D Matches of this
+	 * Rounded pixel coordinates of every projected polygon
 	 */
-	protected MatOfDMatch mMatDMatches;
+	private final int[][] mPixels;
 
 	/**
-	 * Homography that is found between two images
+	 * Layer the outlines are drawn in instead of the frame, null to draw on the frame
 	 */
-	protected Mat mHomography;
+	private final FeatureOverlay mOverlay;
 
 	/**
-	 * Feature Detector to for both reference and target image
-	 */
-	private final FeatureDetector mFeatureDetector;
-
-	/**
-	 * A Feature descriptor used for each set of feature detected
-	 */
-	private final DescriptorExtractor mDescriptorExtractor;
-
-	/**
-	 * 
+	 * Creates a drawer that draws the outlines on the color frame
 	 * @param cv
-	 * @param incomingFrame
-	 * @param savedFrame 
-	 * @param features list of features to be drawn
+	 * @param refImg Reference image information
+	 * @param feats list of features to be drawn
 	 */
 	public AsyncBoxDrawer(ComputerVision cv, ImageInformation refImg, ApplianceFeatures feats) {
-		if (cv == null || !cv.isInitialized())
-			throw new RuntimeException("Illegal Computer Vision: " + cv);
-		if (refImg == null)
-			throw new RuntimeException("Reference image cannot be null");
-
-		// Initialize the computer vision tools
-		mCV = cv;
-		mFeatureDetector = CVSingletons.getFeatureDetector();
-		mDescriptorExtractor = CVSingletons.getDescriptorExtractor();
-
-		// Establish the reference image
-		mRefImg = refImg.mImage;
-		mRefKeyPts = refImg.mFeatureKeyPts;
-		mRefDescriptors = refImg.mFeatureDescriptors;
-
-		// Assign the feature to draw
-		mFeaturesToDraw = feats;
-
-		// Create a list of listeners
-		mSecListeners = new ArrayList<AsyncBoxDrawer.WarpedPointListener>();
+		this(cv, refImg, feats, null);
 	}
 
 	/**
-	 * Add listener to list for complete image
-	 * @param l listener to add
+	 *
+	 * @param cv
+	 * @param refImg Reference image information
+	 * @param feats list of features to be drawn
+	 * @param overlay layer on top of the preview the outlines are drawn in,
+	 * null to draw on the color frame
 	 */
-	public void addListener(WarpedPointListener l){
-		if (l != null)
-			mSecListeners.add(l);
+	public AsyncBoxDrawer(ComputerVision cv, ImageInformation refImg, ApplianceFeatures feats,
+			FeatureOverlay overlay) {
+		super(cv, refImg);
+		if (feats == null)
+			throw new RuntimeException("Features to draw cannot be null");
+
+		mEncompassingBox = feats.getEncompassingBox();
+
+		// Flatten the feature polygons once
+		List<Point> vertices = new ArrayList<Point>();
+		List<Integer> sizes = new ArrayList<Integer>();
+		for (ApplianceFeature f: feats) {
+			vertices.addAll(f.getPoints());
+			sizes.add(f.getPoints().size());
+		}
+		mOutlines = new float[sizes.size()][];
+		mPixels = new int[sizes.size()][];
+		mPolygons = new ArrayList<MatOfPoint>(mPixels.length);
+		for (int i = 0; i < mPixels.length; ++i) {
+			mOutlines[i] = new float[2 * sizes.get(i)];
+			mPixels[i] = new int[2 * sizes.get(i)];
+			MatOfPoint polygon = new MatOfPoint();
+			polygon.alloc(sizes.get(i));
+			mPolygons.add(polygon);
+		}
+		mRefVertices = new MatOfPoint2f();
+		mRefVertices.fromList(vertices);
+		mFrameVertices = new MatOfPoint2f();
+		mProjected = new float[2 * vertices.size()];
+		mOverlay = overlay;
 	}
 
 	/**
-	 * Removes listener if it exists
-	 * @param l
+	 * @return whether the outlines are drawn in an overlay, if not the submitted frames
+	 * must carry the color camera frame
 	 */
-	public void removeListener(WarpedPointListener l){
-		mSecListeners.remove(l);
+	public boolean hasOverlay(){
+		return mOverlay != null;
 	}
 
-	private static final boolean SWAP = true;
-
 	@Override
-	protected Mat doInBackground(Mat... params) {
-		// Given a new target image
-		// This is an image from a different perspective of the reference image
-		mTgtImg = params[0];
-
-		// Compute target key points
-		mTgtKeyPts = mCV.findFeatures(mFeatureDetector, mTgtImg);
+	protected Rect getRegionOfInterest() {
+		// Only the displays are drawn so only their neighborhood is searched
+		if (mEncompassingBox == null || mEncompassingBox.area() <= 0)
+			return super.getRegionOfInterest();
+		return mEncompassingBox;
+	}
 
-		// Compute target descriptors
-		mTgtDescriptors = mCV.computeDescriptors(mDescriptorExtractor, mTgtImg, mTgtKeyPts);
+	@Override
+	protected Mat processFrame(FrameBuffer frame) {
+		// Find the transformation from the target to the reference
+		Mat H = super.processFrame(frame);
+		if (H == null || H.empty()) return null;
+		Mat inverse = getInverseHomography();
+		if (inverse == null) return null;
+
+		// Project the vertices of the reference features into the frame
+		long t = System.nanoTime();
+		if (mProjected.length > 0) {
+			Core.perspectiveTransform(mRefVertices, mFrameVertices, inverse);
+			mFrameVertices.get(0, 0, mProjected);
+			int offset = 0;
+			for (float[] outline: mOutlines) {
+				System.arraycopy(mProjected, offset, outline, 0, outline.length);
+				offset += outline.length;
+			}
+		}
+		t = mTimer.record(PipelineTimer.STAGE.PROJECT, t);
 
-		// Have to check if we did not get black image
-		if (mTgtKeyPts.empty()) {
-			Log.d(TAG, TAG+ ": No features");
+		if (mOverlay != null) {
+			mOverlay.setOutlines(mOutlines, mTgtImg.cols(), mTgtImg.rows());
+			mTimer.record(PipelineTimer.STAGE.DRAW, t);
 			return null;
 		}
 
-		Mat warped;
-		if (SWAP){
-			mMatDMatches = mCV.getMatchingCorrespondences(mRefDescriptors, mTgtDescriptors);
-
-			// Get points for homography calculation
-			MatOfPoint2f[] pts = mCV.getCorrespondences(mMatDMatches, mTgtKeyPts, mRefKeyPts);
-
-			MatOfPoint2f tgt2f = pts[1];
-			MatOfPoint2f ref2f = pts[0];
-
-			// Find the transformation form reference to tgt
-			mHomography = mCV.findHomography( ref2f, tgt2f, 
-					CVSingletons.getHomographyMethod(), CVSingletons.getRansacThreshold());
-
-			// Transform the Target image to resemble the reference image 
-			// This might not be perfect or even close
-			// TODO Check if transformation is correct
-			warped = mCV.getWarpedImage(mTgtImg, mHomography, 
-					mTgtImg.size(), false);
-		}else {
-			// Get putative matches
-			mMatDMatches = mCV.getMatchingCorrespondences(mTgtDescriptors, mRefDescriptors);
-
-			// Get points for homography calculation
-			MatOfPoint2f[] pts = mCV.getCorrespondences(mMatDMatches, mRefKeyPts, mTgtKeyPts);
-
-			MatOfPoint2f tgt2f = pts[1];
-			MatOfPoint2f ref2f = pts[0];
-
-			// Find the transformation form reference to tgt
-			mHomography = mCV.findHomography( ref2f, tgt2f, 
-					CVSingletons.getHomographyMethod(), CVSingletons.getRansacThreshold());
-
-			// Transform the Target image to resemble the reference image 
-			// This might not be perfect or even close
-			// TODO Check if transformation is correct
-			warped = mCV.getWarpedImage(mTgtImg, mHomography, 
-					new Size(mTgtImg.width(), mTgtImg.height()), false);
+		// Draw on the live frame, it belongs to this frame until it is recycled
+		if (mTgtColor.empty()) return null;
+		for (int i = 0; i < mPixels.length; ++i) {
+			int[] pixels = mPixels[i];
+			for (int j = 0; j < pixels.length; ++j)
+				pixels[j] = Math.round(mOutlines[i][j]);
+			mPolygons.get(i).put(0, 0, pixels);
 		}
-		// Iterate through every ApplianceFeature
-		for (Rect r: mFeaturesToDraw.getFeatureBoxes()){
-			mCV.drawRect(r, warped);
-		}
-
-		return warped;
-	}
-
-	@Override
-	protected void onPostExecute(Mat completeImage){
-		if (completeImage != null)
-			for (WarpedPointListener l: mSecListeners)
-				l.onBoxDrawn(completeImage);
-	}
+		mCV.drawPolygons(mPolygons, mTgtColor);
+		mTimer.record(PipelineTimer.STAGE.DRAW, t);
 
-	public interface WarpedPointListener {
-		public void onBoxDrawn(Mat image);
+		return mTgtColor;
 	}
 
 }
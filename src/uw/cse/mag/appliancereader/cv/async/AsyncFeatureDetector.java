@@ -1,10 +1,27 @@
 package uw.cse.mag.appliancereader.cv.async;
 
+import java.io.File;
+import java.util.List;
+
+import org.opencv.core.Core;
 import org.opencv.core.Mat;
+import org.opencv.core.MatOfDMatch;
 import org.opencv.core.MatOfKeyPoint;
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.Size;
+import org.opencv.features2d.DescriptorExtractor;
+import org.opencv.features2d.FeatureDetector;
+import org.opencv.imgproc.Imgproc;
 
 import uw.cse.mag.appliancereader.cv.CVSingletons;
 import uw.cse.mag.appliancereader.cv.ComputerVision;
+import uw.cse.mag.appliancereader.cv.PipelineTimer;
+import uw.cse.mag.appliancereader.cv.homography.HomographyResult;
+import uw.cse.mag.appliancereader.db.FileManager;
+import uw.cse.mag.appliancereader.db.datatype.Appliance;
+import uw.cse.mag.appliancereader.imgproc.ImageConversion;
+import uw.cse.mag.appliancereader.util.ImageIO;
+import android.graphics.Bitmap;
 import android.os.AsyncTask;
 import android.util.Log;
 
@@ -16,34 +33,208 @@ public class AsyncFeatureDetector extends AsyncTask<Mat, Void, uw.cse.mag.applia
 	
 	private FeatureDetectionListener mListener;
 	
+	/**
+	 * Appliance whose stored features are reused, null if features 
+	 * are always computed
+	 */
+	private final Appliance mAppliance;
+	private final String mCacheKey;
+	
+	/**
+	 * Latency of computing the reference features
+	 */
+	private final PipelineTimer mTimer = new PipelineTimer(1);
+	
 	/**
 	 * Given an initialized 
 	 * @param cv
 	 */
 	public AsyncFeatureDetector(ComputerVision cv){
+		this(cv, null, null);
+	}
+	
+	/**
+	 * Creates a detector that first attempts to load the features of the reference image
+	 * stored with the appliance.  If none are stored for cacheKey the features are computed
+	 * and stored for the next time.
+	 * @param cv Initialized computer vision instance
+	 * @param appliance Appliance the reference image belongs to
+	 * @param cacheKey key obtained from getCacheKey
+	 */
+	public AsyncFeatureDetector(ComputerVision cv, Appliance appliance, String cacheKey){
 		mCV_ = cv;
+		mAppliance = appliance;
+		mCacheKey = cacheKey;
 		checkRep();
 	}
 	
+	/**
+	 * Creates the key that identifies features of a reference image prepared
+	 * for a camera resolution with the current detector configuration
+	 * @param size Size of the reference image after scaling and rotation
+	 * @param rotated Whether the reference image was rotated to match the camera
+	 * @return key to store and load reference features with
+	 */
+	public static String getCacheKey(Size size, boolean rotated){
+		return (int)size.width + "x" + (int)size.height 
+				+ (rotated ? "_rot90_" : "_rot0_") + "grey_"
+				+ CVSingletons.getFeatureDetectorName() + "_" 
+				+ CVSingletons.getDescriptorExtractorName();
+	}
+	
 	@Override
 	protected ImageInformation doInBackground(Mat... args) {
 		Mat image = args[0];
 		if (image == null)
 			return null;
+		ImageInformation info = getReferenceInformation(image);
+		if (info != null && mAppliance != null)
+			loadViews(info);
+		return info;
+	}
+	
+	/**
+	 * Loads or computes the features of the prepared reference image
+	 * @return features of the reference or null if it has none
+	 */
+	private ImageInformation getReferenceInformation(Mat image){
+		// Reuse the features stored with the appliance 
+		if (mAppliance != null) {
+			MatOfKeyPoint kp = new MatOfKeyPoint();
+			Mat descriptor = new Mat();
+			if (FileManager.getInstance().getReferenceFeatures(mAppliance, mCacheKey, kp, descriptor)
+					&& !kp.empty()) {
+				Log.d(TAG, "Loaded reference features: " + mCacheKey);
+				return new ImageInformation(image, kp, descriptor);
+			}
+		}
+		
+		// Frames are matched on their luminance so the reference is as well
+		long t = System.nanoTime();
+		Mat grey = image;
+		if (image.channels() > 1)
+			grey = mCV_.RGBToGrey(image);
+		t = mTimer.record(PipelineTimer.STAGE.GREY, t);
 		
 		// Compute keypoints of the reference image
-		MatOfKeyPoint kp = mCV_.findFeatures(CVSingletons.getFeatureDetector(), image);
+		// With instances confined to this background thread
+		MatOfKeyPoint kp = mCV_.findFeatures(CVSingletons.newFeatureDetector(), grey);
+		t = mTimer.record(PipelineTimer.STAGE.DETECT, t);
 		
 		if (kp.empty()){
 			return null;
 		}
 		
 		// Compute the descriptor
-		Mat descriptor = mCV_.computeDescriptors(CVSingletons.getDescriptorExtractor(), image, kp);
+		Mat descriptor = mCV_.computeDescriptors(CVSingletons.newDescriptorExtractor(), grey, kp);
+		mTimer.record(PipelineTimer.STAGE.DESCRIBE, t);
+		if (grey != image)
+			grey.release();
+		Log.d(TAG, "Reference features computed\n" + mTimer.getSummary());
+		
+		if (mAppliance != null)
+			FileManager.getInstance().addReferenceFeatures(mAppliance, mCacheKey, kp, descriptor);
 		
 		return new ImageInformation(image, kp, descriptor);
 	}
 	
+	/**
+	 * Adds the other views of the appliance to the information of the reference.  Every view
+	 * is prepared like the reference and mapped onto it by a homography between their features.
+	 * The features and the homography of a view are stored with the appliance like the features
+	 * of the reference, so they are only computed once per camera resolution.  Views that can
+	 * not be mapped onto the reference are left out
+	 * @param info features of the prepared reference image
+	 */
+	private void loadViews(ImageInformation info){
+		FileManager fm = FileManager.getInstance();
+		// Instances confined to this background thread, created for the first view computed
+		FeatureDetector detector = null;
+		DescriptorExtractor extractor = null;
+		for (String path: fm.getOtherImages(mAppliance)) {
+			if (isCancelled())
+				return;
+			String name = new File(path).getName();
+			name = name.substring(0, name.lastIndexOf('.'));
+			String key = name + "_" + mCacheKey;
+			
+			MatOfKeyPoint kp = new MatOfKeyPoint();
+			Mat descriptors = new Mat();
+			double[] mapping = fm.getViewMapping(mAppliance, key);
+			if (mapping == null || !fm.getReferenceFeatures(mAppliance, key, kp, descriptors) 
+					|| kp.empty()) {
+				Mat grey = prepareView(path, info.mImage.size());
+				if (grey == null) {
+					Log.w(TAG, "Unable to load view " + path);
+					continue;
+				}
+				if (detector == null) {
+					detector = CVSingletons.newFeatureDetector();
+					extractor = CVSingletons.newDescriptorExtractor();
+				}
+				mCV_.findFeatures(detector, grey, kp);
+				if (!kp.empty())
+					mCV_.computeDescriptors(extractor, grey, kp, descriptors);
+				grey.release();
+				mapping = kp.empty() ? null : mapView(kp, descriptors, info);
+				if (mapping == null) {
+					Log.w(TAG, "View " + name + " does not match the reference");
+					continue;
+				}
+				fm.addReferenceFeatures(mAppliance, key, kp, descriptors);
+				fm.addViewMapping(mAppliance, key, mapping);
+			}
+			ReferenceView view = new ReferenceView(name, kp, descriptors, mapping);
+			info.mViews.add(view);
+			Log.d(TAG, "Loaded " + view);
+		}
+	}
+	
+	/**
+	 * Loads a view in grey and brings it to the orientation and size of the prepared reference
+	 * @return prepared view or null if it can not be loaded
+	 */
+	private Mat prepareView(String path, Size size){
+		Bitmap b = ImageIO.loadBitmapFromFilePath(path, size);
+		if (b == null)
+			return null;
+		Mat view = ImageConversion.bitmapToMat(b);
+		b.recycle();
+		if ((view.cols() > view.rows()) != (size.width > size.height)) {
+			// Rotate by 90 like the reference, the homography absorbs the direction
+			Mat rotated = new Mat();
+			Core.transpose(view, rotated);
+			Core.flip(rotated, rotated, 1);
+			view.release();
+			view = rotated;
+		}
+		Mat scaled = new Mat();
+		Imgproc.resize(view, scaled, size);
+		view.release();
+		Mat grey = mCV_.RGBToGrey(scaled);
+		scaled.release();
+		return grey;
+	}
+	
+	/**
+	 * Estimates the homography from a view to the reference with the matches of their features
+	 * @return homography in row major order or null if too few matches agree on one
+	 */
+	private double[] mapView(MatOfKeyPoint kp, Mat descriptors, ImageInformation ref){
+		MatOfDMatch matches = mCV_.getMatchingCorrespondences(descriptors, ref.mFeatureDescriptors);
+		MatOfPoint2f refPts = new MatOfPoint2f();
+		MatOfPoint2f viewPts = new MatOfPoint2f();
+		mCV_.getCorrespondences(matches, ref.mFeatureKeyPts, kp, refPts, viewPts);
+		Mat h = new Mat();
+		HomographyResult result = mCV_.findHomography(CVSingletons.newHomographyEstimator(), 
+				viewPts, refPts, matches, h);
+		h.release();
+		if (result == null || !result.isGood(CVSingletons.getMinViewInliers(), 
+				CVSingletons.getMinInlierRatio()))
+			return null;
+		return result.mHomography;
+	}
+	
 	/**
 	 * 
 	 * @param listener
@@ -52,6 +243,13 @@ public class AsyncFeatureDetector extends AsyncTask<Mat, Void, uw.cse.mag.applia
 		mListener = listener;
 	}
 	
+	/**
+	 * @return latency of computing the reference features, empty if they were loaded
+	 */
+	public PipelineTimer getTimer(){
+		return mTimer;
+	}
+	
 	@Override 
 	protected void onPostExecute(ImageInformation info){
 		if (mListener == null) {
@@ -76,5 +274,7 @@ public class AsyncFeatureDetector extends AsyncTask<Mat, Void, uw.cse.mag.applia
 			throw new RuntimeException(TAG+": Null Computer Vision argument in initialization");
 		if (!mCV_.isInitialized())
 			throw new RuntimeException(TAG+": Computer Vision argument not initialized");
+		if (mAppliance != null && mCacheKey == null)
+			throw new RuntimeException(TAG+": Null cache key for appliance " + mAppliance);
 	}
 }
@@ -3,46 +3,48 @@ package uw.cse.mag.appliancereader.cv.async;
 import org.opencv.core.Mat;
 
 import uw.cse.mag.appliancereader.cv.ComputerVision;
+import uw.cse.mag.appliancereader.cv.PipelineTimer;
 
+/**
+ * Draws the key points found in every frame
+ * @author mhotan
+ */
 public class AsyncFeatureDrawer extends AsyncPerspectiveUtility {
 
-	private OnFeaturesDrawnListener mListener;
-	
 	public AsyncFeatureDrawer(ComputerVision cv, ImageInformation refImg) {
 		super(cv, refImg);
-		// TODO Auto-generated constructor stub
 	}
-	
-	/**
-	 * Sets listener to list for when features are drawn
-	 * @param list
-	 */
-	public void setFeatureDrawnListener(OnFeaturesDrawnListener list){
-		mListener = list;
+
+	@Override
+	protected boolean usesTracking() {
+		// Key points are drawn so every frame needs detection
+		return false;
+	}
+
+	@Override
+	protected boolean usesSmoothing() {
+		// Predicted frames have no key points to draw
+		return false;
 	}
 
 	@Override
-	protected Mat doInBackground(Mat... params) {
-		super.doInBackground(params);
+	protected boolean usesMotionGate() {
+		// Neither do frames of a static scene
+		return false;
+	}
+
+	@Override
+	protected Mat processFrame(FrameBuffer frame) {
+		super.processFrame(frame);
 
 		// Target mat with keypoints drawn on it
-		Mat target_with_keypoints = new Mat();
+		Mat target_with_keypoints = mFrame.mOutput;
 
 		// Draw the keypoints and output the new mat
-		mCV.drawKeypoints_RGBA(mTgtImg, target_with_keypoints, mTgtKeyPts);
+		long t = System.nanoTime();
+		mCV.drawKeypoints_RGBA(mTgtColor, target_with_keypoints, mTgtKeyPts, mFrame.mRgb);
+		mTimer.record(PipelineTimer.STAGE.DRAW, t);
 
 		return target_with_keypoints;
 	} 
-	
-	@Override 
-	protected void onPostExecute(Mat image){
-		// Send the processed image with key points 
-		if (image != null && mListener != null)
-			mListener.onFeaturesDrawn(image);
-	}
-
-	
-	public interface OnFeaturesDrawnListener {
-		public void onFeaturesDrawn(Mat imgWFeat);
-	}
 }
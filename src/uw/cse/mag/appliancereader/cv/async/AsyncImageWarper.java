@@ -4,37 +4,29 @@ import org.opencv.core.Mat;
 import org.opencv.core.Size;
 
 import uw.cse.mag.appliancereader.cv.ComputerVision;
+import uw.cse.mag.appliancereader.cv.PipelineTimer;
 
+/**
+ * Warps every frame to the perspective of the reference image
+ * @author mhotan
+ */
 public class AsyncImageWarper extends AsyncPerspectiveUtility {
 
-	private ImageWarpListener mListener;
-	
 	public AsyncImageWarper(ComputerVision cv, ImageInformation refinfo) {
 		super(cv, refinfo);
 	}
-	
-	public void setImageWarpedListener(ImageWarpListener listener){
-		mListener = listener;
-	}
 
 	@Override
-	protected Mat doInBackground(Mat... params) {
-		Mat H = super.doInBackground(params);
-		if (H == null) return null;
+	protected Mat processFrame(FrameBuffer frame) {
+		Mat H = super.processFrame(frame);
+		if (H == null || H.empty()) return null;
 		
-		Size s = new Size(mTgtImg.width(), mTgtImg.height());
-		Mat warped = mCV.getWarpedImage(mTgtImg, H, s, false);
+		Size s = new Size(mTgtColor.width(), mTgtColor.height());
+		long t = System.nanoTime();
+		Mat warped = mFrame.mOutput;
+		mCV.getWarpedImage(mTgtColor, H, s, false, warped);
+		mTimer.record(PipelineTimer.STAGE.WARP, t);
 		return warped;
 	}
 	
-	@Override
-	protected void onPostExecute(Mat warpedImg){
-		if (warpedImg != null && mListener != null)
-			mListener.onImageWarped(warpedImg);
-	}
-
-	public interface ImageWarpListener {
-		public void onImageWarped(Mat warpedImage);
-	}
-	
 }
@@ -1,22 +1,63 @@
 package uw.cse.mag.appliancereader.cv.async;
 
+import java.util.ArrayList;
+import java.util.List;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
 import org.opencv.core.Mat;
 import org.opencv.core.MatOfDMatch;
 import org.opencv.core.MatOfKeyPoint;
 import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.Point;
+import org.opencv.core.Rect;
 import org.opencv.features2d.DescriptorExtractor;
+import org.opencv.features2d.DescriptorMatcher;
 import org.opencv.features2d.FeatureDetector;
 
 import uw.cse.mag.appliancereader.cv.CVSingletons;
 import uw.cse.mag.appliancereader.cv.ComputerVision;
-import android.os.AsyncTask;
+import uw.cse.mag.appliancereader.cv.PipelineTimer;
+import uw.cse.mag.appliancereader.cv.async.FrameProcessor.FrameStage;
+import uw.cse.mag.appliancereader.cv.homography.HomographyEstimator;
+import uw.cse.mag.appliancereader.cv.homography.HomographyFilter;
+import uw.cse.mag.appliancereader.cv.homography.HomographyResult;
+import uw.cse.mag.appliancereader.cv.matching.ApplianceIndex;
+import uw.cse.mag.appliancereader.cv.matching.KeyPointGrid;
 import android.util.Log;
 
 /**
- * A complete end to 
+ * A complete end to end stage that finds the homography between
+ * every processed frame and the reference image.
+ * <b>Instances are long lived and reused for every frame submitted to a FrameProcessor.
+ * Each stage owns its detector, extractor and matcher so stages never contend 
+ * with each other or with reference image detection.
+ * <b>When tracking is enabled, frames following a good homography are tracked with
+ * optical flow and full detection only runs when tracking is lost.
+ * <b>Frames are processed on their single channel luminance plane, the color frame
+ * is only read by subclasses when composing their output.
+ * <b>The latency of every step is recorded in a PipelineTimer, see getTimer().
+ * <b>Once the reference has been located, detection only searches the region around
+ * where the region of interest of the reference was last seen.
+ * <b>When smoothing is enabled the corners of the region of interest are filtered over time
+ * with a HomographyFilter.  The filtered homography is used instead of the measured one, the
+ * search region is placed where the filter predicts the corners in the new frame, and while
+ * the appliance barely moves the predicted homography replaces processing the frame entirely
+ * for up to CVSingletons.getMaxPredictionMs().  The prediction also bridges frames where the
+ * homography is briefly lost.
+ * <b>When the motion gate is enabled every frame is first compared with the frame the
+ * homography was last measured in by a MotionGate.  While the scene does not change, IE the
+ * phone is held still in front of the appliance, that homography is reused as is and the frame
+ * is not processed any further, for up to CVSingletons.getMaxStaticMs().
+ * <b>When the appliance has other views, IE taken from oblique angles, every detected frame is
+ * still matched against a single view so the cost per frame does not grow with the views.
+ * After every good homography the view seen from the most similar angle is selected for the
+ * next detection, and while the reference is lost the views take turns.  Correspondences with
+ * a view are mapped onto the reference with the homography of the view, so the estimated
+ * homography always maps the frame to the reference.
  * @author mhotan
  */
-public abstract class AsyncPerspectiveUtility extends AsyncTask<Mat, Object, Mat> {
+public abstract class AsyncPerspectiveUtility implements FrameStage {
 
 	private final static String TAG = AsyncPerspectiveUtility.class.getSimpleName();
 	
@@ -44,15 +85,60 @@ public abstract class AsyncPerspectiveUtility extends AsyncTask<Mat, Object, Mat
 	 */
 	protected final Mat mRefDescriptors;
 	
+	/**
+	 * Other views of the reference, the view at position i is view i + 1 of this stage
+	 * and view 0 is the reference itself
+	 */
+	private final List<ReferenceView> mViews;
+	
+	/**
+	 * View the next detected frame is matched against, read by the main thread for display
+	 */
+	private volatile int mView;
+	
+	/**
+	 * Interior angles of the region of interest in every view and in the current frame,
+	 * views are computed lazily because subclasses define the region
+	 */
+	private double[][] mViewAngles;
+	private final double[] mFrameAngles = new double[4];
+	
+	/**
+	 * Key points of the reference and of every view in the layout of MatOfKeyPoint and the
+	 * homographies of the views onto the reference, read once on first use
+	 */
+	private final float[][] mViewKeyPts;
+	private final double[][] mViewToReference;
+	
+	/**
+	 * Matches and key points of the frame and the correspondences built from them, 
+	 * grow with the number of matches so a frame allocates nothing once they are large enough
+	 */
+	private float[] mMatchBuffer = new float[0];
+	private float[] mTgtKeyPtBuffer = new float[0];
+	private float[] mTgtPtBuffer = new float[0];
+	private float[] mRefPtBuffer = new float[0];
+	private float[] mDistanceBuffer = new float[0];
+	
 	////////////////////////////////////////////////////////////////////////
 	//// Target values
 	////////////////////////////////////////////////////////////////////////
 	
 	/**
-	 * Matrix representation for the target image 
+	 * Pooled buffer that holds the target image and all the intermediate values
+	 */
+	protected FrameBuffer mFrame;
+	
+	/**
+	 * Luminance of the target image, features are detected and tracked on it
 	 */
 	protected Mat mTgtImg;
 	
+	/**
+	 * Color target image, only for composing the output
+	 */
+	protected Mat mTgtColor;
+	
 	/**
 	 * Matrix of key points 
 	 */
@@ -69,10 +155,15 @@ public abstract class AsyncPerspectiveUtility extends AsyncTask<Mat, Object, Mat
 	protected MatOfDMatch mMatDMatches;
 	
 	/**
-	 * Homography that is found between two images
+	 * Homography that is found between two images, null unless it passed the quality check
 	 */
 	protected Mat mHomography;
 	
+	/**
+	 * Inliers and quality of the last homography, null if none was found
+	 */
+	protected HomographyResult mHomographyResult;
+	
 	/**
 	 * Feature Detector to for both reference and target image
 	 */
@@ -84,15 +175,93 @@ public abstract class AsyncPerspectiveUtility extends AsyncTask<Mat, Object, Mat
 	private final DescriptorExtractor mDescriptorExtractor;
 	
 	/**
-	 * Boolean tracker to see if this task is currently working
+	 * Bounds the key points that are described and matched, null to use every key point
+	 */
+	private final KeyPointGrid mKeyPointGrid;
+	
+	/**
+	 * Matchers trained once with the descriptors of the reference and of every view,
+	 * built lazily on the processing thread
+	 */
+	private final DescriptorMatcher[] mDescriptorMatchers;
+	
+	/**
+	 * Estimates the homography from the correspondences
+	 */
+	private final HomographyEstimator mHomographyEstimator;
+	
+	/**
+	 * Tracks the homography between consecutive frames
+	 */
+	private final HomographyTracker mTracker;
+	
+	/**
+	 * Region of the frame to detect features in, null for the whole frame
+	 */
+	private Rect mSearchRegion;
+	
+	/**
+	 * Filters the corners of the region of interest over time, built lazily
+	 */
+	private HomographyFilter mFilter;
+	
+	/**
+	 * Filtered homography and predicted corners of the region of interest
+	 */
+	private final double[] mSmoothed = new double[9];
+	private final float[] mCorners = new float[8];
+	
+	/**
+	 * Number of frames whose homography was predicted instead of measured
+	 */
+	private long mPredicted;
+	
+	/**
+	 * Compares every frame with the frame the homography was last measured in
 	 */
-	private boolean isWorking;
+	private final MotionGate mMotionGate;
 	
 	/**
-	 * TRack amount of time each evaluation takes
+	 * Homography used for the last measured frame and the time it was measured
+	 */
+	private final double[] mKeyHomography = new double[9];
+	private long mKeyTime;
+	
+	/**
+	 * Number of frames whose homography was reused because the scene was static
+	 */
+	private long mStatic;
+	
+	/**
+	 * Inverse of the last homography, maps the reference to the frame
+	 */
+	private final Mat mInverse;
+	
+	/**
+	 * Whether mInverse belongs to the homography of the current frame
+	 */
+	private boolean mHasInverse;
+	
+	/**
+	 * Margin around the projected region of interest as a fraction of its largest side
+	 */
+	private static final double SEARCH_MARGIN = 0.25;
+	
+	/**
+	 * Regions covering more then this fraction of the frame are not worth cropping
+	 */
+	private static final double MAX_SEARCH_AREA = 0.8;
+	
+	/**
+	 * TRack amount of time the last evaluation took
 	 */
 	private long mDuration;
 	
+	/**
+	 * Latency of every step of this stage, subclasses record their composition steps
+	 */
+	protected final PipelineTimer mTimer;
+	
 	/**
 	 * Constructor where target the homography that will map target to reference
 	 * <b> Such that target * h = reference
@@ -103,79 +272,518 @@ public abstract class AsyncPerspectiveUtility extends AsyncTask<Mat, Object, Mat
 		if (cv == null || !cv.isInitialized())
 			throw new RuntimeException("Illegal Computer Vision: " + cv);
 		if (refImg == null)
-			throw new RuntimeException("");
+			throw new RuntimeException("Reference image cannot be null");
 		mCV = cv;
-		mFeatureDetector = CVSingletons.getFeatureDetector();
-		mDescriptorExtractor = CVSingletons.getDescriptorExtractor();
+		// Instances owned by this stage, only used on the processing thread
+		mFeatureDetector = CVSingletons.newFeatureDetector();
+		mDescriptorExtractor = CVSingletons.newDescriptorExtractor();
+		mHomographyEstimator = CVSingletons.newHomographyEstimator();
+		mKeyPointGrid = CVSingletons.getPruningParameters().newKeyPointGrid();
+		mTracker = new HomographyTracker(cv, mHomographyEstimator);
+		mInverse = new Mat();
+		mMotionGate = new MotionGate(CVSingletons.getMotionThreshold());
+		mTimer = new PipelineTimer();
 		
 		// Establish the reference image
 		mRefImg = refImg.mImage;
 		mRefKeyPts = refImg.mFeatureKeyPts;
 		mRefDescriptors = refImg.mFeatureDescriptors;
-			
-		isWorking = false;
+		mViews = new ArrayList<ReferenceView>(refImg.mViews);
+		mDescriptorMatchers = new DescriptorMatcher[mViews.size() + 1];
+		mViewKeyPts = new float[mViews.size() + 1][];
+		mViewToReference = new double[mViews.size() + 1][];
 	}
 	
 	/**
-	 * @return whether this task is currentyl active or processing a homography
+	 * @return time in milliseconds the last processed frame took
 	 */
-	public boolean isActive(){
-		return isWorking;
+	public long getDurationMilliSeconds(){
+		return mDuration;
 	}
 	
 	/**
-	 * 
-	 * @return
+	 * Subclasses narrow the region of the reference they are interested in
+	 * @return region of the reference image whose neighborhood is searched in the following frames
 	 */
-	public long getDurationMilliSeconds(){
-		return mDuration;
+	protected Rect getRegionOfInterest(){
+		return new Rect(0, 0, mRefImg.cols(), mRefImg.rows());
 	}
 	
-	@Override
-	protected void onPreExecute(){
-		isWorking = true;
-		mDuration = System.currentTimeMillis();
+	/**
+	 * Subclasses that need the key points of every frame disable tracking
+	 * @return whether frames may be tracked instead of running full detection
+	 */
+	protected boolean usesTracking(){
+		return CVSingletons.isTrackingEnabled();
+	}
+	
+	/**
+	 * Subclasses that need the key points of every frame disable smoothing, it skips frames
+	 * @return whether the homography is filtered over time and may be predicted
+	 */
+	protected boolean usesSmoothing(){
+		return CVSingletons.isSmoothingEnabled();
+	}
+	
+	/**
+	 * Subclasses that need the key points of every frame disable the motion gate, it skips frames
+	 * @return whether the homography of the last measured frame is reused while the scene is static
+	 */
+	protected boolean usesMotionGate(){
+		return CVSingletons.isMotionGateEnabled();
+	}
+	
+	/**
+	 * @return number of frames whose homography was reused because the scene was static
+	 */
+	public long getStaticCount(){
+		return mStatic;
+	}
+	
+	/**
+	 * @return number of frames whose homography was predicted instead of measured
+	 */
+	public long getPredictedCount(){
+		return mPredicted;
+	}
+	
+	/**
+	 * @return name of the view the next detected frame is matched against, null for the
+	 * reference itself
+	 */
+	public String getViewName(){
+		int view = mView;
+		return view == 0 ? null : mViews.get(view - 1).mName;
+	}
+	
+	/**
+	 * @return number of other views of the reference
+	 */
+	public int getViewCount(){
+		return mViews.size();
+	}
+	
+	/**
+	 * @return whether the homography of the last frame was found by tracking
+	 */
+	public boolean isTracking(){
+		return mTracker.isTracking();
+	}
+	
+	/**
+	 * Subclasses project points of the reference into the frame with this matrix
+	 * @return inverse of the homography of the current frame, null if there is none
+	 * or if it is singular
+	 */
+	protected Mat getInverseHomography(){
+		return mHasInverse ? mInverse : null;
+	}
+	
+	/**
+	 * @return percentiles of the latency of every step of this stage
+	 */
+	public PipelineTimer getTimer(){
+		return mTimer;
 	}
 	
 	@Override
-	protected Mat doInBackground(Mat... params) {
+	public Mat process(FrameBuffer frame) {
+		long start = System.nanoTime();
+		Mat result = processFrame(frame);
+		mTimer.record(PipelineTimer.STAGE.TOTAL, start);
+		mDuration = (System.nanoTime() - start) / 1000000;
+		return result;
+	}
+	
+	/**
+	 * Processes a single frame, subclasses extend this to use the homography
+	 * @param frame Pooled frame to process
+	 * @return Homography that maps the target image to the reference or null if none found
+	 * or if it is not good enough to warp or draw with
+	 */
+	protected Mat processFrame(FrameBuffer frame) {
 		// Given a new target image
-		mTgtImg = params[0];
+		mFrame = frame;
+		mTgtImg = mFrame.mGrey;
+		mTgtColor = mFrame.mFrame;
+		mTgtKeyPts = mFrame.mKeyPts;
+		mTgtDescriptors = mFrame.mDescriptors;
+		mMatDMatches = mFrame.mMatches;
+		mHomography = null;
+		mHomographyResult = null;
+		mHasInverse = false;
 		
-		// Compute target key points
-		mTgtKeyPts = mCV.findFeatures(mFeatureDetector, mTgtImg);
+		long now = System.currentTimeMillis();
+		boolean gated = usesMotionGate();
+		if (gated) {
+			long t = System.nanoTime();
+			mMotionGate.update(mTgtImg);
+			mTimer.record(PipelineTimer.STAGE.GATE, t);
+			// Nothing moved since the homography was measured so it still holds
+			if (mMotionGate.isStatic() && now - mKeyTime < CVSingletons.getMaxStaticMs()) {
+				reuseKeyHomography();
+				return mHomography;
+			}
+		}
+		
+		HomographyFilter filter = usesSmoothing() ? getFilter() : null;
+		boolean predictable = filter != null && filter.isInitialized() 
+				&& now - filter.getTime() < CVSingletons.getMaxPredictionMs();
+		// Reuse the prediction while the appliance barely moves
+		if (predictable && filter.isConverged() && filter.getSpeed() < CVSingletons.getSteadySpeed() 
+				&& usePrediction(filter, now))
+			return mHomography;
+		
+		// Follow the previous frame if possible
+		boolean tracking = usesTracking();
+		if (tracking) {
+			long t = System.nanoTime();
+			mHomographyResult = mTracker.track(mTgtImg, now);
+			mTimer.record(PipelineTimer.STAGE.TRACK, t);
+			if (mHomographyResult != null) {
+				accept(filter, gated, now);
+				return mHomography;
+			}
+		}
 		
-		// Compute target descriptors
-		mTgtDescriptors = mCV.computeDescriptors(mDescriptorExtractor, mTgtImg, mTgtKeyPts);
+		// Compute target key points and descriptors, only around the last location if known
+		// and only for the strongest key points of every zone.
+		// Key points are always in full resolution frame coordinates
+		Rect region = mSearchRegion;
+		mSearchRegion = null;
+		if (filter != null && filter.predict(now, mCorners))
+			region = getSearchRegion(mCorners, 3 * filter.getUncertainty());
+		mCV.findFeatures(mFeatureDetector, mDescriptorExtractor, mTgtImg, region, 
+				CVSingletons.getDetectionScale(), mKeyPointGrid, mFrame.mScaled, 
+				mTgtKeyPts, mTgtDescriptors, mTimer);
 		
 		// Have to check if we did not get black image
 		if (mTgtKeyPts.empty()) {
 			Log.d(TAG, TAG+ ": No features");
-			return null;
+			bridge(filter, predictable, now);
+			return mHomography;
 		}
 		
-		// Get putative matches
-		mMatDMatches = mCV.getMatchingCorrespondences(mTgtDescriptors, mRefDescriptors);
+		// Get putative matches against the index of the selected view of the reference
+		long t = System.nanoTime();
+		int view = mView;
+		mCV.getMatchingCorrespondences(getMatcher(view), mTgtDescriptors, mMatDMatches);
+		t = mTimer.record(PipelineTimer.STAGE.MATCH, t);
 		
-		// Get points for homography calculation
-		MatOfPoint2f[] pts = mCV.getCorrespondences(mMatDMatches, mRefKeyPts, mTgtKeyPts);
+		// Get points for homography calculation, the matcher holds a single train image
+		int count = mMatDMatches.rows();
+		mMatchBuffer = read(mMatDMatches, mMatchBuffer);
+		mTgtKeyPtBuffer = read(mTgtKeyPts, mTgtKeyPtBuffer);
+		if (mTgtPtBuffer.length < 2 * count) {
+			mTgtPtBuffer = new float[2 * count];
+			mRefPtBuffer = new float[2 * count];
+			mDistanceBuffer = new float[count];
+		}
+		int n = ApplianceIndex.getCorrespondences(mMatchBuffer, count, 0, mTgtKeyPtBuffer, 
+				getViewKeyPoints(view), mTgtPtBuffer, mRefPtBuffer, mDistanceBuffer);
+		// Points of another view are mapped onto the reference
+		if (view != 0)
+			transform(getViewToReference(view), mRefPtBuffer, n);
+		MatOfPoint2f tgt2f = mFrame.mTgtPts;
+		MatOfPoint2f ref2f = mFrame.mRefPts;
+		tgt2f.create(n, 1, CvType.CV_32FC2);
+		ref2f.create(n, 1, CvType.CV_32FC2);
+		if (n > 0) {
+			tgt2f.put(0, 0, mTgtPtBuffer);
+			ref2f.put(0, 0, mRefPtBuffer);
+		}
 		
-		MatOfPoint2f tgt2f = pts[1];
-		MatOfPoint2f ref2f = pts[0];
+		mHomographyResult = mHomographyEstimator.estimate(mTgtPtBuffer, mRefPtBuffer, 
+				mDistanceBuffer, n);
+		if (mHomographyResult != null)
+			mFrame.mHomography.put(0, 0, mHomographyResult.mHomography);
+		mTimer.record(PipelineTimer.STAGE.HOMOGRAPHY, t);
 		
-		mHomography = mCV.findHomography( tgt2f, ref2f, 
-				CVSingletons.getHomographyMethod(), CVSingletons.getRansacThreshold());
+		// Skip the expensive warping and drawing for degenerate homographies
+		if (mHomographyResult != null && mHomographyResult.isGood(CVSingletons.getMinInliers(), 
+				CVSingletons.getMinInlierRatio())) {
+			if (tracking)
+				mTracker.start(mHomographyResult, mTgtPtBuffer, mRefPtBuffer, n, now);
+			accept(filter, gated, now);
+		} else {
+			if (mHomographyResult != null)
+				Log.d(TAG, "Rejected homography " + mHomographyResult);
+			// The next frame tries the next view
+			mView = (view + 1) % mDescriptorMatchers.length;
+			bridge(filter, predictable, now);
+		}
 	
 		return mHomography;
 	}
 	
-	@Override 
-	protected void onPostExecute(Mat homography){
-		isWorking = false;
-		mDuration = System.currentTimeMillis() - mDuration;
+	/**
+	 * @param view view of this stage, 0 for the reference
+	 * @return matcher trained with the descriptors of view, trained on first use
+	 */
+	private DescriptorMatcher getMatcher(int view){
+		if (mDescriptorMatchers[view] == null)
+			mDescriptorMatchers[view] = mCV.trainMatcher(view == 0 ? mRefDescriptors 
+					: mViews.get(view - 1).mFeatureDescriptors);
+		return mDescriptorMatchers[view];
+	}
+	
+	/**
+	 * @param view view of this stage, 0 for the reference
+	 * @return key points of view in the layout of MatOfKeyPoint, read on first use
+	 */
+	private float[] getViewKeyPoints(int view){
+		if (mViewKeyPts[view] == null)
+			mViewKeyPts[view] = read(view == 0 ? mRefKeyPts 
+					: mViews.get(view - 1).mFeatureKeyPts, new float[0]);
+		return mViewKeyPts[view];
+	}
+	
+	/**
+	 * @param view other view of this stage, at least 1
+	 * @return homography from view to the reference in row major order, read on first use
+	 */
+	private double[] getViewToReference(int view){
+		if (mViewToReference[view] == null) {
+			double[] h = new double[9];
+			mViews.get(view - 1).mToReference.get(0, 0, h);
+			mViewToReference[view] = h;
+		}
+		return mViewToReference[view];
+	}
+	
+	/**
+	 * Maps interleaved points in place with a homography
+	 * @param h 3x3 homography in row major order
+	 * @param pts interleaved x and y
+	 * @param count number of points
+	 */
+	private static void transform(double[] h, float[] pts, int count){
+		for (int i = 0; i < count; ++i) {
+			double x = pts[2 * i], y = pts[2 * i + 1];
+			double w = h[6] * x + h[7] * y + h[8];
+			pts[2 * i] = (float) ((h[0] * x + h[1] * y + h[2]) / w);
+			pts[2 * i + 1] = (float) ((h[3] * x + h[4] * y + h[5]) / w);
+		}
+	}
+	
+	/**
+	 * Copies every element of m into buffer with a single bulk read
+	 * @param m matrix of floats, IE a MatOfDMatch or a MatOfKeyPoint
+	 * @param buffer buffer to reuse
+	 * @return buffer or a larger replacement holding the elements of m
+	 */
+	private static float[] read(Mat m, float[] buffer){
+		int size = (int) m.total() * m.channels();
+		if (buffer.length < size)
+			buffer = new float[size];
+		if (size > 0)
+			m.get(0, 0, buffer);
+		return buffer;
+	}
+	
+	/**
+	 * Selects the view whose region of interest has the most similar shape to the region in the
+	 * current frame, IE is seen from the most similar angle.  Only the interior angles of the
+	 * corners are compared, they do not change with the position, scale and rotation of the
+	 * appliance in the frame.  Has to be called after updateSearchRegion()
+	 */
+	private void selectView(){
+		if (mViews.isEmpty() || !mHasInverse || getRegionOfInterest() == null)
+			return;
+		if (mViewAngles == null)
+			mViewAngles = getViewAngles();
+		getInteriorAngles(mCorners, mFrameAngles);
+		int best = 0;
+		double bestDifference = Double.MAX_VALUE;
+		for (int v = 0; v < mViewAngles.length; ++v) {
+			if (mViewAngles[v] == null) continue;
+			double difference = 0;
+			for (int i = 0; i < 4; ++i)
+				difference += Math.abs(mFrameAngles[i] - mViewAngles[v][i]);
+			if (difference < bestDifference) {
+				bestDifference = difference;
+				best = v;
+			}
+		}
+		mView = best;
 	}
-
 	
+	/**
+	 * @return interior angles of the region of interest in the reference and in every view,
+	 * null for views whose homography can not be inverted
+	 */
+	private double[][] getViewAngles(){
+		Rect roi = getRegionOfInterest();
+		if (roi == null || roi.area() <= 0)
+			roi = new Rect(0, 0, mRefImg.cols(), mRefImg.rows());
+		List<Point> corners = new ArrayList<Point>(4);
+		corners.add(roi.tl());
+		corners.add(new Point(roi.br().x, roi.tl().y));
+		corners.add(roi.br());
+		corners.add(new Point(roi.tl().x, roi.br().y));
+		
+		double[][] angles = new double[mViews.size() + 1][];
+		float[] c = new float[8];
+		Mat inverse = new Mat();
+		for (int v = 0; v < angles.length; ++v) {
+			List<Point> projected = corners;
+			if (v > 0) {
+				if (Core.invert(mViews.get(v - 1).mToReference, inverse) == 0)
+					continue;
+				projected = mCV.getWarpedPoints(corners, inverse);
+			}
+			int i = 0;
+			for (Point p: projected) {
+				c[i++] = (float) p.x;
+				c[i++] = (float) p.y;
+			}
+			angles[v] = new double[4];
+			getInteriorAngles(c, angles[v]);
+		}
+		inverse.release();
+		return angles;
+	}
 	
+	/**
+	 * @param corners x and y of the four corners of a quadrilateral in order
+	 * @param angles output, interior angle at every corner in radians
+	 */
+	private static void getInteriorAngles(float[] corners, double[] angles){
+		for (int i = 0; i < 4; ++i) {
+			int p = ((i + 3) % 4) * 2, c = i * 2, n = ((i + 1) % 4) * 2;
+			double ax = corners[p] - corners[c], ay = corners[p + 1] - corners[c + 1];
+			double bx = corners[n] - corners[c], by = corners[n + 1] - corners[c + 1];
+			angles[i] = Math.atan2(Math.abs(ax * by - ay * bx), ax * bx + ay * by);
+		}
+	}
+	
+	/**
+	 * Uses the good homography of mHomographyResult for the current frame, filtered if
+	 * smoothing is enabled
+	 * @param filter filter of this stage or null without smoothing
+	 * @param gated whether the frame becomes the key frame of the motion gate
+	 * @param now time of the frame in milliseconds
+	 */
+	private void accept(HomographyFilter filter, boolean gated, long now){
+		double[] h = mHomographyResult.mHomography;
+		if (filter != null && filter.update(h, now) && filter.getHomography(now, mSmoothed))
+			h = mSmoothed;
+		mFrame.mHomography.put(0, 0, h);
+		mHomography = mFrame.mHomography;
+		updateSearchRegion();
+		selectView();
+		if (gated) {
+			mMotionGate.setKeyFrame();
+			System.arraycopy(h, 0, mKeyHomography, 0, 9);
+			mKeyTime = now;
+		}
+	}
+	
+	/**
+	 * Uses the homography of the key frame of the motion gate for the current frame.
+	 * The filter, the tracker and the search region are left as they are, the next frame
+	 * that moved continues from the key frame
+	 */
+	private void reuseKeyHomography(){
+		mFrame.mHomography.put(0, 0, mKeyHomography);
+		mHomography = mFrame.mHomography;
+		mHasInverse = Core.invert(mHomography, mInverse) != 0;
+		mStatic++;
+	}
+	
+	/**
+	 * Bridges a frame without a good homography with the prediction while the last measured
+	 * pose is recent, forgets the pose otherwise
+	 */
+	private void bridge(HomographyFilter filter, boolean predictable, long now){
+		if (predictable)
+			usePrediction(filter, now);
+		else if (filter != null)
+			filter.reset();
+	}
+	
+	/**
+	 * Uses the homography the filter predicts for the current frame
+	 * @return false if the filter could not predict a homography
+	 */
+	private boolean usePrediction(HomographyFilter filter, long now){
+		if (!filter.getHomography(now, mSmoothed))
+			return false;
+		mFrame.mHomography.put(0, 0, mSmoothed);
+		mHomography = mFrame.mHomography;
+		mHasInverse = Core.invert(mHomography, mInverse) != 0;
+		mPredicted++;
+		return true;
+	}
+	
+	/**
+	 * @return filter over the corners of the region of interest, created on first use
+	 * because subclasses define the region
+	 */
+	private HomographyFilter getFilter(){
+		if (mFilter == null) {
+			Rect roi = getRegionOfInterest();
+			if (roi == null || roi.area() <= 0)
+				roi = new Rect(0, 0, mRefImg.cols(), mRefImg.rows());
+			float l = roi.x, t = roi.y, r = roi.x + roi.width, b = roi.y + roi.height;
+			mFilter = new HomographyFilter(new float[] {l, t, r, t, r, b, l, b});
+		}
+		return mFilter;
+	}
+	
+	/**
+	 * Projects the region of interest of the reference into the current frame 
+	 * with the inverse of the homography and adds a margin
+	 */
+	private void updateSearchRegion(){
+		mSearchRegion = null;
+		mHasInverse = Core.invert(mHomography, mInverse) != 0;
+		Rect roi = getRegionOfInterest();
+		if (roi == null || !mHasInverse)
+			return;
+		
+		List<Point> corners = new ArrayList<Point>(4);
+		corners.add(roi.tl());
+		corners.add(new Point(roi.br().x, roi.tl().y));
+		corners.add(roi.br());
+		corners.add(new Point(roi.tl().x, roi.br().y));
+		int i = 0;
+		for (Point p: mCV.getWarpedPoints(corners, mInverse)) {
+			mCorners[i++] = (float) p.x;
+			mCorners[i++] = (float) p.y;
+		}
+		mSearchRegion = getSearchRegion(mCorners, 0);
+	}
+	
+	/**
+	 * Bounding box of the four corners of the region of interest in the frame with a margin
+	 * @param corners x and y of the four corners in the frame
+	 * @param extraMargin pixels added to the margin, IE for the uncertainty of a prediction
+	 * @return region to search or null if cropping to it does not pay off
+	 */
+	private Rect getSearchRegion(float[] corners, double extraMargin){
+		double minX = Double.MAX_VALUE, minY = Double.MAX_VALUE;
+		double maxX = -Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+		for (int i = 0; i < 8; i += 2) {
+			minX = Math.min(minX, corners[i]);
+			minY = Math.min(minY, corners[i + 1]);
+			maxX = Math.max(maxX, corners[i]);
+			maxY = Math.max(maxY, corners[i + 1]);
+		}
+		
+		double margin = SEARCH_MARGIN * Math.max(maxX - minX, maxY - minY) + extraMargin;
+		int x = (int) Math.max(0, Math.floor(minX - margin));
+		int y = (int) Math.max(0, Math.floor(minY - margin));
+		int right = (int) Math.min(mTgtImg.cols(), Math.ceil(maxX + margin));
+		int bottom = (int) Math.min(mTgtImg.rows(), Math.ceil(maxY + margin));
+		if (right <= x || bottom <= y) 
+			return null;
+		
+		// Cropping only pays off if a good part of the frame is skipped
+		double area = (double) (right - x) * (bottom - y);
+		if (area < MAX_SEARCH_AREA * mTgtImg.total())
+			return new Rect(x, y, right - x, bottom - y);
+		return null;
+	}
 
 }
@@ -0,0 +1,25 @@
+package uw.cse.mag.appliancereader.cv.async;
+
+/**
+ * Layer on top of the camera preview that the geometry of the located features is drawn in.
+ * <b>Stages hand over only the outlines of the features in frame coordinates, the preview itself
+ * is shown unmodified, so the overlay is refreshed as fast as the stage produces geometry while
+ * the preview keeps the frame rate of the camera.
+ * @author mhotan
+ */
+public interface FeatureOverlay {
+
+	/**
+	 * Replaces the outlines that are drawn.  Called on the processing thread, implementations
+	 * copy the outlines before returning because the arrays are reused for the next frame
+	 * @param outlines one closed polygon per feature, x and y of every vertex in frame pixels
+	 * @param frameWidth width of the frame the outlines were found in
+	 * @param frameHeight height of the frame the outlines were found in
+	 */
+	public void setOutlines(float[][] outlines, int frameWidth, int frameHeight);
+
+	/**
+	 * Removes every outline
+	 */
+	public void clearOutlines();
+}
@@ -0,0 +1,147 @@
+package uw.cse.mag.appliancereader.cv.async;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfDMatch;
+import org.opencv.core.MatOfKeyPoint;
+import org.opencv.core.MatOfPoint2f;
+
+/**
+ * Preallocated set of matrices needed to process a single camera frame.
+ * <b>Instances are borrowed from a FrameBufferPool, filled with a copy of the
+ * camera frame and of its luminance plane, handed to an asynchronous stage and returned to the pool
+ * once the result is no longer displayed.  Because every matrix keeps its
+ * native memory between frames, OpenCV only reallocates when a result changes
+ * size (IE a different number of key points was found).
+ * <b>Only the luminance plane is preallocated.  The color matrices are allocated the first
+ * time a stage that composes an image uses the buffer, IE the box and recognition stages
+ * never pay for them, and are kept from then on.
+ * @author mhotan
+ */
+public class FrameBuffer {
+
+	/**
+	 * Copy of the color camera frame this buffer is currently processing,
+	 * only used to compose the output.  Empty until a color frame is copied in
+	 */
+	public final Mat mFrame;
+
+	/**
+	 * Copy of the luminance plane of the camera frame, everything up to the
+	 * homography is computed on this single channel image
+	 */
+	public final Mat mGrey;
+
+	/**
+	 * Key points found in the frame
+	 */
+	public final MatOfKeyPoint mKeyPts;
+
+	/**
+	 * Descriptors of the key points found in the frame
+	 */
+	public final Mat mDescriptors;
+
+	/**
+	 * Matches between the frame and the reference image
+	 */
+	public final MatOfDMatch mMatches;
+
+	/**
+	 * Corresponding points of the reference image and of the frame
+	 */
+	public final MatOfPoint2f mRefPts, mTgtPts;
+
+	/**
+	 * Homography found for the frame
+	 */
+	public final Mat mHomography;
+
+	/**
+	 * Downscaled copy of the grey frame that features are detected in
+	 */
+	public final Mat mScaled;
+
+	/**
+	 * Scratch RGB image used by OpenCV drawing calls that do not accept RGBA,
+	 * empty until first drawn on
+	 */
+	public final Mat mRgb;
+
+	/**
+	 * Image that is presented to the user once the stage is complete,
+	 * empty until a stage composes into it
+	 */
+	public final Mat mOutput;
+
+	/**
+	 * Dimension and type of the camera frames this buffer was created for
+	 */
+	private final int mWidth, mHeight, mType;
+
+	/**
+	 * Pool this buffer belongs to
+	 */
+	final FrameBufferPool mOwner;
+
+	/**
+	 * Creates a buffer for frames of the argument dimension and type
+	 * @param owner pool this buffer is returned to
+	 * @param width width of the camera frame
+	 * @param height height of the camera frame
+	 * @param type OpenCV type of the camera frame (IE CvType.CV_8UC4)
+	 */
+	FrameBuffer(FrameBufferPool owner, int width, int height, int type){
+		if (width <= 0 || height <= 0)
+			throw new IllegalArgumentException("Illegal frame dimension w:" + width + " h:" + height);
+		mOwner = owner;
+		mWidth = width;
+		mHeight = height;
+		mType = type;
+		// OpenCV allocates the color matrices when they are first written to
+		mFrame = new Mat();
+		mGrey = new Mat(height, width, CvType.CV_8UC1);
+		mOutput = new Mat();
+		mRgb = new Mat();
+		mKeyPts = new MatOfKeyPoint();
+		mDescriptors = new Mat();
+		mMatches = new MatOfDMatch();
+		mRefPts = new MatOfPoint2f();
+		mTgtPts = new MatOfPoint2f();
+		mHomography = new Mat(3, 3, CvType.CV_64F);
+		mScaled = new Mat();
+	}
+
+	/**
+	 * @return whether a camera frame of this dimension and type can be copied into this buffer
+	 * without reallocation
+	 */
+	public boolean fits(int width, int height, int type){
+		return mWidth == width && mHeight == height && mType == type;
+	}
+
+	/**
+	 * Returns this buffer to the pool it was borrowed from.
+	 * If that pool has been cleared the buffer's memory is freed
+	 */
+	public void recycle(){
+		mOwner.release(this);
+	}
+
+	/**
+	 * Frees the native memory held by this buffer.  The buffer can not be used afterwards
+	 */
+	void release(){
+		mFrame.release();
+		mGrey.release();
+		mOutput.release();
+		mRgb.release();
+		mKeyPts.release();
+		mDescriptors.release();
+		mMatches.release();
+		mRefPts.release();
+		mTgtPts.release();
+		mHomography.release();
+		mScaled.release();
+	}
+}
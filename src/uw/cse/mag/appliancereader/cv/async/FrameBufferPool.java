@@ -0,0 +1,93 @@
+package uw.cse.mag.appliancereader.cv.async;
+
+import java.util.LinkedList;
+
+/**
+ * Fixed size ring of FrameBuffers sized to the camera resolution.
+ * <b>The camera thread borrows a buffer for every frame that is processed and
+ * the buffer is handed back when its result has been replaced on screen.
+ * If every buffer is borrowed the frame is simply not processed, so the pool never
+ * allocates once it has been created, apart from the color matrices of a buffer the
+ * first time it holds a color frame.
+ * <b>Thread safe
+ * @author mhotan
+ */
+public class FrameBufferPool {
+
+	private final LinkedList<FrameBuffer> mFree;
+	private final int mCapacity;
+
+	/**
+	 * Whether this pool has been cleared, buffers released after
+	 * clearing have their memory freed instead of being reused
+	 */
+	private boolean mCleared;
+
+	/**
+	 * Creates a pool with the luminance plane of all its buffers preallocated
+	 * @param capacity Number of buffers in this pool
+	 * @param width width of the camera frame
+	 * @param height height of the camera frame
+	 * @param type OpenCV type of the camera frame
+	 */
+	public FrameBufferPool(int capacity, int width, int height, int type){
+		if (capacity <= 0)
+			throw new IllegalArgumentException("Pool capacity must be positive: " + capacity);
+		mCapacity = capacity;
+		mFree = new LinkedList<FrameBuffer>();
+		for (int i = 0; i < capacity; ++i)
+			mFree.add(new FrameBuffer(this, width, height, type));
+		mCleared = false;
+	}
+
+	/**
+	 * Borrows a buffer from this pool.  The buffer has to be returned
+	 * with release(FrameBuffer)
+	 * @return a free buffer or null if every buffer is currently borrowed
+	 */
+	public synchronized FrameBuffer acquire(){
+		if (mCleared || mFree.isEmpty()) return null;
+		return mFree.removeFirst();
+	}
+
+	/**
+	 * Returns a borrowed buffer to the pool it was borrowed from.  Null values are ignored
+	 * @param buffer buffer to return
+	 */
+	public void release(FrameBuffer buffer){
+		if (buffer == null) return;
+		if (buffer.mOwner != this) {
+			buffer.mOwner.release(buffer);
+			return;
+		}
+		releaseOwned(buffer);
+	}
+
+	private synchronized void releaseOwned(FrameBuffer buffer){
+		if (mCleared) {
+			buffer.release();
+			return;
+		}
+		if (mFree.contains(buffer) || mFree.size() == mCapacity)
+			throw new IllegalStateException("Buffer released more then once");
+		mFree.add(buffer);
+	}
+
+	/**
+	 * @return number of buffers currently available
+	 */
+	public synchronized int available(){
+		return mFree.size();
+	}
+
+	/**
+	 * Frees all the native memory of this pool.  Buffers that are still borrowed
+	 * are freed as they are released.
+	 */
+	public synchronized void clear(){
+		mCleared = true;
+		for (FrameBuffer b: mFree)
+			b.release();
+		mFree.clear();
+	}
+}
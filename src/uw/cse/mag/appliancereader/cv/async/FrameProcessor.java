@@ -0,0 +1,229 @@
+package uw.cse.mag.appliancereader.cv.async;
+
+import org.opencv.core.Mat;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Long lived engine that processes camera frames on a single dedicated thread.
+ * <b>Frames are submitted into a mailbox that holds at most one frame.  If a
+ * new frame arrives before the previous one was picked up the older frame is
+ * dropped and returned to its pool, so the latency of a displayed result is
+ * bounded by the time it takes to process one frame rather than by a queue depth.
+ * <b>Results are delivered on the main thread.
+ * @author mhotan
+ */
+public class FrameProcessor {
+
+	private static final String TAG = FrameProcessor.class.getSimpleName();
+
+	/**
+	 * Guards the mailbox
+	 */
+	private final Object mLock = new Object();
+
+	/**
+	 * One slot mailbox, frame that is waiting to be processed and
+	 * the stage that has to process it
+	 */
+	private FrameBuffer mPendingFrame;
+	private FrameStage mPendingStage;
+
+	/**
+	 * Counters of frames that were processed and frames that were
+	 * replaced by newer frames before they could be processed
+	 */
+	private long mProcessed, mDropped;
+
+	private final Handler mMainHandler;
+	private final FrameListener mListener;
+	private Thread mWorker;
+
+	/**
+	 * Whether this processor has been shut down
+	 */
+	private boolean mShutDown;
+
+	/**
+	 * Creates a processor, frames are only processed after start() is called
+	 * @param listener Listener to be notified on the main thread of each processed frame
+	 */
+	public FrameProcessor(FrameListener listener){
+		if (listener == null)
+			throw new IllegalArgumentException("FrameProcessor requires a listener");
+		mListener = listener;
+		mMainHandler = new Handler(Looper.getMainLooper());
+		mShutDown = false;
+	}
+
+	/**
+	 * Starts the dedicated processing thread
+	 */
+	public void start(){
+		synchronized (mLock) {
+			if (mWorker != null || mShutDown) return;
+			mWorker = new Thread(new Worker(), TAG);
+			mWorker.start();
+		}
+	}
+
+	/**
+	 * Submits a frame to be processed by stage.  If a frame is still waiting in the
+	 * mailbox it is dropped and returned to its pool.
+	 * @param stage Stage that processes the frame
+	 * @param frame Pooled frame to process
+	 */
+	public void submit(FrameStage stage, FrameBuffer frame){
+		if (stage == null || frame == null)
+			throw new IllegalArgumentException("Null stage or frame submitted");
+		FrameBuffer replaced;
+		synchronized (mLock) {
+			if (mShutDown) {
+				replaced = frame;
+			} else {
+				replaced = mPendingFrame;
+				if (replaced != null) mDropped++;
+				mPendingFrame = frame;
+				mPendingStage = stage;
+				mLock.notifyAll();
+			}
+		}
+		if (replaced != null)
+			replaced.recycle();
+	}
+
+	/**
+	 * Takes back the frame that is waiting in the mailbox so its memory can be
+	 * overwritten by a newer frame.  The reclaimed frame counts as dropped.
+	 * @return the unprocessed frame or null if the mailbox is empty
+	 */
+	public FrameBuffer reclaimPending(){
+		synchronized (mLock) {
+			FrameBuffer frame = mPendingFrame;
+			if (frame != null) {
+				mDropped++;
+				mPendingFrame = null;
+				mPendingStage = null;
+			}
+			return frame;
+		}
+	}
+
+	/**
+	 * @return number of frames that were processed
+	 */
+	public long getProcessedCount(){
+		synchronized (mLock) {
+			return mProcessed;
+		}
+	}
+
+	/**
+	 * @return number of frames that were replaced before they were processed
+	 */
+	public long getDroppedCount(){
+		synchronized (mLock) {
+			return mDropped;
+		}
+	}
+
+	/**
+	 * Stops the processing thread.  A frame waiting in the mailbox is returned to its pool,
+	 * the frame currently being processed is still delivered to the listener.
+	 */
+	public void shutDown(){
+		FrameBuffer pending;
+		synchronized (mLock) {
+			mShutDown = true;
+			pending = mPendingFrame;
+			mPendingFrame = null;
+			mPendingStage = null;
+			mLock.notifyAll();
+		}
+		if (pending != null)
+			pending.recycle();
+		Log.i(TAG, "Shut down, processed: " + getProcessedCount() + " dropped: " + getDroppedCount());
+	}
+
+	/**
+	 * Dedicated thread that waits on the mailbox
+	 */
+	private class Worker implements Runnable {
+
+		@Override
+		public void run() {
+			Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+			while (true) {
+				final FrameBuffer frame;
+				final FrameStage stage;
+				synchronized (mLock) {
+					while (mPendingFrame == null && !mShutDown) {
+						try {
+							mLock.wait();
+						} catch (InterruptedException e) {
+							return;
+						}
+					}
+					if (mShutDown) return;
+					frame = mPendingFrame;
+					stage = mPendingStage;
+					mPendingFrame = null;
+					mPendingStage = null;
+				}
+
+				Mat result = null;
+				try {
+					result = stage.process(frame);
+				} catch (RuntimeException e) {
+					// OpenCV throws on degenerate input, IE too few correspondences
+					Log.e(TAG, "Failed to process frame: " + e.getMessage());
+				}
+
+				synchronized (mLock) {
+					mProcessed++;
+				}
+
+				final Mat output = result;
+				mMainHandler.post(new Runnable() {
+					@Override
+					public void run() {
+						mListener.onFrameProcessed(stage, frame, output);
+					}
+				});
+			}
+		}
+	}
+
+	/**
+	 * A single processing step that is long lived and reused for every frame.
+	 * Only ever called on the processing thread
+	 */
+	public interface FrameStage {
+
+		/**
+		 * Processes frame.  Implementations should write their output into the frame's
+		 * preallocated matrices
+		 * @param frame Pooled frame to process
+		 * @return image to display or null if the frame could not be processed
+		 */
+		public Mat process(FrameBuffer frame);
+	}
+
+	/**
+	 * Listener for processed frames
+	 */
+	public interface FrameListener {
+
+		/**
+		 * Called on the main thread when a frame has been processed.
+		 * The listener is responsible for returning the frame to its pool
+		 * @param stage Stage that processed the frame
+		 * @param frame Pooled frame that was processed
+		 * @param result output of the stage or null on failure
+		 */
+		public void onFrameProcessed(FrameStage stage, FrameBuffer frame, Mat result);
+	}
+}
@@ -0,0 +1,197 @@
+package uw.cse.mag.appliancereader.cv.async;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfByte;
+import org.opencv.core.MatOfFloat;
+import org.opencv.core.MatOfPoint2f;
+
+import uw.cse.mag.appliancereader.cv.CVSingletons;
+import uw.cse.mag.appliancereader.cv.ComputerVision;
+import uw.cse.mag.appliancereader.cv.homography.HomographyEstimator;
+import uw.cse.mag.appliancereader.cv.homography.HomographyResult;
+
+/**
+ * Propagates the mapping between the frames and the reference image from frame
+ * to frame with sparse optical flow.
+ * <b>After a homography was found by full detection its inliers are tracked into
+ * the following frames with pyramidal Lucas-Kanade.  Every tracked point keeps
+ * its reference point, so the homography of a new frame is estimated from the
+ * tracked points without detecting, describing or matching anything.
+ * Points that are lost or become outliers are dropped.  Once too few points are
+ * left, the homography is rejected or frames were skipped, tracking stops and the
+ * stage falls back to full detection.
+ * <b>Not thread safe, owned by a single stage
+ * @author mhotan
+ */
+public class HomographyTracker {
+
+	/**
+	 * Frames further apart then this moved too much to be tracked
+	 */
+	private static final long MAX_TRACKING_GAP_MS = 500;
+
+	private final ComputerVision mCV;
+	private final HomographyEstimator mEstimator;
+
+	/**
+	 * Luminance of the previous and of the current frame, swapped after every tracked frame
+	 */
+	private Mat mPrevGrey, mGrey;
+
+	private final MatOfPoint2f mPrevPts, mNextPts;
+	private final MatOfByte mStatus;
+	private final MatOfFloat mErr;
+
+	/**
+	 * Tracked points in the previous frame and their reference points, interleaved x and y
+	 */
+	private float[] mTgt, mRef;
+	private int mCount;
+
+	/**
+	 * Tracked points in the current frame and whether each was found, grow with the number
+	 * of tracked points so a tracked frame allocates nothing once they are large enough
+	 */
+	private float[] mNext;
+	private byte[] mFound;
+
+	private boolean mTracking;
+	private long mLastTime;
+
+	/**
+	 * @param cv Computer vision instance
+	 * @param estimator Estimator of the stage that owns this tracker
+	 */
+	public HomographyTracker(ComputerVision cv, HomographyEstimator estimator){
+		if (cv == null || estimator == null)
+			throw new IllegalArgumentException("Null argument to tracker");
+		mCV = cv;
+		mEstimator = estimator;
+		mPrevGrey = new Mat();
+		mGrey = new Mat();
+		mPrevPts = new MatOfPoint2f();
+		mNextPts = new MatOfPoint2f();
+		mStatus = new MatOfByte();
+		mErr = new MatOfFloat();
+		mTgt = new float[0];
+		mRef = new float[0];
+		mNext = new float[0];
+		mFound = new byte[0];
+		mTracking = false;
+	}
+
+	/**
+	 * Attempts to find the homography of frame by tracking the points of the previous frame.
+	 * Has to be called for every frame so a following call to start() can use the frame
+	 * @param grey luminance of the frame, copied because pooled frames are reused
+	 * @param time time the frame is processed in milliseconds
+	 * @return Homography from the frame to the reference or null if tracking is lost
+	 */
+	public HomographyResult track(Mat grey, long time){
+		grey.copyTo(mGrey);
+		if (!mTracking)
+			return null;
+		if (time - mLastTime > MAX_TRACKING_GAP_MS) {
+			mTracking = false;
+			return null;
+		}
+
+		mPrevPts.create(mCount, 1, CvType.CV_32FC2);
+		mPrevPts.put(0, 0, mTgt);
+		mCV.trackFeatures(mPrevGrey, mGrey, mPrevPts, mNextPts, mStatus, mErr);
+
+		// Keep every point that was found
+		if (mFound.length < mCount) {
+			mNext = new float[2 * mCount];
+			mFound = new byte[mCount];
+		}
+		float[] next = mNext;
+		mNextPts.get(0, 0, next);
+		mStatus.get(0, 0, mFound);
+		int found = 0;
+		for (int i = 0; i < mCount; ++i) {
+			if (mFound[i] == 0) continue;
+			next[2 * found] = next[2 * i];
+			next[2 * found + 1] = next[2 * i + 1];
+			mRef[2 * found] = mRef[2 * i];
+			mRef[2 * found + 1] = mRef[2 * i + 1];
+			found++;
+		}
+		if (found < CVSingletons.getMinTrackedPoints()) {
+			mTracking = false;
+			return null;
+		}
+
+		HomographyResult result = mEstimator.estimate(next, mRef, null, found);
+		if (result == null || !result.isGood(CVSingletons.getMinTrackedPoints(),
+				CVSingletons.getMinInlierRatio())) {
+			mTracking = false;
+			return null;
+		}
+		keepInliers(next, mRef, result.mInlierMask, found);
+		swap(time);
+		return result;
+	}
+
+	/**
+	 * Starts tracking the inliers of a homography found by full detection in the frame last
+	 * passed to track()
+	 * @param result good homography from the frame to the reference
+	 * @param tgt points in the frame, interleaved x and y.  Copied, the caller keeps it
+	 * @param ref corresponding points in the reference, interleaved x and y.  Copied
+	 * @param count number of correspondences
+	 * @param time time the frame is processed in milliseconds
+	 */
+	public void start(HomographyResult result, float[] tgt, float[] ref, int count, long time){
+		if (result.mCorrespondences != count || result.mInlierCount < CVSingletons.getMinTrackedPoints()) {
+			mTracking = false;
+			return;
+		}
+		keepInliers(tgt, ref, result.mInlierMask, count);
+		swap(time);
+		mTracking = true;
+	}
+
+	/**
+	 * Stops tracking, the next frame needs full detection
+	 */
+	public void reset(){
+		mTracking = false;
+	}
+
+	/**
+	 * @return whether points are currently tracked
+	 */
+	public boolean isTracking(){
+		return mTracking;
+	}
+
+	/**
+	 * Copies the inliers into the tracked points, tgt and ref may be the tracked points 
+	 * themselves since inliers only move towards the front
+	 */
+	private void keepInliers(float[] tgt, float[] ref, boolean[] mask, int count){
+		if (mTgt.length < 2 * count) {
+			mTgt = new float[2 * count];
+			mRef = new float[2 * count];
+		}
+		int kept = 0;
+		for (int i = 0; i < count; ++i) {
+			if (!mask[i]) continue;
+			mTgt[2 * kept] = tgt[2 * i];
+			mTgt[2 * kept + 1] = tgt[2 * i + 1];
+			mRef[2 * kept] = ref[2 * i];
+			mRef[2 * kept + 1] = ref[2 * i + 1];
+			kept++;
+		}
+		mCount = kept;
+	}
+
+	private void swap(long time){
+		Mat tmp = mPrevGrey;
+		mPrevGrey = mGrey;
+		mGrey = tmp;
+		mLastTime = time;
+	}
+}
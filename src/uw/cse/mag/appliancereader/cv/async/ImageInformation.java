@@ -1,5 +1,8 @@
 package uw.cse.mag.appliancereader.cv.async;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import org.opencv.core.Mat;
 import org.opencv.core.MatOfKeyPoint;
 
@@ -11,10 +14,17 @@ public class ImageInformation {
 	public final MatOfKeyPoint mFeatureKeyPts;
 	public final Mat mFeatureDescriptors;
 	
+	/**
+	 * Other views of the appliance mapped onto this image, empty if there are none.
+	 * Only filled before the information is handed to the stages
+	 */
+	public final List<ReferenceView> mViews;
+	
 	public ImageInformation(Mat image, MatOfKeyPoint keyPoints, Mat descriptors){
 		mImage = image;
 		mFeatureKeyPts = keyPoints;
 		mFeatureDescriptors = descriptors;
+		mViews = new ArrayList<ReferenceView>();
 		checkRep();
 	}
 
@@ -0,0 +1,113 @@
+package uw.cse.mag.appliancereader.cv.async;
+
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * Cheap check whether the camera moved since the last fully processed frame.
+ * <b>Every frame is shrunk to a thumbnail of a few hundred pixels with area averaging, which
+ * also averages away most of the sensor noise, and the mean absolute difference of the
+ * luminance against the thumbnail of the key frame is compared with a threshold.  The key frame
+ * is the last frame whose homography was measured, not the previous frame, so a slow drift
+ * adds up until it is noticed instead of being lost between consecutive frames.
+ * <b>Changes that cover only a small part of the frame, IE the digits of a display, barely
+ * move the mean so they do not count as motion.
+ * <b>Not thread safe, owned by a single stage
+ * @author mhotan
+ */
+public class MotionGate {
+
+	/**
+	 * Default width of the thumbnails in pixels
+	 */
+	public static final int DEFAULT_WIDTH = 32;
+
+	private final int mWidth;
+	private final double mThreshold;
+
+	/**
+	 * Thumbnail of the current frame and of the key frame
+	 */
+	private final Mat mThumb, mKey, mDiff;
+	private final Size mSize;
+	private boolean mHasKey;
+	private double mDifference;
+
+	/**
+	 * Gate with thumbnails of the default width
+	 * @param threshold mean absolute difference in grey levels below which the scene is static
+	 */
+	public MotionGate(double threshold){
+		this(DEFAULT_WIDTH, threshold);
+	}
+
+	/**
+	 * @param width width of the thumbnails in pixels, the height keeps the aspect of the frames
+	 * @param threshold mean absolute difference in grey levels below which the scene is static
+	 */
+	public MotionGate(int width, double threshold){
+		if (width <= 0)
+			throw new IllegalArgumentException("Thumbnail width must be positive");
+		if (threshold < 0)
+			throw new IllegalArgumentException("Threshold cannot be negative");
+		mWidth = width;
+		mThreshold = threshold;
+		mThumb = new Mat();
+		mKey = new Mat();
+		mDiff = new Mat();
+		mSize = new Size();
+		mHasKey = false;
+		mDifference = Double.MAX_VALUE;
+	}
+
+	/**
+	 * Shrinks a new frame and compares it with the key frame, has to be called for every frame
+	 * before isStatic() or setKeyFrame()
+	 * @param grey luminance of the frame
+	 * @return mean absolute difference to the key frame in grey levels,
+	 * Double.MAX_VALUE without a key frame
+	 */
+	public double update(Mat grey){
+		mSize.width = mWidth;
+		mSize.height = Math.max(1, Math.round((double) mWidth * grey.rows() / grey.cols()));
+		Imgproc.resize(grey, mThumb, mSize, 0, 0, Imgproc.INTER_AREA);
+		if (mHasKey && mKey.size().equals(mThumb.size())) {
+			Core.absdiff(mThumb, mKey, mDiff);
+			mDifference = Core.mean(mDiff).val[0];
+		} else
+			mDifference = Double.MAX_VALUE;
+		return mDifference;
+	}
+
+	/**
+	 * @return whether the last frame passed to update() shows the same scene as the key frame
+	 */
+	public boolean isStatic(){
+		return mDifference < mThreshold;
+	}
+
+	/**
+	 * @return mean absolute difference of the last frame to the key frame in grey levels
+	 */
+	public double getDifference(){
+		return mDifference;
+	}
+
+	/**
+	 * Makes the last frame passed to update() the key frame, IE once its homography was measured
+	 */
+	public void setKeyFrame(){
+		mThumb.copyTo(mKey);
+		mHasKey = true;
+	}
+
+	/**
+	 * Forgets the key frame, every frame counts as moved until the next key frame
+	 */
+	public void reset(){
+		mHasKey = false;
+		mDifference = Double.MAX_VALUE;
+	}
+}
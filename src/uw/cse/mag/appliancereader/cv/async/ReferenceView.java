@@ -0,0 +1,64 @@
+package uw.cse.mag.appliancereader.cv.async;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfKeyPoint;
+
+/**
+ * Another view of the reference image of an appliance, IE taken from an oblique angle.
+ * <b>Holds the features of the view and the homography that maps the view onto the reference
+ * image.  Correspondences between a frame and the view are mapped onto the reference with it,
+ * so the homography that is estimated from them maps the frame to the reference like one
+ * estimated from the reference itself and the polygons of the reference apply unchanged.
+ * <b>The view is prepared like the reference, IE scaled to the camera and rotated to its
+ * orientation, so its features and homography are computed once per camera resolution.
+ * @author mhotan
+ */
+public class ReferenceView {
+
+	private static final String TAG = ReferenceView.class.getSimpleName();
+
+	/**
+	 * Name of the view, IE its file name
+	 */
+	public final String mName;
+
+	public final MatOfKeyPoint mFeatureKeyPts;
+	public final Mat mFeatureDescriptors;
+
+	/**
+	 * Homography from the view to the reference image, 3x3 CV_64F
+	 */
+	public final Mat mToReference;
+
+	/**
+	 * @param name name of the view
+	 * @param keyPoints key points of the prepared view
+	 * @param descriptors descriptors of the key points
+	 * @param toReference homography from the view to the reference in row major order
+	 */
+	public ReferenceView(String name, MatOfKeyPoint keyPoints, Mat descriptors, double[] toReference){
+		mName = name;
+		mFeatureKeyPts = keyPoints;
+		mFeatureDescriptors = descriptors;
+		if (toReference == null || toReference.length != 9)
+			throw new RuntimeException(TAG + ": Illegal homography of view " + name);
+		mToReference = new Mat(3, 3, CvType.CV_64F);
+		mToReference.put(0, 0, toReference);
+		checkRep();
+	}
+
+	@Override
+	public String toString(){
+		return "View " + mName + " with " + mFeatureKeyPts.rows() + " key points";
+	}
+
+	private void checkRep() {
+		if (mName == null)
+			throw new RuntimeException(TAG + ": Name input is null");
+		if (mFeatureKeyPts == null)
+			throw new RuntimeException(TAG + ": Key Feature input is null");
+		if (mFeatureDescriptors == null)
+			throw new RuntimeException(TAG + ": Descriptor input is null");
+	}
+}
@@ -0,0 +1,242 @@
+package uw.cse.mag.appliancereader.cv.homography;
+
+/**
+ * Direct linear transform solvers for homographies in pure Java.
+ * <b>All matrices are row major double arrays.
+ * @author mhotan
+ */
+final class DLT {
+
+	/**
+	 * Pivots smaller than this are treated as a singular system
+	 */
+	private static final double SINGULAR = 1e-10;
+
+	private static final int MAX_SWEEPS = 50;
+
+	private DLT() {}
+
+	/**
+	 * Computes the similarity transform that moves the centroid of the points to the origin
+	 * and scales them so their mean distance to the origin is sqrt(2)
+	 * @param pts interleaved points
+	 * @param count number of points
+	 * @param t output {scale, center x, center y}
+	 */
+	static void getNormalization(float[] pts, int count, double[] t){
+		double cx = 0, cy = 0;
+		for (int i = 0; i < count; ++i) {
+			cx += pts[2 * i];
+			cy += pts[2 * i + 1];
+		}
+		cx /= count;
+		cy /= count;
+		double d = 0;
+		for (int i = 0; i < count; ++i)
+			d += Math.hypot(pts[2 * i] - cx, pts[2 * i + 1] - cy);
+		d /= count;
+		t[0] = d > SINGULAR ? Math.sqrt(2) / d : 1;
+		t[1] = cx;
+		t[2] = cy;
+	}
+
+	/**
+	 * Applies a normalization from getNormalization
+	 * @param pts interleaved points
+	 * @param count number of points
+	 * @param t normalization
+	 * @param out output normalized points
+	 */
+	static void normalize(float[] pts, int count, double[] t, double[] out){
+		for (int i = 0; i < count; ++i) {
+			out[2 * i] = (pts[2 * i] - t[1]) * t[0];
+			out[2 * i + 1] = (pts[2 * i + 1] - t[2]) * t[0];
+		}
+	}
+
+	/**
+	 * Converts a homography between normalized points into one between the original points.
+	 * H = inverse(Tdst) * Hn * Tsrc
+	 * @param hn homography between normalized points
+	 * @param ts normalization of the source
+	 * @param td normalization of the destination
+	 * @return homography with h[8] scaled to one when possible
+	 */
+	static double[] denormalize(double[] hn, double[] ts, double[] td){
+		double s = ts[0], sx = ts[1], sy = ts[2];
+		// Hn * Tsrc where Tsrc = [s 0 -s*sx; 0 s -s*sy; 0 0 1]
+		double[] a = new double[9];
+		for (int r = 0; r < 3; ++r) {
+			a[3 * r] = hn[3 * r] * s;
+			a[3 * r + 1] = hn[3 * r + 1] * s;
+			a[3 * r + 2] = -hn[3 * r] * s * sx - hn[3 * r + 1] * s * sy + hn[3 * r + 2];
+		}
+		// inverse(Tdst) = [1/d 0 dx; 0 1/d dy; 0 0 1]
+		double id = 1 / td[0], dx = td[1], dy = td[2];
+		double[] h = new double[9];
+		for (int c = 0; c < 3; ++c) {
+			h[c] = a[c] * id + dx * a[6 + c];
+			h[3 + c] = a[3 + c] * id + dy * a[6 + c];
+			h[6 + c] = a[6 + c];
+		}
+		if (Math.abs(h[8]) > SINGULAR) {
+			double n = 1 / h[8];
+			for (int i = 0; i < 9; ++i)
+				h[i] *= n;
+		}
+		return h;
+	}
+
+	/**
+	 * Solves the homography through exactly four correspondences with h[8] fixed to one
+	 * @param src normalized source points
+	 * @param dst normalized destination points
+	 * @param idx indices of the four correspondences
+	 * @param a scratch space of 8 * 9 doubles
+	 * @param h output homography
+	 * @return false if the system is singular
+	 */
+	static boolean solveMinimal(double[] src, double[] dst, int[] idx, double[] a, double[] h){
+		for (int k = 0; k < 4; ++k) {
+			double x = src[2 * idx[k]], y = src[2 * idx[k] + 1];
+			double u = dst[2 * idx[k]], v = dst[2 * idx[k] + 1];
+			int r = 2 * k * 9;
+			a[r] = x; a[r + 1] = y; a[r + 2] = 1;
+			a[r + 3] = 0; a[r + 4] = 0; a[r + 5] = 0;
+			a[r + 6] = -u * x; a[r + 7] = -u * y; a[r + 8] = u;
+			r += 9;
+			a[r] = 0; a[r + 1] = 0; a[r + 2] = 0;
+			a[r + 3] = x; a[r + 4] = y; a[r + 5] = 1;
+			a[r + 6] = -v * x; a[r + 7] = -v * y; a[r + 8] = v;
+		}
+		// Gaussian elimination with partial pivoting on the 8x9 augmented matrix
+		for (int c = 0; c < 8; ++c) {
+			int pivot = c;
+			for (int r = c + 1; r < 8; ++r)
+				if (Math.abs(a[r * 9 + c]) > Math.abs(a[pivot * 9 + c]))
+					pivot = r;
+			if (Math.abs(a[pivot * 9 + c]) < SINGULAR)
+				return false;
+			if (pivot != c) {
+				for (int k = c; k < 9; ++k) {
+					double tmp = a[c * 9 + k];
+					a[c * 9 + k] = a[pivot * 9 + k];
+					a[pivot * 9 + k] = tmp;
+				}
+			}
+			for (int r = c + 1; r < 8; ++r) {
+				double f = a[r * 9 + c] / a[c * 9 + c];
+				if (f == 0) continue;
+				for (int k = c; k < 9; ++k)
+					a[r * 9 + k] -= f * a[c * 9 + k];
+			}
+		}
+		for (int r = 7; r >= 0; --r) {
+			double sum = a[r * 9 + 8];
+			for (int k = r + 1; k < 8; ++k)
+				sum -= a[r * 9 + k] * h[k];
+			h[r] = sum / a[r * 9 + r];
+		}
+		h[8] = 1;
+		return true;
+	}
+
+	/**
+	 * Least squares homography through the selected correspondences.  Takes the
+	 * eigenvector of the smallest eigenvalue of transpose(A) * A
+	 * @param src normalized source points
+	 * @param dst normalized destination points
+	 * @param mask selects the correspondences to use, null for all
+	 * @param count number of correspondences
+	 * @param h output homography
+	 * @return false if fewer than four correspondences were selected
+	 */
+	static boolean solveLeastSquares(double[] src, double[] dst, boolean[] mask, int count, double[] h){
+		double[] ata = new double[81];
+		double[] row = new double[9];
+		int used = 0;
+		for (int i = 0; i < count; ++i) {
+			if (mask != null && !mask[i]) continue;
+			used++;
+			double x = src[2 * i], y = src[2 * i + 1];
+			double u = dst[2 * i], v = dst[2 * i + 1];
+			row[0] = x; row[1] = y; row[2] = 1;
+			row[3] = 0; row[4] = 0; row[5] = 0;
+			row[6] = -u * x; row[7] = -u * y; row[8] = -u;
+			accumulate(ata, row);
+			row[0] = 0; row[1] = 0; row[2] = 0;
+			row[3] = x; row[4] = y; row[5] = 1;
+			row[6] = -v * x; row[7] = -v * y; row[8] = -v;
+			accumulate(ata, row);
+		}
+		if (used < 4) return false;
+		smallestEigenvector(ata, 9, h);
+		return true;
+	}
+
+	private static void accumulate(double[] ata, double[] row){
+		for (int r = 0; r < 9; ++r) {
+			if (row[r] == 0) continue;
+			for (int c = r; c < 9; ++c)
+				ata[r * 9 + c] += row[r] * row[c];
+		}
+		// Mirror is filled by smallestEigenvector
+	}
+
+	/**
+	 * Cyclic Jacobi eigenvalue iteration on a symmetric matrix
+	 * @param m upper triangle of a symmetric n by n matrix, destroyed
+	 * @param n dimension
+	 * @param out eigenvector of the smallest eigenvalue
+	 */
+	static void smallestEigenvector(double[] m, int n, double[] out){
+		for (int r = 0; r < n; ++r)
+			for (int c = 0; c < r; ++c)
+				m[r * n + c] = m[c * n + r];
+		double[] v = new double[n * n];
+		for (int i = 0; i < n; ++i)
+			v[i * n + i] = 1;
+
+		for (int sweep = 0; sweep < MAX_SWEEPS; ++sweep) {
+			double off = 0;
+			for (int p = 0; p < n; ++p)
+				for (int q = p + 1; q < n; ++q)
+					off += m[p * n + q] * m[p * n + q];
+			if (off < 1e-22) break;
+
+			for (int p = 0; p < n; ++p) {
+				for (int q = p + 1; q < n; ++q) {
+					double apq = m[p * n + q];
+					if (Math.abs(apq) < 1e-300) continue;
+					double theta = (m[q * n + q] - m[p * n + p]) / (2 * apq);
+					double t = Math.signum(theta) / (Math.abs(theta) + Math.sqrt(theta * theta + 1));
+					if (theta == 0) t = 1;
+					double c = 1 / Math.sqrt(t * t + 1);
+					double s = t * c;
+					for (int k = 0; k < n; ++k) {
+						double mkp = m[k * n + p], mkq = m[k * n + q];
+						m[k * n + p] = c * mkp - s * mkq;
+						m[k * n + q] = s * mkp + c * mkq;
+					}
+					for (int k = 0; k < n; ++k) {
+						double mpk = m[p * n + k], mqk = m[q * n + k];
+						m[p * n + k] = c * mpk - s * mqk;
+						m[q * n + k] = s * mpk + c * mqk;
+					}
+					for (int k = 0; k < n; ++k) {
+						double vkp = v[k * n + p], vkq = v[k * n + q];
+						v[k * n + p] = c * vkp - s * vkq;
+						v[k * n + q] = s * vkp + c * vkq;
+					}
+				}
+			}
+		}
+
+		int min = 0;
+		for (int i = 1; i < n; ++i)
+			if (m[i * n + i] < m[min * n + min])
+				min = i;
+		for (int i = 0; i < n; ++i)
+			out[i] = v[i * n + min];
+	}
+}
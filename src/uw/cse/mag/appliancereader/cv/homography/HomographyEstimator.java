@@ -0,0 +1,25 @@
+package uw.cse.mag.appliancereader.cv.homography;
+
+/**
+ * Estimates the homography that maps a set of source points onto a set of
+ * destination points.
+ * <b>Points are passed as interleaved coordinates x0, y0, x1, y1, ... which is the
+ * layout of MatOfPoint2f.get(0, 0, float[]), so no OpenCV types are needed and
+ * implementations can run on a plain JVM.
+ * <b>Implementations reuse scratch memory between estimates and are not thread safe,
+ * confine every instance to a single worker.
+ * @author mhotan
+ */
+public interface HomographyEstimator {
+
+	/**
+	 * Estimates the homography H such that dst ~ H * src
+	 * @param src source points, interleaved x and y
+	 * @param dst destination points, interleaved x and y
+	 * @param distances match distance of each correspondence, lower is better.
+	 * Used by estimators that order their samples by quality, may be null
+	 * @param count number of correspondences
+	 * @return homography with its inliers and quality or null if none could be found
+	 */
+	public HomographyResult estimate(float[] src, float[] dst, float[] distances, int count);
+}
@@ -0,0 +1,293 @@
+package uw.cse.mag.appliancereader.cv.homography;
+
+/**
+ * Temporal filter over the pose of the reference image in the camera frames.
+ * <b>Instead of the eight parameters of the homography, whose scales differ by orders of
+ * magnitude, the filter follows four points of the reference projected into the frame.  Every
+ * coordinate is a constant velocity Kalman filter with white acceleration noise, the coordinates
+ * are filtered independently.  The smoothed homography is the one through the four filtered
+ * points, so it stays a valid homography and the overlays stop jittering.
+ * <b>The filter also predicts where the points will be in a later frame, which gives the
+ * stages a search window and tells them when the appliance barely moves.  Measurements further
+ * than GATE pixels from the prediction restart the filter, so a jump is followed at once
+ * instead of being smoothed away.
+ * <b>All homographies map the frame to the reference, like the ones of the frame stages.
+ * <b>Not thread safe, owned by a single stage
+ * @author mhotan
+ */
+public class HomographyFilter {
+
+	/**
+	 * Default spectral density of the acceleration noise in pixels^2 / s^3
+	 */
+	public static final double DEFAULT_PROCESS_NOISE = 1e4;
+
+	/**
+	 * Default variance of a measured point in pixels^2
+	 */
+	public static final double DEFAULT_MEASUREMENT_NOISE = 4;
+
+	/**
+	 * Measurements further then this many pixels from the prediction restart the filter
+	 */
+	private static final double GATE = 50;
+
+	/**
+	 * Initial variance of the velocity in (pixels / s)^2
+	 */
+	private static final double INITIAL_VELOCITY_VARIANCE = 1e6;
+
+	/**
+	 * Measurements needed before the velocity is trusted
+	 */
+	private static final int MIN_UPDATES = 3;
+
+	private static final int POINTS = 4;
+	private static final int COORDS = 2 * POINTS;
+
+	private final float[] mRef;
+	private final double mQ, mR;
+
+	// State and covariance of every coordinate
+	private final double[] mPos = new double[COORDS];
+	private final double[] mVel = new double[COORDS];
+	private final double[] mP00 = new double[COORDS];
+	private final double[] mP01 = new double[COORDS];
+	private final double[] mP11 = new double[COORDS];
+	private boolean mInitialized;
+	private int mUpdates;
+	private long mTime;
+
+	// Scratch space
+	private final float[] mMeasured = new float[COORDS];
+	private final float[] mPoints = new float[COORDS];
+	private final double[] mInverse = new double[9];
+	private final double[] mTs = new double[3], mTd = new double[3];
+	private final double[] mSrc = new double[COORDS], mDst = new double[COORDS];
+	private final double[] mA = new double[8 * 9];
+	private final double[] mH = new double[9];
+	private final int[] mIdx = {0, 1, 2, 3};
+
+	/**
+	 * Filter with the default noise
+	 * @param refPoints four points of the reference image, x and y interleaved, no three on a line
+	 */
+	public HomographyFilter(float[] refPoints){
+		this(refPoints, DEFAULT_PROCESS_NOISE, DEFAULT_MEASUREMENT_NOISE);
+	}
+
+	/**
+	 * @param refPoints four points of the reference image, x and y interleaved, no three on a line
+	 * @param processNoise spectral density of the acceleration noise in pixels^2 / s^3,
+	 * larger follows fast motion more closely
+	 * @param measurementNoise variance of a measured point in pixels^2, larger smooths more
+	 */
+	public HomographyFilter(float[] refPoints, double processNoise, double measurementNoise){
+		if (refPoints == null || refPoints.length != COORDS)
+			throw new IllegalArgumentException("Exactly four reference points are needed");
+		if (processNoise <= 0 || measurementNoise <= 0)
+			throw new IllegalArgumentException("Noise must be positive");
+		mRef = refPoints.clone();
+		mQ = processNoise;
+		mR = measurementNoise;
+		mInitialized = false;
+	}
+
+	/**
+	 * Forgets the pose, IE once the appliance is lost
+	 */
+	public void reset(){
+		mInitialized = false;
+	}
+
+	/**
+	 * @return whether the filter has a pose to smooth and predict from
+	 */
+	public boolean isInitialized(){
+		return mInitialized;
+	}
+
+	/**
+	 * @return whether enough measurements were added since the last restart to trust
+	 * the velocity, IE to decide the appliance is not moving
+	 */
+	public boolean isConverged(){
+		return mInitialized && mUpdates >= MIN_UPDATES;
+	}
+
+	/**
+	 * @return time of the last measurement in milliseconds
+	 */
+	public long getTime(){
+		return mTime;
+	}
+
+	/**
+	 * Adds the homography measured in a frame
+	 * @param h homography from the frame to the reference, row major
+	 * @param time time the frame was taken in milliseconds
+	 * @return false if h could not be inverted and was ignored
+	 */
+	public boolean update(double[] h, long time){
+		if (!project(h, mMeasured))
+			return false;
+		if (!mInitialized || time < mTime) {
+			restart(time);
+			return true;
+		}
+
+		double dt = (time - mTime) / 1000.0;
+		predictCovariance(dt);
+		for (int i = 0; i < COORDS; ++i) {
+			if (Math.abs(mPos[i] + mVel[i] * dt - mMeasured[i]) > GATE) {
+				restart(time);
+				return true;
+			}
+		}
+		for (int i = 0; i < COORDS; ++i) {
+			// Predict
+			mPos[i] += mVel[i] * dt;
+			// Correct with the measured coordinate
+			double s = mP00[i] + mR;
+			double k0 = mP00[i] / s, k1 = mP01[i] / s;
+			double y = mMeasured[i] - mPos[i];
+			mPos[i] += k0 * y;
+			mVel[i] += k1 * y;
+			double p00 = mP00[i], p01 = mP01[i];
+			mP00[i] = (1 - k0) * p00;
+			mP01[i] = (1 - k0) * p01;
+			mP11[i] -= k1 * p01;
+		}
+		mUpdates++;
+		mTime = time;
+		return true;
+	}
+
+	/**
+	 * @param time time in milliseconds, at or after the last measurement
+	 * @param points output, the four points predicted at time, x and y interleaved
+	 * @return false if the filter is not initialized
+	 */
+	public boolean predict(long time, float[] points){
+		if (!mInitialized)
+			return false;
+		double dt = Math.max(0, time - mTime) / 1000.0;
+		for (int i = 0; i < COORDS; ++i)
+			points[i] = (float) (mPos[i] + mVel[i] * dt);
+		return true;
+	}
+
+	/**
+	 * @param time time in milliseconds, at or after the last measurement
+	 * @param h output, homography from the frame to the reference predicted at time
+	 * @return false if the filter is not initialized or the predicted points are degenerate
+	 */
+	public boolean getHomography(long time, double[] h){
+		if (!predict(time, mPoints))
+			return false;
+		return solve(mPoints, h);
+	}
+
+	/**
+	 * @return speed of the fastest point in pixels per second, 0 if not initialized
+	 */
+	public double getSpeed(){
+		if (!mInitialized)
+			return 0;
+		double max = 0;
+		for (int p = 0; p < POINTS; ++p)
+			max = Math.max(max, Math.hypot(mVel[2 * p], mVel[2 * p + 1]));
+		return max;
+	}
+
+	/**
+	 * @return standard deviation of the least certain coordinate in pixels
+	 */
+	public double getUncertainty(){
+		double max = 0;
+		for (int i = 0; i < COORDS; ++i)
+			max = Math.max(max, mP00[i]);
+		return Math.sqrt(max);
+	}
+
+	private void restart(long time){
+		for (int i = 0; i < COORDS; ++i) {
+			mPos[i] = mMeasured[i];
+			mVel[i] = 0;
+			mP00[i] = mR;
+			mP01[i] = 0;
+			mP11[i] = INITIAL_VELOCITY_VARIANCE;
+		}
+		mUpdates = 1;
+		mTime = time;
+		mInitialized = true;
+	}
+
+	/**
+	 * P = F P F' + Q for F = [1 dt; 0 1] and white acceleration noise
+	 */
+	private void predictCovariance(double dt){
+		double q00 = mQ * dt * dt * dt / 3, q01 = mQ * dt * dt / 2, q11 = mQ * dt;
+		for (int i = 0; i < COORDS; ++i) {
+			double p00 = mP00[i], p01 = mP01[i], p11 = mP11[i];
+			mP00[i] = p00 + 2 * dt * p01 + dt * dt * p11 + q00;
+			mP01[i] = p01 + dt * p11 + q01;
+			mP11[i] = p11 + q11;
+		}
+	}
+
+	/**
+	 * Projects the reference points into the frame with the inverse of h
+	 */
+	private boolean project(double[] h, float[] out){
+		if (!invert(h, mInverse))
+			return false;
+		double[] m = mInverse;
+		for (int p = 0; p < POINTS; ++p) {
+			double x = mRef[2 * p], y = mRef[2 * p + 1];
+			double w = m[6] * x + m[7] * y + m[8];
+			if (Math.abs(w) < 1e-12)
+				return false;
+			out[2 * p] = (float) ((m[0] * x + m[1] * y + m[2]) / w);
+			out[2 * p + 1] = (float) ((m[3] * x + m[4] * y + m[5]) / w);
+		}
+		return true;
+	}
+
+	/**
+	 * Homography from the frame points to the reference points
+	 */
+	private boolean solve(float[] points, double[] h){
+		DLT.getNormalization(points, POINTS, mTs);
+		DLT.getNormalization(mRef, POINTS, mTd);
+		DLT.normalize(points, POINTS, mTs, mSrc);
+		DLT.normalize(mRef, POINTS, mTd, mDst);
+		if (!DLT.solveMinimal(mSrc, mDst, mIdx, mA, mH))
+			return false;
+		System.arraycopy(DLT.denormalize(mH, mTs, mTd), 0, h, 0, 9);
+		return true;
+	}
+
+	/**
+	 * Inverse of a row major 3x3 matrix
+	 */
+	private static boolean invert(double[] m, double[] out){
+		double c0 = m[4] * m[8] - m[5] * m[7];
+		double c1 = m[5] * m[6] - m[3] * m[8];
+		double c2 = m[3] * m[7] - m[4] * m[6];
+		double det = m[0] * c0 + m[1] * c1 + m[2] * c2;
+		if (Math.abs(det) < 1e-12)
+			return false;
+		double id = 1 / det;
+		out[0] = c0 * id;
+		out[1] = (m[2] * m[7] - m[1] * m[8]) * id;
+		out[2] = (m[1] * m[5] - m[2] * m[4]) * id;
+		out[3] = c1 * id;
+		out[4] = (m[0] * m[8] - m[2] * m[6]) * id;
+		out[5] = (m[2] * m[3] - m[0] * m[5]) * id;
+		out[6] = c2 * id;
+		out[7] = (m[1] * m[6] - m[0] * m[7]) * id;
+		out[8] = (m[0] * m[4] - m[1] * m[3]) * id;
+		return true;
+	}
+}
@@ -0,0 +1,137 @@
+package uw.cse.mag.appliancereader.cv.homography;
+
+/**
+ * Homography found by a HomographyEstimator together with measures of how much
+ * it can be trusted.
+ * <b>A homography is only worth using if enough correspondences support it, the
+ * supporting correspondences fit it closely and it is well conditioned,
+ * IE it does not mirror, collapse or explode the image.
+ * @author mhotan
+ */
+public class HomographyResult {
+
+	/**
+	 * Bounds of the determinant of the affine part.  Outside of them the
+	 * target shrinks or grows by more then a factor of ten in each direction
+	 */
+	private static final double MIN_DETERMINANT = 0.01;
+	private static final double MAX_DETERMINANT = 100;
+
+	/**
+	 * Bound of the perspective terms for camera frames of a few hundred pixels.
+	 * Larger values send part of the frame close to the line at infinity
+	 */
+	private static final double MAX_PERSPECTIVE = 0.002;
+
+	/**
+	 * 3x3 homography in row major order
+	 */
+	public final double[] mHomography;
+
+	/**
+	 * Whether each correspondence is an inlier of the homography
+	 */
+	public final boolean[] mInlierMask;
+
+	/**
+	 * Number of correspondences consistent with the homography
+	 */
+	public final int mInlierCount;
+
+	/**
+	 * Number of correspondences the homography was estimated from
+	 */
+	public final int mCorrespondences;
+
+	/**
+	 * Root mean square reprojection error of the inliers in pixels
+	 */
+	public final double mReprojectionError;
+
+	/**
+	 * Number of hypotheses the estimator evaluated, zero when unknown
+	 */
+	public final int mIterations;
+
+	private HomographyResult(double[] h, boolean[] mask, int inliers, int count,
+			double error, int iterations){
+		mHomography = h;
+		mInlierMask = mask;
+		mInlierCount = inliers;
+		mCorrespondences = count;
+		mReprojectionError = error;
+		mIterations = iterations;
+	}
+
+	/**
+	 * Measures how well homography h maps the source points onto the destination points
+	 * @param h 3x3 homography in row major order
+	 * @param src source points, interleaved x and y
+	 * @param dst destination points, interleaved x and y
+	 * @param count number of correspondences
+	 * @param threshold maximum reprojection error in pixels for a correspondence to be an inlier
+	 * @param iterations number of hypotheses the estimator evaluated
+	 * @return result describing h
+	 */
+	public static HomographyResult evaluate(double[] h, float[] src, float[] dst, int count,
+			double threshold, int iterations){
+		if (h == null || h.length != 9)
+			throw new IllegalArgumentException("Homography must have 9 elements");
+		boolean[] mask = new boolean[count];
+		double t2 = threshold * threshold;
+		double sum = 0;
+		int inliers = 0;
+		for (int i = 0; i < count; ++i) {
+			double x = src[2 * i], y = src[2 * i + 1];
+			double w = h[6] * x + h[7] * y + h[8];
+			if (Math.abs(w) < 1e-12) continue;
+			double dx = (h[0] * x + h[1] * y + h[2]) / w - dst[2 * i];
+			double dy = (h[3] * x + h[4] * y + h[5]) / w - dst[2 * i + 1];
+			double e2 = dx * dx + dy * dy;
+			if (e2 <= t2) {
+				mask[i] = true;
+				inliers++;
+				sum += e2;
+			}
+		}
+		double error = inliers > 0 ? Math.sqrt(sum / inliers) : Double.POSITIVE_INFINITY;
+		return new HomographyResult(h, mask, inliers, count, error, iterations);
+	}
+
+	/**
+	 * @return fraction of the correspondences that are inliers
+	 */
+	public double getInlierRatio(){
+		return mCorrespondences == 0 ? 0 : (double) mInlierCount / mCorrespondences;
+	}
+
+	/**
+	 * @return whether the homography keeps orientation, does not scale extremely
+	 * and has small perspective terms
+	 */
+	public boolean isWellConditioned(){
+		double[] h = mHomography;
+		if (Math.abs(h[8]) < 1e-12) return false;
+		double n = 1 / h[8];
+		double det = (h[0] * h[4] - h[1] * h[3]) * n * n;
+		if (det < MIN_DETERMINANT || det > MAX_DETERMINANT) return false;
+		return Math.abs(h[6] * n) <= MAX_PERSPECTIVE && Math.abs(h[7] * n) <= MAX_PERSPECTIVE;
+	}
+
+	/**
+	 * @param minInliers minimum number of inliers
+	 * @param minInlierRatio minimum fraction of inliers
+	 * @return whether this homography is trustworthy enough to warp or draw with
+	 */
+	public boolean isGood(int minInliers, double minInlierRatio){
+		return mInlierCount >= minInliers && getInlierRatio() >= minInlierRatio
+				&& isWellConditioned();
+	}
+
+	@Override
+	public String toString(){
+		return String.format("inliers: %d/%d (%.2f) error: %.2fpx iterations: %d conditioned: %b",
+				mInlierCount, mCorrespondences, getInlierRatio(), mReprojectionError,
+				mIterations, isWellConditioned());
+	}
+}
@@ -0,0 +1,53 @@
+package uw.cse.mag.appliancereader.cv.homography;
+
+import org.opencv.calib3d.Calib3d;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint2f;
+
+/**
+ * Homography estimator backed by Calib3d.findHomography so the OpenCV methods
+ * (RANSAC, LMEDS or all points) can be swapped with the pure Java estimators.
+ * <b>OpenCV does not report its iterations so they are always zero.
+ * Inliers are found by reprojecting the correspondences with the threshold.
+ * <b>Not thread safe, point matrices are reused between calls.
+ * @author mhotan
+ */
+public class OpenCVHomographyEstimator implements HomographyEstimator {
+
+	private final int mMethod;
+	private final double mThreshold;
+
+	private final MatOfPoint2f mSrc = new MatOfPoint2f();
+	private final MatOfPoint2f mDst = new MatOfPoint2f();
+
+	/**
+	 * @param method method as defined by org.opencv.calib3d.Calib3d
+	 * @param threshold maximum reprojection error in pixels for a correspondence to be an inlier
+	 */
+	public OpenCVHomographyEstimator(int method, double threshold){
+		if (threshold <= 0)
+			throw new IllegalArgumentException("Threshold must be positive: " + threshold);
+		mMethod = method;
+		mThreshold = threshold;
+	}
+
+	@Override
+	public HomographyResult estimate(float[] src, float[] dst, float[] distances, int count) {
+		if (count < 4)
+			return null;
+		mSrc.create(count, 1, CvType.CV_32FC2);
+		mDst.create(count, 1, CvType.CV_32FC2);
+		mSrc.put(0, 0, src);
+		mDst.put(0, 0, dst);
+
+		Mat h = Calib3d.findHomography(mSrc, mDst, mMethod, mThreshold);
+		if (h.empty() || Core.countNonZero(h) == 0)
+			return null;
+		double[] result = new double[9];
+		h.get(0, 0, result);
+		h.release();
+		return HomographyResult.evaluate(result, src, dst, count, mThreshold, 0);
+	}
+}
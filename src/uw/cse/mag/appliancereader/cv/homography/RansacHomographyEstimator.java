@@ -0,0 +1,265 @@
+package uw.cse.mag.appliancereader.cv.homography;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Pure Java RANSAC homography estimator.
+ * <b>Hypotheses are computed with the normalized DLT from four correspondences.  The number
+ * of iterations adapts to the best inlier ratio found so far, so estimation stops as soon
+ * as a better model is unlikely with the requested confidence.  The best model is
+ * refined with a least squares fit over all its inliers.
+ * <b>With PROSAC enabled, samples are drawn from progressively larger sets of the
+ * correspondences with the lowest match distance, which finds a good model in far
+ * fewer iterations when the match distance predicts correctness.  It also stops
+ * once the best model is found with the requested confidence within the
+ * best ranked correspondences.
+ * <b>Not thread safe, scratch memory is reused between calls.
+ * @author mhotan
+ */
+public class RansacHomographyEstimator implements HomographyEstimator {
+
+	public static final int DEFAULT_MAX_ITERATIONS = 2000;
+	public static final double DEFAULT_CONFIDENCE = 0.995;
+
+	/**
+	 * Size of a minimal sample
+	 */
+	private static final int SAMPLE_SIZE = 4;
+
+	/**
+	 * Smallest set of best ranked correspondences PROSAC may stop on, so a model
+	 * is not accepted on the support of a handful of points
+	 */
+	private static final int MIN_PROSAC_SUPPORT = 20;
+
+	private final double mThreshold;
+	private final int mMaxIterations;
+	private final double mConfidence;
+	private final boolean mProsac;
+	private final Random mRandom;
+
+	// Scratch memory, grows with the number of correspondences
+	private double[] mSrc, mDst;
+	private boolean[] mMask, mBestMask;
+	private int[] mOrder;
+	private long[] mSortKeys;
+	private final double[] mSrcNorm = new double[3], mDstNorm = new double[3];
+	private final double[] mSystem = new double[8 * 9];
+	private final double[] mModel = new double[9];
+	private final int[] mSample = new int[SAMPLE_SIZE];
+
+	private int mIterations;
+
+	/**
+	 * Creates an estimator with default iteration limit and confidence
+	 * @param threshold maximum reprojection error in pixels for a correspondence to be an inlier
+	 * @param prosac whether samples are ordered by match distance
+	 */
+	public RansacHomographyEstimator(double threshold, boolean prosac){
+		this(threshold, DEFAULT_MAX_ITERATIONS, DEFAULT_CONFIDENCE, prosac, 0);
+	}
+
+	/**
+	 * @param threshold maximum reprojection error in pixels for a correspondence to be an inlier
+	 * @param maxIterations upper bound on the number of hypotheses
+	 * @param confidence probability that an outlier free sample was drawn before stopping
+	 * @param prosac whether samples are ordered by match distance
+	 * @param seed seed of the sampling, estimates are reproducible for the same seed
+	 */
+	public RansacHomographyEstimator(double threshold, int maxIterations, double confidence,
+			boolean prosac, long seed){
+		if (threshold <= 0)
+			throw new IllegalArgumentException("Threshold must be positive: " + threshold);
+		if (maxIterations <= 0)
+			throw new IllegalArgumentException("Max iterations must be positive: " + maxIterations);
+		if (confidence <= 0 || confidence >= 1)
+			throw new IllegalArgumentException("Confidence must be between 0 and 1: " + confidence);
+		mThreshold = threshold;
+		mMaxIterations = maxIterations;
+		mConfidence = confidence;
+		mProsac = prosac;
+		mRandom = new Random(seed);
+	}
+
+	@Override
+	public HomographyResult estimate(float[] src, float[] dst, float[] distances, int count) {
+		mIterations = 0;
+		if (count < SAMPLE_SIZE)
+			return null;
+		ensureCapacity(count);
+
+		// Work in normalized coordinates, the threshold follows the destination scale
+		DLT.getNormalization(src, count, mSrcNorm);
+		DLT.getNormalization(dst, count, mDstNorm);
+		DLT.normalize(src, count, mSrcNorm, mSrc);
+		DLT.normalize(dst, count, mDstNorm, mDst);
+		double threshold = mThreshold * mDstNorm[0];
+		double threshold2 = threshold * threshold;
+
+		// PROSAC samples by rank, rank i is correspondence mOrder[i]
+		boolean prosac = mProsac && distances != null;
+		if (prosac) {
+			// Distances are non negative so their bits sort like the floats, 
+			// the index rides in the low bits
+			for (int i = 0; i < count; ++i)
+				mSortKeys[i] = ((long) Float.floatToIntBits(Math.max(distances[i], 0f)) << 32) | i;
+			Arrays.sort(mSortKeys, 0, count);
+			for (int i = 0; i < count; ++i)
+				mOrder[i] = (int) mSortKeys[i];
+		}
+
+		double[] best = null;
+		int bestInliers = 0;
+		int limit = mMaxIterations;
+
+		// PROSAC growth function state, see Chum and Matas 2005
+		int n = SAMPLE_SIZE;
+		double tn = mMaxIterations;
+		for (int i = 0; i < SAMPLE_SIZE; ++i)
+			tn *= (double) (n - i) / (count - i);
+		double tnPrime = 1;
+
+		while (mIterations < limit) {
+			mIterations++;
+			if (prosac) {
+				if (mIterations > tnPrime && n < count) {
+					double tn1 = tn * (n + 1) / (n + 1 - SAMPLE_SIZE);
+					tnPrime += Math.ceil(tn1 - tn);
+					tn = tn1;
+					n++;
+				}
+				if (tnPrime < mIterations) {
+					sample(n);
+				} else {
+					sample(n - 1);
+					mSample[SAMPLE_SIZE - 1] = n - 1;
+				}
+				for (int i = 0; i < SAMPLE_SIZE; ++i)
+					mSample[i] = mOrder[mSample[i]];
+			} else
+				sample(count);
+
+			if (!isSampleConsistent())
+				continue;
+			if (!DLT.solveMinimal(mSrc, mDst, mSample, mSystem, mModel))
+				continue;
+
+			int inliers = countInliers(mModel, count, threshold2, mMask);
+			if (inliers > bestInliers) {
+				bestInliers = inliers;
+				if (best == null) best = new double[9];
+				System.arraycopy(mModel, 0, best, 0, 9);
+				boolean[] tmp = mBestMask;
+				mBestMask = mMask;
+				mMask = tmp;
+				limit = Math.min(limit, prosac ? getProsacIterations(mBestMask, count)
+						: getRequiredIterations((double) inliers / count));
+			}
+		}
+
+		if (best == null)
+			return null;
+
+		// Refine with every inlier of the best hypothesis
+		if (DLT.solveLeastSquares(mSrc, mDst, mBestMask, count, mModel)) {
+			int inliers = countInliers(mModel, count, threshold2, mMask);
+			if (inliers >= bestInliers)
+				System.arraycopy(mModel, 0, best, 0, 9);
+		}
+		double[] h = DLT.denormalize(best, mSrcNorm, mDstNorm);
+		return HomographyResult.evaluate(h, src, dst, count, mThreshold, mIterations);
+	}
+
+	/**
+	 * @return iterations needed to draw an outlier free sample with the requested confidence
+	 */
+	private int getRequiredIterations(double inlierRatio){
+		double outlierFree = Math.pow(inlierRatio, SAMPLE_SIZE);
+		if (outlierFree >= 1) return 0;
+		if (outlierFree <= 0) return mMaxIterations;
+		double k = Math.log(1 - mConfidence) / Math.log(1 - outlierFree);
+		return k >= mMaxIterations ? mMaxIterations : (int) Math.ceil(k);
+	}
+
+	/**
+	 * PROSAC stopping criterion, the fewest iterations over every set of best
+	 * ranked correspondences that is large enough to be trusted
+	 */
+	private int getProsacIterations(boolean[] mask, int count){
+		int best = mMaxIterations;
+		int inliers = 0;
+		for (int n = 1; n <= count; ++n) {
+			if (mask[mOrder[n - 1]]) inliers++;
+			if (n >= MIN_PROSAC_SUPPORT || n == count)
+				best = Math.min(best, getRequiredIterations((double) inliers / n));
+		}
+		return best;
+	}
+
+	/**
+	 * Draws distinct indices from [0, n) into the sample, the last slot is left
+	 * free when n is one less than the PROSAC set
+	 */
+	private void sample(int n){
+		int size = n < SAMPLE_SIZE ? n : SAMPLE_SIZE;
+		for (int i = 0; i < size; ++i) {
+			int candidate;
+			boolean unique;
+			do {
+				candidate = mRandom.nextInt(n);
+				unique = true;
+				for (int j = 0; j < i; ++j)
+					if (mSample[j] == candidate) unique = false;
+			} while (!unique);
+			mSample[i] = candidate;
+		}
+	}
+
+	/**
+	 * Rejects samples with three collinear points or where the orientation of
+	 * any triangle flips between source and destination
+	 */
+	private boolean isSampleConsistent(){
+		for (int i = 0; i < SAMPLE_SIZE; ++i) {
+			int a = mSample[i], b = mSample[(i + 1) % SAMPLE_SIZE], c = mSample[(i + 2) % SAMPLE_SIZE];
+			double s = cross(mSrc, a, b, c);
+			double d = cross(mDst, a, b, c);
+			if (Math.abs(s) < 1e-6 || Math.abs(d) < 1e-6 || (s > 0) != (d > 0))
+				return false;
+		}
+		return true;
+	}
+
+	private static double cross(double[] p, int a, int b, int c){
+		return (p[2 * b] - p[2 * a]) * (p[2 * c + 1] - p[2 * a + 1])
+				- (p[2 * b + 1] - p[2 * a + 1]) * (p[2 * c] - p[2 * a]);
+	}
+
+	private int countInliers(double[] h, int count, double threshold2, boolean[] mask){
+		int inliers = 0;
+		for (int i = 0; i < count; ++i) {
+			double x = mSrc[2 * i], y = mSrc[2 * i + 1];
+			double w = h[6] * x + h[7] * y + h[8];
+			boolean inlier = false;
+			if (Math.abs(w) > 1e-12) {
+				double dx = (h[0] * x + h[1] * y + h[2]) / w - mDst[2 * i];
+				double dy = (h[3] * x + h[4] * y + h[5]) / w - mDst[2 * i + 1];
+				inlier = dx * dx + dy * dy <= threshold2;
+			}
+			mask[i] = inlier;
+			if (inlier) inliers++;
+		}
+		return inliers;
+	}
+
+	private void ensureCapacity(int count){
+		if (mSrc != null && mSrc.length >= 2 * count) return;
+		mSrc = new double[2 * count];
+		mDst = new double[2 * count];
+		mMask = new boolean[count];
+		mBestMask = new boolean[count];
+		mOrder = new int[count];
+		mSortKeys = new long[count];
+	}
+}
@@ -0,0 +1,293 @@
+package uw.cse.mag.appliancereader.cv.matching;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Inverted file over the visual words of the reference images of many appliances.
+ * <b>Every appliance is stored as the histogram of the visual words of its reference descriptors.
+ * The histograms are weighted by term frequency and inverse document frequency, IE words that
+ * appear in many appliances count little, and normalized to a sum of 1.  A query histogram is
+ * scored against every appliance by the intersection of the histograms, 1 minus half their L1
+ * distance, which only has to visit the appliances that share a word with the query.  The
+ * appliances with the highest scores are the candidates to verify geometrically, a query costs
+ * a few milliseconds no matter how many appliances are stored.
+ * <b>Appliances are keyed by their id in the database of appliances.  The weights are recomputed
+ * lazily on the first query after appliances were added or removed.
+ * <b>Needs no native library.  Not thread safe, confine to the thread that queries it.
+ * @author mhotan
+ */
+public class ApplianceDatabase {
+
+	private final VocabularyTree mTree;
+
+	/**
+	 * Appliances in the order they were added, with their distinct words and the number
+	 * of descriptors quantized to each
+	 */
+	private final List<Entry> mEntries;
+	private final Map<Long, Entry> mById;
+
+	/**
+	 * Inverted file, per word the entries that contain it and their weight of the word.
+	 * Null when it has to be rebuilt
+	 */
+	private int[][] mPostings;
+	private float[][] mPostingWeights;
+	private float[] mIdf;
+
+	// Buffers kept between queries
+	private final int[] mQueryCounts;
+	private int[] mQueryWords = new int[0];
+	private float[] mScores = new float[0];
+
+	/**
+	 * @param tree vocabulary the descriptors are quantized with
+	 */
+	public ApplianceDatabase(VocabularyTree tree){
+		if (tree == null)
+			throw new IllegalArgumentException("Database needs a vocabulary");
+		mTree = tree;
+		mEntries = new ArrayList<Entry>();
+		mById = new HashMap<Long, Entry>();
+		mQueryCounts = new int[tree.getWordCount()];
+	}
+
+	/**
+	 * @return vocabulary the descriptors are quantized with
+	 */
+	public VocabularyTree getVocabulary(){
+		return mTree;
+	}
+
+	/**
+	 * @return number of appliances stored
+	 */
+	public int size(){
+		return mEntries.size();
+	}
+
+	/**
+	 * @param id id of an appliance
+	 * @return whether the appliance is stored
+	 */
+	public boolean contains(long id){
+		return mById.containsKey(id);
+	}
+
+	/**
+	 * @return ids of every appliance stored, in the order they were added
+	 */
+	public long[] getIds(){
+		long[] ids = new long[mEntries.size()];
+		for (int i = 0; i < ids.length; ++i)
+			ids[i] = mEntries.get(i).mId;
+		return ids;
+	}
+
+	/**
+	 * Stores the reference descriptors of an appliance, replacing the ones it was stored with
+	 * @param id id of the appliance
+	 * @param descriptors packed descriptors, see VocabularyTree.pack()
+	 * @param count number of descriptors
+	 */
+	public void add(long id, long[] descriptors, int count){
+		remove(id);
+		int distinct = 0;
+		int[] words = new int[count];
+		for (int i = 0; i < count; ++i) {
+			int w = mTree.quantize(descriptors, i);
+			if (mQueryCounts[w]++ == 0)
+				words[distinct++] = w;
+		}
+		int[] counts = new int[distinct];
+		for (int i = 0; i < distinct; ++i) {
+			counts[i] = mQueryCounts[words[i]];
+			mQueryCounts[words[i]] = 0;
+		}
+		int[] w = new int[distinct];
+		System.arraycopy(words, 0, w, 0, distinct);
+		Entry e = new Entry(id, w, counts);
+		mEntries.add(e);
+		mById.put(id, e);
+		mPostings = null;
+	}
+
+	/**
+	 * Removes an appliance, nothing happens if it is not stored
+	 * @param id id of the appliance
+	 */
+	public void remove(long id){
+		Entry e = mById.remove(id);
+		if (e != null) {
+			mEntries.remove(e);
+			mPostings = null;
+		}
+	}
+
+	/**
+	 * Finds the appliances whose reference shares the most visual words with a frame
+	 * @param descriptors packed descriptors of the frame
+	 * @param count number of descriptors
+	 * @param k most candidates to return
+	 * @param ids output, ids of the candidates from the best score down, at least k long
+	 * @param scores output, score of every candidate between 0 and 1, at least k long
+	 * @return number of candidates written, only appliances that share a word with the frame
+	 */
+	public int query(long[] descriptors, int count, int k, long[] ids, float[] scores){
+		if (mPostings == null)
+			buildInvertedFile();
+		int entries = mEntries.size();
+		if (mScores.length < entries)
+			mScores = new float[entries];
+		for (int i = 0; i < entries; ++i)
+			mScores[i] = 0;
+		if (mQueryWords.length < count)
+			mQueryWords = new int[count];
+
+		// Histogram of the words of the frame, words no appliance has are left out
+		int distinct = 0;
+		for (int i = 0; i < count; ++i) {
+			int w = mTree.quantize(descriptors, i);
+			if (mIdf[w] > 0 && mQueryCounts[w]++ == 0)
+				mQueryWords[distinct++] = w;
+		}
+		float norm = 0;
+		for (int i = 0; i < distinct; ++i)
+			norm += mQueryCounts[mQueryWords[i]] * mIdf[mQueryWords[i]];
+
+		for (int i = 0; i < distinct; ++i) {
+			int w = mQueryWords[i];
+			float q = mQueryCounts[w] * mIdf[w] / norm;
+			mQueryCounts[w] = 0;
+			int[] postings = mPostings[w];
+			float[] weights = mPostingWeights[w];
+			for (int p = 0; p < postings.length; ++p)
+				mScores[postings[p]] += Math.min(q, weights[p]);
+		}
+		return top(mScores, entries, k, ids, scores);
+	}
+
+	/**
+	 * Selects the k best scores by insertion, k is small
+	 */
+	private int top(float[] all, int entries, int k, long[] ids, float[] scores){
+		int n = 0;
+		for (int i = 0; i < entries; ++i) {
+			float s = all[i];
+			if (s <= 0 || (n == k && s <= scores[n - 1])) continue;
+			int j = n < k ? n++ : n - 1;
+			while (j > 0 && scores[j - 1] < s) {
+				scores[j] = scores[j - 1];
+				ids[j] = ids[j - 1];
+				j--;
+			}
+			scores[j] = s;
+			ids[j] = mEntries.get(i).mId;
+		}
+		return n;
+	}
+
+	/**
+	 * Recomputes the inverse document frequencies, the weights of every appliance
+	 * and the inverted file
+	 */
+	private void buildInvertedFile(){
+		int words = mTree.getWordCount();
+		int entries = mEntries.size();
+		int[] frequency = new int[words];
+		for (Entry e: mEntries)
+			for (int w: e.mWords)
+				frequency[w]++;
+
+		// A word in every appliance tells them apart as little as one in none
+		mIdf = new float[words];
+		for (int w = 0; w < words; ++w)
+			mIdf[w] = frequency[w] == 0 ? 0 : (float) Math.log((double) entries / frequency[w]);
+
+		mPostings = new int[words][];
+		mPostingWeights = new float[words][];
+		for (int w = 0; w < words; ++w) {
+			mPostings[w] = new int[frequency[w]];
+			mPostingWeights[w] = new float[frequency[w]];
+			frequency[w] = 0;
+		}
+		for (int i = 0; i < entries; ++i) {
+			Entry e = mEntries.get(i);
+			float norm = 0;
+			for (int j = 0; j < e.mWords.length; ++j)
+				norm += e.mCounts[j] * mIdf[e.mWords[j]];
+			for (int j = 0; j < e.mWords.length; ++j) {
+				int w = e.mWords[j];
+				mPostings[w][frequency[w]] = i;
+				mPostingWeights[w][frequency[w]] = norm > 0 ? e.mCounts[j] * mIdf[w] / norm : 0;
+				frequency[w]++;
+			}
+		}
+	}
+
+	/**
+	 * Writes the word histogram of every appliance, the counterpart of readFrom()
+	 * @param out output to write to
+	 * @throws IOException if unable to write
+	 */
+	public void writeTo(DataOutput out) throws IOException {
+		out.writeInt(mEntries.size());
+		for (Entry e: mEntries) {
+			out.writeLong(e.mId);
+			out.writeInt(e.mWords.length);
+			for (int j = 0; j < e.mWords.length; ++j) {
+				out.writeInt(e.mWords[j]);
+				out.writeInt(e.mCounts[j]);
+			}
+		}
+	}
+
+	/**
+	 * Reads a database written with writeTo()
+	 * @param in input to read from
+	 * @param tree vocabulary the database was written with
+	 * @return database that was written
+	 * @throws IOException if unable to read or the database is corrupt
+	 */
+	public static ApplianceDatabase readFrom(DataInput in, VocabularyTree tree) throws IOException {
+		ApplianceDatabase db = new ApplianceDatabase(tree);
+		int entries = in.readInt();
+		if (entries < 0)
+			throw new IOException("Corrupt appliance database");
+		for (int i = 0; i < entries; ++i) {
+			long id = in.readLong();
+			int distinct = in.readInt();
+			if (distinct < 0 || distinct > tree.getWordCount())
+				throw new IOException("Corrupt appliance database entry " + id);
+			int[] words = new int[distinct];
+			int[] counts = new int[distinct];
+			for (int j = 0; j < distinct; ++j) {
+				words[j] = in.readInt();
+				counts[j] = in.readInt();
+				if (words[j] < 0 || words[j] >= tree.getWordCount() || counts[j] < 1)
+					throw new IOException("Corrupt appliance database entry " + id);
+			}
+			Entry e = new Entry(id, words, counts);
+			db.mEntries.add(e);
+			db.mById.put(id, e);
+		}
+		return db;
+	}
+
+	private static class Entry {
+		final long mId;
+		final int[] mWords, mCounts;
+
+		Entry(long id, int[] words, int[] counts){
+			mId = id;
+			mWords = words;
+			mCounts = counts;
+		}
+	}
+}
@@ -0,0 +1,417 @@
+package uw.cse.mag.appliancereader.cv.matching;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfDMatch;
+import org.opencv.core.MatOfKeyPoint;
+import org.opencv.features2d.DescriptorMatcher;
+
+import uw.cse.mag.appliancereader.cv.ComputerVision;
+import uw.cse.mag.appliancereader.cv.TransformationLibrary;
+import uw.cse.mag.appliancereader.cv.homography.HomographyEstimator;
+import uw.cse.mag.appliancereader.cv.homography.HomographyResult;
+
+/**
+ * Recognition index over the reference descriptors of several appliances.
+ * <b>The descriptors of every appliance are added to a single matcher as their own train image,
+ * so one query matches a frame against every appliance at once and the image index of a match
+ * tells which appliance its train descriptor belongs to.  Matches closer then maxDistance vote
+ * for their appliance.  The appliance with the most votes is only recognized with at least
+ * minVotes votes and a lead of minLead times the votes of the runner up, so a frame of an
+ * unknown appliance that collects a few votes everywhere is not recognized.
+ * <b>The votes of the recognized appliance are its correspondences with the frame, verify()
+ * estimates the homography between them to confirm the recognition geometrically.
+ * <b>With hundreds of appliances a single pass over every descriptor is too slow.  An index
+ * trained with an ApplianceDatabase first retrieves the few appliances whose visual words are
+ * closest to the frame and only matches against the descriptors of those candidates, the
+ * votes and the verification are the same.
+ * <b>Appliances are identified by the order they were added in, starting at 0.
+ * <b>Matches are handled in the memory layout of MatOfDMatch, see MatchPruner.  The static
+ * methods work on plain arrays and need no native library.
+ * <b>Not thread safe, once trained confine the index to the thread that queries it.
+ * @param <T> type of the label of every appliance
+ * @author mhotan
+ */
+public class ApplianceIndex<T> {
+
+	private static final int MATCH_FIELDS = MatchPruner.MATCH_FIELDS;
+	private static final int KEYPOINT_FIELDS = MatchPruner.KEYPOINT_FIELDS;
+
+	private final List<T> mLabels;
+	private final List<Mat> mDescriptors;
+
+	/**
+	 * Position of every appliance by its id in the appliance database
+	 */
+	private final Map<Long, Integer> mPositions;
+
+	/**
+	 * Key points of every appliance in the layout of MatOfKeyPoint
+	 */
+	private final List<float[]> mKeyPts;
+
+	private final float mMaxDistance;
+	private final int mMinVotes;
+	private final double mMinLead;
+
+	/**
+	 * Matcher trained with the descriptors of every appliance, or the brute force
+	 * matcher of the candidates with a database.  Null until train()
+	 */
+	private DescriptorMatcher mMatcher;
+
+	/**
+	 * Retrieves the candidates to match against, null to match against every appliance
+	 */
+	private ApplianceDatabase mDatabase;
+	private long[] mCandidateIds = new long[0];
+	private float[] mCandidateScores = new float[0];
+	private int[] mCandidates = new int[0];
+	private int mCandidateCount;
+	private final List<Mat> mCandidateDescriptors = new ArrayList<Mat>();
+	private byte[] mQueryBytes = new byte[0];
+	private long[] mQueryPacked = new long[0];
+
+	// Buffers kept between queries
+	private float[] mMatches = new float[0];
+	private float[] mQueryKeyPts = new float[0];
+	private float[] mSrc = new float[0], mDst = new float[0], mDistances = new float[0];
+	private int[] mVotes = new int[0];
+	private int mCount;
+
+	/**
+	 * @param maxDistance largest descriptor distance of a match that votes, IE in bits for
+	 * binary descriptors
+	 * @param minVotes least votes an appliance needs to be recognized
+	 * @param minLead least ratio of the votes of the recognized appliance to the votes of the
+	 * runner up, at least 1
+	 */
+	public ApplianceIndex(float maxDistance, int minVotes, double minLead){
+		if (maxDistance <= 0)
+			throw new IllegalArgumentException("Maximum distance must be positive: " + maxDistance);
+		if (minVotes < 1)
+			throw new IllegalArgumentException("Minimum number of votes must be positive: " + minVotes);
+		if (minLead < 1)
+			throw new IllegalArgumentException("Minimum lead can not be less then one: " + minLead);
+		mLabels = new ArrayList<T>();
+		mDescriptors = new ArrayList<Mat>();
+		mKeyPts = new ArrayList<float[]>();
+		mPositions = new HashMap<Long, Integer>();
+		mMaxDistance = maxDistance;
+		mMinVotes = minVotes;
+		mMinLead = minLead;
+	}
+
+	/**
+	 * Adds the reference features of an appliance, only before train()
+	 * @param label label of the appliance, IE the appliance itself
+	 * @param key id of the appliance in the appliance database
+	 * @param keyPts key points of the reference image
+	 * @param descriptors descriptors of the key points, of the same type for every appliance
+	 * @return id of the appliance in this index
+	 */
+	public int add(T label, long key, MatOfKeyPoint keyPts, Mat descriptors){
+		if (mMatcher != null)
+			throw new IllegalStateException("Appliances can not be added to a trained index");
+		if (label == null || keyPts == null || descriptors == null)
+			throw new IllegalArgumentException("Null argument to add an appliance");
+		if (keyPts.rows() != descriptors.rows())
+			throw new IllegalArgumentException("Every key point needs a descriptor for " + label);
+		if (!mDescriptors.isEmpty() && mDescriptors.get(0).type() != descriptors.type())
+			throw new IllegalArgumentException("Descriptors of " + label + " are of a different type");
+		if (mPositions.containsKey(key))
+			throw new IllegalArgumentException("Appliance " + key + " was already added");
+		float[] kp = new float[keyPts.rows() * KEYPOINT_FIELDS];
+		if (kp.length > 0)
+			keyPts.get(0, 0, kp);
+		mLabels.add(label);
+		mKeyPts.add(kp);
+		mDescriptors.add(descriptors);
+		mPositions.put(key, mLabels.size() - 1);
+		return mLabels.size() - 1;
+	}
+
+	/**
+	 * Builds the matcher over the descriptors of every appliance added so far
+	 * @param cv initialized computer vision instance
+	 */
+	public void train(ComputerVision cv){
+		train(cv, null, 0);
+	}
+
+	/**
+	 * Builds the matcher over the descriptors of every appliance added so far, or only
+	 * retrieves candidates with a database
+	 * @param cv initialized computer vision instance
+	 * @param database database of the binary descriptors of every appliance added, keyed by
+	 * the keys they were added with, or null to match against every appliance
+	 * @param candidates number of candidates to retrieve and match against for every query
+	 */
+	public void train(ComputerVision cv, ApplianceDatabase database, int candidates){
+		if (mLabels.isEmpty())
+			throw new IllegalStateException("No appliances to train the index with");
+		if (database == null)
+			mMatcher = cv.trainMatcher(mDescriptors);
+		else {
+			Mat first = mDescriptors.get(0);
+			if (!TransformationLibrary.isBinaryDescriptor(first.type())
+					|| first.cols() != 8 * database.getVocabulary().getDescriptorLength())
+				throw new IllegalArgumentException("Descriptors do not suit the vocabulary of the database");
+			if (candidates < 1)
+				throw new IllegalArgumentException("Number of candidates must be positive: " + candidates);
+			mMatcher = TransformationLibrary.getDescriptorMatcher(first.type());
+			mCandidateIds = new long[candidates];
+			mCandidateScores = new float[candidates];
+			mCandidates = new int[candidates];
+		}
+		mDatabase = database;
+		mVotes = new int[mLabels.size()];
+	}
+
+	/**
+	 * @return whether candidates are retrieved before matching
+	 */
+	public boolean usesRetrieval(){
+		return mDatabase != null;
+	}
+
+	/**
+	 * @return number of candidates matched against in the last query, IE every appliance
+	 * without retrieval
+	 */
+	public int getCandidateCount(){
+		return mDatabase == null ? mLabels.size() : mCandidateCount;
+	}
+
+	/**
+	 * @return whether the index was trained and can be queried
+	 */
+	public boolean isTrained(){
+		return mMatcher != null;
+	}
+
+	/**
+	 * @return number of appliances in this index
+	 */
+	public int size(){
+		return mLabels.size();
+	}
+
+	/**
+	 * @param id id returned by add()
+	 * @return label the appliance was added with
+	 */
+	public T getLabel(int id){
+		return mLabels.get(id);
+	}
+
+	/**
+	 * @param id id returned by add()
+	 * @return votes for the appliance in the last query
+	 */
+	public int getVotes(int id){
+		return mVotes[id];
+	}
+
+	/**
+	 * Matches the descriptors of a frame against every appliance, or the retrieved
+	 * candidates, in a single pass and counts the votes of every appliance
+	 * @param cv initialized computer vision instance
+	 * @param queryKeyPts key points of the frame
+	 * @param queryDescriptors descriptors of the key points of the frame
+	 * @param matches matrix to store the matches in, reused between calls
+	 * @return id of the recognized appliance or -1 if no appliance has a clear majority
+	 */
+	public int vote(ComputerVision cv, MatOfKeyPoint queryKeyPts, Mat queryDescriptors,
+			MatOfDMatch matches){
+		if (mMatcher == null)
+			throw new IllegalStateException("Index has to be trained before it is queried");
+		mCount = 0;
+		mCandidateCount = 0;
+		for (int i = 0; i < mVotes.length; ++i)
+			mVotes[i] = 0;
+		if (queryDescriptors.empty())
+			return -1;
+
+		int count;
+		if (mDatabase == null) {
+			cv.getMatchingCorrespondences(mMatcher, queryDescriptors, matches);
+			count = readMatches(matches);
+		} else
+			count = matchCandidates(cv, queryDescriptors, matches);
+		mCount = limitDistance(mMatches, count, mMaxDistance, mMatches);
+
+		int length = queryKeyPts.rows() * KEYPOINT_FIELDS;
+		if (mQueryKeyPts.length < length)
+			mQueryKeyPts = new float[length];
+		if (length > 0)
+			queryKeyPts.get(0, 0, mQueryKeyPts);
+
+		countVotes(mMatches, mCount, mVotes);
+		return select(mVotes, mVotes.length, mMinVotes, mMinLead);
+	}
+
+	/**
+	 * Retrieves the candidates of a frame from the database and matches against their
+	 * descriptors only
+	 * @return number of matches read into mMatches, with the ids of this index as image indices
+	 */
+	private int matchCandidates(ComputerVision cv, Mat queryDescriptors, MatOfDMatch matches){
+		int rows = queryDescriptors.rows();
+		int cols = queryDescriptors.cols();
+		if (mQueryBytes.length < rows * cols) {
+			mQueryBytes = new byte[rows * cols];
+			mQueryPacked = new long[rows * cols / 8];
+		}
+		queryDescriptors.get(0, 0, mQueryBytes);
+		VocabularyTree.pack(mQueryBytes, rows, cols, mQueryPacked);
+		int retrieved = mDatabase.query(mQueryPacked, rows, mCandidateIds.length,
+				mCandidateIds, mCandidateScores);
+
+		mCandidateDescriptors.clear();
+		for (int i = 0; i < retrieved; ++i) {
+			Integer id = mPositions.get(mCandidateIds[i]);
+			if (id == null) continue;
+			mCandidates[mCandidateCount++] = id;
+			mCandidateDescriptors.add(mDescriptors.get(id));
+		}
+		if (mCandidateCount == 0)
+			return 0;
+		cv.setTrainDescriptors(mMatcher, mCandidateDescriptors);
+		cv.getMatchingCorrespondences(mMatcher, queryDescriptors, matches);
+		int count = readMatches(matches);
+
+		// Image indices refer to the candidates
+		for (int i = 0; i < count; ++i) {
+			int m = i * MATCH_FIELDS + MatchPruner.IMAGE;
+			mMatches[m] = mCandidates[(int) mMatches[m]];
+		}
+		return count;
+	}
+
+	/**
+	 * Copies the matches of a query into mMatches
+	 * @return number of matches
+	 */
+	private int readMatches(MatOfDMatch matches){
+		int count = matches.rows();
+		if (mMatches.length < count * MATCH_FIELDS)
+			mMatches = new float[count * MATCH_FIELDS];
+		if (count > 0)
+			matches.get(0, 0, mMatches);
+		return count;
+	}
+
+	/**
+	 * Estimates the homography from the frame of the last query to the reference image of
+	 * an appliance with the matches that voted for it
+	 * @param id id of the appliance, IE returned by vote()
+	 * @param estimator estimator owned by the calling thread
+	 * @return homography from the frame to the reference or null if none was found
+	 */
+	public HomographyResult verify(int id, HomographyEstimator estimator){
+		int votes = mVotes[id];
+		if (mSrc.length < 2 * votes) {
+			mSrc = new float[2 * votes];
+			mDst = new float[2 * votes];
+			mDistances = new float[votes];
+		}
+		int n = getCorrespondences(mMatches, mCount, id, mQueryKeyPts, mKeyPts.get(id),
+				mSrc, mDst, mDistances);
+		return estimator.estimate(mSrc, mDst, mDistances, n);
+	}
+
+	/**
+	 * Keeps the matches closer then maxDistance on arrays in the layout of MatOfDMatch
+	 * @param matches matches to prune
+	 * @param count number of matches
+	 * @param maxDistance largest distance that is kept
+	 * @param out output array at least as long as matches, may be matches itself
+	 * @return number of matches written to out, in their original order
+	 */
+	public static int limitDistance(float[] matches, int count, float maxDistance, float[] out){
+		int kept = 0;
+		for (int i = 0; i < count; ++i) {
+			if (matches[i * MATCH_FIELDS + MatchPruner.DISTANCE] <= maxDistance) {
+				if (kept != i)
+					System.arraycopy(matches, i * MATCH_FIELDS, out, kept * MATCH_FIELDS, MATCH_FIELDS);
+				kept++;
+			}
+		}
+		return kept;
+	}
+
+	/**
+	 * Counts the matches of every image on arrays in the layout of MatOfDMatch
+	 * @param matches matches of a query
+	 * @param count number of matches
+	 * @param votes output, number of matches of every image, at least as long as the largest
+	 * image index of the matches
+	 */
+	public static void countVotes(float[] matches, int count, int[] votes){
+		for (int i = 0; i < count; ++i) {
+			int image = (int) matches[i * MATCH_FIELDS + MatchPruner.IMAGE];
+			if (image >= 0 && image < votes.length)
+				votes[image]++;
+		}
+	}
+
+	/**
+	 * Picks the image with the most votes if it wins clearly
+	 * @param votes votes of every image
+	 * @param images number of images
+	 * @param minVotes least votes the winner needs
+	 * @param minLead least ratio of the votes of the winner to the votes of the runner up
+	 * @return index of the winner or -1 if there is no clear winner
+	 */
+	public static int select(int[] votes, int images, int minVotes, double minLead){
+		int best = -1;
+		int second = 0;
+		for (int i = 0; i < images; ++i) {
+			if (best < 0 || votes[i] > votes[best]) {
+				if (best >= 0)
+					second = votes[best];
+				best = i;
+			} else
+				second = Math.max(second, votes[i]);
+		}
+		if (best < 0 || votes[best] < minVotes || votes[best] < minLead * second)
+			return -1;
+		return best;
+	}
+
+	/**
+	 * Collects the correspondences of the matches of one image on arrays in the layout of
+	 * MatOfDMatch and MatOfKeyPoint
+	 * @param matches matches of a query
+	 * @param count number of matches
+	 * @param image image whose matches are collected
+	 * @param queryKeyPts key points the query indices refer to
+	 * @param trainKeyPts key points of image the train indices refer to
+	 * @param src output, interleaved query points
+	 * @param dst output, interleaved train points
+	 * @param distances output, distance of every correspondence
+	 * @return number of correspondences
+	 */
+	public static int getCorrespondences(float[] matches, int count, int image,
+			float[] queryKeyPts, float[] trainKeyPts, float[] src, float[] dst, float[] distances){
+		int n = 0;
+		for (int i = 0; i < count; ++i) {
+			int m = i * MATCH_FIELDS;
+			if ((int) matches[m + MatchPruner.IMAGE] != image) continue;
+			int q = (int) matches[m + MatchPruner.QUERY] * KEYPOINT_FIELDS;
+			int t = (int) matches[m + MatchPruner.TRAIN] * KEYPOINT_FIELDS;
+			src[2 * n] = queryKeyPts[q];
+			src[2 * n + 1] = queryKeyPts[q + 1];
+			dst[2 * n] = trainKeyPts[t];
+			dst[2 * n + 1] = trainKeyPts[t + 1];
+			distances[n] = matches[m + MatchPruner.DISTANCE];
+			n++;
+		}
+		return n;
+	}
+}
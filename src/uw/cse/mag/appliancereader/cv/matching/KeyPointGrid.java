@@ -0,0 +1,138 @@
+package uw.cse.mag.appliancereader.cv.matching;
+
+import org.opencv.core.CvType;
+import org.opencv.core.MatOfKeyPoint;
+
+/**
+ * Keeps a bounded and spatially uniform set of key points right after detection.
+ * <b>The image is divided into zones x zones cells and only the key points with the
+ * strongest response of every cell are kept.  Describing and matching then work on at most
+ * zones * zones * perZone key points, and the correspondences cover the whole image instead
+ * of a few textured spots, which keeps RANSAC away from degenerate samples.
+ * <b>Key points are handled in the layout of MatOfKeyPoint, seven floats per key point:
+ * x, y, size, angle, response, octave and class id.  Kept key points stay in their
+ * detection order.  Scratch memory is kept between calls.
+ * <b>Not thread safe, confine every instance to a single worker.
+ * @author mhotan
+ */
+public class KeyPointGrid {
+
+	private static final int FIELDS = MatchPruner.KEYPOINT_FIELDS;
+	private static final int X = 0, Y = 1, RESPONSE = 4;
+
+	private final int mZones;
+	private final int mPerZone;
+
+	private float[] mKeyPts = new float[0];
+	private int[] mCell = new int[0];
+	private int[] mOrder = new int[0];
+	private boolean[] mKeep = new boolean[0];
+	private final int[] mStart, mFill;
+
+	/**
+	 * @param zones number of cells along each side of the image
+	 * @param perZone number of key points kept in every cell
+	 */
+	public KeyPointGrid(int zones, int perZone){
+		if (zones <= 0)
+			throw new IllegalArgumentException("Number of zones must be positive: " + zones);
+		if (perZone <= 0)
+			throw new IllegalArgumentException("Key points per zone must be positive: " + perZone);
+		mZones = zones;
+		mPerZone = perZone;
+		mStart = new int[zones * zones + 1];
+		mFill = new int[zones * zones];
+	}
+
+	/**
+	 * @return largest number of key points kept in an image
+	 */
+	public int getCapacity(){
+		return mZones * mZones * mPerZone;
+	}
+
+	/**
+	 * Keeps the strongest key points of every cell
+	 * @param keypoints key points to select from, replaced by the kept key points
+	 * @param width width of the image the key points were found in
+	 * @param height height of the image the key points were found in
+	 */
+	public void select(MatOfKeyPoint keypoints, int width, int height){
+		int count = keypoints.rows();
+		if (count <= mPerZone)
+			return;
+		if (mKeyPts.length < count * FIELDS)
+			mKeyPts = new float[count * FIELDS];
+		keypoints.get(0, 0, mKeyPts);
+		int kept = select(mKeyPts, count, width, height);
+		if (kept == count)
+			return;
+		keypoints.create(kept, 1, CvType.CV_32FC(FIELDS));
+		if (kept > 0)
+			keypoints.put(0, 0, mKeyPts);
+	}
+
+	/**
+	 * Keeps the strongest key points of every cell of an array in the layout of MatOfKeyPoint
+	 * @param keypoints key points to select from, the kept key points are moved to the front
+	 * @param count number of key points
+	 * @param width width of the image the key points were found in
+	 * @param height height of the image the key points were found in
+	 * @return number of kept key points
+	 */
+	public int select(float[] keypoints, int count, int width, int height){
+		int cells = mZones * mZones;
+		if (mCell.length < count) {
+			mCell = new int[count];
+			mOrder = new int[count];
+			mKeep = new boolean[count];
+		}
+
+		// Bucket the key points by cell
+		double zoneWidth = width / (double) mZones;
+		double zoneHeight = height / (double) mZones;
+		for (int c = 0; c <= cells; ++c)
+			mStart[c] = 0;
+		for (int i = 0; i < count; ++i) {
+			int zx = Math.min(mZones - 1, Math.max(0, (int) (keypoints[i * FIELDS + X] / zoneWidth)));
+			int zy = Math.min(mZones - 1, Math.max(0, (int) (keypoints[i * FIELDS + Y] / zoneHeight)));
+			mCell[i] = zx + zy * mZones;
+			mStart[mCell[i] + 1]++;
+			mKeep[i] = false;
+		}
+		for (int c = 0; c < cells; ++c) {
+			mStart[c + 1] += mStart[c];
+			mFill[c] = mStart[c];
+		}
+		for (int i = 0; i < count; ++i)
+			mOrder[mFill[mCell[i]]++] = i;
+
+		// Partial selection of the strongest responses of every crowded cell
+		for (int c = 0; c < cells; ++c) {
+			int from = mStart[c], to = mStart[c + 1];
+			int keep = Math.min(mPerZone, to - from);
+			for (int j = from; j < from + keep; ++j) {
+				if (to - from > mPerZone) {
+					int best = j;
+					for (int k = j + 1; k < to; ++k) {
+						if (keypoints[mOrder[k] * FIELDS + RESPONSE] > keypoints[mOrder[best] * FIELDS + RESPONSE])
+							best = k;
+					}
+					int tmp = mOrder[j];
+					mOrder[j] = mOrder[best];
+					mOrder[best] = tmp;
+				}
+				mKeep[mOrder[j]] = true;
+			}
+		}
+
+		int kept = 0;
+		for (int i = 0; i < count; ++i) {
+			if (!mKeep[i]) continue;
+			if (kept != i)
+				System.arraycopy(keypoints, i * FIELDS, keypoints, kept * FIELDS, FIELDS);
+			kept++;
+		}
+		return kept;
+	}
+}
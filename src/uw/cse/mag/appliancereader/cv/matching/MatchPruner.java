@@ -0,0 +1,304 @@
+package uw.cse.mag.appliancereader.cv.matching;
+
+import java.util.List;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfDMatch;
+import org.opencv.core.MatOfKeyPoint;
+
+/**
+ * Prunes putative matches without creating a DMatch or KeyPoint object per match.
+ * <b>Matches are handled in the memory layout of MatOfDMatch, four floats per match:
+ * query index, train index, image index and distance.  Key points are handled in
+ * the layout of MatOfKeyPoint, seven floats per key point starting with x and y.
+ * Indices are stored as floats by OpenCV itself and are exact up to 2^24.
+ * <b>The static methods work on plain arrays and need no native library.  The instance
+ * methods read and write the matrices with a single bulk copy each, in buffers that are
+ * kept between calls, so an instance owned by a stage allocates nothing once the buffers
+ * have grown to the number of matches per frame.
+ * <b>Not thread safe, confine every instance to a single worker.
+ * @author mhotan
+ */
+public class MatchPruner {
+
+	/**
+	 * Number of floats per match and offsets of its fields
+	 */
+	public static final int MATCH_FIELDS = 4;
+	public static final int QUERY = 0, TRAIN = 1, IMAGE = 2, DISTANCE = 3;
+
+	/**
+	 * Number of floats per key point
+	 */
+	public static final int KEYPOINT_FIELDS = 7;
+
+	private float[] mMatches = new float[0];
+	
+	/**
+	 * Holds the backward matches or the output of pruning that can not be done in place
+	 */
+	private float[] mSecond = new float[0];
+	
+	private float[] mKeyPts = new float[0];
+	private float[] mNeighbors = new float[2 * MATCH_FIELDS];
+	private int[] mZones = new int[0];
+
+	/**
+	 * Keeps the forward matches whose train point is matched back to their query point
+	 * @param forward matches from the query to the train descriptors
+	 * @param backward matches from the train to the query descriptors
+	 * @param out output, cross checked matches in the order of forward. May be forward itself
+	 */
+	public void crossCheck(MatOfDMatch forward, MatOfDMatch backward, MatOfDMatch out){
+		int count = read(forward);
+		mSecond = read(backward, mSecond);
+		int kept = crossCheck(mMatches, count, mSecond, backward.rows(), mMatches);
+		write(mMatches, kept, out);
+	}
+
+	/**
+	 * Keeps the match with the lowest distance in each zone of a zones x zones grid over
+	 * the query image
+	 * @param matches matches to prune
+	 * @param queryKeyPts key points the query indices refer to
+	 * @param zones number of zones along each side
+	 * @param height height of the query image
+	 * @param width width of the query image
+	 * @param out output, best match of every non empty zone in row major zone order.
+	 * May be matches itself
+	 */
+	public void localZones(MatOfDMatch matches, MatOfKeyPoint queryKeyPts, int zones,
+			int height, int width, MatOfDMatch out){
+		int count = read(matches);
+		mKeyPts = read(queryKeyPts, mKeyPts);
+		if (mZones.length < zones * zones)
+			mZones = new int[zones * zones];
+		if (mSecond.length < mMatches.length)
+			mSecond = new float[mMatches.length];
+		int kept = localZones(mMatches, count, mKeyPts, zones, height, width, mZones, mSecond);
+		write(mSecond, kept, out);
+	}
+
+	/**
+	 * Keeps the matches closer then factor times the smallest distance
+	 * @param matches matches to prune
+	 * @param factor multiple of the smallest distance a match has to be below
+	 * @param out output, kept matches in order. May be matches itself
+	 */
+	public void distanceCheck(MatOfDMatch matches, float factor, MatOfDMatch out){
+		int count = read(matches);
+		int kept = distanceCheck(mMatches, count, factor, mMatches);
+		write(mMatches, kept, out);
+	}
+
+	/**
+	 * Lowe's ratio test.  Keeps the nearest neighbor of every query whose distance is below
+	 * ratio times the distance of the second nearest, IE matches that are not ambiguous.
+	 * <b>The symmetric check additionally keeps only the closest query of every train point.
+	 * It rejects most of what a cross check with a second kNN pass in the opposite direction
+	 * rejects, at the cost of a single pass over the kept matches
+	 * @param knn nearest neighbors of every query ordered by distance, as returned by
+	 * DescriptorMatcher.knnMatch with k of at least 2.  Queries with a single neighbor are kept
+	 * @param ratio largest accepted ratio of the best to the second best distance
+	 * @param symmetric whether the closest query of every train point is the only one kept
+	 * @param out output, kept nearest neighbors in query order
+	 */
+	public void ratioTest(List<MatOfDMatch> knn, float ratio, boolean symmetric, MatOfDMatch out){
+		if (mMatches.length < knn.size() * MATCH_FIELDS)
+			mMatches = new float[knn.size() * MATCH_FIELDS];
+		int kept = 0;
+		int trainCount = 0;
+		for (int i = 0; i < knn.size(); ++i) {
+			MatOfDMatch neighbors = knn.get(i);
+			int k = neighbors.rows();
+			if (k == 0) continue;
+			mNeighbors = read(neighbors, mNeighbors);
+			if (k > 1 && !(mNeighbors[DISTANCE] < ratio * mNeighbors[MATCH_FIELDS + DISTANCE]))
+				continue;
+			copy(mNeighbors, 0, mMatches, kept++);
+			trainCount = Math.max(trainCount, (int) mNeighbors[TRAIN] + 1);
+		}
+		if (symmetric) {
+			if (mZones.length < trainCount)
+				mZones = new int[trainCount];
+			kept = uniqueTrain(mMatches, kept, trainCount, mZones, mMatches);
+		}
+		write(mMatches, kept, out);
+	}
+
+	/**
+	 * Keeps the nearest neighbor of every query whose second nearest neighbor is more
+	 * then threshold further away
+	 * @param knn nearest neighbors of every query ordered by distance, as returned by
+	 * DescriptorMatcher.knnMatch with k of at least 2.  Queries with a single neighbor are dropped
+	 * @param threshold smallest accepted difference of the best and second best distance
+	 * @param out output, kept nearest neighbors in query order
+	 */
+	public void distanceGap(List<MatOfDMatch> knn, float threshold, MatOfDMatch out){
+		if (mMatches.length < knn.size() * MATCH_FIELDS)
+			mMatches = new float[knn.size() * MATCH_FIELDS];
+		int kept = 0;
+		for (int i = 0; i < knn.size(); ++i) {
+			MatOfDMatch neighbors = knn.get(i);
+			if (neighbors.rows() < 2) continue;
+			mNeighbors = read(neighbors, mNeighbors);
+			if (Math.abs(mNeighbors[MATCH_FIELDS + DISTANCE] - mNeighbors[DISTANCE]) > threshold)
+				copy(mNeighbors, 0, mMatches, kept++);
+		}
+		write(mMatches, kept, out);
+	}
+
+	/**
+	 * Keeps only the match with the lowest distance of every train point, on arrays in 
+	 * the layout of MatOfDMatch.
+	 * @param matches matches to prune
+	 * @param count number of matches
+	 * @param trainCount number of train points, larger then every train index
+	 * @param best scratch array of at least trainCount elements
+	 * @param out output array at least as long as matches, may be matches itself
+	 * @return number of matches written to out, in their original order
+	 */
+	public static int uniqueTrain(float[] matches, int count, int trainCount, int[] best, float[] out){
+		for (int t = 0; t < trainCount; ++t)
+			best[t] = -1;
+		for (int i = 0; i < count; ++i) {
+			int t = (int) matches[i * MATCH_FIELDS + TRAIN];
+			if (best[t] < 0 || matches[i * MATCH_FIELDS + DISTANCE]
+					< matches[best[t] * MATCH_FIELDS + DISTANCE])
+				best[t] = i;
+		}
+		int kept = 0;
+		for (int i = 0; i < count; ++i) {
+			if (best[(int) matches[i * MATCH_FIELDS + TRAIN]] == i)
+				copy(matches, i, out, kept++);
+		}
+		return kept;
+	}
+
+	/**
+	 * Cross check on arrays in the layout of MatOfDMatch.
+	 * @param forward matches from the query to the train descriptors
+	 * @param count number of forward matches
+	 * @param backward matches from the train to the query descriptors, indexed by train index
+	 * @param backwardCount number of backward matches
+	 * @param out output array at least as long as forward, may be forward itself
+	 * @return number of matches written to out
+	 */
+	public static int crossCheck(float[] forward, int count, float[] backward, int backwardCount,
+			float[] out){
+		int kept = 0;
+		for (int i = 0; i < count; ++i) {
+			int f = i * MATCH_FIELDS;
+			int train = (int) forward[f + TRAIN];
+			if (train < 0 || train >= backwardCount) continue;
+			int b = train * MATCH_FIELDS;
+			if (backward[b + TRAIN] != forward[f + QUERY] || backward[b + QUERY] != forward[f + TRAIN])
+				continue;
+			copy(forward, i, out, kept++);
+		}
+		return kept;
+	}
+
+	/**
+	 * Zone pruning on arrays in the layout of MatOfDMatch and MatOfKeyPoint.
+	 * @param matches matches to prune
+	 * @param count number of matches
+	 * @param queryKeyPts key points the query indices refer to
+	 * @param zones number of zones along each side
+	 * @param height height of the query image
+	 * @param width width of the query image
+	 * @param best scratch array of at least zones * zones elements
+	 * @param out output array at least as long as matches, can not be matches
+	 * @return number of matches written to out
+	 */
+	public static int localZones(float[] matches, int count, float[] queryKeyPts, int zones,
+			int height, int width, int[] best, float[] out){
+		if (zones <= 0)
+			throw new IllegalArgumentException("Number of zones must be positive: " + zones);
+		if (out == matches)
+			throw new IllegalArgumentException("Zones can not be pruned in place");
+		int cells = zones * zones;
+		for (int z = 0; z < cells; ++z)
+			best[z] = -1;
+
+		double intervalX = width / (double) zones;
+		double intervalY = height / (double) zones;
+		for (int i = 0; i < count; ++i) {
+			int k = (int) matches[i * MATCH_FIELDS + QUERY] * KEYPOINT_FIELDS;
+			int zx = Math.min(zones - 1, Math.max(0, (int) (queryKeyPts[k] / intervalX)));
+			int zy = Math.min(zones - 1, Math.max(0, (int) (queryKeyPts[k + 1] / intervalY)));
+			int z = zx + zy * zones;
+			if (best[z] < 0 || matches[i * MATCH_FIELDS + DISTANCE]
+					< matches[best[z] * MATCH_FIELDS + DISTANCE])
+				best[z] = i;
+		}
+
+		int kept = 0;
+		for (int z = 0; z < cells; ++z) {
+			if (best[z] >= 0)
+				copy(matches, best[z], out, kept++);
+		}
+		return kept;
+	}
+
+	/**
+	 * Standard distance check on arrays in the layout of MatOfDMatch.
+	 * A smallest distance of zero is treated as one
+	 * @param matches matches to prune
+	 * @param count number of matches
+	 * @param factor multiple of the smallest distance a match has to be below
+	 * @param out output array at least as long as matches, may be matches itself
+	 * @return number of matches written to out
+	 */
+	public static int distanceCheck(float[] matches, int count, float factor, float[] out){
+		float min = Float.MAX_VALUE;
+		for (int i = 0; i < count; ++i)
+			min = Math.min(min, matches[i * MATCH_FIELDS + DISTANCE]);
+		if (min <= 0) min = 1;
+
+		float limit = factor * min;
+		int kept = 0;
+		for (int i = 0; i < count; ++i) {
+			if (matches[i * MATCH_FIELDS + DISTANCE] < limit)
+				copy(matches, i, out, kept++);
+		}
+		return kept;
+	}
+
+	/**
+	 * Reads matches into the match buffer
+	 * @return number of matches read
+	 */
+	private int read(MatOfDMatch matches){
+		mMatches = read(matches, mMatches);
+		return matches.rows();
+	}
+
+	/**
+	 * Copies the content of a float matrix into buffer, growing it when too small
+	 * @return buffer holding the content of m
+	 */
+	private static float[] read(Mat m, float[] buffer){
+		int length = (int) (m.total() * m.channels());
+		if (buffer.length < length)
+			buffer = new float[length];
+		if (length > 0)
+			m.get(0, 0, buffer);
+		return buffer;
+	}
+
+	/**
+	 * Writes the first count matches of data into out, reallocating only if out changes size
+	 */
+	private static void write(float[] data, int count, MatOfDMatch out){
+		out.create(count, 1, CvType.CV_32FC4);
+		if (count > 0)
+			out.put(0, 0, data);
+	}
+
+	private static void copy(float[] from, int i, float[] to, int j){
+		if (from == to && i == j) return;
+		System.arraycopy(from, i * MATCH_FIELDS, to, j * MATCH_FIELDS, MATCH_FIELDS);
+	}
+}
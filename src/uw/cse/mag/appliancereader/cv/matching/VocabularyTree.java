@@ -0,0 +1,441 @@
+package uw.cse.mag.appliancereader.cv.matching;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Vocabulary tree that quantizes binary descriptors into visual words.
+ * <b>The tree is built by hierarchical k-majority clustering: the training descriptors are split
+ * into branching clusters by Hamming distance, the center of every cluster is the bitwise
+ * majority of its descriptors and every cluster is split again until depth levels.  The leaves
+ * are the visual words, IE branching 10 and depth 4 give up to 10000 words.  A descriptor is
+ * quantized by descending to the closest child on every level, which costs branching * depth
+ * distances instead of one per word.
+ * <b>Descriptors are packed into longs, see pack(), so a Hamming distance is a few
+ * Long.bitCount calls.  Only binary descriptors whose length is a multiple of 8 bytes are
+ * supported, IE ORB, BRIEF, BRISK and FREAK.
+ * <b>Needs no native library so it can be trained offline on a plain JVM.  Immutable once built,
+ * can be shared between threads.
+ * @author mhotan
+ */
+public class VocabularyTree {
+
+	private final int mLength;
+	private final int mBranching, mDepth;
+
+	/**
+	 * Nodes in breadth first order of creation, the children of a node are consecutive.
+	 * The root is node 0 and has no center
+	 */
+	private final long[] mCenters;
+	private final int[] mFirstChild, mChildCount;
+
+	/**
+	 * Word of every node, -1 for inner nodes
+	 */
+	private final int[] mWord;
+	private final int mWordCount;
+
+	private VocabularyTree(int length, int branching, int depth, long[] centers,
+			int[] firstChild, int[] childCount, int[] word, int wordCount){
+		mLength = length;
+		mBranching = branching;
+		mDepth = depth;
+		mCenters = centers;
+		mFirstChild = firstChild;
+		mChildCount = childCount;
+		mWord = word;
+		mWordCount = wordCount;
+	}
+
+	/**
+	 * Clusters descriptors into a tree of visual words
+	 * @param descriptors packed descriptors, see pack()
+	 * @param count number of descriptors
+	 * @param length length of a packed descriptor in longs
+	 * @param branching number of children of every inner node, at least 2
+	 * @param depth number of levels below the root, at least 1
+	 * @param iterations most iterations of the clustering of every node
+	 * @param random source of the initial cluster centers, seeded for repeatable trees
+	 * @return trained tree
+	 */
+	public static VocabularyTree train(long[] descriptors, int count, int length, int branching,
+			int depth, int iterations, Random random){
+		if (count < 1 || length < 1 || descriptors.length < count * length)
+			throw new IllegalArgumentException("No descriptors to train the vocabulary with");
+		if (branching < 2 || depth < 1 || iterations < 1)
+			throw new IllegalArgumentException("Illegal vocabulary shape: branching " + branching
+					+ " depth " + depth + " iterations " + iterations);
+		Builder b = new Builder(descriptors, length, branching, iterations, random);
+		int[] indices = new int[count];
+		for (int i = 0; i < count; ++i)
+			indices[i] = i;
+		b.newNode(-1);
+		b.split(0, indices, 0, count, depth);
+		return b.build(depth);
+	}
+
+	/**
+	 * Packs rows of binary descriptors, IE read from a CV_8U Mat, into longs
+	 * @param bytes descriptors, one row after the other
+	 * @param count number of descriptors
+	 * @param bytesPerRow length of a descriptor in bytes, a multiple of 8
+	 * @param out output, at least count * bytesPerRow / 8 long
+	 */
+	public static void pack(byte[] bytes, int count, int bytesPerRow, long[] out){
+		if (bytesPerRow % 8 != 0)
+			throw new IllegalArgumentException("Descriptor length is not a multiple of 8 bytes: " + bytesPerRow);
+		int n = count * bytesPerRow / 8;
+		for (int i = 0; i < n; ++i) {
+			long l = 0;
+			int b = i * 8;
+			for (int j = 0; j < 8; ++j)
+				l |= (bytes[b + j] & 0xFFL) << (8 * j);
+			out[i] = l;
+		}
+	}
+
+	/**
+	 * @return length of a packed descriptor in longs
+	 */
+	public int getDescriptorLength(){
+		return mLength;
+	}
+
+	/**
+	 * @return number of visual words, IE leaves
+	 */
+	public int getWordCount(){
+		return mWordCount;
+	}
+
+	public int getBranching(){
+		return mBranching;
+	}
+
+	public int getDepth(){
+		return mDepth;
+	}
+
+	/**
+	 * @return hash of the cluster centers, differs between trees that quantize differently
+	 */
+	public int getSignature(){
+		return 31 * Arrays.hashCode(mCenters) + Arrays.hashCode(mFirstChild);
+	}
+
+	/**
+	 * Finds the visual word of a descriptor
+	 * @param descriptors packed descriptors
+	 * @param index index of the descriptor to quantize
+	 * @return word of the descriptor, between 0 and getWordCount() - 1
+	 */
+	public int quantize(long[] descriptors, int index){
+		int offset = index * mLength;
+		int node = 0;
+		while (mWord[node] < 0) {
+			int first = mFirstChild[node];
+			int best = first;
+			int bestDistance = Integer.MAX_VALUE;
+			for (int c = first; c < first + mChildCount[node]; ++c) {
+				int d = distance(descriptors, offset, mCenters, c * mLength, mLength);
+				if (d < bestDistance) {
+					bestDistance = d;
+					best = c;
+				}
+			}
+			node = best;
+		}
+		return mWord[node];
+	}
+
+	/**
+	 * @return Hamming distance between two packed descriptors
+	 */
+	static int distance(long[] a, int aOffset, long[] b, int bOffset, int length){
+		int d = 0;
+		for (int i = 0; i < length; ++i)
+			d += Long.bitCount(a[aOffset + i] ^ b[bOffset + i]);
+		return d;
+	}
+
+	/**
+	 * Writes the tree, the counterpart of readFrom()
+	 * @param out output to write to
+	 * @throws IOException if unable to write
+	 */
+	public void writeTo(DataOutput out) throws IOException {
+		out.writeInt(mLength);
+		out.writeInt(mBranching);
+		out.writeInt(mDepth);
+		out.writeInt(mWord.length);
+		for (int n = 0; n < mWord.length; ++n) {
+			out.writeInt(mFirstChild[n]);
+			out.writeInt(mChildCount[n]);
+			out.writeInt(mWord[n]);
+			for (int i = 0; i < mLength; ++i)
+				out.writeLong(mCenters[n * mLength + i]);
+		}
+	}
+
+	/**
+	 * Reads a tree written with writeTo()
+	 * @param in input to read from
+	 * @return tree that was written
+	 * @throws IOException if unable to read or the tree is corrupt
+	 */
+	public static VocabularyTree readFrom(DataInput in) throws IOException {
+		int length = in.readInt();
+		int branching = in.readInt();
+		int depth = in.readInt();
+		int nodes = in.readInt();
+		if (length < 1 || branching < 2 || depth < 1 || nodes < 1)
+			throw new IOException("Corrupt vocabulary tree");
+		long[] centers = new long[nodes * length];
+		int[] firstChild = new int[nodes];
+		int[] childCount = new int[nodes];
+		int[] word = new int[nodes];
+		int words = 0;
+		for (int n = 0; n < nodes; ++n) {
+			firstChild[n] = in.readInt();
+			childCount[n] = in.readInt();
+			word[n] = in.readInt();
+			for (int i = 0; i < length; ++i)
+				centers[n * length + i] = in.readLong();
+			if (word[n] >= 0)
+				words++;
+			else if (childCount[n] < 1 || firstChild[n] <= n || firstChild[n] + childCount[n] > nodes)
+				throw new IOException("Corrupt vocabulary tree node " + n);
+		}
+		for (int n = 0; n < nodes; ++n)
+			if (word[n] >= words)
+				throw new IOException("Corrupt vocabulary tree word " + word[n]);
+		return new VocabularyTree(length, branching, depth, centers, firstChild, childCount, word, words);
+	}
+
+	/**
+	 * Grows the nodes of a tree during training
+	 */
+	private static class Builder {
+
+		private final long[] mDescriptors;
+		private final int mLength, mBranching, mIterations;
+		private final Random mRandom;
+
+		private long[] mCenters;
+		private int[] mFirstChild, mChildCount, mWord;
+		private int mNodes, mWords;
+
+		// Buffers reused by every split
+		private final long[] mClusterCenters;
+		private final int[] mBitCounts;
+		private final int[] mSizes;
+
+		Builder(long[] descriptors, int length, int branching, int iterations, Random random){
+			mDescriptors = descriptors;
+			mLength = length;
+			mBranching = branching;
+			mIterations = iterations;
+			mRandom = random;
+			mCenters = new long[64 * length];
+			mFirstChild = new int[64];
+			mChildCount = new int[64];
+			mWord = new int[64];
+			mClusterCenters = new long[branching * length];
+			mBitCounts = new int[branching * length * 64];
+			mSizes = new int[branching];
+		}
+
+		int newNode(int cluster){
+			if (mNodes == mWord.length) {
+				int capacity = 2 * mNodes;
+				long[] centers = new long[capacity * mLength];
+				System.arraycopy(mCenters, 0, centers, 0, mCenters.length);
+				mCenters = centers;
+				mFirstChild = grow(mFirstChild, capacity);
+				mChildCount = grow(mChildCount, capacity);
+				mWord = grow(mWord, capacity);
+			}
+			if (cluster >= 0)
+				System.arraycopy(mClusterCenters, cluster * mLength, mCenters, mNodes * mLength, mLength);
+			mWord[mNodes] = -1;
+			return mNodes++;
+		}
+
+		private static int[] grow(int[] a, int capacity){
+			int[] b = new int[capacity];
+			System.arraycopy(a, 0, b, 0, a.length);
+			return b;
+		}
+
+		/**
+		 * Clusters the descriptors indices[from, to) of node and splits it
+		 * into children, or makes it a word
+		 */
+		void split(int node, int[] indices, int from, int to, int levels){
+			int n = to - from;
+			if (levels == 0 || n <= 1) {
+				mWord[node] = mWords++;
+				return;
+			}
+			int k = Math.min(mBranching, n);
+			int[] assignment = cluster(indices, from, to, k);
+
+			// Stable partition of the indices by cluster
+			for (int c = 0; c < k; ++c)
+				mSizes[c] = 0;
+			for (int i = 0; i < n; ++i)
+				mSizes[assignment[i]]++;
+			int nonEmpty = 0;
+			for (int c = 0; c < k; ++c)
+				if (mSizes[c] > 0) nonEmpty++;
+			if (nonEmpty < 2) {
+				// Identical descriptors can not be split any further
+				mWord[node] = mWords++;
+				return;
+			}
+			int[] starts = new int[k + 1];
+			for (int c = 0; c < k; ++c)
+				starts[c + 1] = starts[c] + mSizes[c];
+			int[] sorted = new int[n];
+			int[] next = new int[k];
+			System.arraycopy(starts, 0, next, 0, k);
+			for (int i = 0; i < n; ++i)
+				sorted[next[assignment[i]]++] = indices[from + i];
+			System.arraycopy(sorted, 0, indices, from, n);
+
+			// Children are created before recursing so they are consecutive
+			int[] children = new int[k];
+			int first = -1;
+			for (int c = 0; c < k; ++c) {
+				if (starts[c + 1] == starts[c]) continue;
+				children[c] = newNode(c);
+				if (first < 0) first = children[c];
+			}
+			mFirstChild[node] = first;
+			mChildCount[node] = nonEmpty;
+			for (int c = 0; c < k; ++c) {
+				if (starts[c + 1] == starts[c]) continue;
+				split(children[c], indices, from + starts[c], from + starts[c + 1], levels - 1);
+			}
+		}
+
+		/**
+		 * k-majority clustering of the descriptors indices[from, to), the centers are left in
+		 * mClusterCenters
+		 * @return cluster of every descriptor
+		 */
+		private int[] cluster(int[] indices, int from, int to, int k){
+			int n = to - from;
+			seed(indices, from, n, k);
+			int[] assignment = new int[n];
+			Arrays.fill(assignment, -1);
+			for (int it = 0; it < mIterations; ++it) {
+				boolean changed = false;
+				for (int i = 0; i < n; ++i) {
+					int c = closest(indices[from + i] * mLength, k);
+					if (c != assignment[i]) {
+						assignment[i] = c;
+						changed = true;
+					}
+				}
+				if (!changed)
+					break;
+
+				// Every bit of a center is the majority of the bits of its cluster
+				Arrays.fill(mBitCounts, 0, k * mLength * 64, 0);
+				Arrays.fill(mSizes, 0, k, 0);
+				for (int i = 0; i < n; ++i) {
+					int c = assignment[i];
+					mSizes[c]++;
+					int offset = indices[from + i] * mLength;
+					int counts = c * mLength * 64;
+					for (int w = 0; w < mLength; ++w) {
+						long bits = mDescriptors[offset + w];
+						while (bits != 0) {
+							int bit = Long.numberOfTrailingZeros(bits);
+							mBitCounts[counts + w * 64 + bit]++;
+							bits &= bits - 1;
+						}
+					}
+				}
+				for (int c = 0; c < k; ++c) {
+					// An empty cluster keeps its center
+					if (mSizes[c] == 0) continue;
+					int counts = c * mLength * 64;
+					for (int w = 0; w < mLength; ++w) {
+						long center = 0;
+						for (int bit = 0; bit < 64; ++bit)
+							if (2 * mBitCounts[counts + w * 64 + bit] > mSizes[c])
+								center |= 1L << bit;
+						mClusterCenters[c * mLength + w] = center;
+					}
+				}
+			}
+			return assignment;
+		}
+
+		/**
+		 * k-means++ seeding, every next center is drawn with a probability proportional
+		 * to the squared distance to the closest center so far
+		 */
+		private void seed(int[] indices, int from, int n, int k){
+			int first = indices[from + mRandom.nextInt(n)];
+			System.arraycopy(mDescriptors, first * mLength, mClusterCenters, 0, mLength);
+			long[] weights = new long[n];
+			for (int i = 0; i < n; ++i)
+				weights[i] = Long.MAX_VALUE;
+			for (int c = 1; c < k; ++c) {
+				long total = 0;
+				for (int i = 0; i < n; ++i) {
+					long d = distance(mDescriptors, indices[from + i] * mLength,
+							mClusterCenters, (c - 1) * mLength, mLength);
+					weights[i] = Math.min(weights[i], d * d);
+					total += weights[i];
+				}
+				int chosen;
+				if (total == 0)
+					chosen = mRandom.nextInt(n);
+				else {
+					long r = (long) (mRandom.nextDouble() * total);
+					chosen = 0;
+					while (chosen < n - 1 && r >= weights[chosen]) {
+						r -= weights[chosen];
+						chosen++;
+					}
+				}
+				System.arraycopy(mDescriptors, indices[from + chosen] * mLength,
+						mClusterCenters, c * mLength, mLength);
+			}
+		}
+
+		private int closest(int offset, int k){
+			int best = 0;
+			int bestDistance = Integer.MAX_VALUE;
+			for (int c = 0; c < k; ++c) {
+				int d = distance(mDescriptors, offset, mClusterCenters, c * mLength, mLength);
+				if (d < bestDistance) {
+					bestDistance = d;
+					best = c;
+				}
+			}
+			return best;
+		}
+
+		VocabularyTree build(int depth){
+			long[] centers = new long[mNodes * mLength];
+			System.arraycopy(mCenters, 0, centers, 0, centers.length);
+			int[] firstChild = new int[mNodes];
+			int[] childCount = new int[mNodes];
+			int[] word = new int[mNodes];
+			System.arraycopy(mFirstChild, 0, firstChild, 0, mNodes);
+			System.arraycopy(mChildCount, 0, childCount, 0, mNodes);
+			System.arraycopy(mWord, 0, word, 0, mNodes);
+			return new VocabularyTree(mLength, mBranching, depth, centers,
+					firstChild, childCount, word, mWords);
+		}
+	}
+}
@@ -4,18 +4,26 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.LinkedList;
 import java.util.List;
 
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfKeyPoint;
 import org.opencv.core.Point;
 import org.xmlpull.v1.XmlSerializer;
 
+import uw.cse.mag.appliancereader.cv.matching.ApplianceDatabase;
+import uw.cse.mag.appliancereader.cv.matching.VocabularyTree;
 import uw.cse.mag.appliancereader.db.datatype.Appliance;
 import uw.cse.mag.appliancereader.db.datatype.ApplianceFeature;
 import uw.cse.mag.appliancereader.db.datatype.ApplianceFeatureFactory;
 import uw.cse.mag.appliancereader.db.datatype.ApplianceFeatures;
 import uw.cse.mag.appliancereader.db.datatype.ApplianceXMLParser;
+import uw.cse.mag.appliancereader.util.FeatureIO;
 import uw.cse.mag.appliancereader.util.ImageIO;
+import uw.cse.mag.appliancereader.util.VocabularyIO;
 import uw.cse.mag.appliancereader.util.Util;
 import android.graphics.Bitmap;
 import android.os.Environment;
@@ -32,8 +40,10 @@ import android.util.Xml;
 	<b>---A
 	<b>----TODO: Add meta data including the ID 
 	<b>----reference image directory
-	<b>----other images (optional)
+	<b>----other images (optional, other views of the appliance IE from oblique angles)
 	<b>----XML file directory (Thing that describes all the features)
+	<b>----feature cache directory (key points and descriptors of the reference image)
+	<b>--Recognition (vocabulary trees and the appliance databases built with them)
  * <b>
  * Thread safe class for file management Read and Write access
  * <b>This class is specific for Appliance Reader
@@ -47,6 +57,7 @@ public class FileManager {
 	// Directories
 	public static final String DATA_PATH = Environment.getExternalStorageDirectory().toString() + "/ApplianceReaderSpecific/";
 	public static final String APPLIANCES_PATH = DATA_PATH + "Appliances/";
+	public static final String RECOGNITION_PATH = DATA_PATH + "Recognition/";
 
 	// General Storage.. Can store anything in here for short term use.
 	// Does not handle name space issues
@@ -55,13 +66,20 @@ public class FileManager {
 	private static final String REFERENCE_IMAGES_DIR = "REF-Images/";
 	private static final String OTHER_IMAGES_DIR = "OTHER-Images/";
 	private static final String XML_FILE_DIR = "XML-File/";
+	private static final String FEATURE_CACHE_DIR = "Feature-Cache/";
 	private static final String[] APPLIANCE_SUBDIRECTORIES = 
-			new String[]{REFERENCE_IMAGES_DIR, OTHER_IMAGES_DIR, XML_FILE_DIR};
+			new String[]{REFERENCE_IMAGES_DIR, OTHER_IMAGES_DIR, XML_FILE_DIR, FEATURE_CACHE_DIR};
 	// Potentially can add more subdirectories
 
 	// Generic file names
 	private static final String REFERENCE_IMG_FILE = "REF.jpg";
+	private static final String OTHER_IMG_PREFIX = "VIEW_";
+	private static final String OTHER_IMG_EXTENSION = ".jpg";
 	private static final String XML_FEATURES_FILE = "features.xml";
+	private static final String FEATURE_CACHE_EXTENSION = ".feat";
+	private static final String VIEW_MAPPING_EXTENSION = ".map";
+	private static final String VOCABULARY_EXTENSION = ".voc";
+	private static final String APPLIANCE_DATABASE_EXTENSION = ".bow";
 
 	// Pattern matchers
 	//	private static final Pattern mNonAlphaNumeric = Pattern.compile("^([A-Za-z]|[0-9]|-|_)+$"); 
@@ -85,7 +103,7 @@ public class FileManager {
 	 * <b>Has to make sure the root directories are saved
 	 */
 	private FileManager(){
-		String[] directories =  new String[] {DATA_PATH, APPLIANCES_PATH};
+		String[] directories =  new String[] {DATA_PATH, APPLIANCES_PATH, RECOGNITION_PATH};
 		addDirectories(directories);
 		mApplianceDirectories = new LinkedList<String>();
 	}
@@ -191,14 +209,37 @@ public class FileManager {
 		// Check if appliance exist
 		if (hasAppliance(appliance)){
 			String refPath = appliance.getDirectoryPath() + REFERENCE_IMAGES_DIR + REFERENCE_IMG_FILE;
-			ImageIO.saveBitmapToFile(newRefImg, refPath);	
+			ImageIO.saveBitmapToFile(newRefImg, refPath);
+			// Features of the previous reference image are no longer valid
+			deleteDirectory(appliance.getDirectoryPath() + FEATURE_CACHE_DIR);
 		} else
 			throw new ApplianceNotExistException(appliance);
 	}
 
-	public synchronized void addOtherImage(String appliance, Bitmap b) {
-		// Check if appliance exist
-		// TODO implements
+	/**
+	 * Stores another view of the appliance next to its reference image, IE taken
+	 * from an oblique angle.  Views are named in the order they were added
+	 * 
+	 * @param appliance Appliance to store the view with
+	 * @param b image of the view
+	 * @return path of the stored view or null if the appliance does not exist
+	 */
+	public synchronized String addOtherImage(Appliance appliance, Bitmap b) {
+		if (b == null)
+			throw new IllegalArgumentException("Illegal input: NULL Bitmap");
+		if (!hasAppliance(appliance))
+			return null;
+		
+		// Appliances created before views were supported do not have the directory
+		String dir = appliance.getDirectoryPath() + OTHER_IMAGES_DIR;
+		addDirectory(dir);
+		int n = getOtherImages(appliance).size();
+		File f;
+		do {
+			f = new File(dir + OTHER_IMG_PREFIX + (n++) + OTHER_IMG_EXTENSION);
+		} while (f.exists());
+		ImageIO.saveBitmapToFile(b, f.getAbsolutePath());
+		return f.getAbsolutePath();
 	}
 
 	/**
@@ -305,6 +346,36 @@ public class FileManager {
 		}
 	}
 
+	/**
+	 * Stores the key points and descriptors of the reference image of appliance.
+	 * Features computed with a different configuration are stored in a different file.
+	 * 
+	 * @param appliance Appliance the reference image belongs to
+	 * @param key Configuration the features were computed with, IE resolution, 
+	 * rotation and detector. Should only contain characters valid in a file name 
+	 * @param keyPts key points of the reference image
+	 * @param descriptors descriptors of the key points
+	 * @return whether the features were stored
+	 */
+	public synchronized boolean addReferenceFeatures(Appliance appliance, String key, 
+			MatOfKeyPoint keyPts, Mat descriptors) {
+		if (!hasAppliance(appliance))
+			return false;
+		
+		// Appliances created before the cache existed do not have the directory
+		String cacheDir = appliance.getDirectoryPath() + FEATURE_CACHE_DIR;
+		addDirectory(cacheDir);
+		File cacheFile = new File(cacheDir + key + FEATURE_CACHE_EXTENSION);
+		try {
+			FeatureIO.writeFeatures(cacheFile, key, keyPts, descriptors);
+		} catch (IOException e) {
+			Log.e(TAG, "Unable to store reference features at: " + cacheFile + " " + e.getMessage());
+			cacheFile.delete();
+			return false;
+		}
+		return true;
+	}
+	
 	/**
 	 * Deletes this appliance from the entire file system
 	 * @param appliance Appliance to delete
@@ -341,11 +412,118 @@ public class FileManager {
 		return null;
 	}
 
-	public synchronized List<String> getOtherImages(String appliance){
-		// TODO Implement, beware list of bitmap is very straining on android
+	/**
+	 * Paths instead of images are returned, a list of bitmaps is very straining on android
+	 * 
+	 * @param appliance Appliance whose views to find
+	 * @return paths of every view stored with addOtherImage in the order they were added,
+	 * empty if there is none
+	 */
+	public synchronized List<String> getOtherImages(Appliance appliance){
+		List<String> paths = new LinkedList<String>();
+		if (!hasAppliance(appliance))
+			return paths;
+		String[] names = new File(appliance.getDirectoryPath() + OTHER_IMAGES_DIR).list();
+		if (names == null)
+			return paths;
+		// Views are numbered, the ones added later have longer names
+		Arrays.sort(names, new Comparator<String>() {
+			@Override
+			public int compare(String a, String b) {
+				return a.length() != b.length() ? a.length() - b.length() : a.compareTo(b);
+			}
+		});
+		for (String name: names) {
+			if (name.startsWith(OTHER_IMG_PREFIX) && name.endsWith(OTHER_IMG_EXTENSION))
+				paths.add(appliance.getDirectoryPath() + OTHER_IMAGES_DIR + name);
+		}
+		return paths;
+	}
+
+	/**
+	 * Stores the homography that maps a view of the appliance onto its reference image,
+	 * so the polygons of the reference image apply to the view
+	 * 
+	 * @param appliance Appliance the view belongs to
+	 * @param key Configuration the homography was estimated with, IE view, resolution 
+	 * and detector. Should only contain characters valid in a file name
+	 * @param homography 3x3 homography from the view to the reference in row major order
+	 * @return whether the homography was stored
+	 */
+	public synchronized boolean addViewMapping(Appliance appliance, String key, double[] homography) {
+		if (!hasAppliance(appliance))
+			return false;
+		
+		String cacheDir = appliance.getDirectoryPath() + FEATURE_CACHE_DIR;
+		addDirectory(cacheDir);
+		File cacheFile = new File(cacheDir + key + VIEW_MAPPING_EXTENSION);
+		try {
+			FeatureIO.writeHomography(cacheFile, key, homography);
+		} catch (IOException e) {
+			Log.e(TAG, "Unable to store view mapping at: " + cacheFile + " " + e.getMessage());
+			cacheFile.delete();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Loads the homography of a view stored with addViewMapping under the same key
+	 * 
+	 * @param appliance Appliance the view belongs to
+	 * @param key Configuration the homography was estimated with
+	 * @return 3x3 homography from the view to the reference or null if none is stored
+	 */
+	public synchronized double[] getViewMapping(Appliance appliance, String key) {
+		if (!hasAppliance(appliance))
+			return null;
+		
+		File cacheFile = new File(appliance.getDirectoryPath() + FEATURE_CACHE_DIR 
+				+ key + VIEW_MAPPING_EXTENSION);
+		if (!cacheFile.exists())
+			return null;
+		try {
+			double[] h = FeatureIO.readHomography(cacheFile, key);
+			if (h != null)
+				return h;
+			Log.w(TAG, "Stale view mapping at: " + cacheFile);
+		} catch (IOException e) {
+			Log.e(TAG, "Unable to load view mapping at: " + cacheFile + " " + e.getMessage());
+		}
+		cacheFile.delete();
 		return null;
 	}
 
+	/**
+	 * Loads the key points and descriptors of the reference image of appliance
+	 * that were stored with addReferenceFeatures under the same key.
+	 * 
+	 * @param appliance Appliance the reference image belongs to
+	 * @param key Configuration the features were computed with
+	 * @param keyPts output key points
+	 * @param descriptors output descriptors
+	 * @return false if no features are stored for this key
+	 */
+	public synchronized boolean getReferenceFeatures(Appliance appliance, String key, 
+			MatOfKeyPoint keyPts, Mat descriptors) {
+		if (!hasAppliance(appliance))
+			return false;
+		
+		File cacheFile = new File(appliance.getDirectoryPath() + FEATURE_CACHE_DIR 
+				+ key + FEATURE_CACHE_EXTENSION);
+		if (!cacheFile.exists())
+			return false;
+		try {
+			if (FeatureIO.readFeatures(cacheFile, key, keyPts, descriptors))
+				return true;
+			Log.w(TAG, "Stale reference features at: " + cacheFile);
+		} catch (IOException e) {
+			Log.e(TAG, "Unable to load reference features at: " + cacheFile + " " + e.getMessage());
+		}
+		cacheFile.delete();
+		return false;
+	}
+
 	/**
 	 * 
 	 * @param appliance
@@ -366,6 +544,98 @@ public class FileManager {
 	}
 
 
+	////////////////////////////////////////////////////////////////////
+	// Recognition storage shared by every appliance
+	////////////////////////////////////////////////////////////////////
+
+	/**
+	 * Loads the vocabulary tree stored under key, IE trained offline and copied
+	 * to RECOGNITION_PATH as key.voc
+	 * 
+	 * @param key Configuration of the descriptors the vocabulary quantizes
+	 * @return vocabulary or null if none is stored for this key
+	 */
+	public synchronized VocabularyTree getVocabulary(String key) {
+		File file = new File(RECOGNITION_PATH + key + VOCABULARY_EXTENSION);
+		if (!file.exists())
+			return null;
+		try {
+			VocabularyTree tree = VocabularyIO.readVocabulary(file, key);
+			if (tree != null)
+				return tree;
+			Log.w(TAG, "Stale vocabulary at: " + file);
+		} catch (IOException e) {
+			Log.e(TAG, "Unable to load vocabulary at: " + file + " " + e.getMessage());
+		}
+		file.delete();
+		return null;
+	}
+
+	/**
+	 * Stores a vocabulary tree under key, replacing the previous one
+	 * 
+	 * @param key Configuration of the descriptors the vocabulary quantizes.
+	 * Should only contain characters valid in a file name
+	 * @param tree vocabulary to store
+	 * @return whether the vocabulary was stored
+	 */
+	public synchronized boolean setVocabulary(String key, VocabularyTree tree) {
+		addDirectory(RECOGNITION_PATH);
+		File file = new File(RECOGNITION_PATH + key + VOCABULARY_EXTENSION);
+		try {
+			VocabularyIO.writeVocabulary(file, key, tree);
+		} catch (IOException e) {
+			Log.e(TAG, "Unable to store vocabulary at: " + file + " " + e.getMessage());
+			file.delete();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Loads the appliance database stored under key
+	 * 
+	 * @param key Configuration the descriptors of the appliances were computed with
+	 * @param tree Vocabulary the database has to be built with
+	 * @return database or null if none is stored for this key and vocabulary
+	 */
+	public synchronized ApplianceDatabase getApplianceDatabase(String key, VocabularyTree tree) {
+		File file = new File(RECOGNITION_PATH + key + APPLIANCE_DATABASE_EXTENSION);
+		if (!file.exists())
+			return null;
+		try {
+			ApplianceDatabase database = VocabularyIO.readDatabase(file, key, tree);
+			if (database != null)
+				return database;
+			Log.w(TAG, "Stale appliance database at: " + file);
+		} catch (IOException e) {
+			Log.e(TAG, "Unable to load appliance database at: " + file + " " + e.getMessage());
+		}
+		file.delete();
+		return null;
+	}
+
+	/**
+	 * Stores an appliance database under key, replacing the previous one
+	 * 
+	 * @param key Configuration the descriptors of the appliances were computed with.
+	 * Should only contain characters valid in a file name
+	 * @param database database to store
+	 * @return whether the database was stored
+	 */
+	public synchronized boolean setApplianceDatabase(String key, ApplianceDatabase database) {
+		addDirectory(RECOGNITION_PATH);
+		File file = new File(RECOGNITION_PATH + key + APPLIANCE_DATABASE_EXTENSION);
+		try {
+			VocabularyIO.writeDatabase(file, key, database);
+		} catch (IOException e) {
+			Log.e(TAG, "Unable to store appliance database at: " + file + " " + e.getMessage());
+			file.delete();
+			return false;
+		}
+		return true;
+	}
+
 	////////////////////////////////////////////////////////////////////
 	// Private Helper Methods
 	////////////////////////////////////////////////////////////////////
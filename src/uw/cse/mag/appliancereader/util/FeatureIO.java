@@ -0,0 +1,204 @@
+package uw.cse.mag.appliancereader.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfKeyPoint;
+
+/**
+ * Compact binary storage of key points and descriptors.
+ * <b>The layout of a file is
+ * <b>magic, version, key, number of key points, 7 floats per key point
+ * (x, y, size, angle, response, octave, class id), descriptor rows, columns, type
+ * and the raw descriptor values.
+ * <b>The layout of a homography file, IE the mapping of another view of an appliance
+ * onto its reference image, is
+ * <b>magic, version, key and the 9 doubles of the homography in row major order.
+ * <b>The key describes the configuration the features were computed with
+ * so stale files are detected on load.
+ * @author mhotan
+ */
+public class FeatureIO {
+
+	private static final int MAGIC = 0x41524654; // "ARFT"
+	private static final int HOMOGRAPHY_MAGIC = 0x4152484D; // "ARHM"
+	private static final int VERSION = 1;
+
+	/**
+	 * Number of floats that describe a single key point
+	 */
+	private static final int KEYPOINT_FIELDS = 7;
+
+	/**
+	 * Writes key points and descriptors to file, replacing any previous content
+	 * @param file File to write to
+	 * @param key Configuration the features were computed with
+	 * @param keyPts key points to write
+	 * @param descriptors descriptors of key points, CV_8U or CV_32F
+	 * @throws IOException if unable to write file
+	 */
+	public static void writeFeatures(File file, String key, MatOfKeyPoint keyPts, Mat descriptors)
+			throws IOException {
+		if (key == null || keyPts == null || descriptors == null)
+			throw new IllegalArgumentException("Null argument to write features");
+		int depth = CvType.depth(descriptors.type());
+		if (depth != CvType.CV_8U && depth != CvType.CV_32F)
+			throw new IllegalArgumentException("Unsupported descriptor type " + CvType.typeToString(descriptors.type()));
+		if (!descriptors.isContinuous())
+			descriptors = descriptors.clone();
+
+		DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(file)));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeUTF(key);
+
+			int numKeyPts = keyPts.rows();
+			out.writeInt(numKeyPts);
+			if (numKeyPts > 0) {
+				float[] kp = new float[numKeyPts * KEYPOINT_FIELDS];
+				keyPts.get(0, 0, kp);
+				for (float f: kp)
+					out.writeFloat(f);
+			}
+
+			out.writeInt(descriptors.rows());
+			out.writeInt(descriptors.cols());
+			out.writeInt(descriptors.type());
+			int size = (int) descriptors.total() * descriptors.channels();
+			if (size > 0) {
+				if (depth == CvType.CV_8U) {
+					byte[] d = new byte[size];
+					descriptors.get(0, 0, d);
+					out.write(d);
+				} else {
+					float[] d = new float[size];
+					descriptors.get(0, 0, d);
+					for (float f: d)
+						out.writeFloat(f);
+				}
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Reads key points and descriptors previously written with writeFeatures.
+	 * @param file File to read from
+	 * @param key Configuration the caller expects
+	 * @param keyPts output key points
+	 * @param descriptors output descriptors
+	 * @return false if the file was written with a different key or version
+	 * @throws IOException if the file can not be read or is corrupt
+	 */
+	public static boolean readFeatures(File file, String key, MatOfKeyPoint keyPts, Mat descriptors)
+			throws IOException {
+		if (key == null || keyPts == null || descriptors == null)
+			throw new IllegalArgumentException("Null argument to read features");
+		DataInputStream in = new DataInputStream(
+				new BufferedInputStream(new FileInputStream(file)));
+		try {
+			if (in.readInt() != MAGIC)
+				throw new IOException("Not a feature file: " + file);
+			if (in.readInt() != VERSION || !key.equals(in.readUTF()))
+				return false;
+
+			int numKeyPts = in.readInt();
+			if (numKeyPts < 0)
+				throw new IOException("Corrupt feature file: " + file);
+			float[] kp = new float[numKeyPts * KEYPOINT_FIELDS];
+			for (int i = 0; i < kp.length; ++i)
+				kp[i] = in.readFloat();
+
+			int rows = in.readInt();
+			int cols = in.readInt();
+			int type = in.readInt();
+			int depth = CvType.depth(type);
+			if (rows < 0 || cols < 0 || (depth != CvType.CV_8U && depth != CvType.CV_32F))
+				throw new IOException("Corrupt feature file: " + file);
+
+			keyPts.create(numKeyPts, 1, CvType.CV_32FC(KEYPOINT_FIELDS));
+			if (numKeyPts > 0)
+				keyPts.put(0, 0, kp);
+
+			descriptors.create(rows, cols, type);
+			int size = rows * cols * CvType.channels(type);
+			if (size > 0) {
+				if (depth == CvType.CV_8U) {
+					byte[] d = new byte[size];
+					in.readFully(d);
+					descriptors.put(0, 0, d);
+				} else {
+					float[] d = new float[size];
+					for (int i = 0; i < size; ++i)
+						d[i] = in.readFloat();
+					descriptors.put(0, 0, d);
+				}
+			}
+			return true;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Writes a homography to file, replacing any previous content
+	 * @param file File to write to
+	 * @param key Configuration the homography was estimated with
+	 * @param homography 3x3 homography in row major order
+	 * @throws IOException if unable to write file
+	 */
+	public static void writeHomography(File file, String key, double[] homography)
+			throws IOException {
+		if (key == null || homography == null || homography.length != 9)
+			throw new IllegalArgumentException("Illegal argument to write homography");
+		DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(file)));
+		try {
+			out.writeInt(HOMOGRAPHY_MAGIC);
+			out.writeInt(VERSION);
+			out.writeUTF(key);
+			for (double d: homography)
+				out.writeDouble(d);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Reads a homography previously written with writeHomography.
+	 * @param file File to read from
+	 * @param key Configuration the caller expects
+	 * @return 3x3 homography in row major order or null if the file was written
+	 * with a different key or version
+	 * @throws IOException if the file can not be read or is corrupt
+	 */
+	public static double[] readHomography(File file, String key) throws IOException {
+		if (key == null)
+			throw new IllegalArgumentException("Null argument to read homography");
+		DataInputStream in = new DataInputStream(
+				new BufferedInputStream(new FileInputStream(file)));
+		try {
+			if (in.readInt() != HOMOGRAPHY_MAGIC)
+				throw new IOException("Not a homography file: " + file);
+			if (in.readInt() != VERSION || !key.equals(in.readUTF()))
+				return null;
+			double[] h = new double[9];
+			for (int i = 0; i < 9; ++i)
+				h[i] = in.readDouble();
+			return h;
+		} finally {
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,126 @@
+package uw.cse.mag.appliancereader.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import uw.cse.mag.appliancereader.cv.matching.ApplianceDatabase;
+import uw.cse.mag.appliancereader.cv.matching.VocabularyTree;
+
+/**
+ * Compact binary storage of vocabulary trees and of the appliance databases built with them.
+ * <b>The layout of a vocabulary file is
+ * <b>magic, version, key and the nodes of the tree, see VocabularyTree.writeTo().
+ * <b>The layout of a database file is
+ * <b>magic, version, key, signature of the vocabulary and the word histogram of every
+ * appliance, see ApplianceDatabase.writeTo().
+ * <b>The key describes the configuration the descriptors were computed with and the
+ * signature the vocabulary they were quantized with, so stale files are detected on load.
+ * @author mhotan
+ */
+public class VocabularyIO {
+
+	private static final int VOCABULARY_MAGIC = 0x41525654; // "ARVT"
+	private static final int DATABASE_MAGIC = 0x41524442; // "ARDB"
+	private static final int VERSION = 1;
+
+	/**
+	 * Writes a vocabulary tree to file, replacing any previous content
+	 * @param file File to write to
+	 * @param key Configuration the descriptors of the vocabulary were computed with
+	 * @param tree vocabulary to write
+	 * @throws IOException if unable to write file
+	 */
+	public static void writeVocabulary(File file, String key, VocabularyTree tree) throws IOException {
+		if (key == null || tree == null)
+			throw new IllegalArgumentException("Null argument to write vocabulary");
+		DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(file)));
+		try {
+			out.writeInt(VOCABULARY_MAGIC);
+			out.writeInt(VERSION);
+			out.writeUTF(key);
+			tree.writeTo(out);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Reads a vocabulary tree previously written with writeVocabulary.
+	 * @param file File to read from
+	 * @param key Configuration the caller expects
+	 * @return vocabulary or null if the file was written with a different key or version
+	 * @throws IOException if the file can not be read or is corrupt
+	 */
+	public static VocabularyTree readVocabulary(File file, String key) throws IOException {
+		if (key == null)
+			throw new IllegalArgumentException("Null argument to read vocabulary");
+		DataInputStream in = new DataInputStream(
+				new BufferedInputStream(new FileInputStream(file)));
+		try {
+			if (in.readInt() != VOCABULARY_MAGIC)
+				throw new IOException("Not a vocabulary file: " + file);
+			if (in.readInt() != VERSION || !key.equals(in.readUTF()))
+				return null;
+			return VocabularyTree.readFrom(in);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Writes an appliance database to file, replacing any previous content
+	 * @param file File to write to
+	 * @param key Configuration the descriptors of the appliances were computed with
+	 * @param database database to write
+	 * @throws IOException if unable to write file
+	 */
+	public static void writeDatabase(File file, String key, ApplianceDatabase database) throws IOException {
+		if (key == null || database == null)
+			throw new IllegalArgumentException("Null argument to write appliance database");
+		DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(file)));
+		try {
+			out.writeInt(DATABASE_MAGIC);
+			out.writeInt(VERSION);
+			out.writeUTF(key);
+			out.writeInt(database.getVocabulary().getSignature());
+			database.writeTo(out);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Reads an appliance database previously written with writeDatabase.
+	 * @param file File to read from
+	 * @param key Configuration the caller expects
+	 * @param tree Vocabulary the caller quantizes with
+	 * @return database or null if the file was written with a different key, version
+	 * or vocabulary
+	 * @throws IOException if the file can not be read or is corrupt
+	 */
+	public static ApplianceDatabase readDatabase(File file, String key, VocabularyTree tree)
+			throws IOException {
+		if (key == null || tree == null)
+			throw new IllegalArgumentException("Null argument to read appliance database");
+		DataInputStream in = new DataInputStream(
+				new BufferedInputStream(new FileInputStream(file)));
+		try {
+			if (in.readInt() != DATABASE_MAGIC)
+				throw new IOException("Not an appliance database file: " + file);
+			if (in.readInt() != VERSION || !key.equals(in.readUTF())
+					|| in.readInt() != tree.getSignature())
+				return null;
+			return ApplianceDatabase.readFrom(in, tree);
+		} finally {
+			in.close();
+		}
+	}
+}